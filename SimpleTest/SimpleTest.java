@@ -1,48 +1,429 @@
 
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+
 class SimpleTest {
 
+    // the number of different methods called by the fan-out test
+    private static final int LEAF_COUNT = 16;
+
     public SimpleTest() {
     }
- 
+
     public void dummy() {
     }
- 
+
     public void addNums() {
         int x = 7;
         int y = 11;
         int z = x + y;
     }
- 
+
     public int testSimpleReturn() {
         return 31;
     }
- 
+
     public void testSimpleParameter(int x) {
     }
- 
+
     public int testParameterAndReturn(int x) {
         int y = -1;
         int z = x + y;
         return z;
     }
- 
+
     public void testNestedCall(SimpleTest t) {
         t.addNums();
     }
- 
+
+    // test 1: deep recursion
+    public void recurse(int depth) {
+        if (depth > 1) {
+            recurse(depth - 1);
+        }
+    }
+
+    // test 3: a method calling many different methods
+    public void fanOut(int width) {
+        for (int ix = 0; ix < width; ix++) {
+            switch (ix % LEAF_COUNT) {
+                case 0:  leaf0();  break;
+                case 1:  leaf1();  break;
+                case 2:  leaf2();  break;
+                case 3:  leaf3();  break;
+                case 4:  leaf4();  break;
+                case 5:  leaf5();  break;
+                case 6:  leaf6();  break;
+                case 7:  leaf7();  break;
+                case 8:  leaf8();  break;
+                case 9:  leaf9();  break;
+                case 10: leaf10(); break;
+                case 11: leaf11(); break;
+                case 12: leaf12(); break;
+                case 13: leaf13(); break;
+                case 14: leaf14(); break;
+                default: leaf15(); break;
+            }
+        }
+    }
+
+    public void leaf0() {
+    }
+
+    public void leaf1() {
+    }
+
+    public void leaf2() {
+    }
+
+    public void leaf3() {
+    }
+
+    public void leaf4() {
+    }
+
+    public void leaf5() {
+    }
+
+    public void leaf6() {
+    }
+
+    public void leaf7() {
+    }
+
+    public void leaf8() {
+    }
+
+    public void leaf9() {
+    }
+
+    public void leaf10() {
+    }
+
+    public void leaf11() {
+    }
+
+    public void leaf12() {
+    }
+
+    public void leaf13() {
+    }
+
+    public void leaf14() {
+    }
+
+    public void leaf15() {
+    }
+
+    // test 4: each type of parameter and return value
+    public void takeBoolean(boolean x) {
+    }
+
+    public void takeChar(char x) {
+    }
+
+    public void takeByte(byte x) {
+    }
+
+    public void takeShort(short x) {
+    }
+
+    public void takeInt(int x) {
+    }
+
+    public void takeLong(long x) {
+    }
+
+    public void takeFloat(float x) {
+    }
+
+    public void takeDouble(double x) {
+    }
+
+    public void takeObject(Object x) {
+    }
+
+    public void takeArray(int[] x) {
+    }
+
+    public int returnInt() {
+        return 1;
+    }
+
+    public long returnLong() {
+        return 2L;
+    }
+
+    public float returnFloat() {
+        return 3.0f;
+    }
+
+    public double returnDouble() {
+        return 4.0;
+    }
+
+    public Object returnObject() {
+        return this;
+    }
+
+    public int[] returnArray() {
+        return null;
+    }
+
+    private static final String[] TYPE_METHODS = {
+        "takeBoolean", "takeChar", "takeByte", "takeShort", "takeInt", "takeLong", "takeFloat",
+        "takeDouble", "takeObject", "takeArray",
+        "returnInt", "returnLong", "returnFloat", "returnDouble", "returnObject", "returnArray",
+    };
+
+    // test 5: the calls made by each thread of the multi-threaded test
+    static class Worker implements Runnable {
+        private final SimpleTest test;
+        private final int calls;
+
+        Worker(SimpleTest t, int count) {
+            test = t;
+            calls = count;
+        }
+
+        public void run() {
+            for (int ix = 0; ix < calls; ix++) {
+                test.addNums();
+            }
+        }
+    }
+
+    // outputs the expected entries of a test, either as !EXPECTED messages (all but the last of
+    // which are continued) or to an expectation stream file for danparse -E, in which case a
+    // single !EXPECTED message marks the start of the test
+    static class ExpectWriter {
+        private final PrintStream out;
+        private final boolean bMessages;    // true to output the entries as !EXPECTED messages
+        private String pending;             // the last entry (held until the next one is added)
+
+        ExpectWriter(PrintStream stream, boolean messages) {
+            out = stream;
+            bMessages = messages;
+        }
+
+        // adds the expected entry for a call (the thread id is optional)
+        void expect(String type, String caller, String callee, String thread) {
+            String entry = type + " " + caller + " " + callee;
+            if (!thread.isEmpty()) {
+                entry += " " + thread;
+            }
+            if (!bMessages) {
+                out.println(entry);
+                return;
+            }
+            if (pending != null) {
+                out.println("!EXPECTED+ " + pending);
+            }
+            pending = entry;
+        }
+
+        void expect(String type, String caller, String callee) {
+            expect(type, caller, callee, "");
+        }
+
+        void finish() {
+            if (bMessages) {
+                out.println("!EXPECTED  " + pending);
+            } else {
+                out.close();
+                System.out.println("!EXPECTED");
+            }
+        }
+    }
+
+    /**
+     * outputs the expected entries for a test.
+     *
+     * @param writer  - where to output the entries
+     * @param test    - the test number
+     * @param count   - the size of the test (the meaning depends on the test)
+     * @param threads - the threads of the multi-threaded test
+     * @return false if the test number is not valid (nothing is output)
+     */
+    private static boolean getExpected(ExpectWriter writer, int test, int count, Thread[] threads) {
+        switch (test) {
+            case 0:
+                writer.expect("II", "SimpleTest.main", "SimpleTest.dummy");
+                writer.expect("II", "SimpleTest.main", "SimpleTest.addNums");
+                writer.expect("II", "SimpleTest.main", "SimpleTest.testSimpleReturn");
+                writer.expect("II", "SimpleTest.main", "SimpleTest.testSimpleParameter");
+                writer.expect("II", "SimpleTest.main", "SimpleTest.testParameterAndReturn");
+                break;
+            case 1:
+                // each call is entered before the ones it makes, and left after them
+                writer.expect("II>", "SimpleTest.main", "SimpleTest.recurse");
+                for (int ix = 1; ix < count; ix++) {
+                    writer.expect("II>", "SimpleTest.recurse", "SimpleTest.recurse");
+                }
+                for (int ix = 1; ix < count; ix++) {
+                    writer.expect("II<", "SimpleTest.recurse", "SimpleTest.recurse");
+                }
+                writer.expect("II<", "SimpleTest.main", "SimpleTest.recurse");
+                break;
+            case 2:
+                for (int ix = 0; ix < count; ix++) {
+                    writer.expect("II", "SimpleTest.main", "SimpleTest.addNums");
+                }
+                break;
+            case 3:
+                writer.expect("II>", "SimpleTest.main", "SimpleTest.fanOut");
+                for (int ix = 0; ix < count; ix++) {
+                    writer.expect("II", "SimpleTest.fanOut", "SimpleTest.leaf" + (ix % LEAF_COUNT));
+                }
+                writer.expect("II<", "SimpleTest.main", "SimpleTest.fanOut");
+                break;
+            case 4:
+                for (int ix = 0; ix < count; ix++) {
+                    for (String method : TYPE_METHODS) {
+                        writer.expect("II", "SimpleTest.main", "SimpleTest." + method);
+                    }
+                }
+                break;
+            case 5:
+                // the main thread has no expected entries, so its calls to start the threads are
+                // not verified
+                for (Thread thread : threads) {
+                    String tid = Long.toString(thread.getId());
+                    writer.expect("UI>", "java.lang.Thread.run", "SimpleTest$Worker.run", tid);
+                    for (int ix = 0; ix < count; ix++) {
+                        writer.expect("II", "SimpleTest$Worker.run", "SimpleTest.addNums", tid);
+                    }
+                    writer.expect("UI<", "java.lang.Thread.run", "SimpleTest$Worker.run", tid);
+                }
+                break;
+            default:
+                return false;
+        }
+        writer.finish();
+        return true;
+    }
+
+    /**
+     * runs the selected test.
+     * The tests are:
+     *   0 = (default) a few simple calls
+     *   1 = recursion to a depth of count (default 1000)
+     *   2 = count calls of the same method (default 1000000)
+     *   3 = a method calling LEAF_COUNT different methods, count calls in all (default 100000)
+     *   4 = calls with each type of parameter and return value, repeated count times (default 1)
+     *   5 = 4 threads each making count calls (default 10000)
+     *
+     * The expected entries are output as !EXPECTED messages, unless the name of a file to
+     * write them to is given (for verifying with danparse -E).
+     *
+     * @param args - the test number, the (optional) count and the (optional) expectation file
+     */
     public static void main(String[] args) {
-        System.out.println("!EXPECTED+ II SimpleTest.main SimpleTest.dummy");
-        System.out.println("!EXPECTED+ II SimpleTest.main SimpleTest.addNums");
-        System.out.println("!EXPECTED+ II SimpleTest.main SimpleTest.testSimpleReturn");
-        System.out.println("!EXPECTED+ II SimpleTest.main SimpleTest.testSimpleParameter");
-        System.out.println("!EXPECTED  II SimpleTest.main SimpleTest.testParameterAndReturn");
+        // everything that is not part of the test is done before the last !EXPECTED message is
+        // output, since danparse doesn't verify the entries until then
+        int test = 0;
+        int count = -1;
+        try {
+            if (args.length > 0) {
+                test = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                count = Integer.parseInt(args[1]);
+            }
+        } catch (NumberFormatException ex) {
+            test = -1;
+        }
+        if (count < 1) {
+            switch (test) {
+                case 1:  count = 1000;    break;
+                case 2:  count = 1000000; break;
+                case 3:  count = 100000;  break;
+                case 5:  count = 10000;   break;
+                default: count = 1;       break;
+            }
+        }
 
         SimpleTest t = new SimpleTest();
-        t.dummy();
-        t.addNums();
-        t.testSimpleReturn();
-        t.testSimpleParameter(3);
-        t.testParameterAndReturn(1);
+        Object obj = new Object();
+        int[] array = new int[4];
+        Thread[] threads = new Thread[(test == 5) ? 4 : 0];
+        for (int ix = 0; ix < threads.length; ix++) {
+            threads[ix] = new Thread(new Worker(t, count));
+        }
+        ExpectWriter expected = new ExpectWriter(System.out, true);
+        if (args.length > 2) {
+            try {
+                expected = new ExpectWriter(new PrintStream(new BufferedOutputStream(
+                        new FileOutputStream(args[2]), 1 << 16)), false);
+            } catch (FileNotFoundException ex) {
+                // not a bad test selection: the test can't be run, so it ends before any of
+                // its messages (which danparse reports as an ERROR)
+                System.err.println("ERROR: can't create the expectation file: " + ex.getMessage());
+                System.exit(1);
+            }
+        }
+        if (!getExpected(expected, test, count, threads)) {
+            System.out.println("!INVALID");
+            return;
+        }
+
+        switch (test) {
+            case 0:
+                t.dummy();
+                t.addNums();
+                t.testSimpleReturn();
+                t.testSimpleParameter(3);
+                t.testParameterAndReturn(1);
+                break;
+            case 1:
+                t.recurse(count);
+                break;
+            case 2:
+                for (int ix = 0; ix < count; ix++) {
+                    t.addNums();
+                }
+                break;
+            case 3:
+                t.fanOut(count);
+                break;
+            case 4:
+                for (int ix = 0; ix < count; ix++) {
+                    t.takeBoolean(true);
+                    t.takeChar('c');
+                    t.takeByte((byte) 1);
+                    t.takeShort((short) 2);
+                    t.takeInt(3);
+                    t.takeLong(4L);
+                    t.takeFloat(5.0f);
+                    t.takeDouble(6.0);
+                    t.takeObject(obj);
+                    t.takeArray(array);
+                    t.returnInt();
+                    t.returnLong();
+                    t.returnFloat();
+                    t.returnDouble();
+                    t.returnObject();
+                    t.returnArray();
+                }
+                break;
+            case 5:
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                for (Thread thread : threads) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException ex) {
+                        System.out.println("!INVALID");
+                        return;
+                    }
+                }
+                break;
+            default:
+                break;
+        }
 
         System.out.println("!TESTEXIT");
     }
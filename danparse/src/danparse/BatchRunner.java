@@ -0,0 +1,257 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * verifies a set of raw output files in a single JVM, using a fixed pool of worker threads that
+ * each have their own DanparseEngine. The results are written to a single JUnit-style XML file.
+ *
+ * @author dmcd2356
+ */
+public class BatchRunner {
+
+  // the result of verifying a single trace in the batch
+  public static class BatchEntry {
+    File           file;
+    DanparseResult result;       // null if the file could not be read
+    String         error;        // the read error (if result is null)
+    String         messages;     // the state messages captured for the trace (if enabled)
+  }
+
+  private final int threads;
+  private final int showMessages;
+  private Expectations expectations;
+  private ResultCache resultCache;
+
+  /**
+   * @param threads      - the number of worker threads (0 to use one per processor)
+   * @param showMessages - the level of state messages to display for each trace
+   */
+  public BatchRunner(int threads, int showMessages) {
+    this.threads = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+    this.showMessages = showMessages;
+  }
+
+  /**
+   * sets the expected states to verify all of the traces against, in place of the !EXPECTED
+   * messages of each trace.
+   *
+   * @param exp - the compiled expectation file (null to use the !EXPECTED messages)
+   */
+  public void setExpectations(Expectations exp) {
+    expectations = exp;
+  }
+
+  /**
+   * sets the cache of the results of the traces, so the traces that have already been verified
+   * are not parsed again.
+   *
+   * @param cache - the result cache (null for none)
+   */
+  public void setResultCache(ResultCache cache) {
+    resultCache = cache;
+  }
+
+  /**
+   * finds the raw output files specified by a directory name or a file name glob pattern.
+   * For a directory, all of the files in it are selected. For a glob pattern, the pattern is
+   * applied to the names of the files in the directory portion of the path.
+   *
+   * @param spec - the directory name or glob pattern
+   * @return the list of files found (sorted by name)
+   */
+  public static List<File> findTraces(String spec) {
+    File dir = new File(spec);
+    PathMatcher matcher = null;
+    if (!dir.isDirectory()) {
+      dir = dir.getAbsoluteFile().getParentFile();
+      matcher = FileSystems.getDefault().getPathMatcher("glob:" + new File(spec).getName());
+    }
+
+    List<File> list = new ArrayList<>();
+    File[] files = (dir == null) ? null : dir.listFiles();
+    if (files != null) {
+      Arrays.sort(files);
+      for (File file : files) {
+        Path name = file.toPath().getFileName();
+        if (file.isFile() && (matcher == null || matcher.matches(name))) {
+          list.add(file);
+        }
+      }
+    }
+    return list;
+  }
+
+  /**
+   * verifies all of the specified files.
+   *
+   * @param files - the raw output files to verify
+   * @return the results for each file (in the same order as the files)
+   * @throws InterruptedException
+   */
+  public List<BatchEntry> run(List<File> files) throws InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final ThreadLocal<DanparseEngine> engines = new ThreadLocal<DanparseEngine>() {
+      @Override
+      protected DanparseEngine initialValue() {
+        return new DanparseEngine();
+      }
+    };
+
+    List<Future<BatchEntry>> futures = new ArrayList<>();
+    for (final File file : files) {
+      futures.add(pool.submit(() -> verify(engines, file)));
+    }
+    pool.shutdown();
+
+    List<BatchEntry> entries = new ArrayList<>();
+    for (Future<BatchEntry> future : futures) {
+      try {
+        entries.add(future.get());
+      } catch (ExecutionException ex) {
+        // (only an Error can get here, such as running out of memory)
+        throw new IllegalStateException(ex.getCause());
+      }
+    }
+    return entries;
+  }
+
+  private BatchEntry verify(ThreadLocal<DanparseEngine> engines, File file) {
+    BatchEntry entry = new BatchEntry();
+    entry.file = file;
+    DanparseEngine engine = engines.get();
+
+    // the state messages are captured for each trace so they don't get mixed together
+    ByteArrayOutputStream buffer = null;
+    engine.setShowMessages(showMessages);
+    engine.setExpectations(expectations);
+    engine.setResultCache(resultCache);
+    if (showMessages > 0) {
+      buffer = new ByteArrayOutputStream();
+      engine.setOutput(new PrintStream(buffer, true));
+    }
+    try {
+      entry.result = engine.verify(file);
+    } catch (IOException ex) {
+      entry.error = ex.getMessage();
+    } catch (RuntimeException ex) {
+      // a problem parsing this trace doesn't stop the others from being verified, but the
+      // engine may have been left in an unknown state, so the thread gets a new one
+      entry.result = new DanparseResult(DanparseResult.Status.ERROR, "internal error: " + ex, 0);
+      engines.remove();
+    }
+    if (buffer != null) {
+      entry.messages = buffer.toString();
+    }
+    return entry;
+  }
+
+  /**
+   * combines the metrics of all of the traces in the batch.
+   *
+   * @param entries - the results of the batch
+   * @return the total of the metrics
+   */
+  public static DanparseMetrics aggregateMetrics(List<BatchEntry> entries) {
+    DanparseMetrics total = new DanparseMetrics();
+    for (BatchEntry entry : entries) {
+      if (entry.result != null && entry.result.getMetrics() != null) {
+        total.add(entry.result.getMetrics());
+      }
+    }
+    return total;
+  }
+
+  private static String escape(String text) {
+    StringBuilder sb = new StringBuilder();
+    for (char ch : text.toCharArray()) {
+      switch (ch) {
+        case '<':  sb.append("&lt;");   break;
+        case '>':  sb.append("&gt;");   break;
+        case '&':  sb.append("&amp;");  break;
+        case '"':  sb.append("&quot;"); break;
+        default:
+          if (ch < ' ' && ch != '\t') {
+            sb.append(' ');
+          } else {
+            sb.append(ch);
+          }
+          break;
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String seconds(long nsecs) {
+    return String.format(Locale.US, "%.3f", nsecs / 1.0e9);
+  }
+
+  /**
+   * writes the results of the batch as a JUnit-style XML report.
+   *
+   * @param entries - the results of the batch
+   * @param elapsed - the total time taken for the batch (in nsec)
+   * @param outfile - the file to write
+   * @throws FileNotFoundException
+   */
+  public static void writeReport(List<BatchEntry> entries, long elapsed, File outfile)
+      throws FileNotFoundException {
+    int failures = 0;
+    int errors = 0;
+    for (BatchEntry entry : entries) {
+      if (entry.result == null || entry.result.getStatus() == DanparseResult.Status.ERROR) {
+        ++errors;
+      } else if (entry.result.getStatus() == DanparseResult.Status.FAIL) {
+        ++failures;
+      }
+    }
+
+    try (PrintWriter writer = new PrintWriter(outfile)) {
+      writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+      writer.println("<testsuite name=\"danparse\" tests=\"" + entries.size() +
+          "\" failures=\"" + failures + "\" errors=\"" + errors +
+          "\" time=\"" + seconds(elapsed) + "\">");
+      for (BatchEntry entry : entries) {
+        String time = (entry.result == null) ? "0.000" : seconds(entry.result.getElapsedNanos());
+        writer.print("  <testcase classname=\"danparse\" name=\"" +
+            escape(entry.file.getPath()) + "\" time=\"" + time + "\"");
+        if (entry.result == null) {
+          writer.println(">");
+          writer.println("    <error message=\"" + escape(entry.error) + "\"/>");
+          writer.println("  </testcase>");
+        } else if (entry.result.getStatus() != DanparseResult.Status.PASS) {
+          String tag = (entry.result.getStatus() == DanparseResult.Status.FAIL) ? "failure" : "error";
+          writer.println(">");
+          writer.println("    <" + tag + " message=\"" + escape(entry.result.getMessage()) +
+              "\" line=\"" + entry.result.getLine() + "\"/>");
+          writer.println("  </testcase>");
+        } else {
+          writer.println("/>");
+        }
+      }
+      writer.println("</testsuite>");
+    }
+  }
+
+}
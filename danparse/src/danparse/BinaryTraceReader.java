@@ -0,0 +1,240 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * reads the records of a binary trace file (see BinaryTraceWriter for the format).
+ *
+ * @author dmcd2356
+ */
+public class BinaryTraceReader implements Closeable {
+
+  // the record types returned by next()
+  public static final int END   = 0;
+  public static final int TEXT  = 1;
+  public static final int EVENT = 2;
+
+  private final FileChannel      channel;
+  private final SymbolDictionary dictionary;
+  private final long[]           blockOffsets;
+  private final long[]           blockLines;
+  private final long             recordsEnd;  // the file offset following the END record
+  private ByteBuffer             buffer;
+  private long                   bufferStart; // the file offset of the start of buffer
+  private long                   bytesRead;
+  private int                    linenum;     // the line number of the last record read
+
+  /**
+   * check if a file is a binary trace file.
+   *
+   * @param file - the file to check
+   * @return true if the file starts with the binary trace header
+   * @throws IOException
+   */
+  public static boolean isBinaryTrace(File file) throws IOException {
+    try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(BinaryTraceWriter.MAGIC.length);
+      while (header.hasRemaining() && fc.read(header) > 0) {
+      }
+      return Arrays.equals(header.array(), BinaryTraceWriter.MAGIC);
+    }
+  }
+
+  public BinaryTraceReader(File file) throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    long size = channel.size();
+    buffer = ByteBuffer.allocate(64 * 1024);
+
+    // read the footer to find the dictionary and the block index
+    ByteBuffer footer = ByteBuffer.allocate(BinaryTraceWriter.FOOTER_SIZE);
+    channel.read(footer, size - BinaryTraceWriter.FOOTER_SIZE);
+    footer.flip();
+    long dictOffset = footer.getLong();
+    long indexOffset = footer.getLong();
+    byte[] magic = new byte[BinaryTraceWriter.FOOTER_MAGIC.length];
+    footer.get(magic);
+    if (!Arrays.equals(magic, BinaryTraceWriter.FOOTER_MAGIC)) {
+      throw new IOException("invalid binary trace file: " + file.getPath());
+    }
+    recordsEnd = dictOffset;
+
+    seek(dictOffset);
+    byte[][] names = new byte[(int) readVarint()][];
+    for (int ix = 0; ix < names.length; ix++) {
+      names[ix] = new byte[(int) readVarint()];
+      readBytes(names[ix], 0, names[ix].length);
+    }
+    dictionary = new SymbolDictionary(names);
+
+    seek(indexOffset);
+    int count = (int) readVarint();
+    blockOffsets = new long[count];
+    blockLines = new long[count];
+    for (int ix = 0; ix < count; ix++) {
+      blockOffsets[ix] = readVarint();
+      blockLines[ix] = readVarint();
+    }
+
+    // start at the 1st record
+    seek(BinaryTraceWriter.MAGIC.length + 1);
+    linenum = 0;
+    bytesRead = 0;
+  }
+
+  public SymbolDictionary getDictionary() {
+    return dictionary;
+  }
+
+  public int getBlockCount() {
+    return blockOffsets.length;
+  }
+
+  /**
+   * positions the reader to the start of a block of !EXPECTED messages.
+   *
+   * @param index - the block number (starting at 0)
+   * @throws IOException
+   */
+  public void seekBlock(int index) throws IOException {
+    if (index < 0 || index >= blockOffsets.length) {
+      throw new IOException("invalid block number: " + index + " (trace has " +
+          blockOffsets.length + " blocks)");
+    }
+    seek(blockOffsets[index]);
+    linenum = (int) blockLines[index];
+  }
+
+  public int getLineNumber() {
+    return linenum;
+  }
+
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  private void seek(long offset) throws IOException {
+    bufferStart = offset;
+    buffer.clear();
+    buffer.flip();
+  }
+
+  /**
+   * makes sure the specified number of bytes are available in the buffer.
+   */
+  private void fill(int needed) throws IOException {
+    if (buffer.remaining() >= needed) {
+      return;
+    }
+    bufferStart += buffer.position();
+    if (needed > buffer.capacity()) {
+      ByteBuffer larger = ByteBuffer.allocate(needed);
+      larger.put(buffer);
+      buffer = larger;
+    } else {
+      buffer.compact();
+    }
+    while (buffer.position() < needed) {
+      int count = channel.read(buffer, bufferStart + buffer.position());
+      if (count < 0) {
+        throw new IOException("unexpected end of binary trace");
+      }
+    }
+    buffer.flip();
+  }
+
+  private int readByte() throws IOException {
+    fill(1);
+    ++bytesRead;
+    return buffer.get() & 0xFF;
+  }
+
+  private void readBytes(byte[] data, int offset, int length) throws IOException {
+    fill(length);
+    bytesRead += length;
+    buffer.get(data, offset, length);
+  }
+
+  private long readVarint() throws IOException {
+    long value = 0;
+    int shift = 0;
+    int next;
+    do {
+      next = readByte();
+      value |= (long) (next & 0x7F) << shift;
+      shift += 7;
+    } while ((next & 0x80) != 0);
+    return value;
+  }
+
+  /**
+   * reads the next record that represents a line of the raw output.
+   *
+   * @param line  - the line buffer to place a TEXT record in
+   * @param event - the event to place an EVENT record in
+   * @return the type of record read (TEXT, EVENT or END)
+   * @throws IOException
+   */
+  public int next(TraceLine line, TraceEvent event) throws IOException {
+    while (bufferStart + buffer.position() < recordsEnd) {
+      int tag = readByte();
+      switch (tag) {
+        case BinaryTraceWriter.REC_END:
+          return END;
+        case BinaryTraceWriter.REC_SKIP:
+          linenum += (int) readVarint();
+          break;
+        case BinaryTraceWriter.REC_TEXT:
+          ++linenum;
+          line.length = 0;
+          int length = (int) readVarint();
+          line.ensureCapacity(length);
+          readBytes(line.data, 0, length);
+          line.length = length;
+          return TEXT;
+        default:
+          ++linenum;
+          int state = tag - BinaryTraceWriter.REC_EVENT;
+          int arg1 = 0;
+          int arg2 = 0;
+          int thread = 0;
+          switch (StateType.fromOrdinal(state)) {
+            case CALL:
+              arg1 = (int) readVarint();
+              arg2 = (int) readVarint();
+              break;
+            case ENTRY_II:
+            case ENTRY_IU:
+            case ENTRY_UI:
+            case LEAVE_II:
+            case LEAVE_IU:
+            case LEAVE_UI:
+              arg1 = (int) readVarint();
+              thread = (int) readVarint();
+              break;
+            default:
+              break;
+          }
+          event.setDictionaryEvent(state, dictionary, arg1, arg2, thread);
+          return EVENT;
+      }
+    }
+    return END;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * converts the raw text output of a test into the compact binary trace format.
+ * 
+ * The binary trace consists of:
+ *   header:     "DANB" followed by the format version byte
+ *   records:    a tag byte followed by the contents of the record, where each record (other than
+ *               SKIP and END) represents a single line of the raw output:
+ *                 SKIP  - varint count of lines that did not contain an event
+ *                 TEXT  - varint length and the bytes of a test program message (!EXPECTED, etc.)
+ *                 EVENT + state ordinal - the varint dictionary ids of the arguments (CALL has
+ *                         the called and calling methods, ENTRY and LEAVE have the method and the
+ *                         thread id, other states have none)
+ *                 END   - the end of the records
+ *   dictionary: varint count followed by the varint length and bytes of each name (ids start at 1)
+ *   index:      varint count followed by the varint file offset and line number of the record
+ *               that starts each block of !EXPECTED messages
+ *   footer:     8-byte dictionary offset, 8-byte index offset and "DANE"
+ *
+ * @author dmcd2356
+ */
+public class BinaryTraceWriter implements Closeable {
+
+  static final byte[] MAGIC = { 'D', 'A', 'N', 'B' };
+  static final byte[] FOOTER_MAGIC = { 'D', 'A', 'N', 'E' };
+  static final int    VERSION = 1;
+  static final int    FOOTER_SIZE = 20;
+
+  // the record tags
+  static final int REC_END   = 0;
+  static final int REC_SKIP  = 1;
+  static final int REC_TEXT  = 2;
+  static final int REC_EVENT = 16;    // the state ordinal is added to this
+
+  private final OutputStream output;
+  private final byte[]       buffer;
+  private int                count;       // the number of bytes in buffer
+  private long               position;    // the file offset of buffer[0]
+  private final SymbolTable  dictionary;  // the names written to the dictionary
+  private long[]             blockOffsets;
+  private long[]             blockLines;
+  private int                blockCount;
+  private int                skipped;     // the number of lines skipped since the last record
+  private int                linenum;     // the number of lines written
+  private boolean            inBlock;     // true if the last record was an !EXPECTED message
+
+  public BinaryTraceWriter(File file) throws IOException {
+    output = new FileOutputStream(file);
+    buffer = new byte[64 * 1024];
+    count = 0;
+    position = 0;
+    dictionary = new SymbolTable();
+    blockOffsets = new long[16];
+    blockLines = new long[16];
+    blockCount = 0;
+    write(MAGIC, 0, MAGIC.length);
+    writeByte(VERSION);
+  }
+
+  private void flush() throws IOException {
+    output.write(buffer, 0, count);
+    position += count;
+    count = 0;
+  }
+
+  private void writeByte(int value) throws IOException {
+    if (count >= buffer.length) {
+      flush();
+    }
+    buffer[count++] = (byte) value;
+  }
+
+  private void write(byte[] data, int offset, int length) throws IOException {
+    if (count + length > buffer.length) {
+      flush();
+      if (length > buffer.length) {
+        output.write(data, offset, length);
+        position += length;
+        return;
+      }
+    }
+    System.arraycopy(data, offset, buffer, count, length);
+    count += length;
+  }
+
+  private void writeVarint(long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    writeByte((int) value);
+  }
+
+  private void writeLong(long value) throws IOException {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      writeByte((int) (value >>> shift));
+    }
+  }
+
+  private void writeSkipped() throws IOException {
+    if (skipped > 0) {
+      writeByte(REC_SKIP);
+      writeVarint(skipped);
+      skipped = 0;
+    }
+  }
+
+  private int symbolArg1(TraceEvent event) {
+    int id = dictionary.findArg1(event);
+    return (id == SymbolTable.UNKNOWN) ? dictionary.intern(event.getArg1()) : id;
+  }
+
+  private int symbolArg2(TraceEvent event) {
+    int id = dictionary.findArg2(event);
+    return (id == SymbolTable.UNKNOWN) ? dictionary.intern(event.getArg2()) : id;
+  }
+
+  private int symbolThread(TraceEvent event) {
+    int id = dictionary.findThread(event);
+    return (id == SymbolTable.UNKNOWN) ? dictionary.intern(event.getThreadId()) : id;
+  }
+
+  /**
+   * adds a line of the raw output that was not a test program message or an event.
+   */
+  public void addSkipped() {
+    ++linenum;
+    ++skipped;
+    inBlock = false;
+  }
+
+  /**
+   * adds a test program message line.
+   *
+   * @param line - the line containing the message
+   * @throws IOException
+   */
+  public void addText(TraceLine line) throws IOException {
+    writeSkipped();
+
+    // the 1st !EXPECTED message of a group starts a new block
+    boolean expected = line.startsWith(EventDecoder.KEY_EXPECTED);
+    if (expected && !inBlock) {
+      if (blockCount >= blockOffsets.length) {
+        blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+        blockLines = Arrays.copyOf(blockLines, blockCount * 2);
+      }
+      blockOffsets[blockCount] = position + count;
+      blockLines[blockCount] = linenum;
+      ++blockCount;
+    }
+    inBlock = expected;
+
+    ++linenum;
+    writeByte(REC_TEXT);
+    writeVarint(line.length());
+    write(line.data, 0, line.length());
+  }
+
+  /**
+   * adds a decoded event line.
+   *
+   * @param event - the decoded event
+   * @throws IOException
+   */
+  public void addEvent(TraceEvent event) throws IOException {
+    writeSkipped();
+    ++linenum;
+    inBlock = false;
+    writeByte(REC_EVENT + event.state);
+    switch (event.getState()) {
+      case CALL:
+        writeVarint(symbolArg1(event));
+        writeVarint(symbolArg2(event));
+        break;
+      case ENTRY_II:
+      case ENTRY_IU:
+      case ENTRY_UI:
+      case LEAVE_II:
+      case LEAVE_IU:
+      case LEAVE_UI:
+        writeVarint(symbolArg1(event));
+        writeVarint(symbolThread(event));
+        break;
+      default:
+        break;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    writeSkipped();
+    writeByte(REC_END);
+
+    long dictOffset = position + count;
+    writeVarint(dictionary.size());
+    for (int id = 1; id <= dictionary.size(); id++) {
+      byte[] name = dictionary.getBytes(id);
+      writeVarint(name.length);
+      write(name, 0, name.length);
+    }
+
+    long indexOffset = position + count;
+    writeVarint(blockCount);
+    for (int ix = 0; ix < blockCount; ix++) {
+      writeVarint(blockOffsets[ix]);
+      writeVarint(blockLines[ix]);
+    }
+
+    writeLong(dictOffset);
+    writeLong(indexOffset);
+    write(FOOTER_MAGIC, 0, FOOTER_MAGIC.length);
+    flush();
+    output.close();
+  }
+
+  /**
+   * converts a raw output file to a binary trace file.
+   *
+   * @param rawfile - the raw output file to read
+   * @param binfile - the binary trace file to create
+   * @throws IOException
+   */
+  public static void convert(File rawfile, File binfile) throws IOException {
+    TraceLine line = new TraceLine();
+    TraceEvent event = new TraceEvent();
+    try (TraceScanner scanner = new MappedTraceScanner(rawfile);
+         BinaryTraceWriter writer = new BinaryTraceWriter(binfile)) {
+      while (scanner.nextLine(line)) {
+        if (EventDecoder.isKeywordLine(line)) {
+          writer.addText(line);
+        } else if (EventDecoder.decodeLine(line, event, false) &&
+            event.getState() != StateType.ERROR) {
+          writer.addEvent(event);
+        } else {
+          writer.addSkipped();
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * writes a raw output file as a block-compressed trace.
+ * The trace is a gzip file made up of a separate gzip member for each block of about
+ * BLOCK_SIZE bytes of the trace, so it can still be read by any gzip tool. The blocks always
+ * end at the end of a line, and the header of each member has an extra field that gives the
+ * compressed size of the member and the size of the block, so the blocks can be found without
+ * decompressing them and can be decompressed independently (and in parallel).
+ *
+ * @author dmcd2356
+ */
+public class BlockTraceWriter implements Closeable {
+
+  public static final int BLOCK_SIZE = 1024 * 1024;     // the target size of a block
+
+  // the gzip member header (with the FEXTRA flag set and a single 'DP' extra subfield that holds
+  // the member size and the block size)
+  static final int HEADER_SIZE  = 24;
+  static final int TRAILER_SIZE = 8;       // the CRC32 and size of the block
+  private static final byte[] HEADER = {
+    0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff,   // ID, CM, FLG, MTIME, XFL, OS
+    12, 0,                                                 // XLEN
+    'D', 'P', 8, 0,                                        // subfield id and length
+  };
+  private static final int MEMBER_SIZE_OFFSET = 16;
+  private static final int BLOCK_SIZE_OFFSET  = 20;
+
+  private final OutputStream output;
+  private final Deflater     deflater;
+  private final CRC32        crc;
+  private byte[]             compressed;
+  private long               blockCount;
+
+  public BlockTraceWriter(File file) throws IOException {
+    output = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+    deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    crc = new CRC32();
+    compressed = new byte[BLOCK_SIZE];
+  }
+
+  /**
+   * determines if a file is compressed with gzip (which includes the block-compressed traces).
+   *
+   * @param file - the file to check
+   * @return true if it starts with the gzip header
+   * @throws IOException
+   */
+  public static boolean isGzip(File file) throws IOException {
+    byte[] header = readHeader(file, 2);
+    return header[0] == 0x1f && header[1] == (byte) 0x8b;
+  }
+
+  /**
+   * determines if a file is a block-compressed trace.
+   *
+   * @param file - the file to check
+   * @return true if it starts with the header of a block
+   * @throws IOException
+   */
+  public static boolean isBlockTrace(File file) throws IOException {
+    return isBlockHeader(readHeader(file, HEADER_SIZE));
+  }
+
+  static boolean isBlockHeader(byte[] header) {
+    return header.length >= HEADER_SIZE &&
+        Arrays.equals(Arrays.copyOf(header, HEADER.length), HEADER);
+  }
+
+  private static byte[] readHeader(File file, int size) throws IOException {
+    try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(size);
+      while (header.hasRemaining() && fc.read(header) > 0) {
+      }
+      return header.array();
+    }
+  }
+
+  private static int getInt(byte[] data, int offset) {
+    return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 |
+        (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+  }
+
+  private static void putInt(byte[] data, int offset, int value) {
+    data[offset] = (byte) value;
+    data[offset + 1] = (byte) (value >>> 8);
+    data[offset + 2] = (byte) (value >>> 16);
+    data[offset + 3] = (byte) (value >>> 24);
+  }
+
+  /**
+   * @param header - the header of a block
+   * @return the size of the gzip member of the block (including its header and trailer)
+   */
+  static int getMemberSize(byte[] header) {
+    return getInt(header, MEMBER_SIZE_OFFSET);
+  }
+
+  /**
+   * @param header - the header of a block
+   * @return the size of the block when decompressed
+   */
+  static int getBlockSize(byte[] header) {
+    return getInt(header, BLOCK_SIZE_OFFSET);
+  }
+
+  /**
+   * @param member - the gzip member of a block
+   * @return the CRC32 of the decompressed block
+   */
+  static int getBlockCrc(byte[] member) {
+    return getInt(member, member.length - TRAILER_SIZE);
+  }
+
+  /**
+   * compresses a block of the trace and writes it as a gzip member.
+   *
+   * @param data   - the bytes of the block (which must end at the end of a line)
+   * @param length - the number of bytes in the block
+   * @throws IOException
+   */
+  public void writeBlock(byte[] data, int length) throws IOException {
+    deflater.reset();
+    deflater.setInput(data, 0, length);
+    deflater.finish();
+    int size = HEADER_SIZE;
+    while (!deflater.finished()) {
+      if (size == compressed.length) {
+        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+      }
+      size += deflater.deflate(compressed, size, compressed.length - size);
+    }
+    if (size + TRAILER_SIZE > compressed.length) {
+      compressed = Arrays.copyOf(compressed, size + TRAILER_SIZE);
+    }
+    crc.reset();
+    crc.update(data, 0, length);
+
+    System.arraycopy(HEADER, 0, compressed, 0, HEADER.length);
+    putInt(compressed, MEMBER_SIZE_OFFSET, size + TRAILER_SIZE);
+    putInt(compressed, BLOCK_SIZE_OFFSET, length);
+    putInt(compressed, size, (int) crc.getValue());
+    putInt(compressed, size + 4, length);
+    output.write(compressed, 0, size + TRAILER_SIZE);
+    ++blockCount;
+  }
+
+  public long getBlockCount() {
+    return blockCount;
+  }
+
+  @Override
+  public void close() throws IOException {
+    deflater.end();
+    output.close();
+  }
+
+  // check if a line ends before the specified offset of the buffer (a '\r' is only the end of
+  // a line if the following byte has been read and is not the '\n' of a "\r\n")
+  private static boolean isLineBoundary(byte[] buffer, int end, int length) {
+    byte last = buffer[end - 1];
+    return last == '\n' || (last == '\r' && end < length && buffer[end] != '\n');
+  }
+
+  /**
+   * converts a raw output file to a block-compressed trace.
+   *
+   * @param rawfile - the raw output file to read
+   * @param outfile - the block-compressed trace to create
+   * @throws IOException
+   */
+  public static void convert(File rawfile, File outfile) throws IOException {
+    try (InputStream input = new FileInputStream(rawfile);
+         BlockTraceWriter writer = new BlockTraceWriter(outfile)) {
+      byte[] buffer = new byte[2 * BLOCK_SIZE];
+      int length = 0;
+      boolean eof = false;
+      while (!eof || length > 0) {
+        // fill the buffer up to the block size
+        while (!eof && length < BLOCK_SIZE) {
+          int count = input.read(buffer, length, buffer.length - length);
+          if (count < 0) {
+            eof = true;
+          } else {
+            length += count;
+          }
+        }
+
+        // end the block at the last complete line (a line longer than the block size is kept
+        // whole, by ending the block at the end of that line)
+        int end = length;
+        if (!eof) {
+          end = Math.min(length, BLOCK_SIZE);
+          while (end > 0 && !isLineBoundary(buffer, end, length)) {
+            --end;
+          }
+          if (end == 0) {
+            end = BLOCK_SIZE;
+            while (end < length && !isLineBoundary(buffer, end, length)) {
+              ++end;
+            }
+            if (!isLineBoundary(buffer, end, length)) {
+              // the end of the line has not been read yet
+              if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+              }
+              int count = input.read(buffer, length, buffer.length - length);
+              if (count < 0) {
+                eof = true;
+              } else {
+                length += count;
+              }
+              continue;
+            }
+          }
+        }
+        if (end > 0) {
+          writer.writeBlock(buffer, end);
+        }
+        System.arraycopy(buffer, end, buffer, 0, length - end);
+        length -= end;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,363 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * the calling-context tree of a trace: a node for each different chain of calls (from the start
+ * of a thread) found in the ENTRY and LEAVE agent entries, with the number of times each one was
+ * entered, by each type of call (II, IU or UI).
+ * The tree is built in a single pass over the trace, and the nodes are kept in primitive arrays
+ * indexed by the node number (with a hash table to find the child of a node for a method), so the
+ * memory used depends on the number of different contexts rather than the number of events.
+ * The calls of all of the threads are combined, starting from a single ROOT node.
+ *
+ * @author dmcd2356
+ */
+public class CallingContextTree {
+
+  public static final int ROOT = 0;       // the node the calls of each thread start from
+  public static final int NO_NODE = -1;
+
+  // the types of call (the index of the transition counts of a node)
+  public static final int TYPE_II = 0;
+  public static final int TYPE_IU = 1;
+  public static final int TYPE_UI = 2;
+  private static final int TYPE_COUNT = 3;
+
+  private int[]  parent;          // the node of the caller
+  private int[]  method;          // the method id of the node
+  private int[]  firstChild;      // the 1st of the nodes it calls (NO_NODE if none)
+  private int[]  nextSibling;     // the next node with the same parent (NO_NODE if none)
+  private long[] calls;           // the number of times the context was entered
+  private long[] transitions;     // the calls of each type (TYPE_COUNT for each node)
+  private int    size;
+  private long[] childKeys;       // open-addressed hash table of (parent, method) keys
+  private int[]  childNodes;      // the node + 1 of each key (0 = empty slot)
+  private final SymbolTable methods;    // the ids of the method names
+  private final SymbolTable threads;    // the ids of the thread ids
+  private int[]  current;         // the node of the call in progress in each thread
+  private long   events;          // the number of ENTRY and LEAVE entries processed
+  private long   unmatched;       // the LEAVE entries that had no matching ENTRY
+
+  public CallingContextTree() {
+    parent = new int[1024];
+    method = new int[1024];
+    firstChild = new int[1024];
+    nextSibling = new int[1024];
+    calls = new long[1024];
+    transitions = new long[1024 * TYPE_COUNT];
+    childKeys = new long[2048];
+    childNodes = new int[2048];
+    methods = new SymbolTable();
+    threads = new SymbolTable();
+    current = new int[16];
+    addNode(NO_NODE, SymbolTable.NONE);   // the ROOT
+  }
+
+  private int addNode(int caller, int id) {
+    if (size == parent.length) {
+      int length = size * 2;
+      parent = Arrays.copyOf(parent, length);
+      method = Arrays.copyOf(method, length);
+      firstChild = Arrays.copyOf(firstChild, length);
+      nextSibling = Arrays.copyOf(nextSibling, length);
+      calls = Arrays.copyOf(calls, length);
+      transitions = Arrays.copyOf(transitions, length * TYPE_COUNT);
+    }
+    int node = size++;
+    parent[node] = caller;
+    method[node] = id;
+    firstChild[node] = NO_NODE;
+    nextSibling[node] = NO_NODE;
+    if (caller != NO_NODE) {
+      nextSibling[node] = firstChild[caller];
+      firstChild[caller] = node;
+    }
+    return node;
+  }
+
+  private int findSlot(long key) {
+    int mask = childKeys.length - 1;
+    int slot = (int) ((key * 0x9e3779b97f4a7c15L) >>> 40) & mask;
+    while (childNodes[slot] != 0 && childKeys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  // returns the node for the call of a method from a node, creating it if it is the 1st call
+  private int findChild(int caller, int id) {
+    long key = ((long) caller << 32) | (id & 0xffffffffL);
+    int slot = findSlot(key);
+    if (childNodes[slot] != 0) {
+      return childNodes[slot] - 1;
+    }
+    int node = addNode(caller, id);
+    childKeys[slot] = key;
+    childNodes[slot] = node + 1;
+    if (size * 2 > childKeys.length) {
+      long[] oldKeys = childKeys;
+      int[] oldNodes = childNodes;
+      childKeys = new long[oldKeys.length * 2];
+      childNodes = new int[oldKeys.length * 2];
+      for (int ix = 0; ix < oldKeys.length; ix++) {
+        if (oldNodes[ix] != 0) {
+          int next = findSlot(oldKeys[ix]);
+          childKeys[next] = oldKeys[ix];
+          childNodes[next] = oldNodes[ix];
+        }
+      }
+    }
+    return node;
+  }
+
+  private int methodId(TraceEvent event) {
+    int id = methods.findArg1(event);
+    if (id == SymbolTable.UNKNOWN) {
+      id = methods.intern(event.getArg1());
+      if (event.dictionary != null) {
+        event.dictionary.setMapped(methods, event.dictArg1, id);
+      }
+    }
+    return id;
+  }
+
+  /**
+   * adds an event of the trace to the tree (only the ENTRY and LEAVE agent entries are used).
+   *
+   * @param event - the decoded event
+   */
+  public void record(TraceEvent event) {
+    int type;
+    boolean bEntry;
+    switch (event.getState()) {
+      case ENTRY_II: type = TYPE_II; bEntry = true;  break;
+      case ENTRY_IU: type = TYPE_IU; bEntry = true;  break;
+      case ENTRY_UI: type = TYPE_UI; bEntry = true;  break;
+      case LEAVE_II: type = TYPE_II; bEntry = false; break;
+      case LEAVE_IU: type = TYPE_IU; bEntry = false; break;
+      case LEAVE_UI: type = TYPE_UI; bEntry = false; break;
+      default:
+        return;
+    }
+    ++events;
+    int thread = Math.max(threads.internThread(event), 0);
+    if (thread >= current.length) {
+      int length = current.length;
+      current = Arrays.copyOf(current, Math.max(thread + 1, length * 2));
+    }
+    int id = methodId(event);
+    int node = current[thread];       // (0 is the ROOT for a thread that has no calls yet)
+    if (bEntry) {
+      node = findChild(node, id);
+      ++calls[node];
+      ++transitions[node * TYPE_COUNT + type];
+      current[thread] = node;
+      return;
+    }
+
+    // the leave ends the innermost call of the same method (and any that were not left)
+    int found = node;
+    while (found != ROOT && method[found] != id) {
+      found = parent[found];
+    }
+    if (found == ROOT) {
+      ++unmatched;
+    } else {
+      current[thread] = parent[found];
+    }
+  }
+
+  /**
+   * adds all of the events of a raw output file (as text) to the tree.
+   *
+   * @param scanner - the source of the raw output lines
+   * @throws IOException
+   */
+  public void build(TraceScanner scanner) throws IOException {
+    TraceLine line = new TraceLine();
+    TraceEvent event = new TraceEvent();
+    while (scanner.nextLine(line)) {
+      if (EventDecoder.isAgentLine(line)) {
+        EventDecoder.decodeAgentLine(line, event);
+        record(event);
+      }
+    }
+  }
+
+  /**
+   * adds all of the events of a binary trace to the tree.
+   *
+   * @param reader - the binary trace reader
+   * @throws IOException
+   */
+  public void build(BinaryTraceReader reader) throws IOException {
+    TraceLine line = new TraceLine();
+    TraceEvent event = new TraceEvent();
+    for (int type = reader.next(line, event); type != BinaryTraceReader.END;
+        type = reader.next(line, event)) {
+      if (type == BinaryTraceReader.EVENT) {
+        record(event);
+      }
+    }
+  }
+
+  /**
+   * builds the tree for a raw output file (which may be the text output, a binary trace, or
+   * the text output compressed with gzip).
+   *
+   * @param file - the raw output file
+   * @return the tree
+   * @throws IOException
+   */
+  public static CallingContextTree build(File file) throws IOException {
+    CallingContextTree tree = new CallingContextTree();
+    if (BinaryTraceReader.isBinaryTrace(file)) {
+      try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+        tree.build(reader);
+      }
+    } else if (BlockTraceWriter.isGzip(file)) {
+      try (TraceScanner scanner = new StreamTraceScanner(new ReadAheadInputStream(
+          new GZIPInputStream(new FileInputStream(file), 64 * 1024)))) {
+        tree.build(scanner);
+      }
+    } else {
+      try (TraceScanner scanner = new MappedTraceScanner(file)) {
+        tree.build(scanner);
+      }
+    }
+    return tree;
+  }
+
+  /**
+   * @return the number of contexts (not including the ROOT)
+   */
+  public int size() {
+    return size - 1;
+  }
+
+  public long getEvents() {
+    return events;
+  }
+
+  public long getUnmatched() {
+    return unmatched;
+  }
+
+  public int getParent(int node) {
+    return parent[node];
+  }
+
+  public String getMethod(int node) {
+    return methods.getName(method[node]);
+  }
+
+  public long getCalls(int node) {
+    return calls[node];
+  }
+
+  /**
+   * @param node - the node
+   * @param type - TYPE_II, TYPE_IU or TYPE_UI
+   * @return the number of times the context was entered by that type of call
+   */
+  public long getTransitions(int node, int type) {
+    return transitions[node * TYPE_COUNT + type];
+  }
+
+  /**
+   * @param type - TYPE_II, TYPE_IU or TYPE_UI
+   * @return the number of calls of that type in the whole tree
+   */
+  public long getTotalTransitions(int type) {
+    long total = 0;
+    for (int node = 1; node < size; node++) {
+      total += transitions[node * TYPE_COUNT + type];
+    }
+    return total;
+  }
+
+  // the name of a node in the folded stacks: the method, marked with the type of call if it
+  // crosses between instrumented and uninstrumented code
+  private String frameName(int node) {
+    String name = methods.getName(method[node]);
+    if (getTransitions(node, TYPE_IU) > 0) {
+      name += "[IU]";
+    }
+    if (getTransitions(node, TYPE_UI) > 0) {
+      name += "[UI]";
+    }
+    return name;
+  }
+
+  /**
+   * writes the tree as folded stacks (the input format of flame graph tools): a line for each
+   * context giving the methods of the chain of calls separated by ';', followed by the number
+   * of times the context was entered.
+   *
+   * @param writer - where to write the stacks
+   */
+  public void writeFolded(PrintWriter writer) {
+    // depth first, keeping the length of the path at each level so the calls of a node can
+    // replace the path of its previous sibling (the tree may be too deep to recurse)
+    StringBuilder path = new StringBuilder();
+    int[] lengths = new int[64];
+    int depth = 0;
+    int node = firstChild[ROOT];
+    while (node != NO_NODE) {
+      if (depth == lengths.length) {
+        lengths = Arrays.copyOf(lengths, depth * 2);
+      }
+      lengths[depth] = path.length();
+      if (depth > 0) {
+        path.append(';');
+      }
+      path.append(frameName(node));
+      writer.print(path);
+      writer.print(' ');
+      writer.println(calls[node]);
+
+      if (firstChild[node] != NO_NODE) {
+        ++depth;
+        node = firstChild[node];
+        continue;
+      }
+      // no calls from this node: go on to the next sibling of it or of its callers
+      while (node != NO_NODE && nextSibling[node] == NO_NODE) {
+        node = parent[node];
+        --depth;
+        if (node == ROOT) {
+          node = NO_NODE;
+        }
+      }
+      if (node != NO_NODE) {
+        path.setLength(lengths[depth]);
+        node = nextSibling[node];
+      }
+    }
+  }
+
+  /**
+   * writes the tree as folded stacks to a file.
+   *
+   * @param file - the file to write
+   * @throws FileNotFoundException
+   */
+  public void writeFolded(File file) throws FileNotFoundException {
+    try (PrintWriter writer = new PrintWriter(file)) {
+      writeFolded(writer);
+    }
+  }
+
+}
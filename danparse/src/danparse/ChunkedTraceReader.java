@@ -0,0 +1,202 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * reads a raw output file as a sequence of chunks that are decoded in parallel on a fork-join
+ * pool. The chunks are returned in file order, so the state machine can process them
+ * sequentially while the following chunks are being decoded.
+ * Only a limited number of chunks are decoded ahead of the one being processed, so the memory
+ * used is bounded no matter how large the file is.
+ * If the file is a block-compressed trace (see BlockTraceWriter), each block is a chunk, and it
+ * is decompressed as well as decoded in parallel.
+ *
+ * @author dmcd2356
+ */
+public class ChunkedTraceReader implements Closeable {
+
+  public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final long        fileSize;
+  private final int         chunkSize;
+  private final int         window;       // the max number of chunks decoded ahead
+  private final boolean     decodeAll;
+  private final boolean     blocks;       // true if the file is a block-compressed trace
+  private final ForkJoinPool pool;
+  private final ArrayDeque<ForkJoinTask<TraceChunk>> pending; // the chunks being decoded
+  private long              nextStart;    // the file offset of the next chunk to submit
+  private long              traceSize;    // the size of the trace in the chunks submitted
+  private long              waitNanos;    // the time spent waiting for chunks to be decoded
+
+  /**
+   * @param file      - the raw output file
+   * @param threads   - the number of threads to decode with
+   * @param chunkSize - the size of the sections of the file to decode separately
+   *                    (not used for a block-compressed trace)
+   * @param decodeAll - true to decode all lines that can't be valid agent entries as errors
+   *                    (see EventDecoder.decodeLine)
+   * @throws IOException
+   */
+  public ChunkedTraceReader(File file, int threads, int chunkSize, boolean decodeAll)
+      throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    fileSize = channel.size();
+    this.chunkSize = chunkSize;
+    this.decodeAll = decodeAll;
+    window = 2 * threads;
+    pool = new ForkJoinPool(threads);
+    pending = new ArrayDeque<>();
+    nextStart = 0;
+    traceSize = 0;
+    try {
+      blocks = BlockTraceWriter.isBlockHeader(readFully(0, BlockTraceWriter.HEADER_SIZE));
+      fill();
+    } catch (IOException ex) {
+      close();
+      throw ex;
+    }
+  }
+
+  // reads a section of the file
+  private byte[] readFully(long start, int size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, start + buffer.position()) < 0) {
+        break;
+      }
+    }
+    return buffer.array();
+  }
+
+  // submits chunks for decoding until the window is full
+  private void fill() throws IOException {
+    while (pending.size() < window && nextStart < fileSize) {
+      final long start = nextStart;
+      if (blocks) {
+        byte[] header = readFully(start, BlockTraceWriter.HEADER_SIZE);
+        if (!BlockTraceWriter.isBlockHeader(header)) {
+          throw new IOException("invalid block header at offset " + start);
+        }
+        final int memberSize = BlockTraceWriter.getMemberSize(header);
+        final int blockSize = BlockTraceWriter.getBlockSize(header);
+        final long offset = traceSize;
+        if (memberSize < BlockTraceWriter.HEADER_SIZE + BlockTraceWriter.TRAILER_SIZE ||
+            start + memberSize > fileSize || blockSize < 0) {
+          throw new IOException("invalid block header at offset " + start);
+        }
+        pending.add(pool.submit(() -> decodeBlock(start, memberSize, blockSize, offset)));
+        nextStart = start + memberSize;
+        traceSize += blockSize;
+      } else {
+        final long end = Math.min(fileSize, start + chunkSize);
+        pending.add(pool.submit(() -> TraceChunk.decode(channel, start, end, fileSize, decodeAll)));
+        nextStart = end;
+        traceSize = end;
+      }
+    }
+  }
+
+  // decompresses a block of a block-compressed trace and decodes its lines
+  private TraceChunk decodeBlock(long start, int memberSize, int blockSize, long offset)
+      throws IOException {
+    byte[] member = readFully(start, memberSize);
+    byte[] data = new byte[blockSize + 1];    // (room to detect a block that is too large)
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(member, BlockTraceWriter.HEADER_SIZE,
+          memberSize - BlockTraceWriter.HEADER_SIZE - BlockTraceWriter.TRAILER_SIZE);
+      int length = 0;
+      while (length < data.length && !inflater.finished() && !inflater.needsInput()) {
+        length += inflater.inflate(data, length, data.length - length);
+      }
+      if (length != blockSize || !inflater.finished()) {
+        throw new IOException("corrupt block at offset " + start);
+      }
+    } catch (DataFormatException ex) {
+      throw new IOException("corrupt block at offset " + start);
+    } finally {
+      inflater.end();
+    }
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, blockSize);
+    if ((int) crc.getValue() != BlockTraceWriter.getBlockCrc(member)) {
+      throw new IOException("corrupt block at offset " + start);
+    }
+    return TraceChunk.decode(data, blockSize, offset, decodeAll);
+  }
+
+  /**
+   * returns the next chunk of the file, waiting for it to be decoded if necessary.
+   *
+   * @return the next chunk, or null if the end of the file has been reached
+   * @throws IOException
+   */
+  public TraceChunk nextChunk() throws IOException {
+    ForkJoinTask<TraceChunk> task = pending.poll();
+    if (task == null) {
+      return null;
+    }
+    long startTime = System.nanoTime();
+    TraceChunk chunk;
+    try {
+      chunk = task.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while decoding trace");
+    } catch (ExecutionException ex) {
+      // (the pool wraps the exceptions of the tasks in RuntimeExceptions)
+      Throwable cause = ex.getCause();
+      while (cause instanceof RuntimeException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+    }
+    waitNanos += System.nanoTime() - startTime;
+    fill();
+    return chunk;
+  }
+
+  /**
+   * @return the size of the trace (for a block-compressed trace, this is the size when
+   *         decompressed, which is only known for the blocks that have been read)
+   */
+  public long getFileSize() {
+    return blocks ? traceSize : fileSize;
+  }
+
+  /**
+   * @return the time spent waiting for the chunks to be decoded (in nsec)
+   */
+  public long getWaitNanos() {
+    return waitNanos;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (ForkJoinTask<TraceChunk> task : pending) {
+      task.cancel(true);
+    }
+    pending.clear();
+    pool.shutdownNow();
+    channel.close();
+  }
+
+}
@@ -5,13 +5,19 @@
  */
 package danparse;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 /**
  *
@@ -21,454 +27,330 @@ public class Danparse {
 
   private static final String NEWLINE = System.getProperty("line.separator");
 
-  // inputs that generate the specified new state
-  private static enum stateType {
-    NONE,       // starting point
-    ERROR,      // an error occurred
-    EXIT,       // !TESTEXIT
-    ENTRY_II,   // agent output for instrumented to instrumented   EnterMethod
-    ENTRY_IU,   // agent output for instrumented to uninstrumented EnterMethod
-    ENTRY_UI,   // agent output for uninstrumented to instrumented EnterMethod
-    LEAVE_II,   // agent output for instrumented to instrumented   LeaveMethod
-    LEAVE_IU,   // agent output for instrumented to uninstrumented LeaveMethod
-    LEAVE_UI,   // agent output for uninstrumented to instrumented LeaveMethod
-    CALL,       // CALL message
-    RETURN,     // RETURN message
-    // AGENT message type (these are the agent callbackes to the instrumented code)
-    addBooleanParameter,
-    addCharParameter,
-    addByteParameter,
-    addShortParameter,
-    addIntegerParameter,
-    addLongParameter,
-    addFloatParameter,
-    addDoubleParameter,
-    addObjectParameter,
-    addArrayParameter,
-    beginFrame,
-    removeParams,
-    createFrame,
-    popFrame,
-    popFrameAndPush,
-    pushIntegralType,
-    pushLonglType,
-    pushFloatType,
-    pushDoubleType,
-    pushReferenceType,
-    pushArrayType,
-  };
-
-  private static String[] expected;       // the expected response
-  private static int     linenum;         // the line number being processed
-  private static int     showMessages;    // 1 to print state messages, 2 to print all messages
-  private static boolean bFailure;        // true if test failure occurred
-  private static int     stateIndex;      // current index in stateList to next valid state
-  private static ArrayList<StateInfo> stateList; // list of state changes expected
-  private static ArrayList<StateInfo> ignoreList; // list of states to ignore
-
-  public static class StateInfo {
-    stateType state;          // the next valid state
-    String    arg1;           // associated 1st argument value
-    String    arg2;           // associated 2nd argument value
-    
-    StateInfo(stateType next, String a1, String a2) {
-      state = next;
-      arg1 = a1;
-      arg2 = a2;
-    }
-    
-    StateInfo(stateType next, String a1) {
-      state = next;
-      arg1 = a1;
-      arg2 = "";
-    }
-    
-    StateInfo(stateType next) {
-      state = next;
-      arg1 = "";
-      arg2 = "";
-    }
-  }
-  
-  private static void debugPrint(String message) {
-    if (showMessages > 0) {
-      System.out.println(message);
-    }
-  }
-  
-  private static void extendedPrint(String message) {
-    if (showMessages > 1) {
-      System.out.println("LINE " + linenum + ": " + message);
-    }
-  }
-  
   /**
-   * check if contents of string are a valid integer.
+   * opens a stream (such as standard input) for reading the test output, decompressing it if it
+   * was compressed with gzip.
    * 
-   * @param str - the string value to test
-   * @return true if entry was valid integer value.
+   * @param source - the stream the test output is read from
+   * @return the stream to read
+   * @throws IOException
    */
-  private static boolean isValidNumeric(String str) {
-    try {
-      int value = Integer.parseInt(str);
-    } catch (NumberFormatException ex) {
-      return false;
+  static InputStream openTraceInput(InputStream source) throws IOException {
+    InputStream input = new BufferedInputStream(source, 1 << 16);
+    input.mark(2);
+    int magic1 = input.read();
+    int magic2 = input.read();
+    input.reset();
+    if (magic1 == 0x1f && magic2 == 0x8b) {
+      return new ReadAheadInputStream(new GZIPInputStream(input, 1 << 16));
     }
-    return true;
+    return input;
   }
 
   /**
-   * check if the current line is a valid debug message output.
-   * (non-debug output lines can be mixed with this, since the raw output will contain all
-   * messages the program directs to standard output).
+   * writes the metrics file next to the output file.
    * 
-   * @param line - a line from the raw output file read.
-   * @return true if line was valid debug output format.
+   * @param metrics - the metrics to write
+   * @param outfile - the name of the output file
+   * @param format  - the format of the metrics file (json or csv)
    */
-  private static boolean isValidDebugMessage(String line) {
-    // All debug messages are assumed to start with: "xxxxxxxx [xx:xx.xxx] " to express the line
-    // number and timestamp of the message, followed by message type (chars 21-26) and the
-    // message contents starting at offset 29.
-    return !(line.length() < 30 ||
-            line.charAt(9) != '[' || line.charAt(12) != ':' ||
-            line.charAt(15) != '.' || line.charAt(19) != ']' ||
-            !isValidNumeric(line.substring(0, 8)) ||
-            !isValidNumeric(line.substring(10, 11)) ||
-            !isValidNumeric(line.substring(13, 14)) ||
-            !isValidNumeric(line.substring(16, 18)));
-  }
-  
-  private static void setTestFail(stateType newState, String error) {
-    debugPrint("FAIL - " + expected[0] + " :: STATE_" + newState.toString() + " :: " + error);
-    bFailure = true;
-  }
-
-  private static void setTestPass(StateInfo newState) {
-    debugPrint("PASS - " + expected[0] + " :: STATE_" + newState.state.toString() +
-        "  " + newState.arg1 + "  " + newState.arg2);
-  }
-
-  private static int compareTo(StateInfo state1, StateInfo state2) {
-    if (state1.state != state2.state) {
-      return 1;
-    }
-
-    switch (state1.state) {
-      case CALL:
-        // these states have 2 associated parameters that must also be verified
-        if (!state1.arg1.equals(state2.arg1)) {
-          return 2;
-        }
-        if (!state1.arg2.equals(state2.arg2)) {
-          return 3;
-        }
-        break;
-      case ENTRY_II:
-      case ENTRY_IU:
-      case ENTRY_UI:
-      case LEAVE_II:
-      case LEAVE_IU:
-      case LEAVE_UI:
-        // these states have 1 associated parameter that must also be verified
-        if (!state1.arg1.equals(state2.arg1)) {
-          return 2;
-        }
-        break;
-      default:
-        break;
+  private static void writeMetrics(DanparseMetrics metrics, String outfile, String format) {
+    try {
+      metrics.write(new File(outfile + ".metrics." + format));
+    } catch (FileNotFoundException ex) {
+      System.out.println(ex.getMessage());
     }
-    
-    return 0;
   }
-    
+
   /**
-   * determines if the specified state to proceed to is valid (as specified in stateList).
-   * (sets bFailure to true if invalid)
+   * verifies all of the raw output files in a directory (or matching a glob pattern) and writes
+   * the results of all of them to a JUnit-style XML file. The exit code is that of the worst
+   * result (or of an ERROR if the traces could not be verified).
    * 
-   * @param newState - the next state to proceed to
+   * @param spec         - the directory name or glob pattern for the raw output files
+   * @param outfile      - the name of the XML file to create
+   * @param threads      - the number of worker threads to use (0 for one per processor)
+   * @param showMessages - the level of state messages to display for each trace
+   * @param metricsFormat - the format of the metrics file to create (null for none)
+   * @param expectations - the expected states for all of the files (null to use the !EXPECTED
+   *                       messages of each file)
+   * @param cache        - the cache of the results of the files (null for none)
    */
-  private static void checkStateNext(StateInfo newState) {
-    // ignore entries not pertanent to the test
-    if (bFailure || newState == null) {
-      return;
-    }
-    
-    // always ignore the following states (should never be thrown)
-    if (newState.state == stateType.NONE || newState.state == stateType.ERROR) {
-      return;
+  private static void runBatch(String spec, String outfile, int threads, int showMessages,
+      String metricsFormat, Expectations expectations, ResultCache cache) {
+    List<File> files = BatchRunner.findTraces(spec);
+    if (files.isEmpty()) {
+      System.out.println("ERROR: no raw files found for: " + spec);
+      System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
     }
-    
-    if (stateList.isEmpty()) {
-      setTestFail(newState.state, "No state machine entries set up");
-      return;
+
+    BatchRunner runner = new BatchRunner(threads, showMessages);
+    runner.setExpectations(expectations);
+    runner.setResultCache(cache);
+    long startTime = System.nanoTime();
+    List<BatchRunner.BatchEntry> entries = null;
+    try {
+      entries = runner.run(files);
+    } catch (InterruptedException ex) {
+      System.out.println("ERROR: batch interrupted");
+      System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
     }
-    
-    // ignore any states that were specifically marked to ignore
-    boolean canIgnore = false;
-    for (StateInfo next : ignoreList) {
-      int ret = compareTo(newState, next);
-      if (ret == 0) {
-        canIgnore = true;
+    long elapsed = System.nanoTime() - startTime;
+
+    int passed = 0;
+    DanparseResult.Status worst = DanparseResult.Status.PASS;
+    for (BatchRunner.BatchEntry entry : entries) {
+      if (entry.messages != null) {
+        System.out.println("=== " + entry.file.getPath());
+        System.out.print(entry.messages);
+      }
+      DanparseResult.Status status = (entry.result == null) ? DanparseResult.Status.ERROR :
+          entry.result.getStatus();
+      if (DanparseResult.exitCode(status) > DanparseResult.exitCode(worst)) {
+        worst = status;
+      }
+      if (status == DanparseResult.Status.PASS) {
+        ++passed;
+      } else {
+        String reason = (entry.result == null) ? "ERROR: " + entry.error :
+            (entry.result.getLine() == 0 && !entry.result.getMessage().isEmpty()) ?
+            entry.result.getStatus() + ": " + entry.result.getMessage() : entry.result.toString();
+        System.out.println(entry.file.getPath() + ": " + reason);
       }
     }
+    System.out.println(entries.size() + " traces: " + passed + " passed, " +
+        (entries.size() - passed) + " not passed" +
+        ((cache == null) ? "" : " (" + cache.getHits() + " results from the cache)"));
 
-    StateInfo next = stateList.get(stateIndex);
-
-    // also, if this is initial state, ignore a LeaveMethod call from println and if we are
-    // at the terminating state, ignore an EnterMethod call from println and the removeParams.
-    // These are due to the EXPECTED message setups in the test program.
-    boolean bPrintln = newState.arg1.equals("java.io.PrintStream.println");
-    if (stateIndex == 0 && newState.state == stateType.LEAVE_UI && bPrintln) {
-        canIgnore = true;
-    } else if (next.state == stateType.EXIT && (newState.state == stateType.removeParams ||
-        (newState.state == stateType.ENTRY_IU && bPrintln))) {
-        canIgnore = true;
+    try {
+      BatchRunner.writeReport(entries, elapsed, new File(outfile));
+    } catch (FileNotFoundException ex) {
+      System.out.println(ex.getMessage());
+      System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+    }
+    if (metricsFormat != null) {
+      writeMetrics(BatchRunner.aggregateMetrics(entries), outfile, metricsFormat);
     }
 
-    int ret = compareTo(newState, next);
-    if (ret == 0) {
-      setTestPass(newState);
-      ++stateIndex;
-    } else {
-      if (canIgnore) {
-        extendedPrint("ignoring state: " + newState.state);
-        return;
-      }
-      switch (ret) {
-        default:
-        case 1:
-          setTestFail(newState.state, "expected: STATE_" + next.state.toString());
-          break;
-        case 2:
-          setTestFail(newState.state, "expected: arg1 = " + next.arg1 + " (was: " + newState.arg1 + ")");
-          break;
-        case 3:
-          setTestFail(newState.state, "expected: arg2 = " + next.arg2 + "  (was: " + newState.arg2 + ")");
-          break;
+    // the exit code is that of the worst status of the traces (as for a single trace)
+    System.exit(DanparseResult.exitCode(worst));
+  }
+  
+  /**
+   * builds the calling-context tree of a trace and writes it as folded stacks.
+   * 
+   * @param inputfilename - the name of the raw output file
+   * @param bStream       - true to read the test output from standard input instead
+   * @param outfile       - the folded stacks file to create
+   */
+  private static void writeCallTree(String inputfilename, boolean bStream, File outfile) {
+    try {
+      CallingContextTree tree;
+      if (bStream) {
+        tree = new CallingContextTree();
+        tree.build(new StreamTraceScanner(openTraceInput(System.in)));
+      } else {
+        tree = CallingContextTree.build(new File(inputfilename));
       }
+      tree.writeFolded(outfile);
+      System.out.println(tree.getEvents() + " agent entries, " + tree.size() + " contexts, " +
+          "calls: II " + tree.getTotalTransitions(CallingContextTree.TYPE_II) +
+          ", IU " + tree.getTotalTransitions(CallingContextTree.TYPE_IU) +
+          ", UI " + tree.getTotalTransitions(CallingContextTree.TYPE_UI) +
+          ((tree.getUnmatched() > 0) ? ", " + tree.getUnmatched() + " unmatched leaves" : ""));
+    } catch (IOException ex) {
+      System.out.println(ex.getMessage());
+      System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
     }
   }
 
   /**
-   * parses the next AGENT line and determines the state it infers.
+   * compares the events of two raw output files, reporting where they differ, and exits with
+   * the PASS exit code if they are the same or the FAIL exit code if not.
    * 
-   * @param line - the line read from the raw output file
-   * @return - the implied state to proceed to
+   * @param firstname  - the name of the baseline raw output file
+   * @param secondname - the name of the raw output file to compare with it
    */
-  private static StateInfo parse_AGENT(String line) {
-    String[] array = line.split(" "); // UNINSTR has been stripped off the line
-    String callback = array[0];
-    if (callback.contains(":")) {
-      callback = callback.substring(0, callback.indexOf(":"));
-    }
-
-    extendedPrint("Debug: AGENT - " + callback);
-    switch(callback) { // 1st word is the UNINSTR type specified
-      // these have the following addendum: val = <value>, slot = <slot>
-      case "addBooleanParameter": return new StateInfo(stateType.addBooleanParameter);
-      case "addCharParameter":    return new StateInfo(stateType.addCharParameter);
-      case "addByteParameter":    return new StateInfo(stateType.addByteParameter);
-      case "addShortParameter":   return new StateInfo(stateType.addShortParameter);
-      case "addIntegerParameter": return new StateInfo(stateType.addIntegerParameter);
-      case "addLongParameter":    return new StateInfo(stateType.addLongParameter);
-      case "addFloatParameter":   return new StateInfo(stateType.addFloatParameter);
-      case "addDoubleParameter":  return new StateInfo(stateType.addDoubleParameter);
-      case "addObjectParameter":  return new StateInfo(stateType.addObjectParameter);
-      case "addArrayParameter":   return new StateInfo(stateType.addArrayParameter);
-      //this has the following addendum: maxLocals = <maxLocals>
-      case "beginFrame":          return new StateInfo(stateType.beginFrame);
-      //this has the following addendum: numParams = <numParams>
-      case "removeParams":        return new StateInfo(stateType.removeParams);
-      //this has the following addendum: numParams = <numParams>, maxLocals = <maxLocals>
-      case "createFrame":         return new StateInfo(stateType.createFrame);
-      //this has no addendum
-      case "popFrame":            return new StateInfo(stateType.popFrame);
-      //this has the following addendum: isVoid = <isVoid>
-      case "popFrameAndPush":     return new StateInfo(stateType.popFrameAndPush);
-      // these have the following addendum: val = <value>, type = <type>
-      case "pushIntegralType":    return new StateInfo(stateType.pushIntegralType);
-      case "pushLonglType":       return new StateInfo(stateType.pushLonglType);
-      case "pushFloatType":       return new StateInfo(stateType.pushFloatType);
-      case "pushDoubleType":      return new StateInfo(stateType.pushDoubleType);
-      case "pushReferenceType":   return new StateInfo(stateType.pushReferenceType);
-      case "pushArrayType":       return new StateInfo(stateType.pushArrayType);
-      default:
-        break;
+  private static void diffTraces(String firstname, String secondname) {
+    try {
+      TraceDiff diff = new TraceDiff(new File(firstname), new File(secondname), System.out);
+      boolean bSame = diff.compare();
+      System.out.println(diff.getEventsA() + " events, " + diff.getEventsB() + " events: " +
+          (bSame ? "no differences" : diff.getRegions() + " divergent region" +
+          ((diff.getRegions() == 1) ? "" : "s")));
+      System.exit(DanparseResult.exitCode(bSame ? DanparseResult.Status.PASS :
+          DanparseResult.Status.FAIL));
+    } catch (IOException ex) {
+      System.out.println(ex.getMessage());
+      System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
     }
-    
-    debugPrint("ERROR line " + linenum + ": Unknown UNINSTR type = " + array[0]);
-    return new StateInfo(stateType.ERROR);
   }
 
   /**
-   * parses the next raw output line and determines the state it infers, then checks the next
-   * state for validity.
+   * checks the frame callbacks of a trace against a shadow model of the frames and operand
+   * stacks, and exits with the PASS exit code if they are consistent or the FAIL exit code if
+   * not.
    * 
-   * @param line - the line read from the raw output file
+   * @param inputfilename - the name of the raw output file
+   * @param bStream       - true to read the test output from standard input instead
    */
-  private static StateInfo parseAgentLine(String line) {
-    
-    stateType newState = stateType.NONE;
-    String threadid, className, methodName, signature;
-    
-    // catagorize the expected type
-    if (line.length() >= 61) {
-      String type = line.substring(0, 32);
-      String entry = line.substring(34, 40);
-      switch (type) {
-        case "Instrumented   to instrumented  ":
-          if (entry.startsWith("return")) {
-            newState = stateType.LEAVE_II;
-          } else {
-            newState = stateType.ENTRY_II;
-          }
-          break;
-        case "Instrumented   to uninstrumented":
-          if (entry.startsWith("return")) {
-            newState = stateType.LEAVE_IU;
-          } else {
-            newState = stateType.ENTRY_IU;
-          }
-          break;
-        case "Uninstrumented to instrumented  ":
-          if (entry.startsWith("return")) {
-            newState = stateType.LEAVE_UI;
-          } else {
-            newState = stateType.ENTRY_UI;
-          }
-          break;
-        default:
-          debugPrint("ERROR line " + linenum + ": invalid agent entry: '" + type + "'");
-          return new StateInfo(stateType.ERROR);
-      }
-      
-      // extract the thread id
-      threadid = line.substring(44);
-      int offset = threadid.indexOf(",");
-      if (offset <= 0) {
-        debugPrint("ERROR line " + linenum + ": missing ',' following threadid: " + threadid);
-        return new StateInfo(stateType.ERROR);
-      }
-      className = threadid.substring(offset+1);
-      threadid = threadid.substring(0, offset);
-        
-      // extract the class, method and signature
-      offset = className.indexOf(";");
-      if (offset <= 0) {
-        debugPrint("ERROR line " + linenum + ": missing ';' following class: " + threadid);
-        return new StateInfo(stateType.ERROR);
-      }
-      methodName = className.substring(offset+1);
-      className = className.substring(2, offset); // eliminate the leading space & 'L' char
-      className = className.replace('/', '.');
-      
-      offset = methodName.indexOf("(");
-      if (offset <= 0) {
-        debugPrint("ERROR line " + linenum + ": missing '(' following method: " + threadid);
-        return new StateInfo(stateType.ERROR);
+  private static void validateFrames(String inputfilename, boolean bStream) {
+    try {
+      FrameValidator validator = new FrameValidator(System.out);
+      if (bStream) {
+        validator.validate(new StreamTraceScanner(openTraceInput(System.in)));
+      } else {
+        validator.validate(new File(inputfilename));
       }
-      signature = methodName.substring(offset);
-      methodName = methodName.substring(0, offset);
-
-      methodName = className + "." + methodName;
-
-      extendedPrint("AgentCallback: " + newState + ", methodName = " + methodName);
-      return new StateInfo(newState, methodName);
+      long problems = validator.getProblems();
+      System.out.println(validator.getCallbacks() + " frame callbacks in " +
+          validator.getThreads() + " threads, max depth " + validator.getMaxDepth() + ", " +
+          validator.getOpenFrames() + " frames open at the end: " +
+          ((problems == 0) ? "no inconsistencies" : problems + " inconsistenc" +
+          ((problems == 1) ? "y" : "ies")));
+      System.exit(DanparseResult.exitCode((problems == 0) ? DanparseResult.Status.PASS :
+          DanparseResult.Status.FAIL));
+    } catch (IOException ex) {
+      System.out.println(ex.getMessage());
+      System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
     }
-
-    return null;
   }
-  
-  /**
-   * parse a line from the debug file to see if we have the start condition.
-   * This line is output by DanTest itself rather than the debug output, but will still be
-   * included in the standard output that is saved as the captured raw file.
-   * This provides the type of test being performed and any additional parameters needed to define
-   * the test conditions.
-   */
-  private static void createExpectedList(String line) {
-    expected = line.split(" ");
-    String expType = expected[0];             // the expected test type to run
-    String caller  = expected[1];             // the method making the call
-    String callee  = expected[2];             // the called method
-
-    switch (expType) {
-      case "II":
-        // setup valid states for test
-        stateList.add(new StateInfo(stateType.ENTRY_II, callee));
-        stateList.add(new StateInfo(stateType.createFrame));
-        stateList.add(new StateInfo(stateType.CALL, callee, caller));
-        stateList.add(new StateInfo(stateType.RETURN));
-        stateList.add(new StateInfo(stateType.LEAVE_II, callee));
-        stateList.add(new StateInfo(stateType.popFrameAndPush));
-        break;
-      case "IU":
-        // setup valid states for test
-        // TODO:
-        debugPrint("ERROR: " + expType + " is not implemented!");
-        break;
-      case "UI":
-        // setup valid states for test
-        // TODO:
-        debugPrint("ERROR: " + expType + " is not implemented!");
-        break;
-      default:
-        expType = "- invalid type " + expType;
-        break;
-    }
 
-    extendedPrint("NEW TEST - EXPECTING: " + expType + "  " + caller + "  " + callee);
-  }
-  
   /**
-   * parse a line from the debug file to see if we have the start condition.
-   * This line is output by DanTest itself rather than the debug output, but will still be
-   * included in the standard output that is saved as the captured raw file.
-   * This provides the type of test being performed and any additional parameters needed to define
-   * the test conditions.
+   * runs the server that verifies the traces sent by DanparseClient, until it is shut down.
+   * 
+   * @param args - the command line arguments: -S [&lt;port&gt;] [-C &lt;cachedir&gt;]
    */
-  private static void completeExpectedList() {
-    stateList.add(new StateInfo(stateType.EXIT));
-
-    if (!ignoreList.isEmpty()) {
-      extendedPrint("ignore list: ");
-      for (StateInfo state : ignoreList) {
-        extendedPrint("- " + state.state + "  " + state.arg1 + "  " + state.arg2);
+  private static void runServer(String[] args) {
+    int port = DanparseServer.DEFAULT_PORT;
+    String cachedirname = null;
+    for (int ix = 1; ix < args.length; ix++) {
+      if (args[ix].equals("-C") && ix + 1 < args.length) {
+        cachedirname = args[++ix];
+      } else {
+        try {
+          port = Integer.parseInt(args[ix]);
+        } catch (NumberFormatException ex) {
+          System.out.println("ERROR: invalid port: " + args[ix]);
+          System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+        }
       }
     }
-    extendedPrint("expected list: ");
-    for (StateInfo state : stateList) {
-      extendedPrint("- " + state.state + "  " + state.arg1 + "  " + state.arg2);
+
+    try {
+      DanparseServer server = new DanparseServer(port);
+      if (cachedirname != null) {
+        server.setResultCache(new ResultCache(new File(cachedirname),
+            ResultCache.DEFAULT_MAX_ENTRIES));
+      }
+      server.warmup();
+      System.out.println("danparse server listening on port " + server.getPort());
+      server.run();
+      System.out.println("danparse server stopped after " + server.getJobCount() + " jobs");
+    } catch (IOException ex) {
+      System.out.println("ERROR: " + ex.getMessage());
+      System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
     }
   }
-  
+
   /**
    * @param args the command line arguments
    */
   public static void main(String[] args) {
-    showMessages = 0;
-    linenum = 0;
-    bFailure = false;
-    stateIndex = 0;
-    stateList = new ArrayList<>();
-    ignoreList = new ArrayList<>();
-
+    int showMessages = 0;
+    boolean bBatch = false;
+    boolean bConvert = false;
+    boolean bCompress = false;
+    boolean bCallTree = false;
+    boolean bDiff = false;
+    boolean bFrames = false;
+    boolean bConcurrent = false;
+    boolean bCollectAll = false;
+    boolean bProfile = false;
+    String metricsFormat = null;
+    String logfilename = null;
+    String expectfilename = null;
+    String streamfilename = null;
+    String cachedirname = null;
+    int threads = 0;
+    int block = -1;
     String inputfilename = "";
     String outputfilename = "";
-    boolean bExpectedSet = false;
     
+    // check for server mode
+    if (args.length >= 1 && args[0].equals("-S")) {
+      runServer(args);
+      return;
+    }
+
     if (args.length < 2) {
-      System.out.println("Usage: DanParse [-t] <inputfile> <outputfile>");
+      System.out.println("Usage: DanParse [-t] [-P] [-a] [-H] [-j <threads>] [-L <logfile>] [-M json|csv] [-e <expectfile> | -E <streamfile>] [-C <cachedir>] <inputfile> <outputfile>");
+      System.out.println("       (use '-' for <inputfile> to read from standard input)");
+      System.out.println("       DanParse [-t] [-M json|csv] [-e <expectfile>] [-C <cachedir>] -b [-j <threads>] <directory or glob> <outputfile>");
+      System.out.println("       DanParse -c <inputfile> <binaryfile>");
+      System.out.println("       DanParse -z <inputfile> <gzipfile>");
+      System.out.println("       DanParse -G <inputfile> <foldedfile>");
+      System.out.println("       DanParse -D <inputfile> <inputfile2>");
+      System.out.println("       DanParse -F <inputfile>");
+      System.out.println("       DanParse [-t] -B <block> <binaryfile> <outputfile>");
+      System.out.println("       DanParse -S [<port>] [-C <cachedir>]");
       System.exit(0);
     }
     
     // get user args
-    for (String arg : args) {
+    for (int ix = 0; ix < args.length; ix++) {
+      String arg = args[ix];
       // check for test mode
       if (arg.equals("-t")) {
         showMessages = 1;
       } else if (arg.equals("-T")) {
         showMessages = 2;
+      } else if (arg.equals("-b")) {
+        bBatch = true;
+      } else if (arg.equals("-c")) {
+        bConvert = true;
+      } else if (arg.equals("-z")) {
+        bCompress = true;
+      } else if (arg.equals("-G")) {
+        bCallTree = true;
+      } else if (arg.equals("-D")) {
+        bDiff = true;
+      } else if (arg.equals("-F")) {
+        bFrames = true;
+      } else if (arg.equals("-P")) {
+        bConcurrent = true;
+      } else if (arg.equals("-a")) {
+        bCollectAll = true;
+      } else if (arg.equals("-H")) {
+        bProfile = true;
+      } else if (arg.equals("-L") && ix + 1 < args.length) {
+        logfilename = args[++ix];
+      } else if (arg.equals("-e") && ix + 1 < args.length) {
+        expectfilename = args[++ix];
+      } else if (arg.equals("-E") && ix + 1 < args.length) {
+        streamfilename = args[++ix];
+      } else if (arg.equals("-C") && ix + 1 < args.length) {
+        cachedirname = args[++ix];
+      } else if (arg.equals("-M") && ix + 1 < args.length) {
+        metricsFormat = args[++ix].toLowerCase();
+        if (!metricsFormat.equals("json") && !metricsFormat.equals("csv")) {
+          System.out.println("ERROR: invalid metrics format: " + args[ix]);
+          System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+        }
+      } else if (arg.equals("-j") && ix + 1 < args.length) {
+        try {
+          threads = Integer.parseInt(args[++ix]);
+        } catch (NumberFormatException ex) {
+          System.out.println("ERROR: invalid thread count: " + args[ix]);
+          System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+        }
+      } else if (arg.equals("-B") && ix + 1 < args.length) {
+        try {
+          block = Integer.parseInt(args[++ix]);
+        } catch (NumberFormatException ex) {
+          System.out.println("ERROR: invalid block number: " + args[ix]);
+          System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+        }
       } else if (inputfilename.isEmpty()) {
         inputfilename = arg;
       } else {
@@ -476,124 +358,188 @@ public class Danparse {
       }
     }
 
+    // the 2nd file is not an output file when comparing traces, and there is none when
+    // checking the frame callbacks
+    if (bDiff) {
+      diffTraces(inputfilename, outputfilename);
+      return;
+    }
+    if (bFrames) {
+      validateFrames(inputfilename, inputfilename.equals("-"));
+      return;
+    }
+
     // delete any pre-existing output file
     File file = new File(outputfilename);
     if (file.exists()) {
       file.delete();
     }
     
-    // read and parse the input file
-    file = new File(inputfilename);
-    BufferedReader br;
-    try {
-      br = new BufferedReader(new FileReader(file));
-      String line;
-      boolean end = false;
-      while ((line = br.readLine()) != null && !bFailure) {
-        linenum++;
-        
-        // get the 1st word of the line to see if it matches one of the test program imbedded messages
-        String keyword = line;
-        int offset = keyword.indexOf(" ");
-        if (offset > 0) {
-          keyword = keyword.substring(0, offset);
-        }
-
-        // these are messages implanted in the test to define the expected output of the test
-        if (keyword.equals("!TESTEXIT")) {
-          extendedPrint("TESTEXIT");
-          checkStateNext(new StateInfo(stateType.EXIT));
-          end = true;
-          break; // exit readLine loop
-        }
-        else if (keyword.startsWith("!EXPECTED")) {
-          if (bExpectedSet) {
-            System.out.println("ERROR: EXPECTED msg found after list completed on line: " + linenum);
-            System.exit(1);
-          }
+    // compile the expectation file (if any)
+    Expectations expectations = null;
+    if (expectfilename != null) {
+      try {
+        expectations = Expectations.load(new File(expectfilename));
+      } catch (IOException ex) {
+        System.out.println("ERROR: " + ex.getMessage());
+        System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+      }
+    }
 
-          boolean bContinued = false;
-          // check if we have a multiple-line configuration list
-          if (keyword.equals("!EXPECTED+")) {
-            bContinued = true;
-          }
-          line = (offset <= 0) ? line : line.substring(offset).trim();
-          if (bExpectedSet) {
-            // if a previous test was running, this will do an auto-TESTEXIT prior to loading next test
-            checkStateNext(new StateInfo(stateType.EXIT));
-            if (bFailure) {
-              break;
-            }
-            // now, reset expected conditions for next test (if any)
-            bExpectedSet = false;
-            stateIndex = 0;
-            stateList.clear();
-            ignoreList.clear();
-          }
+    // open the result cache (if any)
+    ResultCache cache = null;
+    if (cachedirname != null) {
+      try {
+        cache = new ResultCache(new File(cachedirname), ResultCache.DEFAULT_MAX_ENTRIES);
+      } catch (IOException ex) {
+        System.out.println("ERROR: " + ex.getMessage());
+        System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+      }
+    }
 
-          // setup the state machine for handling the debug info following it
-          createExpectedList(line);
-            
-          // if this is the final expected definition, terminate the list of valid states
-          if (!bContinued && !bExpectedSet) {
-            completeExpectedList();
-            bExpectedSet = true;
-          }
-        }
-        else if (!bExpectedSet) {
-          // ignore all non-configuration messages until the expected results have been defined
-          //continue;
-        }
-        else if (isValidDebugMessage(line)) {
-          // message is from the enabled danalyzer debug output
-          String debugType = line.substring(21, 27).trim();
-          line = line.substring(29);
-          switch (debugType) {
-            case "AGENT":
-              checkStateNext(parse_AGENT(line));
-              break;
-            case "CALL":
-              String[] arglist = line.split(" ");
-              String callee = arglist[1];
-              callee = (callee.contains("(")) ? callee.substring(0, callee.indexOf("(")) : callee;
-              String caller = arglist[2];
-              caller = (caller.contains("(")) ? caller.substring(0, caller.indexOf("(")) : caller;
-              extendedPrint("Debug: CALL, " + callee + ", " + caller);
-              checkStateNext(new StateInfo(stateType.CALL, callee, caller));
-              break;
-            case "RETURN":
-              extendedPrint("Debug: RETURN");
-              checkStateNext(new StateInfo(stateType.RETURN));
-              break;
-            default:
-              break;
-          }
-        } else {
-          // message must be from agent output itself
-          checkStateNext(parseAgentLine(line));
+    if (bBatch) {
+      runBatch(inputfilename, outputfilename, threads, showMessages, metricsFormat, expectations,
+          cache);
+      return;
+    }
+    if (bConvert) {
+      try {
+        BinaryTraceWriter.convert(new File(inputfilename), file);
+      } catch (IOException ex) {
+        System.out.println(ex.getMessage());
+        System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+      }
+      return;
+    }
+    if (bCompress) {
+      try {
+        BlockTraceWriter.convert(new File(inputfilename), file);
+      } catch (IOException ex) {
+        System.out.println(ex.getMessage());
+        System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+      }
+      return;
+    }
+    
+    // read and parse the input file (or the test output piped to standard input)
+    boolean bStream = inputfilename.equals("-");
+    if (bCallTree) {
+      writeCallTree(inputfilename, bStream, file);
+      return;
+    }
+    DanparseEngine engine = new DanparseEngine();
+    engine.setShowMessages(showMessages);
+    engine.setConcurrent(bConcurrent);
+    engine.setCollectFailures(bCollectAll);
+    engine.setLatencyProfile(bProfile);
+    engine.setDecodeThreads(threads);
+    engine.setExpectations(expectations);
+    engine.setResultCache(cache);
+    if (streamfilename != null) {
+      try {
+        engine.setExpectationStream(new File(streamfilename));
+      } catch (IOException ex) {
+        System.out.println("ERROR: " + ex.getMessage());
+        System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+      }
+    }
+    if (showMessages > 0) {
+      // the state messages are written by a background thread, either to the log file or to
+      // standard output (without flushing each line)
+      OutputStream stream = new FileOutputStream(FileDescriptor.out);
+      if (logfilename != null) {
+        try {
+          stream = new FileOutputStream(logfilename);
+        } catch (FileNotFoundException ex) {
+          System.out.println(ex.getMessage());
+          System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
         }
       }
-
-      if (!end && !bFailure) {
-        System.out.println("WARNING: !TESTEXIT message not found!");
+      engine.setOutput(new PrintStream(new BufferedOutputStream(stream, 1 << 16), false));
+      engine.setAsyncOutput(true);
+    }
+    DanparseResult result = null;
+    try {
+      if (bStream) {
+        result = engine.verify(new StreamTraceScanner(openTraceInput(System.in)));
+      } else if (block >= 0) {
+        // verify only the selected block of a binary trace
+        try (BinaryTraceReader reader = new BinaryTraceReader(new File(inputfilename))) {
+          reader.seekBlock(block);
+          result = engine.verify(reader);
+        }
+      } else {
+        result = engine.verify(new File(inputfilename));
       }
     } catch (IOException ex) {
       System.out.println(ex.getMessage());
-      System.exit(1);
+      System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+    }
+
+    if (metricsFormat != null && result.getMetrics() != null) {
+      writeMetrics(result.getMetrics(), outputfilename, metricsFormat);
+    }
+    if (result.getLatencyProfile() != null) {
+      try {
+        result.getLatencyProfile().write(new File(outputfilename + ".latency.csv"));
+      } catch (FileNotFoundException ex) {
+        System.out.println(ex.getMessage());
+      }
+    }
+    reportResult(result, bStream, outputfilename);
+  }
+
+  /**
+   * reports the result of verifying a trace: writes the status to the output file and exits
+   * with the exit code for the status.
+   * 
+   * @param result         - the result of the verification
+   * @param bStream        - true if the trace was read from standard input
+   * @param outputfilename - the name of the output file
+   */
+  static void reportResult(DanparseResult result, boolean bStream, String outputfilename) {
+    if (result.getStatus() == DanparseResult.Status.PASS && bStream &&
+        (!result.isExpectedFound() || !result.isTestExitFound())) {
+      // when streaming, the test output is not checked before parsing, so the test is only valid
+      // if it ran to completion
+      result = new DanparseResult(DanparseResult.Status.ERROR, "Expected messages not found", 0);
+    }
+    if (result.getStatus() == DanparseResult.Status.ERROR) {
+      System.out.println("ERROR: " + result.getMessage());
+      System.exit(DanparseResult.exitCode(result.getStatus()));
+    }
+    if (result.getStatus() == DanparseResult.Status.INVALID) {
+      // (either the test selection or a trace whose entries can't be attributed to a thread)
+      System.out.println("INVALID: " + result.getMessage());
+    }
+    if (!result.isTestExitFound() && result.getStatus() == DanparseResult.Status.PASS) {
+      System.out.println("WARNING: !TESTEXIT message not found!");
     }
 
     // define the output file response
-    String status = bFailure ? "FAIL" : "PASS";
+    String status = result.getStatus().toString();
+
+    // list all of the failures (if they were collected)
+    for (DanparseResult.Failure failure : result.getFailures()) {
+      System.out.println("FAIL " + failure);
+    }
     
-    // open the file to write to
+    // open the file to write to (the failures follow the status)
     try {
       PrintWriter writer = new PrintWriter(outputfilename);
       writer.println(status);
+      for (DanparseResult.Failure failure : result.getFailures()) {
+        writer.println(failure);
+      }
       writer.close();
     } catch (FileNotFoundException ex) {
       System.out.println(ex.getMessage());
-      System.exit(1);
+      System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
     }
+
+    // the exit code indicates the status, so the caller can stop the test program as soon as
+    // a failure is reported
+    System.exit(DanparseResult.exitCode(result.getStatus()));
   }
   
 }
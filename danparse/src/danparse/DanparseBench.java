@@ -0,0 +1,381 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * measures the performance of each stage of the parsing on synthetic traces from the
+ * TraceGenerator. Each stage is run for a number of warmup iterations (to let the JIT compile
+ * it) and then for the measured iterations, reporting the throughput, the allocation rate and
+ * the garbage collections that occurred while measuring. The stages are:
+ *  - classify: checking if the lines are debug messages (EventDecoder.isValidDebugMessage)
+ *  - agent:    decoding the agent entries (EventDecoder.decodeAgentLine)
+ *  - callback: decoding the AGENT debug messages (EventDecoder.decodeCallback)
+ *  - match:    matching the decoded events against the compiled expected list (TransitionTable)
+ *  - verify:   the complete verification of a trace file (DanparseEngine.verify)
+ * The stages other than verify run on a sample of the trace held in memory.
+ *
+ * @author dmcd2356
+ */
+public class DanparseBench {
+
+  private static final String[] STAGES = { "classify", "agent", "callback", "match", "verify" };
+
+  // an operation to measure, returning a value computed from the results so that the work
+  // can't be optimized away
+  private interface Operation {
+    long run() throws IOException;
+  }
+
+  private final TraceGenerator generator;
+  private long   lines;          // the number of lines of the trace file for the verify stage
+  private int    sampleLines;    // the number of lines in memory for the other stages
+  private int    warmup;         // the number of warmup iterations
+  private int    iterations;     // the number of measured iterations
+  private File   traceFile;      // the trace for the verify stage (generated if null)
+  private long   checksum;       // combined results of the operations
+  private final ThreadMXBean threadBean;
+
+  public DanparseBench() {
+    generator = new TraceGenerator();
+    lines = 1000000;
+    sampleLines = 100000;
+    warmup = 5;
+    iterations = 10;
+    threadBean = ManagementFactory.getThreadMXBean();
+  }
+
+  /**
+   * returns the number of bytes allocated by the current thread so far (if the JVM supports it).
+   *
+   * @return the number of bytes, or -1 if not available
+   */
+  private long allocatedBytes() {
+    if (threadBean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threadBean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private static long[] gcTotals() {
+    long[] totals = new long[2];
+    for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      totals[0] += Math.max(0, bean.getCollectionCount());
+      totals[1] += Math.max(0, bean.getCollectionTime());
+    }
+    return totals;
+  }
+
+  /**
+   * runs the warmup and measured iterations of an operation and reports the results.
+   *
+   * @param name  - the name of the stage
+   * @param items - the number of lines (or events) processed by each run of the operation
+   * @param bytes - the number of bytes processed by each run of the operation
+   * @param op    - the operation
+   * @throws IOException
+   */
+  private void measure(String name, long items, long bytes, Operation op) throws IOException {
+    for (int ix = 0; ix < warmup; ix++) {
+      checksum += op.run();
+    }
+
+    long best = Long.MAX_VALUE;
+    long[] gcStart = gcTotals();
+    long allocStart = allocatedBytes();
+    long startTime = System.nanoTime();
+    for (int ix = 0; ix < iterations; ix++) {
+      long opStart = System.nanoTime();
+      checksum += op.run();
+      best = Math.min(best, System.nanoTime() - opStart);
+    }
+    long elapsed = Math.max(1, System.nanoTime() - startTime);
+    long allocated = allocatedBytes() - allocStart;
+    long[] gcEnd = gcTotals();
+
+    double count = (double) items * iterations;
+    double seconds = elapsed / 1e9;
+    String alloc = (allocStart < 0) ? "n/a" :
+        String.format(Locale.US, "%10.1f MB/s %8.2f B/line", allocated / seconds / 1e6,
+            allocated / count);
+    System.out.println(String.format(Locale.US,
+        "%-9s %12.0f lines/s %8.1f MB/s %8.1f ns/line (best %8.1f) alloc %s  gc %d (%d ms)",
+        name, count / seconds, (double) bytes * iterations / seconds / 1e6,
+        elapsed / count, (double) best / items, alloc, gcEnd[0] - gcStart[0],
+        gcEnd[1] - gcStart[1]));
+  }
+
+  /**
+   * reads the lines of a generated trace into memory.
+   *
+   * @param data - the contents of the trace
+   * @return the lines of the trace
+   * @throws IOException
+   */
+  private static List<TraceLine> readLines(byte[] data) throws IOException {
+    List<TraceLine> list = new ArrayList<>();
+    TraceLine line = new TraceLine();
+    try (StreamTraceScanner scanner = new StreamTraceScanner(new ByteArrayInputStream(data))) {
+      while (scanner.nextLine(line)) {
+        TraceLine copy = new TraceLine();
+        copy.append(line.data, 0, line.length);
+        list.add(copy);
+      }
+    }
+    return list;
+  }
+
+  private byte[] generate(long count) throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    generator.setLines(count);
+    generator.generate(stream);
+    return stream.toByteArray();
+  }
+
+  private void benchClassify() throws IOException {
+    byte[] data = generate(sampleLines);
+    TraceLine[] sample = readLines(data).toArray(new TraceLine[0]);
+    measure("classify", sample.length, data.length, () -> {
+      long valid = 0;
+      for (TraceLine line : sample) {
+        if (EventDecoder.isValidDebugMessage(line)) {
+          ++valid;
+        }
+      }
+      return valid;
+    });
+  }
+
+  private void benchAgent() throws IOException {
+    List<TraceLine> agentLines = new ArrayList<>();
+    long bytes = 0;
+    for (TraceLine line : readLines(generate(sampleLines))) {
+      if (EventDecoder.isAgentLine(line)) {
+        agentLines.add(line);
+        bytes += line.length() + 1;
+      }
+    }
+    TraceLine[] sample = agentLines.toArray(new TraceLine[0]);
+    TraceEvent event = new TraceEvent();
+    measure("agent", sample.length, bytes, () -> {
+      long sum = 0;
+      for (TraceLine line : sample) {
+        EventDecoder.decodeAgentLine(line, event);
+        sum += event.state + event.arg1End;
+      }
+      return sum;
+    });
+  }
+
+  private void benchCallback() throws IOException {
+    byte[] type = "AGENT".getBytes(StandardCharsets.UTF_8);
+    List<TraceLine> debugLines = new ArrayList<>();
+    long bytes = 0;
+    for (TraceLine line : readLines(generate(sampleLines))) {
+      if (EventDecoder.isValidDebugMessage(line) && line.regionEqualsTrimmed(21, 27, type)) {
+        debugLines.add(line);
+        bytes += line.length() + 1;
+      }
+    }
+    TraceLine[] sample = debugLines.toArray(new TraceLine[0]);
+    TraceEvent event = new TraceEvent();
+    measure("callback", sample.length, bytes, () -> {
+      long sum = 0;
+      for (TraceLine line : sample) {
+        EventDecoder.decodeCallback(line, 29, event);
+        sum += event.state;
+      }
+      return sum;
+    });
+  }
+
+  private void benchMatch() throws IOException {
+    // compile the expected list of the generated trace the same way the engine does
+    int methods = generator.getMethodCount();
+    SymbolTable symbols = new SymbolTable();
+    TransitionTable transitions = new TransitionTable(symbols);
+    List<DanparseEngine.StateInfo> stateList = new ArrayList<>();
+    for (int ix = 0; ix < methods; ix++) {
+      String callee = "SimpleTest.m" + ix;
+      stateList.add(new DanparseEngine.StateInfo(StateType.ENTRY_II, callee));
+      stateList.add(new DanparseEngine.StateInfo(StateType.createFrame));
+      stateList.add(new DanparseEngine.StateInfo(StateType.CALL, callee, "SimpleTest.main"));
+      stateList.add(new DanparseEngine.StateInfo(StateType.RETURN));
+      stateList.add(new DanparseEngine.StateInfo(StateType.LEAVE_II, callee));
+      stateList.add(new DanparseEngine.StateInfo(StateType.popFrameAndPush));
+    }
+    stateList.add(new DanparseEngine.StateInfo(StateType.EXIT));
+    transitions.compile(stateList, new ArrayList<>());
+    transitions.addIgnore(new DanparseEngine.StateInfo(StateType.LEAVE_UI,
+        "java.io.PrintStream.println"), TransitionTable.IGNORE_AT_START);
+
+    // decode the events of the test thread (without noise) to their keys
+    int[] weights = new int[TraceGenerator.NOISE_AGENT + 1];
+    for (int type = 0; type < weights.length; type++) {
+      weights[type] = generator.getNoiseWeight(type);
+      generator.setNoiseWeight(type, 0);
+    }
+    byte[] data = generate(7L * methods + 4);
+    for (int type = 0; type < weights.length; type++) {
+      generator.setNoiseWeight(type, weights[type]);
+    }
+    TraceEvent event = new TraceEvent();
+    long[] keys = new long[(int) (7L * methods + 4)];
+    int count = 0;
+    for (TraceLine line : readLines(data)) {
+      if (!EventDecoder.isKeywordLine(line) && EventDecoder.decodeLine(line, event, false) &&
+          event.state != StateType.ENTRY_IU.ordinal() &&
+          event.state != StateType.removeParams.ordinal()) {
+        keys[count++] = transitions.makeKey(event);
+      }
+    }
+    long[] sample = Arrays.copyOf(keys, count);
+
+    measure("match", sample.length, 0, () -> {
+      int step = 0;
+      long bad = 0;
+      for (long key : sample) {
+        int ret = transitions.match(step, key);
+        if (ret == TransitionTable.MATCH) {
+          ++step;
+        } else if (ret != TransitionTable.IGNORED) {
+          ++bad;
+        }
+      }
+      return step + (bad << 32);
+    });
+  }
+
+  private void benchVerify() throws IOException {
+    File file = traceFile;
+    boolean bTemp = (file == null);
+    if (bTemp) {
+      file = File.createTempFile("danbench", ".txt");
+      file.deleteOnExit();
+      generator.setLines(lines);
+      try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+        generator.generate(stream);
+      }
+    }
+
+    DanparseEngine engine = new DanparseEngine();
+    DanparseResult first = engine.verify(file);
+    if (first.getStatus() != DanparseResult.Status.PASS) {
+      System.out.println("WARNING: trace did not pass: " + first);
+    }
+    File trace = file;
+    measure("verify", first.getLinesRead(), first.getBytesRead(), () -> {
+      DanparseResult result = engine.verify(trace);
+      return result.getLinesRead() + result.getStatus().ordinal();
+    });
+    if (bTemp) {
+      file.delete();
+    }
+  }
+
+  /**
+   * runs the selected stages.
+   *
+   * @param stages - the names of the stages to run (all if empty)
+   * @throws IOException
+   */
+  public void run(List<String> stages) throws IOException {
+    if (stages.isEmpty()) {
+      stages = Arrays.asList(STAGES);
+    }
+    for (String stage : stages) {
+      switch (stage) {
+        case "classify":
+          benchClassify();
+          break;
+        case "agent":
+          benchAgent();
+          break;
+        case "callback":
+          benchCallback();
+          break;
+        case "match":
+          benchMatch();
+          break;
+        case "verify":
+          benchVerify();
+          break;
+        default:
+          System.out.println("ERROR: unknown stage: " + stage);
+          break;
+      }
+    }
+    System.out.println("(checksum " + Long.toHexString(checksum) + ")");
+  }
+
+  /**
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) {
+    DanparseBench bench = new DanparseBench();
+    List<String> stages = new ArrayList<>();
+    try {
+      for (int ix = 0; ix < args.length; ix++) {
+        String arg = args[ix];
+        if (arg.equals("-n") && ix + 1 < args.length) {
+          bench.lines = Long.parseLong(args[++ix]);
+        } else if (arg.equals("-S") && ix + 1 < args.length) {
+          bench.sampleLines = Integer.parseInt(args[++ix]);
+        } else if (arg.equals("-w") && ix + 1 < args.length) {
+          bench.warmup = Integer.parseInt(args[++ix]);
+        } else if (arg.equals("-i") && ix + 1 < args.length) {
+          bench.iterations = Math.max(1, Integer.parseInt(args[++ix]));
+        } else if (arg.equals("-m") && ix + 1 < args.length) {
+          bench.generator.setMethods(Integer.parseInt(args[++ix]));
+        } else if (arg.equals("-s") && ix + 1 < args.length) {
+          bench.generator.setSeed(Long.parseLong(args[++ix]));
+        } else if (arg.equals("-x") && ix + 1 < args.length) {
+          String[] weights = args[++ix].split(",");
+          for (int type = 0; type < weights.length && type <= TraceGenerator.NOISE_AGENT; type++) {
+            bench.generator.setNoiseWeight(type, Integer.parseInt(weights[type]));
+          }
+        } else if (arg.equals("-f") && ix + 1 < args.length) {
+          bench.traceFile = new File(args[++ix]);
+        } else if (arg.startsWith("-")) {
+          System.out.println("Usage: DanparseBench [-n <lines>] [-S <sample lines>] [-w <warmup>]");
+          System.out.println("                     [-i <iterations>] [-m <methods>] [-s <seed>] [-x <text>,<debug>,<agent>]");
+          System.out.println("                     [-f <tracefile>] [stage ...]");
+          System.out.println("       stages: " + String.join(" ", STAGES));
+          System.exit(0);
+        } else {
+          stages.add(arg);
+        }
+      }
+    } catch (NumberFormatException ex) {
+      System.out.println("ERROR: invalid value: " + ex.getMessage());
+      System.exit(1);
+    }
+
+    try {
+      bench.run(stages);
+    } catch (IOException ex) {
+      System.out.println(ex.getMessage());
+      System.exit(1);
+    }
+  }
+
+}
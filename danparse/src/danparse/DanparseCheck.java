@@ -0,0 +1,678 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.ByteArrayInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * checks the behavior of the parsing on synthetic traces from the TraceGenerator, reporting
+ * each check that does not hold and exiting with 1 if there were any (run by 'ant check').
+ * The checks are:
+ *  - lineends: the lines of a trace are the same whether they end with '\n', "\r\n" or '\r',
+ *              for each of the scanners and for the parallel chunks and compressed blocks
+ *  - alloc:    scanning the lines and decoding them into events allocates nothing for each line
+ *              (measured with the allocation counter of the thread, after a warmup)
+ *  - concurrent: a set of passing, failing and invalid traces verified at the same time on a
+ *              pool of threads (an engine for each thread, alternately in concurrent mode)
+ *              give the intended status, and the same result as verifying them one at a time
+ *              (and a trace with a truncated !EXPECTED message gives an ERROR result)
+ *  - threads:  the debug messages of a 2 thread trace are attributed to the thread of the last
+ *              agent entry when that is known, and the trace is invalid where it is ambiguous
+ *  - diagnostics: replacing the output of the -T messages between traces doesn't leave the
+ *              background writer of the previous output running
+ *  - stream:   with an expectation stream (-E) and all failures collected (-a), a binary trace
+ *              gives the same failures as the raw file when a call is made before the stream
+ *              has reached its expected call
+ *  - expect:   expectation files (-e) using counts, groups, unordered groups, globs and regular
+ *              expressions pass, fail or are rejected as intended on a trace of 10 calls, and
+ *              a failure in the middle of the trace is the only one found with -a
+ *
+ * @author dmcd2356
+ */
+public class DanparseCheck {
+
+  private static final String[] CHECKS = { "lineends", "alloc", "concurrent", "threads",
+    "diagnostics", "stream",
+    "expect" };
+
+  private static final int ALLOC_LINES = 100000;    // the lines decoded by each alloc iteration
+  private static final int ALLOC_WARMUP = 20;       // the iterations run before measuring
+  private static final int ALLOC_ITERATIONS = 20;   // the iterations measured
+  private static final long ALLOC_SLACK = 64 * 1024; // the bytes allowed for the measurement
+  private static final long SCANNER_BYTES = 128 * 1024; // the bytes allowed for each scanner
+  private static final int CONCURRENT_TRACES = 300;   // the traces verified by concurrent
+  private static final int CONCURRENT_THREADS = 8;    // the size of the pool verifying them
+  private static final int OUTPUT_CHANGES = 20;       // the outputs used by diagnostics
+  private static final int STREAM_METHODS = 100;      // the calls expected by stream
+  private static final int STREAM_EARLY = 90;         // the call that stream makes too early
+  private static final int EXPECT_METHODS = 10;       // the calls made by the expect trace
+
+  // the expectation files of the expect check (for a trace calling SimpleTest.m0 to m9 in
+  // order from SimpleTest.main) and the status each is to give, or null if it is to be
+  // rejected when compiled
+  private static final Object[][] EXPECT_CASES = {
+    { "II SimpleTest.main SimpleTest.m* {10}", DanparseResult.Status.PASS },
+    { "II SimpleTest.main SimpleTest.m* +", DanparseResult.Status.PASS },
+    { "thread 1\nII SimpleTest.main SimpleTest.m? {1,}", DanparseResult.Status.PASS },
+    { "II SimpleTest.main SimpleTest.m0\nII SimpleTest.main SimpleTest.x ?\n" +
+      "II * /SimpleTest\\.m[1-9]/ {9}", DanparseResult.Status.PASS },
+    { "ENTRY_II SimpleTest.m0\ncreateFrame\nCALL SimpleTest.m0 SimpleTest.main\nRETURN\n" +
+      "LEAVE_II SimpleTest.m0\npopFrameAndPush\nII SimpleTest.main SimpleTest.m* *",
+      DanparseResult.Status.PASS },
+    { "unordered {\n  II SimpleTest.main SimpleTest.m1\n  II SimpleTest.main SimpleTest.m0\n" +
+      "}\nII SimpleTest.main SimpleTest.m* *", DanparseResult.Status.PASS },
+    { "{\n  II SimpleTest.main SimpleTest.m*\n  II SimpleTest.main SimpleTest.m*\n} {5}",
+      DanparseResult.Status.PASS },
+    { "{\n  II SimpleTest.main SimpleTest.x ?\n} *\nII SimpleTest.main SimpleTest.m* {2,10}",
+      DanparseResult.Status.PASS },
+    { "II SimpleTest.main SimpleTest.m* {9}", DanparseResult.Status.FAIL },
+    { "II SimpleTest.main SimpleTest.m* {11}", DanparseResult.Status.FAIL },
+    { "II SimpleTest.main SimpleTest.m1\nII SimpleTest.main SimpleTest.m* *",
+      DanparseResult.Status.FAIL },
+    { "unordered {\n  II SimpleTest.main SimpleTest.m0\n  II SimpleTest.main SimpleTest.m5\n" +
+      "}\nII SimpleTest.main SimpleTest.m* *", DanparseResult.Status.FAIL },
+    { "{\n  II SimpleTest.main SimpleTest.m*\n  II SimpleTest.main SimpleTest.m*\n} {3}",
+      DanparseResult.Status.FAIL },
+    { "II SimpleTest.main", null },
+    { "II SimpleTest.main SimpleTest.m* {3,1}", null },
+    { "II SimpleTest.main /SimpleTest.m[/", null },
+    { "{\n  II SimpleTest.main SimpleTest.m*", null },
+    { "}", null },
+    { "unordered {\n" + String.join("", Collections.nCopies(9,
+      "  II SimpleTest.main SimpleTest.m*\n")) + "}", null },
+    { "# only a comment", null },
+  };
+
+  private final TraceGenerator generator;
+  private final ThreadMXBean threadBean;
+  private int    checked;        // the number of conditions checked
+  private int    failed;         // the number that did not hold
+  private long   checksum;       // combined results of the operations (so they are not removed)
+
+  public DanparseCheck() {
+    generator = new TraceGenerator();
+    threadBean = ManagementFactory.getThreadMXBean();
+  }
+
+  /**
+   * returns the number of bytes allocated by the current thread so far (if the JVM supports it).
+   *
+   * @return the number of bytes, or -1 if not available
+   */
+  private long allocatedBytes() {
+    if (threadBean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threadBean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private void check(boolean condition, String description) {
+    ++checked;
+    if (!condition) {
+      ++failed;
+      System.out.println("  FAIL: " + description);
+    }
+  }
+
+  // a stream that returns at most a few bytes from each read, so the lines (and their
+  // terminators) are split between the reads in every possible way
+  private static class TrickleInputStream extends InputStream {
+    private final InputStream input;
+    private int count;
+
+    TrickleInputStream(byte[] data) {
+      input = new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public int read() throws IOException {
+      return input.read();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      count = count % 7 + 1;
+      return input.read(buffer, offset, Math.min(length, count));
+    }
+  }
+
+  private static List<String> readLines(TraceScanner scanner) throws IOException {
+    List<String> lines = new ArrayList<>();
+    TraceLine line = new TraceLine();
+    while (scanner.nextLine(line)) {
+      lines.add(line.toString());
+    }
+    return lines;
+  }
+
+  private static File writeTemp(byte[] data, String suffix) throws IOException {
+    File file = File.createTempFile("danparse", suffix);
+    file.deleteOnExit();
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+    return file;
+  }
+
+  // replaces the '\n' terminators of the trace with the specified ones
+  private static byte[] replaceLineEnds(byte[] data, byte[] terminator) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+    for (byte value : data) {
+      if (value == '\n') {
+        out.write(terminator, 0, terminator.length);
+      } else {
+        out.write(value);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private void checkLineEnds() throws IOException {
+    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    generator.setLines(50000);
+    generator.generate(trace);
+    byte[] data = trace.toByteArray();
+    List<String> expected = readLines(new StreamTraceScanner(new ByteArrayInputStream(data)));
+    DanparseEngine engine = new DanparseEngine();
+
+    String[] names = { "LF", "CRLF", "CR" };
+    byte[][] terminators = { { '\n' }, { '\r', '\n' }, { '\r' } };
+    for (int ix = 0; ix < names.length; ix++) {
+      String name = names[ix];
+      byte[] converted = replaceLineEnds(data, terminators[ix]);
+      check(readLines(new StreamTraceScanner(new TrickleInputStream(converted))).equals(expected),
+          name + ": the lines of the stream scanner differ");
+
+      File file = writeTemp(converted, ".txt");
+      File blocks = File.createTempFile("danparse", ".gz");
+      blocks.deleteOnExit();
+      try {
+        try (TraceScanner scanner = new MappedTraceScanner(file)) {
+          check(readLines(scanner).equals(expected),
+              name + ": the lines of the mapped scanner differ");
+        }
+        DanparseResult result = engine.verify(file);
+        check(result.getStatus() == DanparseResult.Status.PASS &&
+            result.getLinesRead() == expected.size(),
+            name + ": verify gave " + result.getStatus() + " for " + result.getLinesRead() +
+            " of " + expected.size() + " lines");
+
+        // (the small chunks start at every position within the lines and terminators)
+        try (ChunkedTraceReader reader = new ChunkedTraceReader(file, 2, 4093, false)) {
+          result = engine.verify(reader);
+        }
+        check(result.getStatus() == DanparseResult.Status.PASS &&
+            result.getLinesRead() == expected.size(),
+            name + ": verify of the chunks gave " + result.getStatus() + " for " +
+            result.getLinesRead() + " of " + expected.size() + " lines");
+
+        BlockTraceWriter.convert(file, blocks);
+        result = engine.verify(blocks);
+        check(result.getStatus() == DanparseResult.Status.PASS &&
+            result.getLinesRead() == expected.size(),
+            name + ": verify of the compressed blocks gave " + result.getStatus() + " for " +
+            result.getLinesRead() + " of " + expected.size() + " lines");
+      } finally {
+        file.delete();
+        blocks.delete();
+      }
+    }
+  }
+
+  // scans all of the lines of a trace and decodes them, returning a value computed from the
+  // events so the work can't be optimized away
+  private static long scanAndDecode(byte[] data, TraceLine line, TraceEvent event)
+      throws IOException {
+    long sum = 0;
+    StreamTraceScanner scanner = new StreamTraceScanner(new ByteArrayInputStream(data));
+    while (scanner.nextLine(line)) {
+      if (EventDecoder.isKeywordLine(line)) {
+        ++sum;
+      } else if (EventDecoder.decodeLine(line, event, true)) {
+        sum += event.state + event.arg1End + event.arg2End + event.threadEnd;
+      }
+    }
+    return sum;
+  }
+
+  private void checkAllocation() throws IOException {
+    if (allocatedBytes() < 0) {
+      System.out.println("  (skipped: the JVM does not count the allocated bytes)");
+      return;
+    }
+    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    generator.setLines(ALLOC_LINES);
+    generator.generate(trace);
+    byte[] data = trace.toByteArray();
+
+    // (the line buffer and event are re-used, as they are by the engine)
+    TraceLine line = new TraceLine();
+    TraceEvent event = new TraceEvent();
+    for (int ix = 0; ix < ALLOC_WARMUP; ix++) {
+      checksum += scanAndDecode(data, line, event);
+    }
+    // (each iteration creates a scanner and its buffer, which are allowed for)
+    long start = allocatedBytes();
+    for (int ix = 0; ix < ALLOC_ITERATIONS; ix++) {
+      checksum += scanAndDecode(data, line, event);
+    }
+    long allocated = allocatedBytes() - start;
+    long lines = (long) ALLOC_LINES * ALLOC_ITERATIONS;
+    long allowed = ALLOC_SLACK + ALLOC_ITERATIONS * SCANNER_BYTES;
+    System.out.println(String.format(Locale.US, "  %d lines, %d bytes allocated (%.3f B/line)",
+        lines, allocated, (double) allocated / lines));
+    check(allocated <= allowed, "decoding allocated " + allocated + " bytes for " + lines +
+        " lines (at most " + allowed + " allowed)");
+  }
+
+  // generates a trace for the concurrent check with the intended status (the index selects
+  // the size of the trace, and where a failing trace fails)
+  private byte[] makeTrace(int index, DanparseResult.Status status) throws IOException {
+    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    generator.setSeed(index + 1);
+    generator.setMethods(5 + index % 40);
+    generator.setLines(500 + 37L * index);
+    generator.generate(trace);
+    generator.setMethods(0);
+    generator.setSeed(0);
+    String text = new String(trace.toByteArray(), StandardCharsets.ISO_8859_1);
+    String call = "call  tid: 1, LSimpleTest;m" + (index % (5 + index % 40)) + "(";
+    switch (status) {
+      case FAIL:
+        // a call of a method that was not expected
+        text = text.replace(call, "call  tid: 1, LSimpleTest;x" + index + "(");
+        break;
+      case INVALID:
+        text = text.replace(call, "call  tid: 1, LSimpleTest;x" + index + "(");
+        text = text.replaceFirst("\nInstrumented ", "\n!INVALID\nInstrumented ");
+        break;
+      default:
+        break;
+    }
+    return text.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static DanparseResult verify(DanparseEngine engine, byte[] trace, boolean bConcurrent)
+      throws IOException {
+    engine.setConcurrent(bConcurrent);
+    return engine.verify(new StreamTraceScanner(new ByteArrayInputStream(trace)));
+  }
+
+  private static boolean sameResult(DanparseResult a, DanparseResult b) {
+    return a.getStatus() == b.getStatus() && a.getLine() == b.getLine() &&
+        a.getMessage().equals(b.getMessage()) && a.getLinesRead() == b.getLinesRead();
+  }
+
+  private void checkConcurrent() throws IOException {
+    DanparseResult.Status[] kinds = {
+      DanparseResult.Status.PASS, DanparseResult.Status.FAIL, DanparseResult.Status.INVALID,
+    };
+    List<byte[]> traces = new ArrayList<>();
+    List<DanparseResult.Status> intended = new ArrayList<>();
+    List<DanparseResult> reference = new ArrayList<>();
+    DanparseEngine single = new DanparseEngine();
+    for (int ix = 0; ix < CONCURRENT_TRACES; ix++) {
+      DanparseResult.Status status = kinds[ix % kinds.length];
+      byte[] trace = makeTrace(ix, status);
+      DanparseResult result = verify(single, trace, false);
+      check(result.getStatus() == status, "trace " + ix + " gave " + result.getStatus() +
+          " instead of " + status + " when verified alone: " + result.getMessage());
+      traces.add(trace);
+      intended.add(status);
+      reference.add(result);
+    }
+
+    // a malformed message is an ERROR result, not an exception (which would stop a batch)
+    String truncated = "!EXPECTED+ II SimpleTest.mai\n" +
+        new String(traces.get(0), StandardCharsets.ISO_8859_1);
+    DanparseResult malformed = verify(single, truncated.getBytes(StandardCharsets.ISO_8859_1),
+        false);
+    check(malformed.getStatus() == DanparseResult.Status.ERROR && malformed.getLine() == 1,
+        "a truncated !EXPECTED message gave " + malformed);
+
+    ExecutorService pool = Executors.newFixedThreadPool(CONCURRENT_THREADS);
+    final ThreadLocal<DanparseEngine> engines = new ThreadLocal<DanparseEngine>() {
+      @Override
+      protected DanparseEngine initialValue() {
+        return new DanparseEngine();
+      }
+    };
+    List<Future<DanparseResult>> futures = new ArrayList<>();
+    for (int ix = 0; ix < traces.size(); ix++) {
+      final byte[] trace = traces.get(ix);
+      final boolean bConcurrent = (ix / kinds.length) % 2 == 1;
+      futures.add(pool.submit(() -> verify(engines.get(), trace, bConcurrent)));
+    }
+    pool.shutdown();
+
+    int[] counts = new int[DanparseResult.Status.values().length];
+    for (int ix = 0; ix < futures.size(); ix++) {
+      DanparseResult result;
+      try {
+        result = futures.get(ix).get();
+      } catch (InterruptedException | ExecutionException ex) {
+        check(false, "trace " + ix + " was not verified: " + ex);
+        continue;
+      }
+      ++counts[result.getStatus().ordinal()];
+      check(result.getStatus() == intended.get(ix), "trace " + ix + " gave " +
+          result.getStatus() + " instead of " + intended.get(ix) + " on the pool: " +
+          result.getMessage());
+      check(sameResult(result, reference.get(ix)), "trace " + ix + " gave " + result +
+          " on the pool but " + reference.get(ix) + " alone");
+    }
+    System.out.println("  " + traces.size() + " traces on " + CONCURRENT_THREADS +
+        " threads: " + counts[DanparseResult.Status.PASS.ordinal()] + " PASS, " +
+        counts[DanparseResult.Status.FAIL.ordinal()] + " FAIL, " +
+        counts[DanparseResult.Status.INVALID.ordinal()] + " INVALID");
+  }
+
+  // the lines of a worker thread that makes 1 call (the agent entries have the thread id,
+  // the debug messages have none)
+  private static List<String> workerLines(String tid) {
+    return new ArrayList<>(Arrays.asList(
+        "Uninstrumented to instrumented  : call  tid: " + tid + ", LSimpleTest$Worker;run()V",
+        "00000001 [00:00.000] AGENT : beginFrame: numParams = 1",
+        "00000002 [00:00.000] CALL  : 0 SimpleTest$Worker.run()V java.lang.Thread.run()V",
+        "Instrumented   to instrumented  : call  tid: " + tid + ", LSimpleTest;addNums()V",
+        "00000003 [00:00.000] AGENT : createFrame: numParams = 1",
+        "00000004 [00:00.000] CALL  : 0 SimpleTest.addNums()V SimpleTest$Worker.run()V",
+        "00000005 [00:00.000] RETURN: 0 SimpleTest.addNums()V",
+        "Instrumented   to instrumented  : returntid: " + tid + ", LSimpleTest;addNums()V",
+        "00000006 [00:00.000] AGENT : popFrameAndPush: isVoid = true",
+        "00000007 [00:00.000] RETURN: 0 SimpleTest$Worker.run()V",
+        "Instrumented   to uninstrumented: returntid: " + tid + ", LSimpleTest$Worker;run()V",
+        "00000008 [00:00.000] AGENT : popFrame: x"));
+  }
+
+  // makes a trace of the expected calls of the 2 threads followed by the specified lines
+  private static byte[] threadTrace(List<String> body) {
+    StringBuilder text = new StringBuilder();
+    for (String tid : new String[] { "12", "13" }) {
+      text.append("!EXPECTED+ UI> java.lang.Thread.run SimpleTest$Worker.run ").append(tid)
+          .append('\n');
+      text.append("!EXPECTED+ II SimpleTest$Worker.run SimpleTest.addNums ").append(tid)
+          .append('\n');
+      text.append(tid.equals("13") ? "!EXPECTED " : "!EXPECTED+ ")
+          .append("UI< java.lang.Thread.run SimpleTest$Worker.run ").append(tid).append('\n');
+    }
+    for (String line : body) {
+      text.append(line).append('\n');
+    }
+    text.append("!TESTEXIT\n");
+    return text.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private void checkThreads() throws IOException {
+    DanparseEngine engine = new DanparseEngine();
+
+    // one thread after the other
+    List<String> body = workerLines("12");
+    body.addAll(workerLines("13"));
+    DanparseResult result = verify(engine, threadTrace(body), false);
+    check(result.getStatus() == DanparseResult.Status.PASS,
+        "threads in sequence gave " + result);
+
+    // the 2nd thread starts after a debug message of the 1st, and the 1st resumes after a
+    // debug message of the 2nd, so the thread of each debug message is known
+    body = workerLines("12");
+    body.addAll(3, workerLines("13"));
+    result = verify(engine, threadTrace(body), false);
+    check(result.getStatus() == DanparseResult.Status.PASS,
+        "threads switching at debug messages gave " + result);
+
+    // the 2nd thread starts right after an agent entry of the 1st, so the debug message that
+    // follows could be from either one
+    body = workerLines("12");
+    List<String> second = workerLines("13");
+    body.addAll(1, second.subList(0, 1));
+    body.addAll(second.subList(1, second.size()));
+    int line = 6 + 3;   // the expected lines, the 2 agent entries and the debug message
+    for (boolean bConcurrent : new boolean[] { false, true }) {
+      result = verify(engine, threadTrace(body), bConcurrent);
+      check(result.getStatus() == DanparseResult.Status.INVALID && result.getLine() == line,
+          "interleaved threads gave " + result + " instead of INVALID on line " + line +
+          (bConcurrent ? " (concurrent)" : ""));
+    }
+    System.out.println("  interleaved threads: " + result);
+  }
+
+  // counts the running background writers of the diagnostic messages
+  private static int countDiagnosticThreads() {
+    int count = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().equals("danparse-diagnostics")) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  private void checkDiagnostics() throws IOException {
+    int before = countDiagnosticThreads();
+    generator.setLines(2000);
+    byte[] trace = makeTrace(0, DanparseResult.Status.PASS);
+    DanparseEngine engine = new DanparseEngine();
+    engine.setShowMessages(2);
+    engine.setAsyncOutput(true);
+    for (int ix = 0; ix < OUTPUT_CHANGES; ix++) {
+      ByteArrayOutputStream text = new ByteArrayOutputStream();
+      engine.setOutput(new PrintStream(text, false));
+      DanparseResult result = verify(engine, trace, false);
+      check(result.getStatus() == DanparseResult.Status.PASS && text.size() > 0,
+          "trace " + ix + " gave " + result + " with " + text.size() + " bytes of messages");
+    }
+    int running = countDiagnosticThreads() - before;
+    System.out.println("  " + OUTPUT_CHANGES + " outputs, " + running + " writers running");
+    check(running <= 1, running + " writers running after " + OUTPUT_CHANGES + " outputs");
+  }
+
+  private static List<String> failureList(DanparseResult result) {
+    List<String> list = new ArrayList<>();
+    for (DanparseResult.Failure failure : result.getFailures()) {
+      list.add(failure.toString());
+    }
+    return list;
+  }
+
+  private void checkStream() throws IOException {
+    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    generator.setMethods(STREAM_METHODS);
+    generator.setLines(3000);
+    generator.generate(trace);
+    generator.setMethods(0);
+    String text = new String(trace.toByteArray(), StandardCharsets.ISO_8859_1);
+
+    // the expected calls go in the stream file (the !EXPECTED keyword is optional there)
+    StringBuilder stream = new StringBuilder();
+    for (String line : text.split("\n")) {
+      if (line.startsWith("!EXPECTED")) {
+        stream.append(line.substring(line.indexOf(' ') + 1).trim()).append('\n');
+      }
+    }
+
+    // an extra call at the start, of a method that is expected much later (so its name is
+    // not in the symbol table until the stream reaches it)
+    String first = "call  tid: 1, LSimpleTest;m0(";
+    text = text.replace(first, "call  tid: 1, LSimpleTest;m" + STREAM_EARLY + "()V\n" +
+        "Instrumented   to instrumented  : " + first);
+
+    File streamFile = writeTemp(stream.toString().getBytes(StandardCharsets.ISO_8859_1), ".exp");
+    File raw = writeTemp(text.getBytes(StandardCharsets.ISO_8859_1), ".txt");
+    File binary = File.createTempFile("danparse", ".bin");
+    binary.deleteOnExit();
+    try {
+      BinaryTraceWriter.convert(raw, binary);
+      DanparseEngine engine = new DanparseEngine();
+      engine.setCollectFailures(true);
+      engine.setExpectationStream(streamFile);
+      DanparseResult expected = engine.verify(raw);
+      DanparseResult result = engine.verify(binary);
+      check(expected.getStatus() == DanparseResult.Status.FAIL &&
+          expected.getFailures().size() == 1,
+          "the raw file gave " + expected + " with failures " + failureList(expected));
+      check(failureList(result).equals(failureList(expected)),
+          "the binary trace gave failures " + failureList(result) + " instead of " +
+          failureList(expected));
+      System.out.println("  " + STREAM_METHODS + " expected calls, failures in the binary " +
+          "trace: " + result.getFailures().size());
+    } finally {
+      streamFile.delete();
+      raw.delete();
+      binary.delete();
+    }
+  }
+
+  private static Expectations compile(String name, String text) throws IOException {
+    return Expectations.parse(name, new BufferedReader(new StringReader(text)));
+  }
+
+  private void checkExpectations() throws IOException {
+    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    generator.setMethods(EXPECT_METHODS);
+    generator.setLines(3000);
+    generator.generate(trace);
+    generator.setMethods(0);
+    byte[] data = trace.toByteArray();
+
+    DanparseEngine engine = new DanparseEngine();
+    int[] counts = new int[DanparseResult.Status.values().length];
+    int rejected = 0;
+    for (int ix = 0; ix < EXPECT_CASES.length; ix++) {
+      String text = (String) EXPECT_CASES[ix][0];
+      DanparseResult.Status intended = (DanparseResult.Status) EXPECT_CASES[ix][1];
+      String name = "case " + ix + " (" + text.replace('\n', ';') + ")";
+      Expectations exp;
+      try {
+        exp = compile("case" + ix, text);
+      } catch (IOException ex) {
+        check(intended == null, name + " was rejected: " + ex.getMessage());
+        ++rejected;
+        continue;
+      }
+      check(intended != null, name + " was not rejected");
+      if (intended == null) {
+        continue;
+      }
+      engine.setExpectations(exp);
+      DanparseResult result = verify(engine, data, false);
+      ++counts[result.getStatus().ordinal()];
+      check(result.getStatus() == intended, name + " gave " + result + " instead of " + intended);
+    }
+
+    // with all failures collected, a call of the wrong method is the only failure (the state
+    // machine resyncs at the CALL message of the method that was expected)
+    StringBuilder list = new StringBuilder();
+    for (int ix = 0; ix < EXPECT_METHODS; ix++) {
+      list.append("II SimpleTest.main SimpleTest.m").append(ix).append('\n');
+    }
+    String text = new String(data, StandardCharsets.ISO_8859_1).replace(
+        "call  tid: 1, LSimpleTest;m3(", "call  tid: 1, LSimpleTest;x3(");
+    engine.setExpectations(compile("resync", list.toString()));
+    engine.setCollectFailures(true);
+    DanparseResult result = verify(engine, text.getBytes(StandardCharsets.ISO_8859_1), false);
+    check(result.getStatus() == DanparseResult.Status.FAIL && result.getFailures().size() == 1 &&
+        result.getFailures().get(0).toString().contains("x3"),
+        "resync gave " + result + " with failures " + failureList(result));
+    System.out.println("  " + EXPECT_CASES.length + " expectation files: " +
+        counts[DanparseResult.Status.PASS.ordinal()] + " PASS, " +
+        counts[DanparseResult.Status.FAIL.ordinal()] + " FAIL, " + rejected + " rejected");
+  }
+
+  /**
+   * runs the selected checks.
+   *
+   * @param checks - the names of the checks to run (all if empty)
+   * @return true if all of the checks held
+   * @throws IOException
+   */
+  public boolean run(List<String> checks) throws IOException {
+    if (checks.isEmpty()) {
+      checks = Arrays.asList(CHECKS);
+    }
+    for (String name : checks) {
+      int before = failed;
+      System.out.println(name + ":");
+      switch (name) {
+        case "lineends":
+          checkLineEnds();
+          break;
+        case "alloc":
+          checkAllocation();
+          break;
+        case "concurrent":
+          checkConcurrent();
+          break;
+        case "threads":
+          checkThreads();
+          break;
+        case "diagnostics":
+          checkDiagnostics();
+          break;
+        case "stream":
+          checkStream();
+          break;
+        case "expect":
+          checkExpectations();
+          break;
+        default:
+          System.out.println("ERROR: unknown check: " + name);
+          ++failed;
+          break;
+      }
+      System.out.println("  " + ((failed == before) ? "ok" : (failed - before) + " failed"));
+    }
+    System.out.println(checked + " conditions checked, " + failed + " failed (checksum " +
+        Long.toHexString(checksum) + ")");
+    return failed == 0;
+  }
+
+  /**
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) {
+    DanparseCheck checker = new DanparseCheck();
+    List<String> checks = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("-")) {
+        System.out.println("Usage: DanparseCheck [check ...]");
+        System.out.println("       checks: " + String.join(" ", CHECKS));
+        System.exit(0);
+      }
+      checks.add(arg);
+    }
+
+    try {
+      System.exit(checker.run(checks) ? 0 : 1);
+    } catch (IOException ex) {
+      System.out.println(ex.getMessage());
+      System.exit(1);
+    }
+  }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * the command that sends a trace to be verified by a running DanparseServer. It takes the
+ * arguments of verifying a single trace with Danparse that the server supports (-t, -T, -a and
+ * -e), and produces the same output file, messages and exit code, so it can be used in its
+ * place. Any other option is rejected rather than being ignored by the server. If no server is
+ * running, the trace is verified by Danparse in this process instead.
+ *
+ * @author dmcd2356
+ */
+public class DanparseClient {
+
+  private static final int CONNECT_TIMEOUT = 1000;    // in msec
+
+  // copies the test output from standard input to the server (on a separate thread, so the
+  // result can be reported as soon as the server has it)
+  private static void sendInput(Socket socket) {
+    Thread thread = new Thread(() -> {
+      try {
+        OutputStream out = socket.getOutputStream();
+        InputStream in = System.in;
+        byte[] buffer = new byte[1 << 16];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+          out.write(buffer, 0, count);
+        }
+        socket.shutdownOutput();
+      } catch (IOException ex) {
+        // the server has stopped reading (it has the result)
+      }
+    }, "danparse-send");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private static void usage() {
+    System.out.println("Usage: DanparseClient [-p <port>] [-t|-T] [-a] [-e <expectfile>] <inputfile> <outputfile>");
+    System.out.println("       (use '-' for <inputfile> to read from standard input)");
+    System.out.println("       DanparseClient [-p <port>] -stop");
+  }
+
+  // reports an argument the client can't use (the exit code is that of an ERROR, so it is not
+  // mistaken for a FAIL)
+  private static void badArgument(String message) {
+    System.out.println("ERROR: " + message);
+    usage();
+    System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+  }
+
+  /**
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) {
+    int port = DanparseServer.DEFAULT_PORT;
+    int showMessages = 0;
+    boolean bShutdown = false;
+    boolean bCollectAll = false;
+    String expectfilename = null;
+    String inputfilename = "";
+    String outputfilename = "";
+    List<String> localArgs = new ArrayList<>();   // the args for verifying without the server
+
+    if (args.length < 1) {
+      usage();
+      System.exit(0);
+    }
+
+    for (int ix = 0; ix < args.length; ix++) {
+      String arg = args[ix];
+      if (arg.equals("-p") && ix + 1 < args.length) {
+        try {
+          port = Integer.parseInt(args[++ix]);
+        } catch (NumberFormatException ex) {
+          System.out.println("ERROR: invalid port: " + args[ix]);
+          System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+        }
+        continue;
+      }
+      localArgs.add(arg);
+      if (arg.equals("-t")) {
+        showMessages = 1;
+      } else if (arg.equals("-T")) {
+        showMessages = 2;
+      } else if (arg.equals("-a")) {
+        bCollectAll = true;
+      } else if (arg.equals("-stop")) {
+        bShutdown = true;
+      } else if (arg.equals("-e") && ix + 1 < args.length) {
+        expectfilename = args[++ix];
+        localArgs.add(expectfilename);
+      } else if (arg.equals("-e")) {
+        badArgument("missing <expectfile> for -e");
+      } else if (arg.startsWith("-") && !arg.equals("-")) {
+        badArgument("option not supported by the client: " + arg);
+      } else if (inputfilename.isEmpty()) {
+        inputfilename = arg;
+      } else if (outputfilename.isEmpty()) {
+        outputfilename = arg;
+      } else {
+        badArgument("unexpected argument: " + arg);
+      }
+    }
+    if (!bShutdown && outputfilename.isEmpty()) {
+      badArgument("missing <inputfile> or <outputfile>");
+    }
+
+    Socket socket = new Socket();
+    try {
+      socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+          CONNECT_TIMEOUT);
+    } catch (IOException ex) {
+      if (bShutdown) {
+        System.out.println("danparse server is not running");
+        System.exit(1);
+      }
+      Danparse.main(localArgs.toArray(new String[0]));
+      return;
+    }
+
+    boolean bStream = inputfilename.equals("-");
+    PrintStream stdout = new PrintStream(
+        new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    DanparseResult result = null;
+    List<DanparseResult.Failure> failures = new ArrayList<>();
+    String error = "lost connection to danparse server";
+    try {
+      socket.setTcpNoDelay(true);
+
+      // send the request
+      StringBuilder request = new StringBuilder();
+      if (bShutdown) {
+        request.append(DanparseServer.REQUEST_SHUTDOWN).append('\n');
+      } else {
+        request.append(DanparseServer.REQUEST_VERIFY).append('\n');
+        request.append("show ").append(showMessages).append('\n');
+        request.append("collect ").append(bCollectAll ? 1 : 0).append('\n');
+        if (expectfilename != null) {
+          request.append("expect ").append(new File(expectfilename).getAbsolutePath()).append('\n');
+        }
+        if (!bStream) {
+          request.append("file ").append(new File(inputfilename).getAbsolutePath()).append('\n');
+        }
+        request.append('\n');
+      }
+      OutputStream out = socket.getOutputStream();
+      out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+      out.flush();
+      if (bStream) {
+        sendInput(socket);
+      }
+
+      // the response is the state messages followed by the failures and the result
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(DanparseServer.RESULT_PREFIX)) {
+          if (!bShutdown) {
+            result = DanparseServer.parseResult(line);
+            result.setFailures(failures);
+          }
+          error = null;
+          break;
+        } else if (line.startsWith(DanparseServer.FAILURE_PREFIX)) {
+          failures.add(DanparseServer.parseFailure(line));
+          continue;
+        } else if (line.startsWith(DanparseServer.ERROR_PREFIX)) {
+          error = line.substring(DanparseServer.ERROR_PREFIX.length());
+          break;
+        }
+        stdout.println(line);
+      }
+    } catch (IOException | RuntimeException ex) {
+      error = ex.getMessage();
+    }
+    stdout.flush();
+
+    if (error != null) {
+      System.out.println(error);
+      System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+    }
+    if (bShutdown) {
+      System.out.println("danparse server stopped");
+      System.exit(0);
+    }
+    new File(outputfilename).delete();
+    Danparse.reportResult(result, bStream, outputfilename);
+  }
+
+}
@@ -0,0 +1,1290 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * the engine that parses the debug output of a test to determine if the test passed or failed.
+ * All of the parsing state is kept in the instance, so separate engines can be used to verify
+ * separate traces at the same time from different threads (a single engine is not thread-safe).
+ * An engine can be re-used for any number of traces, one at a time.
+ *
+ * The agent entries of each thread of the test program are verified by a separate state machine
+ * (a StateMatcher), so the interleaved entries of different threads do not affect each other.
+ * An !EXPECTED message can name the thread it applies to as a 4th word, otherwise it applies to
+ * the 1st thread found that has not been named. Entries of threads that have no expected states
+ * are ignored. The debug messages output for a callback or CALL/RETURN have no thread id, so
+ * they are attributed to the thread of the last agent entry.
+ * In concurrent mode, each thread's state machine runs in a thread of its own and is fed the
+ * entries through a lock-free queue, while the reading thread only decodes and routes them.
+ *
+ * @author dmcd2356
+ */
+public class DanparseEngine {
+
+  // the version of the parsing rules, which must be incremented whenever a change to the
+  // parser can change the result of a trace (so results saved by a ResultCache are not used)
+  public static final int PARSER_VERSION = 4;
+
+  // states caused by the EXPECTED message setups in the test program that are always ignored:
+  // the LeaveMethod from println when at the initial state, and the EnterMethod to println and
+  // its removeParams when at the terminating state.
+  private static final String PRINTLN_METHOD = "java.io.PrintStream.println";
+  static final StateInfo[] IGNORE_AT_START = {
+    new StateInfo(StateType.LEAVE_UI, PRINTLN_METHOD),
+  };
+  static final StateInfo[] IGNORE_AT_EXIT = {
+    new StateInfo(StateType.removeParams),
+    new StateInfo(StateType.ENTRY_IU, PRINTLN_METHOD),
+  };
+
+  private static final int QUEUE_SIZE = 4096;    // the size of each matcher's event queue
+  private static final int RESYNC_LIMIT = 32;    // the max expected states skipped to resync
+  private static final int MAX_FAILURES = 1000;  // the max failures collected from a trace
+  private static final int NO_MATCHER = -1;      // routing of a thread that has no matcher
+  private static ExecutorService matcherPool;    // the threads used in concurrent mode
+
+  private String[] expected;       // the expected response
+  private int     linenum;         // the line number being processed
+  private int     showMessages;    // 1 to print state messages, 2 to print all messages
+  private PrintStream output;      // where the state messages are printed
+  private boolean bAsyncOutput;    // true to print the state messages from a background thread
+  private DiagnosticWriter log;    // the writer for the state messages (null until needed)
+  private boolean bConcurrent;     // true to run the state machine of each thread concurrently
+  private int     decodeThreads;   // the number of threads to decode a raw file with
+  private boolean bCollectAll;     // true to continue after a failure to find all of them
+  private boolean bProfile;        // true to find the time spent in each method
+  private LatencyProfile latency;  // the time spent in each method (null if not profiling)
+  private volatile boolean bFailure; // true if test failure occurred
+  private volatile boolean bStopped; // true if parsing is to stop because of a failure
+  private String  failMessage;     // the reason for the failure
+  private int     failLine;        // the line number the failure occurred on
+  private final ArrayList<DanparseResult.Failure> failures; // the failures (if collecting all)
+  private boolean bExpectedSet;    // true if the expected list has been completed
+  private boolean bTestExit;       // true if the !TESTEXIT message was found
+  private boolean bExpectedFound;  // true if any !EXPECTED message was found
+  private boolean bInvalid;        // true if the !INVALID message was found
+  private String  invalidMessage;  // the reason the trace is invalid
+  private String  errorMessage;    // set if the trace could not be verified
+  private final ArrayList<StateInfo> ignoreList; // list of states to ignore
+  private final ArrayList<StateMatcher> matchers; // the state machine of each expected thread
+  private StateMatcher defaultMatcher; // the matcher for the expected states with no thread
+  private boolean bDefaultRouted;  // true if a thread has been routed to the default matcher
+  private int[]   threadRoute;     // the matcher index + 1 of each thread id (0 if not routed)
+  private int     currentThread;   // the thread id of the last agent entry (NONE if none yet)
+  private int     routedThread;    // the thread id of the last agent entry that has expected states
+  private boolean bThreadsMixed;   // true if the agent entries since the last debug message are
+                                   //  for more than 1 thread that has expected states
+  private boolean bDebugSeen;      // true if a debug message followed the last agent entry
+  private final ArrayList<Future<?>> running;  // the matchers running in concurrent mode
+  private final SymbolTable symbols;   // the ids of the method names in the expected lists
+  private final SymbolTable threadIds; // the ids of the thread ids found in the trace
+  private final SymbolCache names;     // the display names of the event arguments
+  private Expectations expectations;   // the expectation file (null to use the !EXPECTED lines)
+  private File    streamFile;          // the expectation stream file (null if none)
+  private List<String> streamThreads;  // the thread ids of the expectation stream file
+  private ResultCache resultCache;     // the saved results of the raw files (null if none)
+  private ExpectationClassifier classifier;   // the letters of the events for the file
+  private ExpectationAutomaton[] automata;    // the automaton of each thread of the file
+  private final TraceLine  line;   // the line buffer used for reading
+  private final TraceEvent event;  // the event buffer used for decoding
+  private final DanparseMetrics metrics; // the counters for the trace being verified
+  private boolean bSampling;       // true if the stages of the current line are being timed
+
+  public static class StateInfo {
+    StateType state;          // the next valid state
+    String    arg1;           // associated 1st argument value
+    String    arg2;           // associated 2nd argument value
+    
+    StateInfo(StateType next, String a1, String a2) {
+      state = next;
+      arg1 = a1;
+      arg2 = a2;
+    }
+    
+    StateInfo(StateType next, String a1) {
+      state = next;
+      arg1 = a1;
+      arg2 = "";
+    }
+    
+    StateInfo(StateType next) {
+      state = next;
+      arg1 = "";
+      arg2 = "";
+    }
+  }
+  
+  public DanparseEngine() {
+    showMessages = 0;
+    output = System.out;
+    ignoreList = new ArrayList<>();
+    matchers = new ArrayList<>();
+    threadRoute = new int[16];
+    running = new ArrayList<>();
+    failures = new ArrayList<>();
+    symbols = new SymbolTable();
+    threadIds = new SymbolTable();
+    names = new SymbolCache();
+    line = new TraceLine();
+    event = new TraceEvent();
+    metrics = new DanparseMetrics();
+  }
+
+  /**
+   * sets the level of the state messages to display.
+   *
+   * @param level - 0 for none, 1 to print state messages, 2 to print all messages
+   */
+  public void setShowMessages(int level) {
+    showMessages = level;
+  }
+
+  /**
+   * sets where the state messages are displayed (the default is standard output).
+   *
+   * @param out - the stream to print the messages to
+   */
+  public void setOutput(PrintStream out) {
+    output = out;
+  }
+
+  /**
+   * selects whether the state messages are printed by a background thread, so that the parsing
+   * does not wait for the output (the default is to print them directly).
+   * All of the messages for a trace have been printed by the time verify() returns.
+   *
+   * @param enable - true to print the messages from a background thread
+   */
+  public void setAsyncOutput(boolean enable) {
+    bAsyncOutput = enable;
+  }
+
+  /**
+   * selects whether the state machines of the threads are run concurrently.
+   * This only has an effect if the expected states are for more than 1 thread.
+   *
+   * @param enable - true to run each thread's state machine in a separate thread
+   */
+  public void setConcurrent(boolean enable) {
+    bConcurrent = enable;
+  }
+
+  /**
+   * selects whether parsing continues after a failure, so all of the places where the trace
+   * differs from the expected states are found in a single run (the default is to stop at the
+   * 1st failure). After each failure, the state machine of the thread resynchronizes with the
+   * expected states at the next entry that is one of the following expected states (skipping
+   * up to RESYNC_LIMIT of them), and the entries before that are not reported separately.
+   * The failures are returned by DanparseResult.getFailures() (up to MAX_FAILURES of them).
+   *
+   * @param enable - true to collect all of the failures
+   */
+  public void setCollectFailures(boolean enable) {
+    bCollectAll = enable;
+  }
+
+  /**
+   * selects whether the time spent in each method is found from the timestamps of the trace
+   * (see LatencyProfile). The profile is returned by DanparseResult.getLatencyProfile(), and
+   * covers the events from the !EXPECTED messages up to where parsing stopped. It is not
+   * available for binary traces, which do not keep the timestamps.
+   *
+   * @param enable - true to profile the methods
+   */
+  public void setLatencyProfile(boolean enable) {
+    bProfile = enable;
+  }
+
+  /**
+   * sets the expected states for all of the traces verified, in place of the !EXPECTED messages
+   * of the test program (which are then ignored).
+   *
+   * @param exp - the compiled expectation file (null to use the !EXPECTED messages)
+   */
+  public void setExpectations(Expectations exp) {
+    if (exp != expectations) {
+      expectations = exp;
+      classifier = null;
+      automata = null;
+    }
+  }
+
+  /**
+   * sets the file to read the expected states from as they are reached, for all of the traces
+   * verified, in place of the contents of the !EXPECTED messages of the test program (which then
+   * only mark where the test starts). The file is scanned for the thread ids of its entries
+   * here, and only a window of the expected states of each thread is kept while verifying.
+   * The state machines of the threads are not run concurrently when this is used.
+   *
+   * @param file - the expectation stream file (null to use the !EXPECTED messages)
+   * @throws IOException
+   */
+  public void setExpectationStream(File file) throws IOException {
+    streamThreads = (file == null) ? null : ExpectationStream.findThreads(file);
+    streamFile = file;
+  }
+
+  /**
+   * sets the number of threads used to decode a raw output file (other than a binary trace).
+   * With more than 1 thread, the file is split into chunks that are decoded in parallel ahead of
+   * the state machine, which then processes the decoded events of the chunks in order.
+   * The blocks of a block-compressed trace are always decompressed and decoded this way (by
+   * default, with a thread for each processor).
+   *
+   * @param threads - the number of threads (0 or 1 to decode the lines as they are read)
+   */
+  public void setDecodeThreads(int threads) {
+    decodeThreads = threads;
+  }
+
+  /**
+   * sets the cache of results used when verifying raw output files, so a file that has already
+   * been verified (with the same expectations) is not parsed again. The cache is not used when
+   * state messages are being displayed, since they are only produced by parsing.
+   *
+   * @param cache - the result cache (null for none)
+   */
+  public void setResultCache(ResultCache cache) {
+    resultCache = cache;
+  }
+
+  // the callers check the level before building the messages for these, so no messages are
+  // built unless they will be printed
+  private void debugPrint(String message) {
+    if (showMessages > 0) {
+      log.print(message);
+    }
+  }
+  
+  private void extendedPrint(String message) {
+    if (showMessages > 1) {
+      log.print(linenum, message);
+    }
+  }
+  
+  /**
+   * records a test failure. If more than 1 failure is found (when collecting all of them, or
+   * when the threads are verified concurrently), the one found earliest in the trace is reported
+   * as the reason for the failure.
+   *
+   * @param testType - the test type of the expected states that failed
+   * @param newState - the state that failed
+   * @param error    - the reason for the failure
+   * @param line     - the line number the failure occurred on
+   */
+  private synchronized void setTestFail(String testType, StateType newState, String error, int line) {
+    if (showMessages > 0) {
+      debugPrint("FAIL - " + testType + " :: STATE_" + newState.toString() + " :: " + error);
+    }
+    String message = "STATE_" + newState.toString() + " :: " + error;
+    if (!bFailure || line < failLine) {
+      failLine = line;
+      failMessage = message;
+    }
+    bFailure = true;
+    if (bCollectAll && failures.size() < MAX_FAILURES) {
+      failures.add(new DanparseResult.Failure(line, message));
+    }
+    bStopped = !bCollectAll || failures.size() >= MAX_FAILURES;
+  }
+
+  /**
+   * the state machine that verifies the entries of a single thread of the test program.
+   * In concurrent mode it runs in a thread of its own, taking the keys of the entries from its
+   * queue (so it must not use the TraceEvent, which only the reading thread can access).
+   */
+  private class StateMatcher {
+    final String thread;             // the thread id the states are for ("" for the default)
+    final ArrayList<StateInfo> stateList;  // list of state changes expected
+    final TransitionTable transitions;     // the compiled stateList and ignoreList
+    String  testType;                // the test type of the expected states
+    int     stateIndex;              // current index in stateList to next valid state
+    boolean bFailed;                 // true if this thread's states failed
+    boolean bResyncing;              // true if looking for the entry to resume matching at
+    long    matched;                 // the number of events that were the expected state
+    long    ignored;                 // the number of events that were ignored
+    long    failed;                  // the number of events that failed
+    EventQueue queue;                // the queue of entries to verify (concurrent mode only)
+    ExpectationAutomaton automaton;  // the entries of the expectation file (null if not used)
+    ExpectationStream stream;        // the entries of the expectation stream (null if not used)
+    int     automatonState;          // the current state of the automaton
+
+    StateMatcher(String threadId) {
+      thread = threadId;
+      stateList = new ArrayList<>();
+      transitions = new TransitionTable(symbols);
+      testType = "";
+    }
+
+    void compile() {
+      if (automaton != null) {
+        // the expectation file is already compiled
+        automatonState = automaton.getStart();
+        return;
+      }
+      if (stream == null) {
+        stateList.add(new StateInfo(StateType.EXIT));
+      }
+
+      // compile the lists into the transition table (the expected states of a stream are
+      // compiled as they are read, only the ignore list is needed for them)
+      transitions.compile(stateList, ignoreList);
+      for (StateInfo state : IGNORE_AT_START) {
+        transitions.addIgnore(state, TransitionTable.IGNORE_AT_START);
+      }
+      for (StateInfo state : IGNORE_AT_EXIT) {
+        transitions.addIgnore(state, TransitionTable.IGNORE_AT_EXIT);
+      }
+    }
+
+    /**
+     * passes an entry to the state machine, either directly or through its queue.
+     *
+     * @param newState - the decoded entry
+     */
+    void dispatch(TraceEvent newState) {
+      StateType type = newState.getState();
+      if (bFailed || type == StateType.NONE || type == StateType.ERROR) {
+        return;
+      }
+      if (stream != null) {
+        // the names of the states it can be matched to (or resynchronized at) must be in the
+        // symbol table before its key is made
+        stream.has(stateIndex + RESYNC_LIMIT);
+      }
+      long key = (automaton != null) ? classifier.makeKey(newState) : transitions.makeKey(newState);
+      if (queue != null) {
+        queue.put(key, linenum);
+      } else {
+        checkStateNext(key, newState, linenum);
+      }
+    }
+
+    /**
+     * determines if the specified state to proceed to is valid (as specified in stateList).
+     * (sets bFailed to true if invalid)
+     * 
+     * @param key      - the TransitionTable key of the next state to proceed to
+     * @param newState - the decoded entry (null if not available) for reporting the failure
+     * @param line     - the line number of the entry
+     */
+    void checkStateNext(long key, TraceEvent newState, int line) {
+      // ignore entries not pertanent to the test
+      if (bFailed) {
+        return;
+      }
+
+      StateType type = TransitionTable.keyState(key);
+      if (automaton != null) {
+        checkAutomaton(type, key, newState, line);
+        return;
+      }
+      if (stateList.isEmpty() && stream == null) {
+        fail(type, "No state machine entries set up", line);
+        bFailed = true;
+        return;
+      }
+
+      // the compiled table determines if the state is the next one expected, or if it is one that
+      // was marked to ignore
+      // (if the expected list was never completed, there is nothing compiled to match against)
+      int ret = TransitionTable.BAD_STATE;
+      if (stream != null) {
+        if (stream.has(stateIndex)) {
+          ret = transitions.match(stream.getKey(stateIndex), stream.getPhase(stateIndex), key);
+        }
+      } else if (stateIndex < transitions.size()) {
+        ret = transitions.match(stateIndex, key);
+      }
+      if (bResyncing && ret != TransitionTable.IGNORED && type != StateType.EXIT) {
+        // the entries are not reported again until one is found that is expected
+        resync(type, key, line, stateIndex);
+        return;
+      }
+      switch (ret) {
+        case TransitionTable.MATCH:
+          ++matched;
+          if (showMessages > 0) {
+            debugPrint("PASS - " + testType + " :: STATE_" + type.toString() + "  " +
+                symbols.getName(TransitionTable.keyArg1(key)) + "  " +
+                symbols.getName(TransitionTable.keyArg2(key)));
+          }
+          ++stateIndex;
+          break;
+        case TransitionTable.IGNORED:
+          ++ignored;
+          if (showMessages > 1) {
+            log.print(line, "ignoring state: " + type);
+          }
+          break;
+        default:
+        case TransitionTable.BAD_STATE:
+          fail(type, "expected: STATE_" + expectedState().state.toString(), line);
+          resync(type, key, line, stateIndex + 1);
+          break;
+        case TransitionTable.BAD_ARG1:
+          String arg1 = (newState != null) ? names.getArg1(newState) :
+              symbols.getName(TransitionTable.keyArg1(key));
+          fail(type, "expected: arg1 = " + expectedState().arg1 + " (was: " + arg1 + ")", line);
+          resync(type, key, line, stateIndex + 1);
+          break;
+        case TransitionTable.BAD_ARG2:
+          String arg2 = (newState != null) ? names.getArg2(newState) :
+              symbols.getName(TransitionTable.keyArg2(key));
+          fail(type, "expected: arg2 = " + expectedState().arg2 + "  (was: " + arg2 + ")", line);
+          resync(type, key, line, stateIndex + 1);
+          break;
+      }
+    }
+
+    /**
+     * @return the expected state at the current step (for reporting a failure)
+     */
+    private StateInfo expectedState() {
+      if (stream == null) {
+        return stateList.get(stateIndex);
+      }
+      if (!stream.has(stateIndex)) {
+        return new StateInfo(StateType.EXIT);
+      }
+      long key = stream.getKey(stateIndex);
+      return new StateInfo(TransitionTable.keyState(key),
+          symbols.getName(TransitionTable.keyArg1(key)), symbols.getName(TransitionTable.keyArg2(key)));
+    }
+
+    /**
+     * resumes matching at the expected state following a failure that is the same as the entry
+     * (when all of the failures are being collected). If none of the following expected states
+     * is the same, the entry is taken to be one that was not expected and matching resumes at a
+     * later entry.
+     * Only entries that have arguments verified are used to resynchronize, since the others
+     * (such as the RETURN) occur for every call and would be matched to the wrong one.
+     *
+     * @param type  - the state type of the entry
+     * @param key   - the TransitionTable key of the entry
+     * @param line  - the line number of the entry
+     * @param first - the index of the 1st expected state it can be
+     */
+    private void resync(StateType type, long key, int line, int first) {
+      if (bFailed) {
+        return;
+      }
+      int found = -1;
+      if (TransitionTable.argCount(type.ordinal()) > 0) {
+        found = (stream != null) ? stream.find(first, key, RESYNC_LIMIT) :
+            transitions.find(first, key, RESYNC_LIMIT);
+      }
+      if (found < 0) {
+        if (bResyncing) {
+          ++failed;
+        }
+        bResyncing = true;
+        return;
+      }
+      ++matched;
+      if (showMessages > 0) {
+        debugPrint("RESYNC - " + testType + " :: STATE_" + type.toString() + "  " +
+            symbols.getName(TransitionTable.keyArg1(key)) + "  " +
+            symbols.getName(TransitionTable.keyArg2(key)) + " (line " + line + ", " +
+            (found - stateIndex) + " expected states skipped)");
+      }
+      stateIndex = found + 1;
+      bResyncing = false;
+    }
+
+    /**
+     * determines if the next state is one of the entries expected by the expectation file.
+     * 
+     * @param type     - the state type of the entry
+     * @param key      - the ExpectationClassifier key of the entry
+     * @param newState - the decoded entry (null if not available) for reporting the failure
+     * @param line     - the line number of the entry
+     */
+    private void checkAutomaton(StateType type, long key, TraceEvent newState, int line) {
+      int letter = ExpectationClassifier.keyLetter(key);
+      int next = automaton.step(automatonState, letter);
+      if (bResyncing && type != StateType.EXIT &&
+          (next != ExpectationAutomaton.DEAD || !automaton.isIgnored(automatonState, letter))) {
+        // the entries are not reported again until one is found that is expected
+        resyncAutomaton(type, letter, line);
+      } else if (next != ExpectationAutomaton.DEAD) {
+        ++matched;
+        if (showMessages > 0) {
+          debugPrint("PASS - " + testType + " :: STATE_" + type.toString() +
+              (newState == null ? "" : "  " + names.getArg1(newState) + "  " + names.getArg2(newState)));
+        }
+        automatonState = next;
+      } else if (automaton.isIgnored(automatonState, letter)) {
+        ++ignored;
+        if (showMessages > 1) {
+          log.print(line, "ignoring state: " + type);
+        }
+      } else {
+        String was = (newState == null) ? "" : names.getArg1(newState);
+        if (!was.isEmpty()) {
+          String arg2 = names.getArg2(newState);
+          was = "  (was: " + was + (arg2.isEmpty() ? "" : " " + arg2) + ")";
+        }
+        fail(type, "expected: " + automaton.describe(automatonState) + was, line);
+        resyncAutomaton(type, letter, line);
+      }
+    }
+
+    /**
+     * resumes matching at the state following a failure that accepts the entry, as resync()
+     * does for the expected state list.
+     *
+     * @param type   - the state type of the entry
+     * @param letter - the letter of the entry
+     * @param line   - the line number of the entry
+     */
+    private void resyncAutomaton(StateType type, int letter, int line) {
+      if (bFailed) {
+        return;
+      }
+      int next = ExpectationAutomaton.DEAD;
+      if (TransitionTable.argCount(type.ordinal()) > 0) {
+        next = automaton.resync(automatonState, letter, RESYNC_LIMIT);
+      }
+      if (next == ExpectationAutomaton.DEAD) {
+        if (bResyncing) {
+          ++failed;
+        }
+        bResyncing = true;
+        return;
+      }
+      ++matched;
+      if (showMessages > 0) {
+        debugPrint("RESYNC - " + testType + " :: STATE_" + type.toString() + " (line " + line + ")");
+      }
+      automatonState = next;
+      bResyncing = false;
+    }
+
+    /**
+     * records a failure of this thread's states. Parsing of the thread stops unless all of the
+     * failures are being collected.
+     */
+    private void fail(StateType type, String error, int line) {
+      ++failed;
+      bFailed = !bCollectAll;
+      setTestFail(testType, type, error, line);
+    }
+
+    /**
+     * verifies the entries from the queue until the END entry is found (concurrent mode).
+     * The queue is drained to the end even after a failure so the reader is never held up.
+     *
+     * @param events - the queue of entries
+     */
+    void drain(EventQueue events) {
+      for (long key = events.take(); key != EventQueue.END; key = events.take()) {
+        checkStateNext(key, null, events.getLine());
+      }
+    }
+  }
+
+  /**
+   * displays the info decoded for the event (for debugging test).
+   * 
+   * @param event - the decoded event
+   */
+  private void showEvent(TraceEvent event) {
+    if (event.getState() == StateType.ERROR) {
+      debugPrint("ERROR line " + linenum + ": " + event.getError());
+    } else if (showMessages > 1) {
+      switch (event.getState()) {
+        case CALL:
+          extendedPrint("Debug: CALL, " + names.getArg1(event) + ", " + names.getArg2(event));
+          break;
+        case RETURN:
+          extendedPrint("Debug: RETURN");
+          break;
+        default:
+          if (event.state >= StateType.FIRST_CALLBACK.ordinal()) {
+            extendedPrint("Debug: AGENT - " + event.getState());
+          } else {
+            extendedPrint("AgentCallback: " + event.getState() + ", methodName = " +
+                names.getArg1(event));
+          }
+          break;
+      }
+    }
+  }
+
+  /**
+   * parse a line from the debug file to see if we have the start condition.
+   * This line is output by DanTest itself rather than the debug output, but will still be
+   * included in the standard output that is saved as the captured raw file.
+   * This provides the type of test being performed and any additional parameters needed to define
+   * the test conditions.
+   *
+   * @return false if the line doesn't have the type, caller and callee
+   */
+  private boolean createExpectedList(String line) {
+    expected = line.split(" ");
+    if (expected.length < 3) {
+      return false;
+    }
+    String expType = expected[0];             // the expected test type to run
+    String caller  = expected[1];             // the method making the call
+    String callee  = expected[2];             // the called method
+    String thread  = (expected.length > 3) ? expected[3] : ""; // the thread it applies to
+    StateMatcher matcher = findMatcher(thread);
+    ArrayList<StateInfo> stateList = matcher.stateList;
+    matcher.testType = expType;
+
+    // setup valid states for test
+    List<StateInfo> states = Expectations.expandCall(expType, caller, callee);
+    if (states != null) {
+      stateList.addAll(states);
+    } else {
+      expType = "- invalid type " + expType;
+    }
+
+    if (showMessages > 1) {
+      extendedPrint("NEW TEST - EXPECTING: " + expType + "  " + caller + "  " + callee);
+    }
+    return true;
+  }
+  
+  /**
+   * parse a line from the debug file to see if we have the start condition.
+   * This line is output by DanTest itself rather than the debug output, but will still be
+   * included in the standard output that is saved as the captured raw file.
+   * This provides the type of test being performed and any additional parameters needed to define
+   * the test conditions.
+   */
+  private void completeExpectedList() {
+    for (StateMatcher matcher : matchers) {
+      matcher.compile();
+    }
+
+    if (showMessages > 1) {
+      if (!ignoreList.isEmpty()) {
+        extendedPrint("ignore list: ");
+        for (StateInfo state : ignoreList) {
+          extendedPrint("- " + state.state + "  " + state.arg1 + "  " + state.arg2);
+        }
+      }
+      for (StateMatcher matcher : matchers) {
+        extendedPrint(matcher.thread.isEmpty() ? "expected list: " :
+            "expected list for thread " + matcher.thread + ": ");
+        if (matcher.automaton != null) {
+          for (String entry : expectations.getLines(matcher.thread)) {
+            extendedPrint("- " + entry);
+          }
+        }
+        if (matcher.stream != null) {
+          extendedPrint("- (read from " + streamFile.getName() + ")");
+        }
+        for (StateInfo state : matcher.stateList) {
+          extendedPrint("- " + state.state + "  " + state.arg1 + "  " + state.arg2);
+        }
+      }
+    }
+
+    // in concurrent mode, start a thread to run each of the state machines
+    // (the states of an expectation stream use the symbol table as they are read, so they must
+    // be run by the reading thread)
+    if (bConcurrent && matchers.size() > 1 && streamFile == null) {
+      for (StateMatcher matcher : matchers) {
+        EventQueue events = new EventQueue(QUEUE_SIZE);
+        matcher.queue = events;
+        running.add(getMatcherPool().submit(() -> matcher.drain(events)));
+      }
+    }
+  }
+
+  private static synchronized ExecutorService getMatcherPool() {
+    if (matcherPool == null) {
+      matcherPool = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "danparse-matcher");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return matcherPool;
+  }
+
+  /**
+   * finds the state machine for the expected states of a thread, creating it if necessary.
+   *
+   * @param thread - the thread id named in the !EXPECTED message ("" for the default)
+   * @return the state machine
+   */
+  private StateMatcher findMatcher(String thread) {
+    for (StateMatcher matcher : matchers) {
+      if (matcher.thread.equals(thread)) {
+        return matcher;
+      }
+    }
+    StateMatcher matcher = new StateMatcher(thread);
+    matchers.add(matcher);
+    if (thread.isEmpty()) {
+      defaultMatcher = matcher;
+    }
+    return matcher;
+  }
+
+  /**
+   * determines the state machine that an entry is to be verified by.
+   * Agent entries are routed by their thread id, the other entries go to the thread of the
+   * last agent entry. If the agent entries since the last debug message were for more than 1
+   * thread that has expected states, the thread of the entry can't be known, so the trace is
+   * marked invalid rather than guessing.
+   *
+   * @param event - the decoded entry
+   * @return the state machine, or null if the entry is for a thread with no expected states
+   */
+  private StateMatcher routeEvent(TraceEvent event) {
+    int thread = threadIds.internThread(event);
+    if (thread != SymbolTable.NONE) {
+      currentThread = thread;
+    }
+    if (currentThread == SymbolTable.NONE) {
+      // nothing is known about the thread yet
+      return defaultMatcher;
+    }
+    if (currentThread >= threadRoute.length) {
+      threadRoute = Arrays.copyOf(threadRoute, Math.max(currentThread + 1, threadRoute.length * 2));
+    }
+    int route = threadRoute[currentThread];
+    if (route == 0) {
+      // 1st entry for this thread: use the matcher that names it or else the default one
+      String name = threadIds.getName(currentThread);
+      route = NO_MATCHER;
+      for (int ix = 0; ix < matchers.size(); ix++) {
+        if (matchers.get(ix).thread.equals(name)) {
+          route = ix + 1;
+        }
+      }
+      if (route == NO_MATCHER && defaultMatcher != null && !bDefaultRouted) {
+        route = matchers.indexOf(defaultMatcher) + 1;
+        bDefaultRouted = true;
+      }
+      if (route != NO_MATCHER && matchers.size() > 1 && showMessages > 1) {
+        extendedPrint("thread " + name + " uses the " +
+            (matchers.get(route - 1).thread.isEmpty() ? "default" : "thread") + " expected list");
+      }
+      threadRoute[currentThread] = route;
+    }
+    if (thread == SymbolTable.NONE) {
+      bDebugSeen = true;
+      if (bThreadsMixed) {
+        invalidMessage = "Thread of the entry on line " + linenum + " is ambiguous";
+        extendedPrint("INVALID: " + invalidMessage);
+        bInvalid = true;
+        bStopped = true;
+        return null;
+      }
+    } else if (route != NO_MATCHER) {
+      if (bDebugSeen || routedThread == SymbolTable.NONE) {
+        routedThread = thread;
+        bThreadsMixed = false;
+        bDebugSeen = false;
+      } else if (routedThread != thread) {
+        bThreadsMixed = true;
+      }
+    }
+    return (route == NO_MATCHER) ? null : matchers.get(route - 1);
+  }
+
+  /**
+   * terminates the state machines running in concurrent mode and waits for them to finish.
+   */
+  private void finishMatchers() {
+    for (StateMatcher matcher : matchers) {
+      if (matcher.queue != null) {
+        matcher.queue.put(EventQueue.END, linenum);
+        matcher.queue = null;
+      }
+      if (matcher.stream != null) {
+        if (matcher.stream.getError() != null && errorMessage == null) {
+          errorMessage = matcher.stream.getError();
+        }
+        matcher.stream.close();
+      }
+    }
+    try {
+      for (Future<?> future : running) {
+        future.get();
+      }
+    } catch (InterruptedException | ExecutionException ex) {
+      errorMessage = "state machine terminated: " + ex.getMessage();
+    }
+    running.clear();
+  }
+
+  /**
+   * clears all parsing state so a new trace can be verified.
+   *
+   * @throws IOException
+   */
+  private void reset() throws IOException {
+    if (showMessages > 0 &&
+        (log == null || log.getStream() != output || log.isAsync() != bAsyncOutput)) {
+      if (log != null) {
+        log.close();
+      }
+      log = new DiagnosticWriter(output, bAsyncOutput);
+    }
+    expected = new String[] { "" };
+    linenum = 0;
+    bFailure = false;
+    bStopped = false;
+    failures.clear();
+    latency = bProfile ? new LatencyProfile() : null;
+    failMessage = "";
+    failLine = 0;
+    bExpectedSet = false;
+    bTestExit = false;
+    bExpectedFound = false;
+    bInvalid = false;
+    invalidMessage = "Invalid test selection";
+    errorMessage = null;
+    ignoreList.clear();
+    matchers.clear();
+    defaultMatcher = null;
+    bDefaultRouted = false;
+    Arrays.fill(threadRoute, 0);
+    currentThread = SymbolTable.NONE;
+    routedThread = SymbolTable.NONE;
+    bThreadsMixed = false;
+    bDebugSeen = false;
+    symbols.clear();
+    threadIds.clear();
+    names.clearStats();   // the names are kept, since the traces verified often share them
+    metrics.clear();
+    if (expectations != null) {
+      setupExpectations();
+    } else if (streamFile != null) {
+      setupExpectationStream();
+    }
+  }
+
+  /**
+   * sets up the state machines for the threads of the expectation file.
+   * The automata are kept for the following traces, along with the letters and the states
+   * they have created.
+   */
+  private void setupExpectations() {
+    List<String> threads = expectations.getThreads();
+    if (classifier == null) {
+      classifier = new ExpectationClassifier(expectations);
+      automata = new ExpectationAutomaton[threads.size()];
+      for (int ix = 0; ix < automata.length; ix++) {
+        automata[ix] = new ExpectationAutomaton(expectations, classifier, threads.get(ix));
+      }
+    }
+    for (int ix = 0; ix < automata.length; ix++) {
+      StateMatcher matcher = findMatcher(threads.get(ix));
+      matcher.testType = expectations.getName();
+      matcher.automaton = automata[ix];
+    }
+    bExpectedSet = true;
+    completeExpectedList();
+  }
+
+  /**
+   * sets up the state machines for the threads of the expectation stream file, each reading the
+   * states of its thread from the start of the file. The list is completed by the last
+   * !EXPECTED message of the trace.
+   *
+   * @throws IOException
+   */
+  private void setupExpectationStream() throws IOException {
+    for (String thread : streamThreads) {
+      StateMatcher matcher = findMatcher(thread);
+      matcher.testType = streamFile.getName();
+      matcher.stream = new ExpectationStream(streamFile, thread, matcher.transitions);
+    }
+  }
+
+  /**
+   * parses the next line of the trace and checks the state it infers.
+   * 
+   * @param line - the line read from the raw output file
+   * @return false if parsing should stop (the test has terminated)
+   */
+  private boolean processLine(TraceLine line) {
+    // check the 1st word of the line to see if it matches one of the test program imbedded messages
+    // these are messages implanted in the test to define the expected output of the test
+    if (line.keywordEquals(EventDecoder.KEY_TESTEXIT)) {
+      extendedPrint("TESTEXIT");
+      metrics.countKeyword();
+      metrics.countEvent(StateType.EXIT.ordinal());
+      event.reset(StateType.EXIT);
+      if (matchers.isEmpty()) {
+        setTestFail(expected[0], StateType.EXIT, "No state machine entries set up", linenum);
+      }
+      // the test exit terminates every thread
+      for (StateMatcher matcher : matchers) {
+        matcher.dispatch(event);
+      }
+      bTestExit = true;
+      return false;
+    }
+    else if (line.keywordEquals(EventDecoder.KEY_INVALID)) {
+      // the test program indicates the arguments passed to it were not valid
+      extendedPrint("INVALID");
+      metrics.countKeyword();
+      bInvalid = true;
+      return false;
+    }
+    else if (line.startsWith(EventDecoder.KEY_EXPECTED)) {
+      metrics.countKeyword();
+      bExpectedFound = true;
+      if (expectations != null) {
+        // the expected states are from the expectation file
+        return true;
+      }
+      if (bExpectedSet) {
+        errorMessage = "EXPECTED msg found after list completed on line: " + linenum;
+        return false;
+      }
+      if (streamFile != null) {
+        // the expected states are from the expectation stream, so the messages only mark where
+        // the test starts
+        if (!line.keywordEquals(EventDecoder.KEY_EXPECTED_CONT)) {
+          completeExpectedList();
+          bExpectedSet = true;
+        }
+        return true;
+      }
+
+      // check if we have a multiple-line configuration list
+      boolean bContinued = line.keywordEquals(EventDecoder.KEY_EXPECTED_CONT);
+      int offset = line.indexOf((byte) ' ', 0);
+      String entry = (offset <= 0) ? line.toString() : line.substring(offset).trim();
+      if (offset <= 0 || entry.isEmpty()) {
+        // (the expected states were written to an expectation stream file, for use with -E)
+        errorMessage = "EXPECTED msg has no entry on line: " + linenum;
+        return false;
+      }
+
+      // setup the state machine for handling the debug info following it
+      if (!createExpectedList(entry)) {
+        errorMessage = "invalid EXPECTED msg on line: " + linenum;
+        return false;
+      }
+
+      // if this is the final expected definition, terminate the list of valid states
+      if (!bContinued) {
+        completeExpectedList();
+        bExpectedSet = true;
+      }
+    }
+    else if (!bExpectedSet) {
+      // ignore all non-configuration messages until the expected results have been defined
+      metrics.countSkipped();
+    }
+    else if (!bSampling) {
+      // message is from the debug output or the agent (these are decoded in place without
+      // converting the line to a String)
+      if (EventDecoder.decodeLine(line, event, showMessages > 0)) {
+        processEvent(event);
+      } else {
+        metrics.countSkipped();
+      }
+    }
+    else {
+      // same as above, but timing each stage
+      long start = System.nanoTime();
+      boolean bDecoded = EventDecoder.decodeLine(line, event, showMessages > 0);
+      long decoded = System.nanoTime();
+      metrics.addSample(DanparseMetrics.STAGE_DECODE, decoded - start);
+      if (bDecoded) {
+        processEvent(event);
+        metrics.addSample(DanparseMetrics.STAGE_MATCH, System.nanoTime() - decoded);
+      } else {
+        metrics.countSkipped();
+      }
+    }
+
+    return !bStopped;
+  }
+
+  /**
+   * checks the state of a decoded event.
+   * 
+   * @param event - the decoded event
+   */
+  private void processEvent(TraceEvent event) {
+    metrics.countEvent(event.state);
+    if (showMessages > 0) {
+      showEvent(event);
+    }
+    StateMatcher matcher = routeEvent(event);
+    if (latency != null) {
+      latency.record(event, currentThread);
+    }
+    if (matcher != null) {
+      matcher.dispatch(event);
+    } else {
+      metrics.countUnrouted();
+    }
+  }
+
+  private DanparseResult makeResult(long bytesRead, long elapsed) {
+    for (StateMatcher matcher : matchers) {
+      metrics.addDecisions(matcher.matched, matcher.ignored, matcher.failed);
+    }
+    metrics.setTotals(linenum, bytesRead, elapsed);
+    metrics.setNameCache(names.getHits(), names.getMisses(), names.getEvictions());
+
+    DanparseResult result;
+    if (errorMessage != null) {
+      result = new DanparseResult(DanparseResult.Status.ERROR, errorMessage, linenum);
+    } else if (bInvalid) {
+      result = new DanparseResult(DanparseResult.Status.INVALID, invalidMessage, linenum);
+    } else if (bFailure) {
+      result = new DanparseResult(DanparseResult.Status.FAIL, failMessage, failLine);
+    } else {
+      result = new DanparseResult(DanparseResult.Status.PASS, "", 0);
+    }
+    result.setStats(linenum, bytesRead, elapsed, bTestExit, bExpectedFound);
+    result.setMetrics(metrics.copy());
+    result.setLatencyProfile(latency);
+    if (bCollectAll) {
+      // the failures of the threads verified concurrently are not found in line order
+      ArrayList<DanparseResult.Failure> list = new ArrayList<>(failures);
+      list.sort((a, b) -> Integer.compare(a.getLine(), b.getLine()));
+      result.setFailures(list);
+    }
+    return result;
+  }
+
+  /**
+   * verifies the trace read from the specified scanner.
+   * Reading stops as soon as the test fails (or is terminated by !TESTEXIT or !INVALID), so when
+   * the trace is being streamed from a running program, the result is available as soon as the
+   * failure occurs rather than when the program completes (unless all of the failures are being
+   * collected).
+   * 
+   * @param scanner - the source of the raw output lines
+   * @return the result of the verification
+   * @throws IOException
+   */
+  public DanparseResult verify(TraceScanner scanner) throws IOException {
+    reset();
+    long startTime = System.nanoTime();
+    try {
+      while (true) {
+        // the stages of 1 of every SAMPLE_INTERVAL lines are timed (not starting with the 1st,
+        // which includes the time to open the trace)
+        bSampling = (linenum & DanparseMetrics.SAMPLE_MASK) == DanparseMetrics.SAMPLE_MASK;
+        long start = bSampling ? System.nanoTime() : 0;
+        if (!scanner.nextLine(line)) {
+          break;
+        }
+        linenum++;
+        if (bSampling) {
+          metrics.addSample(DanparseMetrics.STAGE_READ, System.nanoTime() - start);
+        }
+        if (!processLine(line)) {
+          break;
+        }
+      }
+    } finally {
+      finishMatchers();
+      if (log != null) {
+        log.flush();
+      }
+    }
+    return makeResult(scanner.getBytesRead(), System.nanoTime() - startTime);
+  }
+
+  /**
+   * verifies the trace read from a binary trace file (starting at the current position of the
+   * reader, so the reader can be positioned to a specific block of the trace beforehand).
+   * 
+   * @param reader - the binary trace reader
+   * @return the result of the verification
+   * @throws IOException
+   */
+  public DanparseResult verify(BinaryTraceReader reader) throws IOException {
+    reset();
+    long startTime = System.nanoTime();
+    boolean bRunning = true;
+    try {
+      while (bRunning) {
+        bSampling = (linenum & DanparseMetrics.SAMPLE_MASK) == DanparseMetrics.SAMPLE_MASK;
+        long start = bSampling ? System.nanoTime() : 0;
+        int type = reader.next(line, event);
+        linenum = reader.getLineNumber();
+        if (bSampling) {
+          metrics.addSample(DanparseMetrics.STAGE_READ, System.nanoTime() - start);
+        }
+        switch (type) {
+          case BinaryTraceReader.TEXT:
+            bRunning = processLine(line);
+            break;
+          case BinaryTraceReader.EVENT:
+            // ignore all events until the expected results have been defined
+            if (bExpectedSet) {
+              start = bSampling ? System.nanoTime() : 0;
+              processEvent(event);
+              if (bSampling) {
+                metrics.addSample(DanparseMetrics.STAGE_MATCH, System.nanoTime() - start);
+              }
+              bRunning = !bStopped;
+            }
+            break;
+          default:
+            bRunning = false;
+            break;
+        }
+      }
+    } finally {
+      finishMatchers();
+      if (log != null) {
+        log.flush();
+      }
+    }
+    return makeResult(reader.getBytesRead(), System.nanoTime() - startTime);
+  }
+
+  /**
+   * verifies a raw output file that is decoded in parallel by the reader.
+   * The lines of each chunk that are not events or test program messages were dropped by the
+   * decoding, so only the events are processed here (the test program messages are parsed here
+   * as usual).
+   * 
+   * @param reader - the reader of the chunks of the file
+   * @return the result of the verification
+   * @throws IOException
+   */
+  public DanparseResult verify(ChunkedTraceReader reader) throws IOException {
+    reset();
+    long startTime = System.nanoTime();
+    bSampling = false;
+    boolean bRunning = true;
+    int base = 0;          // the line number preceding the chunk
+    long bytesRead = 0;
+    try {
+      for (TraceChunk chunk = reader.nextChunk(); bRunning && chunk != null;
+          chunk = reader.nextChunk()) {
+        long chunkStart = System.nanoTime();
+        metrics.addStageNanos(DanparseMetrics.STAGE_DECODE, chunk.decodeNanos);
+        for (int ix = 0; ix < chunk.recordCount && bRunning; ix++) {
+          // the lines between the records were not events
+          metrics.countSkipped(base + chunk.getLineIndex(ix) - linenum);
+          linenum = base + chunk.getLineIndex(ix) + 1;
+          chunk.getLine(ix, line);
+          if (chunk.getState(ix) == TraceChunk.REPROCESS) {
+            bRunning = processLine(line);
+          } else if (!bExpectedSet) {
+            // ignore all events until the expected results have been defined
+            metrics.countSkipped();
+          } else {
+            event.line = line;
+            chunk.getEvent(ix, event);
+            processEvent(event);
+            bRunning = !bStopped;
+          }
+          if (!bRunning) {
+            bytesRead = Math.min(chunk.getEndOffset(ix), reader.getFileSize());
+          }
+        }
+        if (bRunning) {
+          base += chunk.lineCount;
+          metrics.countSkipped(base - linenum);
+          linenum = base;
+          bytesRead = reader.getFileSize();
+        }
+        metrics.addStageNanos(DanparseMetrics.STAGE_MATCH, System.nanoTime() - chunkStart);
+      }
+    } finally {
+      finishMatchers();
+      if (log != null) {
+        log.flush();
+      }
+    }
+    metrics.addStageNanos(DanparseMetrics.STAGE_READ, reader.getWaitNanos());
+    return makeResult(bytesRead, System.nanoTime() - startTime);
+  }
+
+  /**
+   * verifies the trace contained in the specified raw output file (which may be either the
+   * text output, a binary trace converted from it, or the text output compressed with gzip).
+   * A block-compressed trace (see BlockTraceWriter) is decompressed in parallel, and any other
+   * gzip file is decompressed on a separate thread as it is read, so no temporary file is needed.
+   * If a result cache is set, the result saved for the same contents is returned if there is
+   * one (without metrics other than the totals). The cache is not used when all of the failures
+   * are being collected or the methods are being profiled, since neither of these is saved, or
+   * when the expected states are read from an expectation stream (which the key doesn't cover).
+   *
+   * @param file - the raw output file
+   * @return the result of the verification
+   * @throws IOException
+   */
+  public DanparseResult verify(File file) throws IOException {
+    if (resultCache == null || showMessages > 0 || bCollectAll || bProfile || streamFile != null) {
+      return verifyFile(file);
+    }
+    long startTime = System.nanoTime();
+    long size = file.length();
+    long key = ResultCache.makeKey(file, expectations);
+    DanparseResult result = resultCache.lookup(key, size);
+    if (result != null) {
+      long elapsed = System.nanoTime() - startTime;
+      result.setStats(result.getLinesRead(), result.getBytesRead(), elapsed,
+          result.isTestExitFound(), result.isExpectedFound());
+      DanparseMetrics counters = new DanparseMetrics();
+      counters.setTotals(result.getLinesRead(), result.getBytesRead(), elapsed);
+      counters.countCached();
+      result.setMetrics(counters);
+      return result;
+    }
+    result = verifyFile(file);
+    resultCache.store(key, size, result);
+    return result;
+  }
+
+  private DanparseResult verifyFile(File file) throws IOException {
+    if (BinaryTraceReader.isBinaryTrace(file)) {
+      try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+        return verify(reader);
+      }
+    }
+    if (BlockTraceWriter.isBlockTrace(file)) {
+      int threads = (decodeThreads > 0) ? decodeThreads : Runtime.getRuntime().availableProcessors();
+      try (ChunkedTraceReader reader = new ChunkedTraceReader(file, threads, 0, showMessages > 0)) {
+        return verify(reader);
+      }
+    }
+    if (BlockTraceWriter.isGzip(file)) {
+      try (TraceScanner scanner = new StreamTraceScanner(new ReadAheadInputStream(
+          new GZIPInputStream(new FileInputStream(file), 64 * 1024)))) {
+        return verify(scanner);
+      }
+    }
+    if (decodeThreads > 1) {
+      try (ChunkedTraceReader reader = new ChunkedTraceReader(file, decodeThreads,
+          ChunkedTraceReader.DEFAULT_CHUNK_SIZE, showMessages > 0)) {
+        return verify(reader);
+      }
+    }
+    try (TraceScanner scanner = new MappedTraceScanner(file)) {
+      return verify(scanner);
+    }
+  }
+
+}
@@ -0,0 +1,330 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * the counters collected while verifying a trace: the number of events of each state type,
+ * the decisions made on them, the lines and bytes read, and the time spent in each stage.
+ * Each engine has its own instance (so the counters are never shared between threads), and the
+ * metrics of several traces can be combined with add().
+ *
+ * The time of each stage is estimated by timing every SAMPLE_INTERVAL'th line only, so the
+ * timing does not slow down the parsing of the other lines.
+ *
+ * @author dmcd2356
+ */
+public class DanparseMetrics {
+
+  // the pipeline stages that are timed
+  public static final int STAGE_READ   = 0;   // reading the lines (and binary events)
+  public static final int STAGE_DECODE = 1;   // decoding the lines into events
+  public static final int STAGE_MATCH  = 2;   // routing and matching the events
+  private static final String[] STAGE_NAMES = { "read", "decode", "match" };
+
+  public static final int SAMPLE_INTERVAL = 64;     // the lines timed are 1 in this many
+  static final int SAMPLE_MASK = SAMPLE_INTERVAL - 1;
+
+  private final long[] stateCounts;   // the number of events of each StateType ordinal
+  private final long[] stageNanos;    // the estimated time spent in each stage
+  private long traces;                // the number of traces the metrics are for
+  private long lines;                 // the number of lines read
+  private long bytes;                 // the number of bytes read
+  private long elapsed;               // the time taken to verify the traces (in nsec)
+  private long keywordLines;          // the number of !EXPECTED/!TESTEXIT/!INVALID lines
+  private long skippedLines;          // the number of lines that were not events
+  private long matched;               // the number of events that were the expected state
+  private long ignored;               // the number of events that were ignored
+  private long failed;                // the number of events that failed the test
+  private long unrouted;              // the number of events of threads with no expected states
+  private long nameHits;              // the names displayed that were in the name cache
+  private long nameMisses;            // the names displayed that had to be converted
+  private long nameEvictions;         // the names replaced in the name cache
+  private long cached;                // the number of traces whose result was in the result cache
+
+  public DanparseMetrics() {
+    stateCounts = new long[StateType.count()];
+    stageNanos = new long[STAGE_NAMES.length];
+  }
+
+  /**
+   * clears all of the counters.
+   */
+  public void clear() {
+    Arrays.fill(stateCounts, 0);
+    Arrays.fill(stageNanos, 0);
+    traces = lines = bytes = elapsed = 0;
+    keywordLines = skippedLines = 0;
+    matched = ignored = failed = unrouted = 0;
+    nameHits = nameMisses = nameEvictions = 0;
+    cached = 0;
+  }
+
+  /**
+   * adds the counters of another set of metrics to this one.
+   *
+   * @param other - the metrics to add
+   */
+  public void add(DanparseMetrics other) {
+    for (int ix = 0; ix < stateCounts.length; ix++) {
+      stateCounts[ix] += other.stateCounts[ix];
+    }
+    for (int ix = 0; ix < stageNanos.length; ix++) {
+      stageNanos[ix] += other.stageNanos[ix];
+    }
+    traces += other.traces;
+    lines += other.lines;
+    bytes += other.bytes;
+    elapsed += other.elapsed;
+    keywordLines += other.keywordLines;
+    skippedLines += other.skippedLines;
+    matched += other.matched;
+    ignored += other.ignored;
+    failed += other.failed;
+    unrouted += other.unrouted;
+    nameHits += other.nameHits;
+    nameMisses += other.nameMisses;
+    nameEvictions += other.nameEvictions;
+    cached += other.cached;
+  }
+
+  public DanparseMetrics copy() {
+    DanparseMetrics metrics = new DanparseMetrics();
+    metrics.add(this);
+    return metrics;
+  }
+
+  void countEvent(int state) {
+    ++stateCounts[state];
+  }
+
+  void countKeyword() {
+    ++keywordLines;
+  }
+
+  void countSkipped() {
+    ++skippedLines;
+  }
+
+  void countSkipped(long count) {
+    skippedLines += count;
+  }
+
+  void countCached() {
+    ++cached;
+  }
+
+  void countUnrouted() {
+    ++unrouted;
+  }
+
+  void addDecisions(long match, long ignore, long fail) {
+    matched += match;
+    ignored += ignore;
+    failed += fail;
+  }
+
+  /**
+   * adds the time taken by a stage for a sampled line.
+   *
+   * @param stage - the STAGE_xxx that was timed
+   * @param nsecs - the time taken for the line
+   */
+  void addSample(int stage, long nsecs) {
+    stageNanos[stage] += nsecs * SAMPLE_INTERVAL;
+  }
+
+  /**
+   * adds the measured time taken by a stage (when it is timed for all lines rather than sampled).
+   *
+   * @param stage - the STAGE_xxx that was timed
+   * @param nsecs - the time taken
+   */
+  void addStageNanos(int stage, long nsecs) {
+    stageNanos[stage] += nsecs;
+  }
+
+  void setTotals(long lineCount, long byteCount, long nsecs) {
+    traces = 1;
+    lines = lineCount;
+    bytes = byteCount;
+    elapsed = nsecs;
+  }
+
+  void setNameCache(long hits, long misses, long evicted) {
+    nameHits = hits;
+    nameMisses = misses;
+    nameEvictions = evicted;
+  }
+
+  public long getStateCount(StateType state) {
+    return stateCounts[state.ordinal()];
+  }
+
+  /**
+   * returns the number of debug messages of the specified type.
+   *
+   * @param type - AGENT (the callbacks), CALL or RETURN
+   * @return the number of messages of that type
+   */
+  public long getDebugCount(String type) {
+    switch (type) {
+      case "CALL":
+        return stateCounts[StateType.CALL.ordinal()];
+      case "RETURN":
+        return stateCounts[StateType.RETURN.ordinal()];
+      case "AGENT":
+        long count = 0;
+        for (int ix = StateType.FIRST_CALLBACK.ordinal(); ix < stateCounts.length; ix++) {
+          count += stateCounts[ix];
+        }
+        return count;
+      default:
+        return 0;
+    }
+  }
+
+  public long getStageNanos(int stage) {
+    return stageNanos[stage];
+  }
+
+  public long getLines() {
+    return lines;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  public long getMatched() {
+    return matched;
+  }
+
+  public long getIgnored() {
+    return ignored;
+  }
+
+  public long getFailed() {
+    return failed;
+  }
+
+  public long getUnrouted() {
+    return unrouted;
+  }
+
+  public long getNameHits() {
+    return nameHits;
+  }
+
+  public long getNameMisses() {
+    return nameMisses;
+  }
+
+  public long getNameEvictions() {
+    return nameEvictions;
+  }
+
+  public long getCached() {
+    return cached;
+  }
+
+  private double hitRate() {
+    long lookups = nameHits + nameMisses;
+    return (lookups > 0) ? nameHits * 100.0 / lookups : 0.0;
+  }
+
+  private double perSecond(long count) {
+    return (elapsed > 0) ? count * 1.0e9 / elapsed : 0.0;
+  }
+
+  /**
+   * writes the metrics as a list of name, value pairs, in either JSON or CSV format.
+   *
+   * @param writer - where to write the metrics
+   * @param bJson  - true for JSON, false for CSV
+   */
+  public void write(PrintWriter writer, boolean bJson) {
+    MetricWriter out = new MetricWriter(writer, bJson);
+    out.value("traces", traces);
+    out.value("cached_traces", cached);
+    out.value("lines", lines);
+    out.value("bytes", bytes);
+    out.value("elapsed_ms", elapsed / 1000000);
+    out.value("lines_per_sec", perSecond(lines));
+    out.value("bytes_per_sec", perSecond(bytes));
+    for (int ix = 0; ix < stageNanos.length; ix++) {
+      out.value("stage_" + STAGE_NAMES[ix] + "_ms", stageNanos[ix] / 1000000);
+    }
+    out.value("keyword_lines", keywordLines);
+    out.value("skipped_lines", skippedLines);
+    out.value("debug_AGENT", getDebugCount("AGENT"));
+    out.value("debug_CALL", getDebugCount("CALL"));
+    out.value("debug_RETURN", getDebugCount("RETURN"));
+    out.value("matched", matched);
+    out.value("ignored", ignored);
+    out.value("failed", failed);
+    out.value("unrouted", unrouted);
+    out.value("name_cache_hits", nameHits);
+    out.value("name_cache_misses", nameMisses);
+    out.value("name_cache_evictions", nameEvictions);
+    out.value("name_cache_hit_pct", hitRate());
+    for (StateType type : StateType.values()) {
+      out.value("state_" + type, stateCounts[type.ordinal()]);
+    }
+    out.close();
+  }
+
+  /**
+   * writes the metrics to a file. The format is CSV if the file name ends in .csv, otherwise
+   * it is JSON.
+   *
+   * @param file - the file to write
+   * @throws FileNotFoundException
+   */
+  public void write(File file) throws FileNotFoundException {
+    try (PrintWriter writer = new PrintWriter(file)) {
+      write(writer, !file.getName().toLowerCase(Locale.US).endsWith(".csv"));
+    }
+  }
+
+  // writes the name, value pairs in the selected format
+  private static class MetricWriter {
+    private final PrintWriter writer;
+    private final boolean bJson;
+    private boolean bFirst;
+
+    MetricWriter(PrintWriter out, boolean json) {
+      writer = out;
+      bJson = json;
+      bFirst = true;
+      writer.println(bJson ? "{" : "metric,value");
+    }
+
+    void value(String name, Object value) {
+      String text = (value instanceof Double) ?
+          String.format(Locale.US, "%.1f", (Double) value) : value.toString();
+      if (bJson) {
+        writer.print((bFirst ? "" : "," + System.lineSeparator()) + "  \"" + name + "\": " + text);
+      } else {
+        writer.println(name + "," + text);
+      }
+      bFirst = false;
+    }
+
+    void close() {
+      if (bJson) {
+        writer.println();
+        writer.println("}");
+      }
+    }
+  }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * the result of verifying a trace with DanparseEngine.
+ *
+ * @author dmcd2356
+ */
+public class DanparseResult {
+
+  public static enum Status {
+    PASS,       // the trace matched the expected states
+    FAIL,       // the trace did not match the expected states
+    INVALID,    // either the test program reported the test selection was invalid (!INVALID),
+                //  or the trace has a debug message that can't be attributed to a thread
+    ERROR,      // the trace could not be verified
+  };
+
+  // the exit codes for each status when run from the command line
+  public static int exitCode(Status status) {
+    switch (status) {
+      case PASS:    return 0;
+      case FAIL:    return 1;
+      case INVALID: return 2;
+      default:
+      case ERROR:   return 3;
+    }
+  }
+
+  // a mismatch found in the trace (when all of them are collected)
+  public static class Failure {
+    private final int    line;      // the line number of the entry that did not match
+    private final String message;   // the reason for the mismatch
+
+    public Failure(int line, String message) {
+      this.line = line;
+      this.message = message;
+    }
+
+    public int getLine() {
+      return line;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+
+    @Override
+    public String toString() {
+      return "line " + line + ": " + message;
+    }
+  }
+
+  private final Status status;
+  private final String message;     // the reason for a FAIL or ERROR status
+  private final int    line;        // the line number of the FAIL or ERROR (0 if none)
+  private int     linesRead;        // the number of lines parsed
+  private long    bytesRead;        // the number of bytes parsed
+  private long    elapsed;          // the time taken to verify the trace (in nsec)
+  private boolean testExit;         // true if the !TESTEXIT message was found
+  private boolean expectedFound;    // true if any !EXPECTED message was found
+  private DanparseMetrics metrics;  // the counters collected while verifying (null if none)
+  private List<Failure> failures;   // all of the mismatches, in line order (empty unless collected)
+  private LatencyProfile latency;   // the time spent in each method (null if not profiled)
+
+  public DanparseResult(Status status, String message, int line) {
+    this.status = status;
+    this.message = message;
+    this.line = line;
+    this.failures = new ArrayList<>();
+  }
+
+  void setStats(int lines, long bytes, long nsecs, boolean exitFound, boolean expectFound) {
+    linesRead = lines;
+    bytesRead = bytes;
+    elapsed = nsecs;
+    testExit = exitFound;
+    expectedFound = expectFound;
+  }
+
+  void setMetrics(DanparseMetrics counters) {
+    metrics = counters;
+  }
+
+  void setFailures(List<Failure> list) {
+    failures = list;
+  }
+
+  void setLatencyProfile(LatencyProfile profile) {
+    latency = profile;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public int getLine() {
+    return line;
+  }
+
+  public int getLinesRead() {
+    return linesRead;
+  }
+
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  public long getElapsedNanos() {
+    return elapsed;
+  }
+
+  public boolean isTestExitFound() {
+    return testExit;
+  }
+
+  public boolean isExpectedFound() {
+    return expectedFound;
+  }
+
+  public DanparseMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @return all of the mismatches found in the trace (only when the engine collects them,
+   *         otherwise the list is empty and only the 1st mismatch is reported by the status)
+   */
+  public List<Failure> getFailures() {
+    return failures;
+  }
+
+  public LatencyProfile getLatencyProfile() {
+    return latency;
+  }
+
+  @Override
+  public String toString() {
+    return (line > 0) ? status + " (line " + line + "): " + message : status.toString();
+  }
+
+}
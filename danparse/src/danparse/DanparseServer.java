@@ -0,0 +1,318 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * a long-running server that verifies traces sent to it by DanparseClient, so each test run
+ * doesn't have to start a new JVM and wait for the parser to be compiled again.
+ * The server only accepts connections on the loopback address. Each connection is a single
+ * job that is handled by a thread of its own (from a pool of threads that are re-used), using
+ * one of a pool of engines that are kept between jobs, so the engines are already warmed up and
+ * keep their caches. The expectation files used by the jobs are compiled once and kept until
+ * they are changed.
+ *
+ * A job is a request line (VERIFY or SHUTDOWN) followed by option lines and an empty line:
+ *   show &lt;level&gt;      - the level of state messages to send back (as for -t/-T)
+ *   collect &lt;0|1&gt;     - 1 to collect all of the failures (as for -a)
+ *   expect &lt;path&gt;     - the expectation file to verify against
+ *   file &lt;path&gt;       - the raw output file to verify
+ * If no file is given, the trace (which may be compressed with gzip) follows the empty line.
+ * The state messages are sent back as they are produced, followed by a line for each of the
+ * failures collected (FAILURE_PREFIX) and a line with the result (RESULT_PREFIX), or the error
+ * that prevented verifying the trace (ERROR_PREFIX).
+ *
+ * @author dmcd2356
+ */
+public class DanparseServer {
+
+  public static final int DEFAULT_PORT = 7341;
+
+  static final String REQUEST_VERIFY   = "VERIFY";
+  static final String REQUEST_SHUTDOWN = "SHUTDOWN";
+  static final String RESULT_PREFIX = "#DANPARSE-RESULT ";
+  static final String ERROR_PREFIX  = "#DANPARSE-ERROR ";
+  static final String FAILURE_PREFIX = "#DANPARSE-FAILURE ";
+
+  private static final int MAX_HEADER_LINE = 4096;
+  private static final int WARMUP_LINES = 200000;
+  private static final int WARMUP_RUNS  = 5;
+
+  // a compiled expectation file and the modification time of the file it was compiled from
+  private static class CompiledFile {
+    final Expectations expectations;
+    final long modified;
+
+    CompiledFile(Expectations exp, long time) {
+      expectations = exp;
+      modified = time;
+    }
+  }
+
+  private final ServerSocket socket;
+  private final ExecutorService pool;
+  private final ConcurrentLinkedQueue<DanparseEngine> engines;   // the engines not in use
+  private final ConcurrentHashMap<String, CompiledFile> expectFiles;
+  private final AtomicLong jobCount;
+  private ResultCache resultCache;
+  private volatile boolean bRunning;
+
+  /**
+   * @param port - the port to listen on (0 to use any free port)
+   * @throws IOException
+   */
+  public DanparseServer(int port) throws IOException {
+    socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    pool = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "danparse-job");
+      thread.setDaemon(true);
+      return thread;
+    });
+    engines = new ConcurrentLinkedQueue<>();
+    expectFiles = new ConcurrentHashMap<>();
+    jobCount = new AtomicLong();
+    bRunning = true;
+  }
+
+  public int getPort() {
+    return socket.getLocalPort();
+  }
+
+  /**
+   * sets the cache of results used for the jobs that verify a raw output file.
+   *
+   * @param cache - the result cache (null for none)
+   */
+  public void setResultCache(ResultCache cache) {
+    resultCache = cache;
+  }
+
+  public long getJobCount() {
+    return jobCount.get();
+  }
+
+  /**
+   * verifies a generated trace a few times, so the parser is compiled before the 1st job.
+   *
+   * @throws IOException
+   */
+  public void warmup() throws IOException {
+    TraceGenerator generator = new TraceGenerator();
+    generator.setLines(WARMUP_LINES);
+    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+    generator.generate(trace);
+    byte[] data = trace.toByteArray();
+    DanparseEngine engine = new DanparseEngine();
+    for (int run = 0; run < WARMUP_RUNS; run++) {
+      engine.verify(new StreamTraceScanner(new ByteArrayInputStream(data)));
+    }
+    engines.add(engine);
+  }
+
+  /**
+   * accepts jobs until the server is stopped.
+   *
+   * @throws IOException
+   */
+  public void run() throws IOException {
+    while (bRunning) {
+      Socket client;
+      try {
+        client = socket.accept();
+      } catch (SocketException ex) {
+        if (!bRunning) {
+          break;          // the socket was closed by stop()
+        }
+        throw ex;
+      }
+      pool.execute(() -> serve(client));
+    }
+    pool.shutdown();
+  }
+
+  /**
+   * stops accepting jobs (the jobs in progress are completed).
+   */
+  public void stop() {
+    bRunning = false;
+    try {
+      socket.close();
+    } catch (IOException ex) {
+      // already closed
+    }
+  }
+
+  // reads a line of the request header (without the line terminator)
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int value;
+    while ((value = in.read()) >= 0 && value != '\n') {
+      if (line.size() >= MAX_HEADER_LINE) {
+        throw new IOException("request line too long");
+      }
+      line.write(value);
+    }
+    if (value < 0 && line.size() == 0) {
+      return null;
+    }
+    String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+    return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+  }
+
+  // returns the compiled expectation file, compiling it if it is new or has been changed
+  private Expectations getExpectations(String path) throws IOException {
+    File file = new File(path);
+    long modified = file.lastModified();
+    CompiledFile entry = expectFiles.get(path);
+    if (entry == null || entry.modified != modified) {
+      entry = new CompiledFile(Expectations.load(file), modified);
+      expectFiles.put(path, entry);
+    }
+    return entry.expectations;
+  }
+
+  // encodes the result of a job as the last line of the response
+  static String formatResult(DanparseResult result) {
+    String message = (result.getMessage() == null) ? "" :
+        result.getMessage().replace('\n', ' ').replace('\r', ' ');
+    return RESULT_PREFIX + result.getStatus() + " " + result.getLine() + " " +
+        result.getLinesRead() + " " + result.getBytesRead() + " " +
+        result.isTestExitFound() + " " + result.isExpectedFound() + " " + message;
+  }
+
+  // encodes a failure collected by a job as a line of the response
+  static String formatFailure(DanparseResult.Failure failure) {
+    return FAILURE_PREFIX + failure.getLine() + " " +
+        failure.getMessage().replace('\n', ' ').replace('\r', ' ');
+  }
+
+  // decodes a failure line of a response
+  static DanparseResult.Failure parseFailure(String text) {
+    String[] words = text.substring(FAILURE_PREFIX.length()).split(" ", 2);
+    return new DanparseResult.Failure(Integer.parseInt(words[0]),
+        (words.length > 1) ? words[1] : "");
+  }
+
+  // decodes the result line of a response
+  static DanparseResult parseResult(String text) {
+    String[] words = text.substring(RESULT_PREFIX.length()).split(" ", 7);
+    DanparseResult result = new DanparseResult(DanparseResult.Status.valueOf(words[0]),
+        (words.length > 6) ? words[6] : "", Integer.parseInt(words[1]));
+    result.setStats(Integer.parseInt(words[2]), Long.parseLong(words[3]), 0,
+        Boolean.parseBoolean(words[4]), Boolean.parseBoolean(words[5]));
+    return result;
+  }
+
+  // runs a job (on a thread of the pool)
+  private void serve(Socket client) {
+    try (Socket connection = client) {
+      connection.setTcpNoDelay(true);
+      InputStream in = new BufferedInputStream(connection.getInputStream(), 1 << 16);
+      PrintStream out = new PrintStream(new BufferedOutputStream(connection.getOutputStream(),
+          1 << 16), false, "UTF-8");
+
+      // read the request
+      String request = readLine(in);
+      if (REQUEST_SHUTDOWN.equals(request)) {
+        out.println(RESULT_PREFIX + "shutdown");
+        out.flush();
+        stop();
+        return;
+      }
+      int showMessages = 0;
+      boolean bCollectAll = false;
+      String expectPath = null;
+      String tracePath = null;
+      String line;
+      while ((line = readLine(in)) != null && !line.isEmpty()) {
+        int split = line.indexOf(' ');
+        String name = (split < 0) ? line : line.substring(0, split);
+        String value = (split < 0) ? "" : line.substring(split + 1);
+        switch (name) {
+          case "show":
+            try {
+              showMessages = Integer.parseInt(value);
+            } catch (NumberFormatException ex) {
+              out.println(ERROR_PREFIX + "invalid show level: " + value);
+              out.flush();
+              return;
+            }
+            break;
+          case "collect":
+            bCollectAll = value.equals("1");
+            break;
+          case "expect":
+            expectPath = value;
+            break;
+          case "file":
+            tracePath = value;
+            break;
+          default:
+            break;
+        }
+      }
+      if (!REQUEST_VERIFY.equals(request)) {
+        out.println(ERROR_PREFIX + "invalid request: " + request);
+        out.flush();
+        return;
+      }
+
+      // verify the trace with an engine that is not in use
+      jobCount.incrementAndGet();
+      DanparseEngine engine = engines.poll();
+      if (engine == null) {
+        engine = new DanparseEngine();
+      }
+      try {
+        engine.setShowMessages(showMessages);
+        engine.setCollectFailures(bCollectAll);
+        engine.setOutput(out);
+        engine.setAsyncOutput(false);
+        engine.setExpectations((expectPath == null) ? null : getExpectations(expectPath));
+        engine.setResultCache(resultCache);
+        DanparseResult result;
+        if (tracePath != null) {
+          result = engine.verify(new File(tracePath));
+        } else {
+          result = engine.verify(new StreamTraceScanner(Danparse.openTraceInput(in)));
+        }
+        for (DanparseResult.Failure failure : result.getFailures()) {
+          out.println(formatFailure(failure));
+        }
+        out.println(formatResult(result));
+        engines.add(engine);
+      } catch (IOException ex) {
+        out.println(ERROR_PREFIX + ex.getMessage());
+        engines.add(engine);
+      } catch (RuntimeException ex) {
+        // the engine may have been left in an unknown state, so it is not used again
+        out.println(ERROR_PREFIX + "internal error: " + ex);
+      }
+      out.flush();
+    } catch (IOException ex) {
+      // the client has gone away
+    }
+  }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * writes the state and parsing messages of the -t and -T modes.
+ * In asynchronous mode the messages are placed in a bounded ring buffer and written by a
+ * background thread, so the parsing thread doesn't wait for the output. The "LINE n: " prefix
+ * of the parsing messages is also added by the background thread. If the buffer fills up, the
+ * callers wait for the writer to catch up, so the memory used is bounded. The background
+ * thread runs until the writer is closed.
+ * The callers are expected to check the message level before building a message, so nothing
+ * is formatted for the levels that are not enabled.
+ *
+ * @author dmcd2356
+ */
+public class DiagnosticWriter {
+
+  private static final int BUFFER_SIZE = 8192;   // the number of messages the buffer holds
+  private static final int NO_LINE = -1;         // the line number of messages with no prefix
+  private static final String NEWLINE = System.getProperty("line.separator");
+
+  private final PrintStream out;
+  private final boolean  bAsync;
+  private final String[] messages;   // the ring buffer of messages waiting to be written
+  private final int[]    lines;      // the line number of each message (NO_LINE if none)
+  private int     head;              // the index of the oldest message in the buffer
+  private int     count;             // the number of messages in the buffer
+  private boolean bWriting;          // true while the writer is writing messages taken out
+  private boolean bClosing;          // true if the writer is to exit once the buffer is empty
+  private Thread  writer;            // the background writer (created on the 1st message)
+  private byte[]  encoded;           // the text being written by the writer
+  private int     encodedLength;
+
+  /**
+   * @param stream - where to write the messages
+   * @param async  - true to write the messages from a background thread
+   */
+  public DiagnosticWriter(PrintStream stream, boolean async) {
+    out = stream;
+    bAsync = async;
+    messages = async ? new String[BUFFER_SIZE] : null;
+    lines = async ? new int[BUFFER_SIZE] : null;
+  }
+
+  public PrintStream getStream() {
+    return out;
+  }
+
+  public boolean isAsync() {
+    return bAsync;
+  }
+
+  /**
+   * writes a message.
+   *
+   * @param message - the message
+   */
+  public void print(String message) {
+    print(NO_LINE, message);
+  }
+
+  /**
+   * writes a message for a line of the trace (the message is prefixed by the line number).
+   *
+   * @param line    - the line number (NO_LINE for no prefix)
+   * @param message - the message
+   */
+  public void print(int line, String message) {
+    if (!bAsync) {
+      out.println(line == NO_LINE ? message : "LINE " + line + ": " + message);
+      return;
+    }
+
+    synchronized (this) {
+      if (writer == null) {
+        bClosing = false;
+        writer = new Thread(this::writeMessages, "danparse-diagnostics");
+        writer.setDaemon(true);
+        writer.start();
+      }
+      while (count == messages.length) {
+        waitForWriter();
+      }
+      int index = (head + count) % messages.length;
+      messages[index] = message;
+      lines[index] = line;
+      if (count++ == 0) {
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * waits until all of the messages have been written.
+   */
+  public synchronized void flush() {
+    while (count > 0 || bWriting) {
+      waitForWriter();
+    }
+    out.flush();
+  }
+
+  /**
+   * writes the remaining messages and stops the background thread (a later message starts a
+   * new one).
+   */
+  public void close() {
+    Thread thread;
+    synchronized (this) {
+      flush();
+      thread = writer;
+      writer = null;
+      bClosing = true;
+      notifyAll();
+    }
+    if (thread != null) {
+      try {
+        thread.join();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void waitForWriter() {
+    try {
+      wait();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while writing diagnostics");
+    }
+  }
+
+  /**
+   * adds a String to the text being written, encoded as UTF-8 (this avoids the PrintStream
+   * encoding each String separately).
+   *
+   * @param text - the text to add
+   */
+  private void append(String text) {
+    int len = text.length();
+    if (encodedLength + len * 3 > encoded.length) {
+      encoded = Arrays.copyOf(encoded, Math.max(encoded.length * 2, encodedLength + len * 3));
+    }
+    for (int ix = 0; ix < len; ix++) {
+      char ch = text.charAt(ix);
+      if (ch >= 0x80) {
+        // not plain ascii, so let the library encode it
+        byte[] bytes = text.substring(ix).getBytes(StandardCharsets.UTF_8);
+        if (encodedLength + bytes.length > encoded.length) {
+          encoded = Arrays.copyOf(encoded, encodedLength + bytes.length);
+        }
+        System.arraycopy(bytes, 0, encoded, encodedLength, bytes.length);
+        encodedLength += bytes.length;
+        return;
+      }
+      encoded[encodedLength++] = (byte) ch;
+    }
+  }
+
+  /**
+   * the background writer: takes all of the messages in the buffer at once and writes them
+   * outside of the lock, so the callers can continue adding messages while it writes.
+   */
+  private void writeMessages() {
+    encoded = new byte[1 << 16];
+    String[] batch = new String[messages.length];
+    int[] batchLines = new int[messages.length];
+    while (true) {
+      int size;
+      synchronized (this) {
+        while (count == 0) {
+          if (bClosing) {
+            return;
+          }
+          try {
+            wait();
+          } catch (InterruptedException ex) {
+            return;
+          }
+        }
+        size = count;
+        for (int ix = 0; ix < size; ix++) {
+          int index = (head + ix) % messages.length;
+          batch[ix] = messages[index];
+          batchLines[ix] = lines[index];
+          messages[index] = null;
+        }
+        head = (head + size) % messages.length;
+        count = 0;
+        bWriting = true;
+        notifyAll();
+      }
+
+      for (int ix = 0; ix < size; ix++) {
+        if (batchLines[ix] != NO_LINE) {
+          append("LINE ");
+          append(Integer.toString(batchLines[ix]));
+          append(": ");
+        }
+        append(batch[ix]);
+        append(NEWLINE);
+        batch[ix] = null;
+      }
+      out.write(encoded, 0, encodedLength);
+      encodedLength = 0;
+      out.flush();
+
+      synchronized (this) {
+        bWriting = false;
+        notifyAll();
+      }
+    }
+  }
+
+}
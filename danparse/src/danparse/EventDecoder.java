@@ -0,0 +1,327 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * decodes the lines of the raw output file into events.
+ * The decoding is done directly on the bytes of the line into a re-used TraceEvent, so that no
+ * objects are allocated for each line decoded.
+ *
+ * @author dmcd2356
+ */
+public class EventDecoder {
+
+  // the keywords of the messages imbedded by the test program to define the expected output
+  static final byte[] KEY_TESTEXIT  = "!TESTEXIT".getBytes(StandardCharsets.UTF_8);
+  static final byte[] KEY_EXPECTED  = "!EXPECTED".getBytes(StandardCharsets.UTF_8);
+  static final byte[] KEY_EXPECTED_CONT = "!EXPECTED+".getBytes(StandardCharsets.UTF_8);
+  static final byte[] KEY_INVALID   = "!INVALID".getBytes(StandardCharsets.UTF_8);
+
+  // the offset of the message contents of a debug message
+  static final int MESSAGE_OFFSET = 29;
+
+  // the debug message types that are decoded
+  private static final byte[] TYPE_AGENT  = "AGENT".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] TYPE_CALL   = "CALL".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] TYPE_RETURN = "RETURN".getBytes(StandardCharsets.UTF_8);
+
+  // the agent entry types (the 1st 32 chars of the agent output lines) and the ENTRY state each
+  // one represents (the corresponding LEAVE state is the ENTRY state + 3)
+  private static final byte[][] AGENT_TYPES = {
+    "Instrumented   to instrumented  ".getBytes(StandardCharsets.UTF_8),
+    "Instrumented   to uninstrumented".getBytes(StandardCharsets.UTF_8),
+    "Uninstrumented to instrumented  ".getBytes(StandardCharsets.UTF_8),
+  };
+  private static final StateType[] AGENT_ENTRY_STATES = {
+    StateType.ENTRY_II, StateType.ENTRY_IU, StateType.ENTRY_UI,
+  };
+  private static final StateType[] AGENT_LEAVE_STATES = {
+    StateType.LEAVE_II, StateType.LEAVE_IU, StateType.LEAVE_UI,
+  };
+  private static final byte[] AGENT_RETURN = "return".getBytes(StandardCharsets.UTF_8);
+
+  // lookup table for the AGENT callback names, indexed by a hash of the name prefix
+  private static final int      CALLBACK_PREFIX = 8;  // the max number of bytes hashed
+  private static final int      CALLBACK_MASK = 63;   // the table size - 1
+  private static final byte[][] CALLBACK_NAMES = new byte[CALLBACK_MASK + 1][];
+  private static final int[]    CALLBACK_STATES = new int[CALLBACK_MASK + 1];
+
+  static {
+    for (StateType type : StateType.values()) {
+      if (type.ordinal() >= StateType.FIRST_CALLBACK.ordinal()) {
+        byte[] name = type.toString().getBytes(StandardCharsets.UTF_8);
+        int slot = callbackHash(name, 0, name.length);
+        while (CALLBACK_NAMES[slot] != null) {
+          slot = (slot + 1) & CALLBACK_MASK;
+        }
+        CALLBACK_NAMES[slot] = name;
+        CALLBACK_STATES[slot] = type.ordinal();
+      }
+    }
+  }
+
+  private static int callbackHash(byte[] data, int start, int end) {
+    int hash = end - start;
+    int limit = Math.min(end, start + CALLBACK_PREFIX);
+    for (int ix = start; ix < limit; ix++) {
+      hash = hash * 31 + data[ix];
+    }
+    return (hash ^ (hash >>> 7)) & CALLBACK_MASK;
+  }
+
+  /**
+   * finds the callback state for the name in the specified range of bytes.
+   *
+   * @param data  - the bytes containing the name
+   * @param start - the offset of the start of the name
+   * @param end   - the offset following the end of the name
+   * @return the StateType ordinal of the callback, or -1 if not a valid callback name
+   */
+  private static int findCallback(byte[] data, int start, int end) {
+    int len = end - start;
+    for (int slot = callbackHash(data, start, end); CALLBACK_NAMES[slot] != null;
+        slot = (slot + 1) & CALLBACK_MASK) {
+      byte[] name = CALLBACK_NAMES[slot];
+      if (name.length == len) {
+        int ix = 0;
+        while (ix < len && name[ix] == data[start + ix]) {
+          ++ix;
+        }
+        if (ix == len) {
+          return CALLBACK_STATES[slot];
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * check if the line is one of the messages imbedded by the test program (!EXPECTED, !TESTEXIT
+   * or !INVALID) rather than output from the debug or agent.
+   *
+   * @param line - a line from the raw output file read.
+   * @return true if line is a test program message.
+   */
+  public static boolean isKeywordLine(TraceLine line) {
+    return line.length() > 0 && line.byteAt(0) == '!' &&
+        (line.startsWith(KEY_EXPECTED) || line.keywordEquals(KEY_TESTEXIT) ||
+         line.keywordEquals(KEY_INVALID));
+  }
+
+  /**
+   * check if the current line is a valid debug message output.
+   * (non-debug output lines can be mixed with this, since the raw output will contain all
+   * messages the program directs to standard output).
+   * 
+   * @param line - a line from the raw output file read.
+   * @return true if line was valid debug output format.
+   */
+  public static boolean isValidDebugMessage(TraceLine line) {
+    // All debug messages are assumed to start with: "xxxxxxxx [xx:xx.xxx] " to express the line
+    // number and timestamp of the message, followed by message type (chars 21-26) and the
+    // message contents starting at offset 29.
+    return !(line.length() < 30 ||
+            line.byteAt(9) != '[' || line.byteAt(12) != ':' ||
+            line.byteAt(15) != '.' || line.byteAt(19) != ']' ||
+            !line.isNumeric(0, 8) ||
+            !line.isNumeric(10, 11) ||
+            !line.isNumeric(13, 14) ||
+            !line.isNumeric(16, 18));
+  }
+
+  /**
+   * check if the line is an AGENT debug message (a callback made by the instrumented code).
+   *
+   * @param line - a line from the raw output file read.
+   * @return true if line is an AGENT debug message.
+   */
+  public static boolean isCallbackLine(TraceLine line) {
+    return isValidDebugMessage(line) && line.regionEqualsTrimmed(21, 27, TYPE_AGENT);
+  }
+
+  /**
+   * decodes a line of the raw output (other than the test program messages) into an event.
+   * Lines that are not AGENT, CALL or RETURN debug messages or agent entries are skipped.
+   *
+   * @param line      - the line read from the raw output file
+   * @param event     - the event to place the decoded info in
+   * @param decodeAll - true to also decode lines that can't be valid agent entries, so that the
+   *                    reason can be reported (these will be decoded as ERROR)
+   * @return true if the line was decoded into the event (which may be an ERROR)
+   */
+  public static boolean decodeLine(TraceLine line, TraceEvent event, boolean decodeAll) {
+    if (isValidDebugMessage(line)) {
+      // message is from the enabled danalyzer debug output
+      if (line.regionEqualsTrimmed(21, 27, TYPE_AGENT)) {
+        decodeCallback(line, MESSAGE_OFFSET, event);
+      } else if (line.regionEqualsTrimmed(21, 27, TYPE_CALL)) {
+        decodeCall(line, MESSAGE_OFFSET, event);
+      } else if (line.regionEqualsTrimmed(21, 27, TYPE_RETURN)) {
+        event.line = line;
+        event.reset(StateType.RETURN);
+      } else {
+        return false;
+      }
+      return true;
+    }
+
+    // message must be from agent output itself
+    // (lines that can't be agent entries are skipped without decoding them)
+    if (line.length() >= 61 && (decodeAll || isAgentLine(line))) {
+      decodeAgentLine(line, event);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * check if the line has one of the agent entry types that decodeAgentLine handles.
+   *
+   * @param line - a line from the raw output file read.
+   * @return true if line can be an agent entry.
+   */
+  public static boolean isAgentLine(TraceLine line) {
+    if (line.length() < 61) {
+      return false;
+    }
+    for (byte[] type : AGENT_TYPES) {
+      if (line.startsWith(type)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * decodes an AGENT debug message (the message contents start at the specified offset).
+   * The 1st word of the message is the agent callback name, which may be followed by a ':'.
+   *
+   * @param line   - the line read from the raw output file
+   * @param offset - the offset of the message contents
+   * @param event  - the event to place the decoded info in
+   */
+  public static void decodeCallback(TraceLine line, int offset, TraceEvent event) {
+    event.line = line;
+    int end = line.indexOf((byte) ' ', offset);
+    if (end < 0) {
+      end = line.length();
+    }
+    int colon = line.indexOf((byte) ':', offset);
+    if (colon >= 0 && colon < end) {
+      end = colon;
+    }
+
+    int state = findCallback(line.data, offset, end);
+    if (state < 0) {
+      event.setError("Unknown UNINSTR type = ", offset, end);
+      return;
+    }
+    event.reset(StateType.fromOrdinal(state));
+  }
+
+  /**
+   * decodes a CALL debug message (the message contents start at the specified offset).
+   * The 2nd and 3rd words of the message are the called and calling methods, from which the
+   * signatures are removed.
+   *
+   * @param line   - the line read from the raw output file
+   * @param offset - the offset of the message contents
+   * @param event  - the event to place the decoded info in
+   */
+  public static void decodeCall(TraceLine line, int offset, TraceEvent event) {
+    event.line = line;
+    int len = line.length();
+    int calleeStart = line.indexOf((byte) ' ', offset) + 1;
+    if (calleeStart <= 0) {
+      event.setError("missing callee in CALL: ", offset, len);
+      return;
+    }
+    int callerStart = line.indexOf((byte) ' ', calleeStart) + 1;
+    if (callerStart <= 0) {
+      event.setError("missing caller in CALL: ", offset, len);
+      return;
+    }
+    int callerEnd = line.indexOf((byte) ' ', callerStart);
+    if (callerEnd < 0) {
+      callerEnd = len;
+    }
+
+    event.reset(StateType.CALL);
+    event.arg1Start = calleeStart;
+    event.arg1End = trimSignature(line, calleeStart, callerStart - 1);
+    event.arg2Start = callerStart;
+    event.arg2End = trimSignature(line, callerStart, callerEnd);
+  }
+
+  private static int trimSignature(TraceLine line, int start, int end) {
+    int offset = line.indexOf((byte) '(', start);
+    return (offset >= 0 && offset < end) ? offset : end;
+  }
+
+  /**
+   * decodes a line output by the agent itself, which indicates the entry to or exit from a
+   * method. The format of these lines is:
+   *   [type (32 chars)]: [call/return (6 chars)] ... [threadid], L[class];[method]([signature])
+   *
+   * @param line  - the line read from the raw output file (must be at least 61 chars)
+   * @param event - the event to place the decoded info in
+   */
+  public static void decodeAgentLine(TraceLine line, TraceEvent event) {
+    event.line = line;
+
+    // catagorize the expected type
+    int type = 0;
+    while (type < AGENT_TYPES.length && !line.startsWith(AGENT_TYPES[type])) {
+      ++type;
+    }
+    if (type >= AGENT_TYPES.length) {
+      event.setError("invalid agent entry: ", 0, 32);
+      return;
+    }
+    StateType newState = line.startsWith(34, AGENT_RETURN) ?
+        AGENT_LEAVE_STATES[type] : AGENT_ENTRY_STATES[type];
+
+    // extract the thread id
+    int threadStart = 44;
+    int offset = line.indexOf((byte) ',', threadStart);
+    if (offset <= threadStart) {
+      event.setError("missing ',' following threadid: ", threadStart, line.length());
+      return;
+    }
+    int threadEnd = offset;
+
+    // extract the class, method and signature
+    int classStart = offset + 3; // eliminate the leading space & 'L' char
+    offset = line.indexOf((byte) ';', offset + 1);
+    if (offset <= threadEnd + 1) {
+      event.setError("missing ';' following class: ", threadStart, threadEnd);
+      return;
+    }
+    int classEnd = offset;
+    int methodStart = offset + 1;
+    offset = line.indexOf((byte) '(', methodStart);
+    if (offset <= methodStart) {
+      event.setError("missing '(' following method: ", threadStart, threadEnd);
+      return;
+    }
+
+    // the thread id is padded with spaces
+    while (threadStart < threadEnd && line.byteAt(threadStart) == ' ') {
+      ++threadStart;
+    }
+
+    event.reset(newState);
+    event.threadStart = threadStart;
+    event.threadEnd = threadEnd;
+    event.classStart = Math.min(classStart, classEnd);
+    event.classEnd = classEnd;
+    event.arg1Start = methodStart;
+    event.arg1End = offset;
+  }
+
+}
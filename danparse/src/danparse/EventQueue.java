@@ -0,0 +1,102 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * a bounded lock-free queue of event keys passed from the thread reading the trace to the thread
+ * verifying them. Only a single thread may put entries and only a single thread may take them.
+ * The producer waits when the queue is full, so a slow matcher holds back the reader rather than
+ * letting the queue grow.
+ *
+ * @author dmcd2356
+ */
+public class EventQueue {
+
+  public static final long END = -1L;   // the key that marks the end of the events
+
+  private static final int SPIN_LIMIT = 100;   // times to spin before parking when waiting
+
+  private final long[] keys;        // the TransitionTable key of each event
+  private final int[]  lines;       // the line number of each event
+  private final int    mask;
+  private final AtomicLong head;    // the index of the next entry to take (set by the consumer)
+  private final AtomicLong tail;    // the index of the next entry to put (set by the producer)
+  private long cachedHead;          // the producer's last view of head
+  private long takeIndex;           // the consumer's copy of head
+  private long cachedTail;          // the consumer's last view of tail
+  private int  lastLine;            // the line number of the last entry taken
+
+  /**
+   * @param capacity - the number of entries the queue can hold (rounded up to a power of 2)
+   */
+  public EventQueue(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    keys = new long[size];
+    lines = new int[size];
+    mask = size - 1;
+    head = new AtomicLong();
+    tail = new AtomicLong();
+  }
+
+  private static void pause(int count) {
+    if (count < SPIN_LIMIT) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(10000);
+    }
+  }
+
+  /**
+   * adds an event to the queue, waiting for space if it is full.
+   *
+   * @param key  - the key of the event (END to terminate the queue)
+   * @param line - the line number the event was found on
+   */
+  public void put(long key, int line) {
+    long index = tail.get();
+    int count = 0;
+    while (index - cachedHead >= keys.length) {
+      cachedHead = head.get();
+      if (index - cachedHead >= keys.length) {
+        pause(count++);
+      }
+    }
+    keys[(int) index & mask] = key;
+    lines[(int) index & mask] = line;
+    tail.lazySet(index + 1);
+  }
+
+  /**
+   * waits for the next event in the queue and removes it.
+   * The line number of the event is then available from getLine().
+   *
+   * @return the key of the event
+   */
+  public long take() {
+    int count = 0;
+    while (takeIndex == cachedTail) {
+      cachedTail = tail.get();
+      if (takeIndex == cachedTail) {
+        pause(count++);
+      }
+    }
+    long key = keys[(int) takeIndex & mask];
+    lastLine = lines[(int) takeIndex & mask];
+    head.lazySet(++takeIndex);
+    return key;
+  }
+
+  /**
+   * @return the line number of the event last returned by take()
+   */
+  public int getLine() {
+    return lastLine;
+  }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+/**
+ * the deterministic automaton for the entries of an expectation file for a single thread.
+ * Each state of the automaton is the set of nodes of the expectation file's automaton that can
+ * have been reached. The states and their transitions are created the 1st time they are needed
+ * and are then kept, so each step after that is a single array lookup by the event's letter
+ * (see ExpectationClassifier).
+ * The automaton can be re-used for any number of traces, but only by one thread at a time.
+ *
+ * @author dmcd2356
+ */
+public class ExpectationAutomaton {
+
+  public static final int DEAD = -1;        // the result of step() for an unexpected event
+
+  private static final int UNKNOWN = 0;     // a transition that has not been computed yet
+
+  private final Expectations program;
+  private final ExpectationClassifier classifier;
+  private final ArrayList<int[]> stateNodes;        // the expectation nodes of each state
+  private final HashMap<NodeSet, Integer> stateIds;
+  private int[][]   transitions;    // the next state + 1 for each letter (DEAD, or UNKNOWN)
+  private int[]     statePhase;     // the ignore conditions that apply in each state
+  private String[]  expected;       // the description of the entries expected in each state
+  private final int start;
+
+  // a set of nodes, for finding the state that has the same set
+  private static final class NodeSet {
+    final int[] nodes;
+    final int   hash;
+
+    NodeSet(int[] list) {
+      nodes = list;
+      hash = Arrays.hashCode(list);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof NodeSet && Arrays.equals(nodes, ((NodeSet) obj).nodes);
+    }
+  }
+
+  /**
+   * @param exp    - the compiled expectation file
+   * @param letters - the classifier that creates the letters of the events
+   * @param thread - the thread id the entries are for ("" for the default entries)
+   */
+  public ExpectationAutomaton(Expectations exp, ExpectationClassifier letters, String thread) {
+    program = exp;
+    classifier = letters;
+    stateNodes = new ArrayList<>();
+    stateIds = new HashMap<>();
+    transitions = new int[16][];
+    statePhase = new int[16];
+    expected = new String[16];
+    start = findState(closure(new int[] { exp.getStart(thread) }));
+    statePhase[start] |= TransitionTable.IGNORE_AT_START;
+  }
+
+  public int getStart() {
+    return start;
+  }
+
+  // adds all of the nodes that can be reached by empty transitions (the result is sorted)
+  private int[] closure(int[] nodes) {
+    LinkedHashSet<Integer> found = new LinkedHashSet<>();
+    ArrayList<Integer> pending = new ArrayList<>();
+    for (int node : nodes) {
+      if (found.add(node)) {
+        pending.add(node);
+      }
+    }
+    while (!pending.isEmpty()) {
+      int node = pending.remove(pending.size() - 1);
+      for (int next : program.getEpsilon(node)) {
+        if (found.add(next)) {
+          pending.add(next);
+        }
+      }
+    }
+    int[] list = new int[found.size()];
+    int index = 0;
+    for (int node : found) {
+      list[index++] = node;
+    }
+    Arrays.sort(list);
+    return list;
+  }
+
+  private int findState(int[] nodes) {
+    NodeSet key = new NodeSet(nodes);
+    Integer id = stateIds.get(key);
+    if (id != null) {
+      return id;
+    }
+
+    id = stateNodes.size();
+    stateNodes.add(nodes);
+    stateIds.put(key, id);
+    if (id == transitions.length) {
+      transitions = Arrays.copyOf(transitions, id * 2);
+      statePhase = Arrays.copyOf(statePhase, id * 2);
+      expected = Arrays.copyOf(expected, id * 2);
+    }
+    transitions[id] = new int[16];
+
+    // the ignore conditions: always, and when the EXIT state is one of the entries expected
+    int phase = TransitionTable.IGNORE_ALWAYS;
+    for (int node : nodes) {
+      for (int atom : program.getEdgeAtoms(node)) {
+        if (program.getAtomState(atom) == StateType.EXIT.ordinal()) {
+          phase |= TransitionTable.IGNORE_AT_EXIT;
+        }
+      }
+    }
+    statePhase[id] = phase;
+    return id;
+  }
+
+  /**
+   * determines the state following an event.
+   *
+   * @param state  - the current state
+   * @param letter - the letter of the event
+   * @return the next state, or DEAD if the event is not one of the entries expected
+   */
+  public int step(int state, int letter) {
+    int[] row = transitions[state];
+    if (letter < row.length && row[letter] != UNKNOWN) {
+      return (row[letter] == DEAD) ? DEAD : row[letter] - 1;
+    }
+
+    // 1st time for this letter in this state: find the nodes it leads to
+    ExpectationClassifier.Letter value = classifier.getLetter(letter);
+    ArrayList<Integer> targets = new ArrayList<>();
+    for (int node : stateNodes.get(state)) {
+      int[] atoms = program.getEdgeAtoms(node);
+      int[] next = program.getEdgeTargets(node);
+      for (int ix = 0; ix < atoms.length; ix++) {
+        if (value.hasAtom(atoms[ix])) {
+          targets.add(next[ix]);
+        }
+      }
+    }
+    int result = DEAD;
+    if (!targets.isEmpty()) {
+      result = findState(closure(toArray(targets)));
+    }
+
+    row = transitions[state];
+    if (letter >= row.length) {
+      row = Arrays.copyOf(row, Math.max(letter + 1, row.length * 2));
+      transitions[state] = row;
+    }
+    row[letter] = (result == DEAD) ? DEAD : result + 1;
+    return result;
+  }
+
+  /**
+   * finds the state following an event that is not expected, by skipping the fewest entries
+   * expected before it (used to resynchronize after a mismatch).
+   *
+   * @param state  - the current state
+   * @param letter - the letter of the event
+   * @param limit  - the max number of entries that can be skipped
+   * @return the state following the event, or DEAD if it is not expected within the limit
+   */
+  public int resync(int state, int letter, int limit) {
+    ExpectationClassifier.Letter value = classifier.getLetter(letter);
+    HashSet<Integer> visited = new HashSet<>();
+    int[] nodes = stateNodes.get(state);
+    for (int skipped = 0; skipped <= limit && nodes.length > 0; skipped++) {
+      ArrayList<Integer> targets = new ArrayList<>();
+      ArrayList<Integer> following = new ArrayList<>();
+      for (int node : nodes) {
+        if (!visited.add(node)) {
+          continue;
+        }
+        int[] atoms = program.getEdgeAtoms(node);
+        int[] next = program.getEdgeTargets(node);
+        for (int ix = 0; ix < atoms.length; ix++) {
+          if (value.hasAtom(atoms[ix])) {
+            targets.add(next[ix]);
+          }
+          following.add(next[ix]);
+        }
+      }
+      if (!targets.isEmpty()) {
+        return findState(closure(toArray(targets)));
+      }
+      nodes = closure(toArray(following));
+    }
+    return DEAD;
+  }
+
+  private static int[] toArray(ArrayList<Integer> list) {
+    int[] array = new int[list.size()];
+    for (int ix = 0; ix < array.length; ix++) {
+      array[ix] = list.get(ix);
+    }
+    return array;
+  }
+
+  /**
+   * determines if an event that is not expected can be ignored.
+   *
+   * @param state  - the current state
+   * @param letter - the letter of the event
+   * @return true if it can be ignored
+   */
+  public boolean isIgnored(int state, int letter) {
+    return (classifier.getLetter(letter).ignoreWhen & statePhase[state]) != 0;
+  }
+
+  /**
+   * @param state - the current state
+   * @return the description of the entries that are expected in the state
+   */
+  public String describe(int state) {
+    if (expected[state] == null) {
+      LinkedHashSet<String> list = new LinkedHashSet<>();
+      for (int node : stateNodes.get(state)) {
+        for (int atom : program.getEdgeAtoms(node)) {
+          list.add(program.describeAtom(atom));
+        }
+      }
+      expected[state] = String.join(" or ", list);
+    }
+    return expected[state];
+  }
+
+  /**
+   * @return the number of states that have been created
+   */
+  public int size() {
+    return stateNodes.size();
+  }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * reduces the decoded events to the "letters" that the automaton of an expectation file runs on.
+ * Each different name found in the trace is matched against all of the patterns of the file
+ * only once, when it is first found, and is given the id of the set of patterns it matches (its
+ * class). An event is then reduced to its state type and the classes of its arguments, and each
+ * different combination of these is given a letter: the set of atoms of the file that it matches
+ * and the conditions under which it can be ignored. So, once the names have been seen, an event
+ * is classified by a few table lookups, and no patterns are evaluated.
+ *
+ * The classifier is only used by the thread reading the trace. The letters are also read by the
+ * state machines running in concurrent mode, which only use the letters of the events they
+ * have been passed.
+ *
+ * @author dmcd2356
+ */
+public class ExpectationClassifier {
+
+  public static final int NO_LETTER = 0;    // the letter of events that match no atom
+
+  private static final int  CLASS_BITS = 20;
+  private static final long CLASS_MASK = (1L << CLASS_BITS) - 1;
+  private static final int  LETTER_BITS = 48;
+  private static final long LETTER_MASK = (1L << LETTER_BITS) - 1;
+
+  // the atoms that an event matches
+  static final class Letter {
+    final long[] atoms;         // the bit set of the atoms matched
+    final int    ignoreWhen;    // the TransitionTable.IGNORE_xxx conditions it can be ignored in
+
+    Letter(long[] atomSet, int when) {
+      atoms = atomSet;
+      ignoreWhen = when;
+    }
+
+    boolean hasAtom(int atom) {
+      return (atoms[atom >>> 6] & (1L << atom)) != 0;
+    }
+  }
+
+  private final Expectations program;
+  private final SymbolTable names;          // the names found in the trace
+  private int[] nameClass;                  // the class of each name id
+  private final ArrayList<BitSet> classPatterns;    // the patterns matched by each class
+  private final HashMap<BitSet, Integer> classIds;
+  private final int emptyClass;             // the class of an empty name
+  private long[] eventKeys;                 // open-addressed hash table of event combinations
+  private int[]  eventLetters;              // the letter + 1 of each combination (0 = empty)
+  private int    eventCount;
+  private volatile Letter[] letters;        // the letters (the index is the letter id)
+  private int    letterCount;
+  private final HashMap<String, Integer> letterIds;
+
+  /**
+   * @param exp - the expectations the events are classified for
+   */
+  public ExpectationClassifier(Expectations exp) {
+    program = exp;
+    names = new SymbolTable();
+    nameClass = new int[64];
+    classPatterns = new ArrayList<>();
+    classIds = new HashMap<>();
+    classOf(new BitSet());                  // class 0 is for the names that match no pattern
+    emptyClass = classify("");
+    eventKeys = new long[64];
+    eventLetters = new int[64];
+    letters = new Letter[16];
+    letterIds = new HashMap<>();
+    long[] none = new long[(exp.getAtomCount() + 63) / 64];
+    letterIds.put(Arrays.toString(none) + 0, addLetter(none, 0));   // NO_LETTER
+  }
+
+  public Expectations getExpectations() {
+    return program;
+  }
+
+  public static int keyLetter(long key) {
+    return (int) (key & LETTER_MASK);
+  }
+
+  Letter getLetter(int letter) {
+    return letters[letter];
+  }
+
+  private int classOf(BitSet patterns) {
+    Integer id = classIds.get(patterns);
+    if (id == null) {
+      id = classPatterns.size();
+      classPatterns.add(patterns);
+      classIds.put(patterns, id);
+    }
+    return id;
+  }
+
+  // matches a name against all of the patterns
+  private int classify(String name) {
+    BitSet patterns = new BitSet();
+    for (int ix = 0; ix < program.getPatternCount(); ix++) {
+      if (program.patternMatches(ix, name)) {
+        patterns.set(ix);
+      }
+    }
+    return classOf(patterns);
+  }
+
+  // returns the class of a name, classifying it if this is the 1st time it has been found
+  private int nameClass(int id, TraceEvent event, boolean bArg1) {
+    if (id == SymbolTable.NONE) {
+      return emptyClass;
+    }
+    if (id == SymbolTable.UNKNOWN) {
+      String name = bArg1 ? event.getArg1() : event.getArg2();
+      id = names.intern(name);
+      if (event.dictionary != null) {
+        event.dictionary.setMapped(names, bArg1 ? event.dictArg1 : event.dictArg2, id);
+      }
+      if (id >= nameClass.length) {
+        nameClass = Arrays.copyOf(nameClass, Math.max(id + 1, nameClass.length * 2));
+      }
+      nameClass[id] = classify(name);
+    }
+    return nameClass[id];
+  }
+
+  /**
+   * computes the key of a decoded event: its state type and its letter.
+   *
+   * @param event - the decoded event
+   * @return the key (the state type is in the same position as in a TransitionTable key)
+   */
+  public long makeKey(TraceEvent event) {
+    int state = event.state;
+    long key = (long) state << LETTER_BITS;
+    if (!program.usesState(state)) {
+      return key | NO_LETTER;
+    }
+    int count = TransitionTable.argCount(state);
+    int class1 = (count > 0) ? nameClass(names.findArg1(event), event, true) : 0;
+    int class2 = (count > 1) ? nameClass(names.findArg2(event), event, false) : 0;
+    long combination = ((long) state << (2 * CLASS_BITS)) | ((class1 & CLASS_MASK) << CLASS_BITS) |
+        (class2 & CLASS_MASK);
+
+    int mask = eventKeys.length - 1;
+    int slot = (int) ((combination * 0x9e3779b97f4a7c15L) >>> 40) & mask;
+    while (eventLetters[slot] != 0) {
+      if (eventKeys[slot] == combination) {
+        return key | (eventLetters[slot] - 1);
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    // a new combination: find the atoms it matches
+    int letter = makeLetter(state, class1, class2);
+    eventKeys[slot] = combination;
+    eventLetters[slot] = letter + 1;
+    if (++eventCount * 2 > eventKeys.length) {
+      rehash();
+    }
+    return key | letter;
+  }
+
+  private void rehash() {
+    long[] oldKeys = eventKeys;
+    int[] oldLetters = eventLetters;
+    eventKeys = new long[oldKeys.length * 2];
+    eventLetters = new int[oldKeys.length * 2];
+    int mask = eventKeys.length - 1;
+    for (int ix = 0; ix < oldKeys.length; ix++) {
+      if (oldLetters[ix] != 0) {
+        int slot = (int) ((oldKeys[ix] * 0x9e3779b97f4a7c15L) >>> 40) & mask;
+        while (eventLetters[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        eventKeys[slot] = oldKeys[ix];
+        eventLetters[slot] = oldLetters[ix];
+      }
+    }
+  }
+
+  private boolean atomMatches(int atom, int state, int class1, int class2) {
+    if (program.getAtomState(atom) != state) {
+      return false;
+    }
+    int count = TransitionTable.argCount(state);
+    int arg1 = program.getAtomArg1(atom);
+    int arg2 = program.getAtomArg2(atom);
+    return (count < 1 || arg1 == Expectations.ANY || classPatterns.get(class1).get(arg1)) &&
+        (count < 2 || arg2 == Expectations.ANY || classPatterns.get(class2).get(arg2));
+  }
+
+  private int makeLetter(int state, int class1, int class2) {
+    long[] atoms = new long[(program.getAtomCount() + 63) / 64];
+    for (int atom = 0; atom < program.getAtomCount(); atom++) {
+      if (atomMatches(atom, state, class1, class2)) {
+        atoms[atom >>> 6] |= 1L << atom;
+      }
+    }
+    int when = 0;
+    for (int ix = 0; ix < program.getIgnoreCount(); ix++) {
+      if (atomMatches(program.getIgnoreAtom(ix), state, class1, class2)) {
+        when |= program.getIgnoreWhen(ix);
+      }
+    }
+
+    // events that match the same atoms share the same letter
+    String id = Arrays.toString(atoms) + when;
+    Integer letter = letterIds.get(id);
+    if (letter == null) {
+      letter = addLetter(atoms, when);
+      letterIds.put(id, letter);
+    }
+    return letter;
+  }
+
+  private int addLetter(long[] atoms, int when) {
+    Letter[] list = letters;
+    if (letterCount == list.length) {
+      list = Arrays.copyOf(list, letterCount * 2);
+    }
+    list[letterCount] = new Letter(atoms, when);
+    letters = list;     // (published before the keys that use it are passed to the matchers)
+    return letterCount++;
+  }
+
+  /**
+   * @return the number of different names that have been classified
+   */
+  public int getNameCount() {
+    return names.size();
+  }
+
+  /**
+   * @return the number of different letters the events have been reduced to
+   */
+  public int getLetterCount() {
+    return letterCount;
+  }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * the expected states of a thread of a test, read from an expectation stream file as the state
+ * machine reaches them rather than from the !EXPECTED messages of the test program.
+ * The file has a line for each expected call in the same form as the !EXPECTED messages:
+ *   [!EXPECTED] &lt;type&gt; &lt;caller&gt; &lt;callee&gt; [&lt;thread&gt;]
+ * (blank lines and lines starting with '#' are ignored), and may be compressed with gzip.
+ * The file is read on a separate thread (see ReadAheadInputStream), and the calls of the thread
+ * are expanded and packed into TransitionTable keys as they are needed, so only the last WINDOW
+ * expected states are kept, however many the file has. The EXIT state follows the last one.
+ *
+ * @author dmcd2356
+ */
+public class ExpectationStream implements Closeable {
+
+  public static final int WINDOW = 4096;       // the expected states kept (a power of 2)
+  private static final int MASK = WINDOW - 1;
+
+  private static final String KEYWORD = "!EXPECTED";
+
+  private final File   file;
+  private final String thread;        // the thread id of the states ("" for the default)
+  private final TransitionTable table;  // the table whose symbols the keys are made with
+  private final BufferedReader reader;
+  private final long[] keys;          // the key of each state read, by step & MASK
+  private int    end;                 // the step following the last state read
+  private int    exitStep;            // the step of the EXIT state (-1 until it is read)
+  private int    linenum;
+  private String error;               // the reason the file could not be read (null if none)
+
+  /**
+   * @param file   - the expectation stream file
+   * @param thread - the thread id to read the states of ("" for the lines that have none)
+   * @param table  - the transition table of the state machine (for making the keys)
+   * @throws IOException
+   */
+  public ExpectationStream(File file, String thread, TransitionTable table) throws IOException {
+    this.file = file;
+    this.thread = thread;
+    this.table = table;
+    keys = new long[WINDOW];
+    exitStep = -1;
+    reader = new BufferedReader(new InputStreamReader(new ReadAheadInputStream(open(file)),
+        StandardCharsets.UTF_8));
+  }
+
+  private static InputStream open(File file) throws IOException {
+    InputStream input = new FileInputStream(file);
+    return BlockTraceWriter.isGzip(file) ? new GZIPInputStream(input, 64 * 1024) : input;
+  }
+
+  /**
+   * splits a line of the file into its words (without the !EXPECTED keyword).
+   *
+   * @return the words, or null if the line has no entry
+   */
+  private static String[] splitLine(String line) {
+    line = line.trim();
+    if (line.startsWith(KEYWORD)) {
+      int offset = line.indexOf(' ');
+      line = (offset < 0) ? "" : line.substring(offset).trim();
+    }
+    if (line.isEmpty() || line.startsWith("#")) {
+      return null;
+    }
+    return line.split("\\s+");
+  }
+
+  /**
+   * finds the thread ids that the entries of the file are for.
+   *
+   * @param file - the expectation stream file
+   * @return the thread ids, in the order they are first found ("" for the entries with none)
+   * @throws IOException
+   */
+  public static List<String> findThreads(File file) throws IOException {
+    List<String> threads = new ArrayList<>();
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(
+        new ReadAheadInputStream(open(file)), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] words = splitLine(line);
+        String id = (words == null || words.length < 4) ? "" : words[3];
+        if (words != null && !threads.contains(id)) {
+          threads.add(id);
+        }
+      }
+    }
+    return threads;
+  }
+
+  private void add(DanparseEngine.StateInfo info) {
+    keys[end & MASK] = table.makeKey(info);
+    ++end;
+  }
+
+  // reads the next call of the thread and adds its states (or the EXIT state at the end)
+  private void readCall() {
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        ++linenum;
+        String[] words = splitLine(line);
+        if (words == null || !thread.equals((words.length > 3) ? words[3] : "")) {
+          continue;
+        }
+        List<DanparseEngine.StateInfo> states = (words.length < 3) ? null :
+            Expectations.expandCall(words[0], words[1], words[2]);
+        if (states == null) {
+          error = "invalid expected entry on line " + linenum + " of " + file.getName() +
+              ": " + line.trim();
+          break;
+        }
+        for (DanparseEngine.StateInfo info : states) {
+          add(info);
+        }
+        return;
+      }
+    } catch (IOException ex) {
+      error = "error reading " + file.getName() + ": " + ex.getMessage();
+    }
+    exitStep = end;
+    add(new DanparseEngine.StateInfo(StateType.EXIT));
+  }
+
+  /**
+   * determines if there is an expected state for a step, reading the file up to it if needed.
+   * The states more than WINDOW - 8 steps before the last one asked for are no longer kept.
+   *
+   * @param step - the index of the step
+   * @return true if the step is an expected state (the last one is the EXIT state)
+   */
+  public boolean has(int step) {
+    while (step >= end && exitStep < 0) {
+      readCall();
+    }
+    return step < end;
+  }
+
+  /**
+   * @param step - the index of the step (for which has() is true)
+   * @return the key of the expected state
+   */
+  public long getKey(int step) {
+    return keys[step & MASK];
+  }
+
+  /**
+   * @param step - the index of the step (for which has() is true)
+   * @return the ignore conditions that apply at the step
+   */
+  public int getPhase(int step) {
+    return TransitionTable.phase(step, (step == exitStep) ? StateType.EXIT : StateType.NONE);
+  }
+
+  /**
+   * finds the 1st of the following steps that an event is the expected state for (used to
+   * resynchronize after a mismatch).
+   *
+   * @param step  - the index of the 1st step to check
+   * @param key   - the key of the event
+   * @param limit - the max number of steps to check (less than WINDOW)
+   * @return the index of the step, or -1 if none of them match
+   */
+  public int find(int step, long key, int limit) {
+    for (int ix = step; ix < step + limit && has(ix); ix++) {
+      if (keys[ix & MASK] == key) {
+        return ix;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the reason the file could not be read (null if none)
+   */
+  public String getError() {
+    return error;
+  }
+
+  @Override
+  public void close() {
+    try {
+      reader.close();
+    } catch (IOException ex) {
+      // the file has been read as far as needed
+    }
+  }
+
+}
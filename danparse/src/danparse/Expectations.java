@@ -0,0 +1,717 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * the expected states of a test, read from an expectation file rather than from the !EXPECTED
+ * messages of the test program.
+ * The file is compiled into a nondeterministic automaton whose transitions are "atoms": a state
+ * type with a name pattern for each of its arguments. The automaton is only built once (it is
+ * not changed afterwards, so it can be shared by any number of engines), and is run as a
+ * deterministic automaton that is built as it is needed by an ExpectationAutomaton.
+ *
+ * The file is made up of the following lines ('#' starts a comment):
+ *   thread &lt;id&gt;                 - the following entries are for the specified thread
+ *   ignore [start|exit] &lt;entry&gt; - the entry can be ignored (always, or only when waiting for
+ *                                the 1st state or the EXIT state)
+ *   &lt;entry&gt; [&lt;count&gt;]           - an expected entry
+ *   { or unordered {           - starts a group of entries (in order or in any order)
+ *   } [&lt;count&gt;]                 - ends the group
+ * where an entry is either a state type followed by the patterns of the arguments it has, or
+ * II, IU or UI followed by the caller and callee patterns (for the states of a call), and the
+ * count is ?, *, +, {n}, {n,} or {n,m}.
+ * A pattern is either a name, a glob (using * and ?) or a /regex/ (with no spaces).
+ *
+ * @author dmcd2356
+ */
+public class Expectations {
+
+  static final int ANY = -1;          // the pattern index of an argument that is not checked
+
+  private static final int MAX_REPEAT    = 1000;    // the largest count allowed
+  private static final int MAX_UNORDERED = 8;       // the most entries an unordered group can have
+  private static final int MAX_NODES     = 1 << 20; // the largest automaton allowed
+
+  // the kinds of nodes of the parsed file
+  private static final int ATOM      = 0;
+  private static final int SEQUENCE  = 1;
+  private static final int UNORDERED = 2;
+
+  // a parsed entry or group (with the number of times it is repeated)
+  private static class Node {
+    final int kind;
+    final int atom;                   // the atom index (for ATOM)
+    final ArrayList<Node> children;   // the entries of the group
+    int min = 1;
+    int max = 1;                      // -1 for no limit
+
+    Node(int kind, int atom) {
+      this.kind = kind;
+      this.atom = atom;
+      children = new ArrayList<>();
+    }
+  }
+
+  // the entries for a thread
+  private static class Section {
+    final String thread;
+    final Node root;
+    final ArrayList<String> lines;    // the lines of the file that define it (for displaying)
+    int start;                        // the start node of the automaton
+
+    Section(String threadId) {
+      thread = threadId;
+      root = new Node(SEQUENCE, 0);
+      lines = new ArrayList<>();
+    }
+  }
+
+  private final String name;
+  private final ArrayList<String>  patternText;  // the text of each name pattern
+  private final ArrayList<Pattern> patternRegex; // the regex of each pattern (null for a name)
+  private final HashMap<String, Integer> patternIndex;
+  private final LinkedHashMap<String, Section> sections;
+  private int[]  atomState;           // the StateType ordinal of each atom
+  private int[]  atomArg1;            // the pattern index of the 1st argument (or ANY)
+  private int[]  atomArg2;            // the pattern index of the 2nd argument (or ANY)
+  private int    atomCount;
+  private int[]  ignoreAtoms;         // the atoms of the entries that can be ignored
+  private int[]  ignoreWhen;          // the TransitionTable.IGNORE_xxx conditions of each
+  private int    ignoreCount;
+  private final boolean[] usedStates; // true for the state types used by any atom
+  private long   fingerprint;         // the hash of the lines of the file
+
+  // the automaton: the empty transitions and atom transitions of each node
+  private final ArrayList<int[]> epsilon;
+  private final ArrayList<int[]> edgeAtoms;
+  private final ArrayList<int[]> edgeTargets;
+  private int[][] epsilonOut;
+  private int[][] atomsOut;
+  private int[][] targetsOut;
+
+  private Expectations(String fileName) {
+    name = fileName;
+    patternText = new ArrayList<>();
+    patternRegex = new ArrayList<>();
+    patternIndex = new HashMap<>();
+    sections = new LinkedHashMap<>();
+    atomState = new int[16];
+    atomArg1 = new int[16];
+    atomArg2 = new int[16];
+    ignoreAtoms = new int[16];
+    ignoreWhen = new int[16];
+    usedStates = new boolean[StateType.count()];
+    epsilon = new ArrayList<>();
+    edgeAtoms = new ArrayList<>();
+    edgeTargets = new ArrayList<>();
+  }
+
+  /**
+   * returns the states expected for a call of the specified type.
+   * The type can be followed by '>' for only the states up to the callee being entered, or by
+   * '<' for only the states following it, so the calls made by the callee (such as a recursive
+   * call) can be listed between the two halves of its own call.
+   *
+   * @param type   - II, IU or UI (the caller and callee being instrumented or uninstrumented)
+   * @param caller - the calling method
+   * @param callee - the called method
+   * @return the list of states, or null if the type is not valid
+   */
+  public static List<DanparseEngine.StateInfo> expandCall(String type, String caller, String callee) {
+    char half = type.isEmpty() ? ' ' : type.charAt(type.length() - 1);
+    if (half == '>' || half == '<') {
+      type = type.substring(0, type.length() - 1);
+    }
+    List<DanparseEngine.StateInfo> list = new ArrayList<>();
+    int entered;      // the number of states up to the callee being entered
+    switch (type) {
+      case "II":
+        list.add(new DanparseEngine.StateInfo(StateType.ENTRY_II, callee));
+        list.add(new DanparseEngine.StateInfo(StateType.createFrame));
+        list.add(new DanparseEngine.StateInfo(StateType.CALL, callee, caller));
+        list.add(new DanparseEngine.StateInfo(StateType.RETURN));
+        list.add(new DanparseEngine.StateInfo(StateType.LEAVE_II, callee));
+        list.add(new DanparseEngine.StateInfo(StateType.popFrameAndPush));
+        entered = 3;
+        break;
+      case "IU":
+        // the callee has no debug output, the caller just removes the parameters it passes
+        // from its stack (control returns from the uninstrumented code when it leaves)
+        list.add(new DanparseEngine.StateInfo(StateType.removeParams));
+        list.add(new DanparseEngine.StateInfo(StateType.ENTRY_IU, callee));
+        list.add(new DanparseEngine.StateInfo(StateType.LEAVE_UI, callee));
+        entered = 2;
+        break;
+      case "UI":
+        // the callee starts a new frame, since the caller has none, and there is no frame to
+        // push its return value onto when it leaves
+        list.add(new DanparseEngine.StateInfo(StateType.ENTRY_UI, callee));
+        list.add(new DanparseEngine.StateInfo(StateType.beginFrame));
+        list.add(new DanparseEngine.StateInfo(StateType.CALL, callee, caller));
+        list.add(new DanparseEngine.StateInfo(StateType.RETURN));
+        list.add(new DanparseEngine.StateInfo(StateType.LEAVE_IU, callee));
+        list.add(new DanparseEngine.StateInfo(StateType.popFrame));
+        entered = 3;
+        break;
+      default:
+        return null;
+    }
+    if (half == '>') {
+      return list.subList(0, entered);
+    } else if (half == '<') {
+      return list.subList(entered, list.size());
+    }
+    return list;
+  }
+
+  /**
+   * reads and compiles an expectation file.
+   *
+   * @param file - the expectation file
+   * @return the compiled expectations
+   * @throws IOException if the file can't be read or is not valid
+   */
+  public static Expectations load(File file) throws IOException {
+    Expectations exp = new Expectations(file.getName());
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      exp.parse(reader);
+    }
+    return exp;
+  }
+
+  /**
+   * compiles the expectations from a reader.
+   *
+   * @param name   - the name to identify the expectations by
+   * @param reader - the source of the expectation lines
+   * @return the compiled expectations
+   * @throws IOException if the lines can't be read or are not valid
+   */
+  public static Expectations parse(String name, BufferedReader reader) throws IOException {
+    Expectations exp = new Expectations(name);
+    exp.parse(reader);
+    return exp;
+  }
+
+  private void parse(BufferedReader reader) throws IOException {
+    for (DanparseEngine.StateInfo info : DanparseEngine.IGNORE_AT_START) {
+      addIgnore(info, TransitionTable.IGNORE_AT_START);
+    }
+    for (DanparseEngine.StateInfo info : DanparseEngine.IGNORE_AT_EXIT) {
+      addIgnore(info, TransitionTable.IGNORE_AT_EXIT);
+    }
+
+    Section section = null;
+    ArrayList<Node> groups = new ArrayList<>();   // the groups that are open
+    int linenum = 0;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      ++linenum;
+      fingerprint = (fingerprint ^ line.hashCode()) * 0x9e3779b97f4a7c15L + linenum;
+      int comment = line.indexOf('#');
+      String text = (comment >= 0) ? line.substring(0, comment).trim() : line.trim();
+      if (text.isEmpty()) {
+        continue;
+      }
+      String[] words = text.split("\\s+");
+      try {
+        if (words[0].equals("thread")) {
+          if (words.length != 2) {
+            throw new IllegalArgumentException("thread requires a thread id");
+          }
+          if (!groups.isEmpty()) {
+            throw new IllegalArgumentException("thread found inside a group");
+          }
+          section = findSection(words[1]);
+          continue;
+        }
+        if (words[0].equals("ignore")) {
+          parseIgnore(words);
+          continue;
+        }
+
+        if (section == null) {
+          section = findSection("");
+        }
+        section.lines.add(text);
+        Node parent = groups.isEmpty() ? section.root : groups.get(groups.size() - 1);
+        if ((words[0].equals("{") && words.length == 1) ||
+            (words[0].equals("unordered") && words.length == 2 && words[1].equals("{"))) {
+          Node group = new Node(words[0].equals("{") ? SEQUENCE : UNORDERED, 0);
+          parent.children.add(group);
+          groups.add(group);
+        } else if (words[0].equals("}")) {
+          if (groups.isEmpty()) {
+            throw new IllegalArgumentException("'}' found with no group open");
+          }
+          Node group = groups.remove(groups.size() - 1);
+          setCount(group, words, 1);
+          if (group.kind == UNORDERED && group.children.size() > MAX_UNORDERED) {
+            throw new IllegalArgumentException("unordered group has more than " + MAX_UNORDERED +
+                " entries");
+          }
+        } else {
+          parent.children.add(parseEntry(words));
+        }
+      } catch (IllegalArgumentException ex) {
+        throw new IOException(name + " line " + linenum + ": " + ex.getMessage());
+      }
+    }
+    if (!groups.isEmpty()) {
+      throw new IOException(name + ": group not terminated at end of file");
+    }
+    if (sections.isEmpty()) {
+      throw new IOException(name + ": no expected entries found");
+    }
+
+    // build the automaton for each thread, each ending with the EXIT state
+    try {
+      int exit = addAtom(StateType.EXIT.ordinal(), ANY, ANY);
+      for (Section entry : sections.values()) {
+        int[] fragment = build(entry.root);
+        int end = newNode();
+        addEdge(fragment[1], exit, end);
+        entry.start = fragment[0];
+      }
+    } catch (IllegalArgumentException ex) {
+      throw new IOException(name + ": " + ex.getMessage());
+    }
+    epsilonOut = freeze(epsilon);
+    atomsOut = freeze(edgeAtoms);
+    targetsOut = freeze(edgeTargets);
+  }
+
+  private Section findSection(String thread) {
+    Section section = sections.get(thread);
+    if (section == null) {
+      section = new Section(thread);
+      sections.put(thread, section);
+    }
+    return section;
+  }
+
+  private void parseIgnore(String[] words) {
+    int when = TransitionTable.IGNORE_ALWAYS;
+    int first = 1;
+    if (words.length > 2 && words[1].equals("start")) {
+      when = TransitionTable.IGNORE_AT_START;
+      first = 2;
+    } else if (words.length > 2 && words[1].equals("exit")) {
+      when = TransitionTable.IGNORE_AT_EXIT;
+      first = 2;
+    }
+    if (words.length <= first) {
+      throw new IllegalArgumentException("ignore requires a state");
+    }
+    StateType state = parseState(words[first]);
+    int count = TransitionTable.argCount(state.ordinal());
+    if (words.length - first - 1 > count) {
+      throw new IllegalArgumentException("too many arguments for " + state);
+    }
+    int arg1 = (words.length > first + 1) ? addPattern(words[first + 1]) : ANY;
+    int arg2 = (words.length > first + 2) ? addPattern(words[first + 2]) : ANY;
+    addIgnoreAtom(addAtom(state.ordinal(), arg1, arg2), when);
+  }
+
+  private void addIgnore(DanparseEngine.StateInfo info, int when) {
+    int state = info.state.ordinal();
+    int count = TransitionTable.argCount(state);
+    int arg1 = (count > 0) ? addName(info.arg1) : ANY;
+    int arg2 = (count > 1) ? addName(info.arg2) : ANY;
+    addIgnoreAtom(addAtom(state, arg1, arg2), when);
+  }
+
+  private void addIgnoreAtom(int atom, int when) {
+    if (ignoreCount == ignoreAtoms.length) {
+      ignoreAtoms = Arrays.copyOf(ignoreAtoms, ignoreCount * 2);
+      ignoreWhen = Arrays.copyOf(ignoreWhen, ignoreCount * 2);
+    }
+    ignoreAtoms[ignoreCount] = atom;
+    ignoreWhen[ignoreCount] = when;
+    ++ignoreCount;
+  }
+
+  private static StateType parseState(String word) {
+    String stateName = word.startsWith("STATE_") ? word.substring(6) : word;
+    try {
+      return StateType.valueOf(stateName);
+    } catch (IllegalArgumentException ex) {
+      throw new IllegalArgumentException("invalid state: " + word);
+    }
+  }
+
+  private static boolean isCount(String word) {
+    return word.equals("?") || word.equals("+") || word.startsWith("{");
+  }
+
+  // parses an entry line (the words following the entry are the count)
+  private Node parseEntry(String[] words) {
+    List<DanparseEngine.StateInfo> call = null;
+    if (words.length >= 3) {
+      call = expandCall(words[0], words[1], words[2]);
+    }
+    if (call != null) {
+      Node node = new Node(SEQUENCE, 0);
+      for (DanparseEngine.StateInfo info : call) {
+        int state = info.state.ordinal();
+        int count = TransitionTable.argCount(state);
+        int arg1 = (count > 0) ? addPattern(info.arg1) : ANY;
+        int arg2 = (count > 1) ? addPattern(info.arg2) : ANY;
+        node.children.add(new Node(ATOM, addAtom(state, arg1, arg2)));
+      }
+      setCount(node, words, 3);
+      return node;
+    }
+
+    StateType state = parseState(words[0]);
+    int count = TransitionTable.argCount(state.ordinal());
+    int[] args = { ANY, ANY };
+    int next = 1;
+    for (int ix = 0; ix < count && next < words.length && !isCount(words[next]); ix++) {
+      args[ix] = addPattern(words[next++]);
+    }
+    Node node = new Node(ATOM, addAtom(state.ordinal(), args[0], args[1]));
+    setCount(node, words, next);
+    return node;
+  }
+
+  // sets the count of a node from the word following it (if any)
+  private static void setCount(Node node, String[] words, int index) {
+    if (index >= words.length) {
+      return;
+    }
+    if (index + 1 < words.length) {
+      throw new IllegalArgumentException("unexpected: " + words[index + 1]);
+    }
+    String count = words[index];
+    switch (count) {
+      case "?":
+        node.min = 0;
+        break;
+      case "*":
+        node.min = 0;
+        node.max = -1;
+        break;
+      case "+":
+        node.max = -1;
+        break;
+      default:
+        if (!count.startsWith("{") || !count.endsWith("}")) {
+          throw new IllegalArgumentException("invalid count: " + count);
+        }
+        String[] range = count.substring(1, count.length() - 1).split(",", -1);
+        try {
+          node.min = Integer.parseInt(range[0].trim());
+          if (range.length == 1) {
+            node.max = node.min;
+          } else if (range.length == 2) {
+            node.max = range[1].trim().isEmpty() ? -1 : Integer.parseInt(range[1].trim());
+          } else {
+            throw new IllegalArgumentException("invalid count: " + count);
+          }
+        } catch (NumberFormatException ex) {
+          throw new IllegalArgumentException("invalid count: " + count);
+        }
+        if (node.min < 0 || node.min > MAX_REPEAT || node.max > MAX_REPEAT ||
+            (node.max >= 0 && node.max < node.min)) {
+          throw new IllegalArgumentException("invalid count: " + count);
+        }
+        break;
+    }
+  }
+
+  // adds a pattern for an argument of an entry
+  private int addPattern(String text) {
+    if (text.equals("*")) {
+      return ANY;
+    }
+    Integer index = patternIndex.get(text);
+    if (index != null) {
+      return index;
+    }
+
+    Pattern regex = null;
+    try {
+      if (text.length() > 1 && text.startsWith("/") && text.endsWith("/")) {
+        regex = Pattern.compile(text.substring(1, text.length() - 1));
+      } else if (text.indexOf('*') >= 0 || text.indexOf('?') >= 0) {
+        StringBuilder glob = new StringBuilder();
+        for (String part : text.split("(?=[*?])|(?<=[*?])")) {
+          glob.append(part.equals("*") ? ".*" : part.equals("?") ? "." : Pattern.quote(part));
+        }
+        regex = Pattern.compile(glob.toString());
+      }
+    } catch (PatternSyntaxException ex) {
+      throw new IllegalArgumentException("invalid pattern: " + text);
+    }
+    index = patternText.size();
+    patternText.add(text);
+    patternRegex.add(regex);
+    patternIndex.put(text, index);
+    return index;
+  }
+
+  // adds a pattern that only matches the specified name
+  private int addName(String text) {
+    String key = "\0" + text;
+    Integer index = patternIndex.get(key);
+    if (index == null) {
+      index = patternText.size();
+      patternText.add(text);
+      patternRegex.add(null);
+      patternIndex.put(key, index);
+    }
+    return index;
+  }
+
+  private int addAtom(int state, int arg1, int arg2) {
+    for (int ix = 0; ix < atomCount; ix++) {
+      if (atomState[ix] == state && atomArg1[ix] == arg1 && atomArg2[ix] == arg2) {
+        return ix;
+      }
+    }
+    if (atomCount == atomState.length) {
+      atomState = Arrays.copyOf(atomState, atomCount * 2);
+      atomArg1 = Arrays.copyOf(atomArg1, atomCount * 2);
+      atomArg2 = Arrays.copyOf(atomArg2, atomCount * 2);
+    }
+    atomState[atomCount] = state;
+    atomArg1[atomCount] = arg1;
+    atomArg2[atomCount] = arg2;
+    usedStates[state] = true;
+    return atomCount++;
+  }
+
+  private int newNode() {
+    if (epsilon.size() >= MAX_NODES) {
+      throw new IllegalArgumentException("expectations are too large (reduce the counts used)");
+    }
+    epsilon.add(new int[0]);
+    edgeAtoms.add(new int[0]);
+    edgeTargets.add(new int[0]);
+    return epsilon.size() - 1;
+  }
+
+  private void addEpsilon(int from, int to) {
+    int[] list = epsilon.get(from);
+    list = Arrays.copyOf(list, list.length + 1);
+    list[list.length - 1] = to;
+    epsilon.set(from, list);
+  }
+
+  private void addEdge(int from, int atom, int to) {
+    int[] atoms = edgeAtoms.get(from);
+    int[] targets = edgeTargets.get(from);
+    atoms = Arrays.copyOf(atoms, atoms.length + 1);
+    targets = Arrays.copyOf(targets, targets.length + 1);
+    atoms[atoms.length - 1] = atom;
+    targets[targets.length - 1] = to;
+    edgeAtoms.set(from, atoms);
+    edgeTargets.set(from, targets);
+  }
+
+  private static int[][] freeze(ArrayList<int[]> list) {
+    return list.toArray(new int[list.size()][]);
+  }
+
+  /**
+   * builds the automaton for a node, including its count.
+   *
+   * @param node - the node
+   * @return the start and end nodes of the automaton
+   */
+  private int[] build(Node node) {
+    int start = newNode();
+    int end = start;
+    for (int ix = 0; ix < node.min; ix++) {
+      int[] once = buildOnce(node);
+      addEpsilon(end, once[0]);
+      end = once[1];
+    }
+    if (node.max < 0) {
+      // any number of times more: loop back to the node
+      int loop = newNode();
+      addEpsilon(end, loop);
+      int[] once = buildOnce(node);
+      addEpsilon(loop, once[0]);
+      addEpsilon(once[1], loop);
+      end = loop;
+    } else {
+      // the optional copies can be skipped to the end
+      for (int ix = node.min; ix < node.max; ix++) {
+        int[] once = buildOnce(node);
+        int next = newNode();
+        addEpsilon(end, once[0]);
+        addEpsilon(end, next);
+        addEpsilon(once[1], next);
+        end = next;
+      }
+    }
+    return new int[] { start, end };
+  }
+
+  private int[] buildOnce(Node node) {
+    switch (node.kind) {
+      case ATOM: {
+        int start = newNode();
+        int end = newNode();
+        addEdge(start, node.atom, end);
+        return new int[] { start, end };
+      }
+      case SEQUENCE: {
+        int start = newNode();
+        int end = start;
+        for (Node child : node.children) {
+          int[] fragment = build(child);
+          addEpsilon(end, fragment[0]);
+          end = fragment[1];
+        }
+        return new int[] { start, end };
+      }
+      default: {
+        // a node for each set of entries that have been found, with each entry not in the set
+        // leading to the node for the set that includes it
+        int count = node.children.size();
+        int[] subset = new int[1 << count];
+        for (int set = 0; set < subset.length; set++) {
+          subset[set] = newNode();
+        }
+        for (int set = 0; set < subset.length; set++) {
+          for (int ix = 0; ix < count; ix++) {
+            if ((set & (1 << ix)) == 0) {
+              int[] fragment = build(node.children.get(ix));
+              addEpsilon(subset[set], fragment[0]);
+              addEpsilon(fragment[1], subset[set | (1 << ix)]);
+            }
+          }
+        }
+        return new int[] { subset[0], subset[subset.length - 1] };
+      }
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return a hash of the lines of the expectation file (for identifying the expectations the
+   *         result of a trace was found with)
+   */
+  public long getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * @return the thread ids that have expected entries ("" for the entries that are not for a
+   *         specific thread)
+   */
+  public List<String> getThreads() {
+    return new ArrayList<>(sections.keySet());
+  }
+
+  /**
+   * @param thread - the thread id
+   * @return the lines of the file that define the entries for the thread
+   */
+  public List<String> getLines(String thread) {
+    return sections.get(thread).lines;
+  }
+
+  int getStart(String thread) {
+    return sections.get(thread).start;
+  }
+
+  int getPatternCount() {
+    return patternText.size();
+  }
+
+  /**
+   * determines if a name matches a pattern (this is only done once for each different name).
+   *
+   * @param pattern - the pattern index
+   * @param value   - the name
+   * @return true if it matches
+   */
+  boolean patternMatches(int pattern, String value) {
+    Pattern regex = patternRegex.get(pattern);
+    return (regex == null) ? patternText.get(pattern).equals(value) :
+        regex.matcher(value).matches();
+  }
+
+  boolean usesState(int state) {
+    return usedStates[state];
+  }
+
+  int getAtomCount() {
+    return atomCount;
+  }
+
+  int getAtomState(int atom) {
+    return atomState[atom];
+  }
+
+  int getAtomArg1(int atom) {
+    return atomArg1[atom];
+  }
+
+  int getAtomArg2(int atom) {
+    return atomArg2[atom];
+  }
+
+  int getIgnoreCount() {
+    return ignoreCount;
+  }
+
+  int getIgnoreAtom(int index) {
+    return ignoreAtoms[index];
+  }
+
+  int getIgnoreWhen(int index) {
+    return ignoreWhen[index];
+  }
+
+  int[] getEpsilon(int node) {
+    return epsilonOut[node];
+  }
+
+  int[] getEdgeAtoms(int node) {
+    return atomsOut[node];
+  }
+
+  int[] getEdgeTargets(int node) {
+    return targetsOut[node];
+  }
+
+  /**
+   * @param atom - the atom index
+   * @return the description of the entry for the atom (as displayed in the messages)
+   */
+  String describeAtom(int atom) {
+    StringBuilder text = new StringBuilder("STATE_" + StateType.fromOrdinal(atomState[atom]));
+    if (atomArg1[atom] != ANY) {
+      text.append(" ").append(patternText.get(atomArg1[atom]));
+    }
+    if (atomArg2[atom] != ANY) {
+      text.append(" ").append(patternText.get(atomArg2[atom]));
+    }
+    return text.toString();
+  }
+
+}
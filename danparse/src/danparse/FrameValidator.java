@@ -0,0 +1,620 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * checks that the frame callbacks of the AGENT debug messages of a trace are consistent, by
+ * replaying them against a shadow model of the frames and operand stack of each thread.
+ * The addenda of the callbacks (which the state machine ignores) are used:
+ *   beginFrame: maxLocals = n                createFrame: numParams = n, maxLocals = n
+ *   removeParams: numParams = n              popFrameAndPush: isVoid = true|false
+ *   addXxxParameter: val = v, slot = n       pushXxxType: val = v, type = t
+ * and the checks that need an addendum that is missing from a message are skipped.
+ * The following are reported as inconsistencies:
+ *   - popFrame or popFrameAndPush with no frame, or of a frame made by the other kind of call
+ *     (beginFrame frames are ended by popFrame, createFrame frames by popFrameAndPush)
+ *   - a parameter added with no frame, at a slot outside of maxLocals, at a slot already used
+ *     (a long or double uses 2 slots), or beyond the numParams of the frame
+ *   - a numParams or maxLocals that is negative, or more parameters than local slots
+ *   - the same type value pushed by different pushXxxType callbacks
+ * The instructions executed between the callbacks are not in the trace, so the operand stack
+ * only holds the values known from the callbacks (those pushed by pushXxxType and the return
+ * values of popFrameAndPush). The parameters removed by createFrame and removeParams are taken
+ * from them as far as they go, and the values left by a frame are discarded when it is popped.
+ * The callbacks are attributed to the thread of the last agent entry, as the engine does.
+ * The frames and stacks are kept in primitive arrays (a record of ints for each frame), so
+ * nothing is allocated for each callback.
+ *
+ * @author dmcd2356
+ */
+public class FrameValidator {
+
+  public static final int MAX_SHOWN = 100;    // the max inconsistencies displayed
+
+  // the types of the values of the locals and operand stack
+  private static final byte TYPE_NONE    = 0;   // (a local that has not been set)
+  private static final byte TYPE_INT     = 1;
+  private static final byte TYPE_LONG    = 2;
+  private static final byte TYPE_FLOAT   = 3;
+  private static final byte TYPE_DOUBLE  = 4;
+  private static final byte TYPE_REF     = 5;
+  private static final byte TYPE_ARRAY   = 6;
+  private static final byte TYPE_RETURN  = 7;   // the return value of an instrumented method
+  private static final byte TYPE_SECOND  = 8;   // the 2nd slot of a long or double local
+
+  // the fields of the record of each frame
+  private static final int FRAME_KIND       = 0;  // the callback that created it
+  private static final int FRAME_MAX_LOCALS = 1;  // -1 if not known
+  private static final int FRAME_NUM_PARAMS = 2;  // -1 if not known
+  private static final int FRAME_ADDED      = 3;  // the parameters added to it
+  private static final int FRAME_LOCALS     = 4;  // the start of its locals in the locals stack
+  private static final int FRAME_OPERANDS   = 5;  // the start of its values in the operand stack
+  private static final int FRAME_LINE       = 6;  // the line number of the callback
+  private static final int FRAME_SIZE       = 7;
+
+  // the keys of the addenda
+  private static final byte[] KEY_MAX_LOCALS = "maxLocals".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] KEY_NUM_PARAMS = "numParams".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] KEY_SLOT       = "slot".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] KEY_IS_VOID    = "isVoid".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] KEY_TYPE       = "type".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] VALUE_TRUE     = "true".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] VALUE_FALSE    = "false".getBytes(StandardCharsets.UTF_8);
+
+  private static final int NO_VALUE = -1;       // an addendum that is missing or not valid
+
+  /**
+   * a stack of ints that grows as needed.
+   */
+  static class IntStack {
+    private int[] data = new int[64];
+    private int   size;
+
+    void push(int value) {
+      if (size == data.length) {
+        data = Arrays.copyOf(data, size * 2);
+      }
+      data[size++] = value;
+    }
+
+    int get(int index) {
+      return data[index];
+    }
+
+    void set(int index, int value) {
+      data[index] = value;
+    }
+
+    int size() {
+      return size;
+    }
+
+    void truncate(int length) {
+      size = length;
+    }
+  }
+
+  /**
+   * a stack of bytes that grows as needed.
+   */
+  static class ByteStack {
+    private byte[] data = new byte[256];
+    private int    size;
+
+    void push(byte value) {
+      if (size == data.length) {
+        data = Arrays.copyOf(data, size * 2);
+      }
+      data[size++] = value;
+    }
+
+    // adds the specified number of TYPE_NONE entries
+    void grow(int count) {
+      if (size + count > data.length) {
+        data = Arrays.copyOf(data, Math.max(size + count, size * 2));
+      }
+      Arrays.fill(data, size, size + count, TYPE_NONE);
+      size += count;
+    }
+
+    byte get(int index) {
+      return data[index];
+    }
+
+    void set(int index, byte value) {
+      data[index] = value;
+    }
+
+    int size() {
+      return size;
+    }
+
+    void truncate(int length) {
+      size = length;
+    }
+  }
+
+  // the shadow frames of a thread
+  private static class ThreadModel {
+    final IntStack  frames = new IntStack();      // FRAME_SIZE ints for each frame
+    final ByteStack locals = new ByteStack();     // the local slots of all of the frames
+    final ByteStack operands = new ByteStack();   // the known values of all of the frames
+  }
+
+  private final PrintStream out;      // where to display the inconsistencies
+  private final SymbolTable threads;  // the ids of the thread ids
+  private ThreadModel[] models;       // the model of each thread (by id)
+  private ThreadModel current;        // the model of the thread of the last agent entry
+  private long[]  typeKeys;           // open-addressed hash table of the pushXxxType type values
+  private byte[]  typeStates;         // the callback (ordinal + 1) that first pushed each one
+  private int[]   typeLines;          // the line number it was 1st pushed on
+  private int     typeCount;
+  private int     linenum;
+  private long    callbacks;          // the number of frame callbacks checked
+  private long    problems;           // the number of inconsistencies found
+  private int     maxDepth;           // the most frames any thread had
+
+  /**
+   * @param out - where to display the inconsistencies (null to only count them)
+   */
+  public FrameValidator(PrintStream out) {
+    this.out = out;
+    threads = new SymbolTable();
+    models = new ThreadModel[16];
+    typeKeys = new long[64];
+    typeStates = new byte[64];
+    typeLines = new int[64];
+  }
+
+  private void report(String message) {
+    ++problems;
+    if (out != null && problems <= MAX_SHOWN) {
+      out.println("line " + linenum + ": " + message);
+    }
+  }
+
+  // selects the model of the thread of an agent entry
+  private void selectThread(TraceEvent event) {
+    int id = Math.max(threads.internThread(event), 0);
+    if (id >= models.length) {
+      models = Arrays.copyOf(models, Math.max(id + 1, models.length * 2));
+    }
+    if (models[id] == null) {
+      models[id] = new ThreadModel();
+    }
+    current = models[id];
+  }
+
+  /**
+   * finds the value of an addendum of a callback message: the word following "key =".
+   *
+   * @param line   - the line of the message
+   * @param offset - the offset to start looking from
+   * @param key    - the name of the addendum
+   * @return the offset of the value, or -1 if the message has no such addendum
+   */
+  private static int findValue(TraceLine line, int offset, byte[] key) {
+    int len = line.length();
+    for (int ix = line.indexOf(key[0], offset); ix >= 0; ix = line.indexOf(key[0], ix + 1)) {
+      if (!line.startsWith(ix, key) ||
+          (ix > 0 && Character.isLetterOrDigit(line.byteAt(ix - 1)))) {
+        continue;
+      }
+      int value = ix + key.length;
+      while (value < len && line.byteAt(value) == ' ') {
+        ++value;
+      }
+      if (value < len && line.byteAt(value) == '=') {
+        ++value;
+        while (value < len && line.byteAt(value) == ' ') {
+          ++value;
+        }
+        return value;
+      }
+    }
+    return -1;
+  }
+
+  // the offset following the value of an addendum
+  private static int valueEnd(TraceLine line, int start) {
+    int end = start;
+    while (end < line.length() && line.byteAt(end) != ',' && line.byteAt(end) != ' ') {
+      ++end;
+    }
+    return end;
+  }
+
+  // the integer value of an addendum (NO_VALUE if missing or not a valid number)
+  private static int intValue(TraceLine line, int offset, byte[] key) {
+    int start = findValue(line, offset, key);
+    if (start < 0) {
+      return NO_VALUE;
+    }
+    int end = valueEnd(line, start);
+    if (end == start || end - start > 9) {
+      return NO_VALUE;
+    }
+    int value = 0;
+    for (int ix = start; ix < end; ix++) {
+      byte digit = line.byteAt(ix);
+      if (digit < '0' || digit > '9') {
+        return (ix == start && digit == '-' && end > start + 1) ? Integer.MIN_VALUE : NO_VALUE;
+      }
+      value = value * 10 + (digit - '0');
+    }
+    return value;
+  }
+
+  // the boolean value of an addendum (1 = true, 0 = false, NO_VALUE if missing or not valid)
+  private static int booleanValue(TraceLine line, int offset, byte[] key) {
+    int start = findValue(line, offset, key);
+    if (start < 0) {
+      return NO_VALUE;
+    }
+    int end = valueEnd(line, start);
+    if (end - start == 1 && (line.byteAt(start) == '0' || line.byteAt(start) == '1')) {
+      return line.byteAt(start) - '0';
+    }
+    if (end - start == VALUE_TRUE.length && line.startsWith(start, VALUE_TRUE)) {
+      return 1;
+    }
+    if (end - start == VALUE_FALSE.length && line.startsWith(start, VALUE_FALSE)) {
+      return 0;
+    }
+    return NO_VALUE;
+  }
+
+  // the type of the value of an addXxxParameter or pushXxxType callback
+  private static byte valueType(StateType state) {
+    switch (state) {
+      case addBooleanParameter:
+      case addCharParameter:
+      case addByteParameter:
+      case addShortParameter:
+      case addIntegerParameter:
+      case pushIntegralType:    return TYPE_INT;
+      case addLongParameter:
+      case pushLonglType:       return TYPE_LONG;
+      case addFloatParameter:
+      case pushFloatType:       return TYPE_FLOAT;
+      case addDoubleParameter:
+      case pushDoubleType:      return TYPE_DOUBLE;
+      case addObjectParameter:
+      case pushReferenceType:   return TYPE_REF;
+      case addArrayParameter:
+      case pushArrayType:       return TYPE_ARRAY;
+      default:                  return TYPE_NONE;
+    }
+  }
+
+  private static int width(byte type) {
+    return (type == TYPE_LONG || type == TYPE_DOUBLE) ? 2 : 1;
+  }
+
+  /**
+   * checks a callback of the trace against the model (the agent entries select the thread,
+   * and the other events are ignored).
+   *
+   * @param event - the decoded event
+   */
+  public void record(TraceEvent event) {
+    StateType state = event.getState();
+    switch (state) {
+      case ENTRY_II: case ENTRY_IU: case ENTRY_UI:
+      case LEAVE_II: case LEAVE_IU: case LEAVE_UI:
+        selectThread(event);
+        return;
+      default:
+        break;
+    }
+    if (state.ordinal() < StateType.FIRST_CALLBACK.ordinal() || event.line == null) {
+      return;
+    }
+    if (current == null) {
+      // (the callbacks before the 1st agent entry are attributed to the default thread)
+      current = models[0] = new ThreadModel();
+    }
+    ++callbacks;
+
+    TraceLine line = event.line;
+    int offset = line.indexOf((byte) ' ', EventDecoder.MESSAGE_OFFSET);
+    if (offset < 0) {
+      offset = line.length();
+    }
+    switch (state) {
+      case beginFrame:
+        beginFrame(state, NO_VALUE, intValue(line, offset, KEY_MAX_LOCALS));
+        break;
+      case createFrame:
+        beginFrame(state, intValue(line, offset, KEY_NUM_PARAMS),
+            intValue(line, offset, KEY_MAX_LOCALS));
+        break;
+      case removeParams:
+        removeParams(intValue(line, offset, KEY_NUM_PARAMS));
+        break;
+      case popFrame:
+        popFrame(state, NO_VALUE);
+        break;
+      case popFrameAndPush:
+        popFrame(state, booleanValue(line, offset, KEY_IS_VOID));
+        break;
+      case pushIntegralType:
+      case pushLonglType:
+      case pushFloatType:
+      case pushDoubleType:
+      case pushReferenceType:
+      case pushArrayType:
+        pushValue(state, line, findValue(line, offset, KEY_TYPE));
+        break;
+      default:
+        addParameter(state, intValue(line, offset, KEY_SLOT));
+        break;
+    }
+  }
+
+  // removes the known values for the parameters of a call from the current frame
+  private void removeParams(int numParams) {
+    if (numParams == Integer.MIN_VALUE) {
+      report("removeParams has a negative numParams");
+      return;
+    }
+    ThreadModel model = current;
+    int depth = model.frames.size();
+    int base = (depth == 0) ? 0 : model.frames.get(depth - FRAME_SIZE + FRAME_OPERANDS);
+    if (numParams > 0) {
+      model.operands.truncate(Math.max(base, model.operands.size() - numParams));
+    }
+  }
+
+  private void beginFrame(StateType state, int numParams, int maxLocals) {
+    if (numParams == Integer.MIN_VALUE || maxLocals == Integer.MIN_VALUE) {
+      report(state + " has a negative " + ((maxLocals == Integer.MIN_VALUE) ?
+          "maxLocals" : "numParams"));
+      numParams = Math.max(numParams, NO_VALUE);
+      maxLocals = Math.max(maxLocals, NO_VALUE);
+    }
+    if (numParams > 0 && maxLocals >= 0 && numParams > maxLocals) {
+      report(state + " has numParams = " + numParams + " but maxLocals = " + maxLocals);
+    }
+    // the parameters of a createFrame come from the operand stack of the caller
+    if (state == StateType.createFrame) {
+      removeParams(numParams);
+    }
+
+    ThreadModel model = current;
+    IntStack frames = model.frames;
+    frames.push(state.ordinal());
+    frames.push(maxLocals);
+    frames.push(numParams);
+    frames.push(0);
+    frames.push(model.locals.size());
+    frames.push(model.operands.size());
+    frames.push(linenum);
+    if (maxLocals > 0) {
+      model.locals.grow(maxLocals);
+    }
+    maxDepth = Math.max(maxDepth, frames.size() / FRAME_SIZE);
+  }
+
+  private void popFrame(StateType state, int isVoid) {
+    ThreadModel model = current;
+    IntStack frames = model.frames;
+    int depth = frames.size();
+    if (depth == 0) {
+      report(state + " with no frame");
+      return;
+    }
+    int frame = depth - FRAME_SIZE;
+    StateType kind = StateType.fromOrdinal(frames.get(frame + FRAME_KIND));
+    if ((state == StateType.popFrame) != (kind == StateType.beginFrame)) {
+      report(state + " of the frame made by " + kind + " on line " +
+          frames.get(frame + FRAME_LINE));
+    }
+    model.locals.truncate(frames.get(frame + FRAME_LOCALS));
+    model.operands.truncate(frames.get(frame + FRAME_OPERANDS));
+    frames.truncate(frame);
+    if (isVoid == 0) {
+      model.operands.push(TYPE_RETURN);
+    }
+  }
+
+  private void pushValue(StateType state, TraceLine line, int start) {
+    if (start >= 0) {
+      checkType(state, line, start, valueEnd(line, start));
+    }
+    current.operands.push(valueType(state));
+  }
+
+  // checks that a type value is always pushed by the same callback
+  private void checkType(StateType state, TraceLine line, int start, int end) {
+    long key = 0xcbf29ce484222325L;
+    for (int ix = start; ix < end; ix++) {
+      key = (key ^ line.byteAt(ix)) * 0x100000001b3L;
+    }
+    int mask = typeKeys.length - 1;
+    int slot = (int) (key ^ (key >>> 32)) & mask;
+    while (typeStates[slot] != 0 && typeKeys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    if (typeStates[slot] != 0) {
+      StateType first = StateType.fromOrdinal(typeStates[slot] - 1);
+      if (first != state) {
+        report(state + " of type " + line.substring(start, end) + ", which was pushed by " +
+            first + " on line " + typeLines[slot]);
+      }
+      return;
+    }
+    typeKeys[slot] = key;
+    typeStates[slot] = (byte) (state.ordinal() + 1);
+    typeLines[slot] = linenum;
+    if (++typeCount * 2 > typeKeys.length) {
+      long[] oldKeys = typeKeys;
+      byte[] oldStates = typeStates;
+      int[] oldLines = typeLines;
+      typeKeys = new long[oldKeys.length * 2];
+      typeStates = new byte[oldKeys.length * 2];
+      typeLines = new int[oldKeys.length * 2];
+      mask = typeKeys.length - 1;
+      for (int ix = 0; ix < oldKeys.length; ix++) {
+        if (oldStates[ix] != 0) {
+          int next = (int) (oldKeys[ix] ^ (oldKeys[ix] >>> 32)) & mask;
+          while (typeStates[next] != 0) {
+            next = (next + 1) & mask;
+          }
+          typeKeys[next] = oldKeys[ix];
+          typeStates[next] = oldStates[ix];
+          typeLines[next] = oldLines[ix];
+        }
+      }
+    }
+  }
+
+  private void addParameter(StateType state, int slot) {
+    ThreadModel model = current;
+    IntStack frames = model.frames;
+    int depth = frames.size();
+    if (depth == 0) {
+      report(state + " with no frame");
+      return;
+    }
+    int frame = depth - FRAME_SIZE;
+    int added = frames.get(frame + FRAME_ADDED) + 1;
+    frames.set(frame + FRAME_ADDED, added);
+    int numParams = frames.get(frame + FRAME_NUM_PARAMS);
+    if (numParams >= 0 && added == numParams + 1) {
+      // (only reported for the 1st extra parameter of the frame)
+      report(state + " adds more than the " + numParams +
+          " parameters of the frame made on line " + frames.get(frame + FRAME_LINE));
+    }
+    if (slot == NO_VALUE) {
+      return;
+    }
+    byte type = valueType(state);
+    int maxLocals = frames.get(frame + FRAME_MAX_LOCALS);
+    if (slot == Integer.MIN_VALUE || (maxLocals >= 0 && slot + width(type) > maxLocals)) {
+      report(state + " to slot " + ((slot == Integer.MIN_VALUE) ? "< 0" : slot) +
+          ((maxLocals >= 0) ? " of a frame with maxLocals = " + maxLocals : ""));
+      return;
+    }
+    if (maxLocals < 0) {
+      // (the slots of the frame are not known, so they can't be checked)
+      return;
+    }
+    int base = frames.get(frame + FRAME_LOCALS) + slot;
+    byte used = model.locals.get(base);
+    if (used == TYPE_NONE && width(type) == 2) {
+      used = model.locals.get(base + 1);
+    }
+    if (used != TYPE_NONE) {
+      report(state + " to slot " + slot + ", which is already used by a parameter");
+      return;
+    }
+    model.locals.set(base, type);
+    if (width(type) == 2) {
+      model.locals.set(base + 1, TYPE_SECOND);
+    }
+  }
+
+  /**
+   * checks all of the callbacks of a raw output file (as text).
+   *
+   * @param scanner - the source of the raw output lines
+   * @throws IOException
+   */
+  public void validate(TraceScanner scanner) throws IOException {
+    TraceLine line = new TraceLine();
+    TraceEvent event = new TraceEvent();
+    while (scanner.nextLine(line)) {
+      ++linenum;
+      // (only the callbacks and the agent entries are decoded)
+      if (EventDecoder.isCallbackLine(line)) {
+        EventDecoder.decodeCallback(line, EventDecoder.MESSAGE_OFFSET, event);
+        record(event);
+      } else if (EventDecoder.isAgentLine(line)) {
+        EventDecoder.decodeAgentLine(line, event);
+        record(event);
+      }
+    }
+  }
+
+  /**
+   * checks all of the callbacks of a raw output file (which may be the text output or the text
+   * output compressed with gzip). Binary traces do not keep the addenda of the callbacks.
+   *
+   * @param file - the raw output file
+   * @throws IOException
+   */
+  public void validate(File file) throws IOException {
+    if (BinaryTraceReader.isBinaryTrace(file)) {
+      throw new IOException("binary traces do not have the callback addenda: " + file.getName());
+    } else if (BlockTraceWriter.isGzip(file)) {
+      try (TraceScanner scanner = new StreamTraceScanner(new ReadAheadInputStream(
+          new GZIPInputStream(new FileInputStream(file), 64 * 1024)))) {
+        validate(scanner);
+      }
+    } else {
+      try (TraceScanner scanner = new MappedTraceScanner(file)) {
+        validate(scanner);
+      }
+    }
+  }
+
+  /**
+   * @return the number of frame callbacks checked
+   */
+  public long getCallbacks() {
+    return callbacks;
+  }
+
+  /**
+   * @return the number of inconsistencies found
+   */
+  public long getProblems() {
+    return problems;
+  }
+
+  /**
+   * @return the most frames that a thread had at a time
+   */
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * @return the number of threads that had callbacks or agent entries
+   */
+  public int getThreads() {
+    int count = 0;
+    for (ThreadModel model : models) {
+      if (model != null) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of frames that were not popped by the end of the trace (in all threads)
+   */
+  public int getOpenFrames() {
+    int count = 0;
+    for (ThreadModel model : models) {
+      if (model != null) {
+        count += model.frames.size() / FRAME_SIZE;
+      }
+    }
+    return count;
+  }
+
+}
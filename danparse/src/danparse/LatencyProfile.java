@@ -0,0 +1,320 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * the time spent in each method of a trace, found from the timestamps of the debug messages.
+ * The ENTRY and LEAVE agent entries of each thread are paired (as are the CALL and RETURN debug
+ * messages), and the inclusive time (from the entry to the leave) and the exclusive time (less
+ * the inclusive time of the calls made from it) of each call are added to the histograms of
+ * the method. The agent entries have no timestamp of their own, so they are given the time of
+ * the last debug message before them.
+ * Each histogram has a fixed number of buckets (see Histogram), so the memory used depends only
+ * on the number of different methods, not on the number of calls.
+ *
+ * @author dmcd2356
+ */
+public class LatencyProfile {
+
+  // the kinds of calls that are paired
+  public static final int KIND_AGENT = 0;     // ENTRY_xx and LEAVE_xx agent entries
+  public static final int KIND_CALL  = 1;     // CALL and RETURN debug messages
+  private static final String[] KIND_NAMES = { "agent", "call" };
+
+  private static final long HOUR = 60 * 60 * 1000;   // in msec
+
+  /**
+   * a histogram of durations (in msec) with logarithmic buckets: the values below 16 each have
+   * a bucket, and each power of 2 above that is split into 8 buckets, so a percentile is within
+   * 12.5% of the actual value. The max value is kept exactly.
+   */
+  public static class Histogram {
+    private static final int EXACT    = 16;       // the values that have a bucket of their own
+    private static final int SUB_BITS = 3;        // 8 buckets for each power of 2
+    private static final int MAX_EXP  = 40;       // the largest power of 2 (about 35 years)
+    static final int BUCKETS = EXACT + (MAX_EXP - 3) * (1 << SUB_BITS);
+
+    private final long[] counts;
+    private long count;
+    private long total;
+    private long max;
+
+    public Histogram() {
+      counts = new long[BUCKETS];
+    }
+
+    private static int bucket(long value) {
+      if (value < EXACT) {
+        return (int) Math.max(value, 0);
+      }
+      int exp = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXP);
+      int sub = (int) (value >>> (exp - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+      return Math.min(EXACT + ((exp - 4) << SUB_BITS) + sub, BUCKETS - 1);
+    }
+
+    // the largest value that is placed in the bucket
+    private static long upperBound(int bucket) {
+      if (bucket < EXACT) {
+        return bucket;
+      }
+      int exp = 4 + ((bucket - EXACT) >> SUB_BITS);
+      long sub = (bucket - EXACT) & ((1 << SUB_BITS) - 1);
+      return (((1 << SUB_BITS) + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    public void add(long value) {
+      ++counts[bucket(value)];
+      ++count;
+      total += value;
+      max = Math.max(max, value);
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getTotal() {
+      return total;
+    }
+
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * @param fraction - the fraction of the values (0.5 for the median)
+     * @return the value that the fraction of the values are no larger than
+     */
+    public long getPercentile(double fraction) {
+      long rank = (long) Math.ceil(fraction * count);
+      long found = 0;
+      for (int ix = 0; ix < BUCKETS; ix++) {
+        found += counts[ix];
+        if (found >= Math.max(rank, 1)) {
+          return Math.min(upperBound(ix), max);
+        }
+      }
+      return max;
+    }
+  }
+
+  // the calls of a thread that have not returned yet
+  private static class CallStack {
+    int[]  methods = new int[16];     // the method id of each call
+    long[] starts = new long[16];     // the time of the entry
+    long[] inner = new long[16];      // the inclusive time of the calls made from it
+    int    depth;
+
+    void push(int method, long time) {
+      if (depth == methods.length) {
+        methods = Arrays.copyOf(methods, depth * 2);
+        starts = Arrays.copyOf(starts, depth * 2);
+        inner = Arrays.copyOf(inner, depth * 2);
+      }
+      methods[depth] = method;
+      starts[depth] = time;
+      inner[depth] = 0;
+      ++depth;
+    }
+  }
+
+  private final SymbolTable methods;                 // the ids of the method names
+  private final ArrayList<ArrayList<Histogram[]>> histograms; // [kind][method] = {incl, excl}
+  private CallStack[][] stacks;       // the calls of each thread id, for each kind
+  private long clock;                 // the time of the last debug message (in msec)
+  private long lastStamp;             // the last timestamp read (before adjusting for wrapping)
+  private long wrapped;               // the time added for the timestamps that have wrapped
+  private long unmatched;             // the leave/returns that had no matching entry/call
+
+  public LatencyProfile() {
+    methods = new SymbolTable();
+    histograms = new ArrayList<>();
+    for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+      histograms.add(new ArrayList<>());
+    }
+    stacks = new CallStack[KIND_NAMES.length][16];
+  }
+
+  /**
+   * updates the clock from the timestamp of a debug message ("xxxxxxxx [mm:ss.mmm] ...").
+   * The minutes are assumed to wrap at 60, so a timestamp more than half an hour before the
+   * last one is taken to be in the following hour.
+   */
+  private void readTimestamp(TraceLine line) {
+    long stamp = ((digit(line, 10) * 10 + digit(line, 11)) * 60 +
+        digit(line, 13) * 10 + digit(line, 14)) * 1000 +
+        digit(line, 16) * 100 + digit(line, 17) * 10 + digit(line, 18);
+    if (stamp < lastStamp - HOUR / 2) {
+      wrapped += HOUR;
+    }
+    lastStamp = stamp;
+    clock = Math.max(clock, stamp + wrapped);
+  }
+
+  private static long digit(TraceLine line, int offset) {
+    return line.byteAt(offset) - '0';
+  }
+
+  private int methodId(TraceEvent event) {
+    int id = methods.findArg1(event);
+    if (id == SymbolTable.UNKNOWN) {
+      id = methods.intern(event.getArg1());
+    }
+    return id;
+  }
+
+  private CallStack getStack(int kind, int thread) {
+    thread = Math.max(thread, 0);
+    if (thread >= stacks[kind].length) {
+      stacks[kind] = Arrays.copyOf(stacks[kind], Math.max(thread + 1, stacks[kind].length * 2));
+    }
+    if (stacks[kind][thread] == null) {
+      stacks[kind][thread] = new CallStack();
+    }
+    return stacks[kind][thread];
+  }
+
+  private Histogram[] methodHistograms(int kind, int method) {
+    ArrayList<Histogram[]> list = histograms.get(kind);
+    while (list.size() <= method) {
+      list.add(null);
+    }
+    if (list.get(method) == null) {
+      list.set(method, new Histogram[] { new Histogram(), new Histogram() });
+    }
+    return list.get(method);
+  }
+
+  /**
+   * ends the call at the specified depth of a thread's stack, along with any calls above it
+   * that were not ended (these are not added to the histograms).
+   */
+  private void endCall(int kind, CallStack stack, int depth) {
+    stack.depth = depth;
+    long elapsed = Math.max(clock - stack.starts[depth], 0);
+    Histogram[] method = methodHistograms(kind, stack.methods[depth]);
+    method[0].add(elapsed);
+    method[1].add(Math.max(elapsed - stack.inner[depth], 0));
+    if (depth > 0) {
+      stack.inner[depth - 1] += elapsed;
+    }
+  }
+
+  /**
+   * adds a decoded event of the trace.
+   * Events decoded from a binary trace have no timestamps, and are not used.
+   *
+   * @param event  - the decoded event
+   * @param thread - the id of the thread the event is for (SymbolTable.NONE if not known)
+   */
+  public void record(TraceEvent event, int thread) {
+    if (event.line == null || event.dictionary != null) {
+      return;
+    }
+    StateType type = event.getState();
+    switch (type) {
+      case ENTRY_II:
+      case ENTRY_IU:
+      case ENTRY_UI:
+        getStack(KIND_AGENT, thread).push(methodId(event), clock);
+        break;
+      case LEAVE_II:
+      case LEAVE_IU:
+      case LEAVE_UI:
+        // the leave ends the innermost call of the same method
+        CallStack stack = getStack(KIND_AGENT, thread);
+        int method = methodId(event);
+        int depth = stack.depth - 1;
+        while (depth >= 0 && stack.methods[depth] != method) {
+          --depth;
+        }
+        if (depth >= 0) {
+          endCall(KIND_AGENT, stack, depth);
+        } else {
+          ++unmatched;
+        }
+        break;
+      case CALL:
+        readTimestamp(event.line);
+        getStack(KIND_CALL, thread).push(methodId(event), clock);
+        break;
+      case RETURN:
+        readTimestamp(event.line);
+        stack = getStack(KIND_CALL, thread);
+        if (stack.depth > 0) {
+          endCall(KIND_CALL, stack, stack.depth - 1);
+        } else {
+          ++unmatched;
+        }
+        break;
+      default:
+        if (type.ordinal() >= StateType.FIRST_CALLBACK.ordinal()) {
+          readTimestamp(event.line);
+        }
+        break;
+    }
+  }
+
+  /**
+   * @return the number of LEAVE entries and RETURN messages that had no matching entry or call
+   */
+  public long getUnmatched() {
+    return unmatched;
+  }
+
+  /**
+   * writes the count, total, p50, p99 and max of the inclusive and exclusive times (in msec)
+   * of each method as CSV, with the methods that have the most exclusive time first.
+   *
+   * @param writer - where to write the CSV
+   */
+  public void write(PrintWriter writer) {
+    writer.println("kind,method,count,incl_total_ms,incl_p50_ms,incl_p99_ms,incl_max_ms," +
+        "excl_total_ms,excl_p50_ms,excl_p99_ms,excl_max_ms");
+    ArrayList<long[]> rows = new ArrayList<>();   // {kind, method id, exclusive total}
+    for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+      ArrayList<Histogram[]> list = histograms.get(kind);
+      for (int id = 0; id < list.size(); id++) {
+        if (list.get(id) != null) {
+          rows.add(new long[] { kind, id, list.get(id)[1].getTotal() });
+        }
+      }
+    }
+    rows.sort((a, b) -> Long.compare(b[2], a[2]));
+    for (long[] row : rows) {
+      Histogram[] method = histograms.get((int) row[0]).get((int) row[1]);
+      StringBuilder line = new StringBuilder();
+      line.append(KIND_NAMES[(int) row[0]]).append(',').append(methods.getName((int) row[1]));
+      line.append(',').append(method[0].getCount());
+      for (Histogram histogram : method) {
+        line.append(',').append(histogram.getTotal());
+        line.append(',').append(histogram.getPercentile(0.50));
+        line.append(',').append(histogram.getPercentile(0.99));
+        line.append(',').append(histogram.getMax());
+      }
+      writer.println(line);
+    }
+  }
+
+  /**
+   * writes the profile to a CSV file.
+   *
+   * @param file - the file to write
+   * @throws FileNotFoundException
+   */
+  public void write(File file) throws FileNotFoundException {
+    try (PrintWriter writer = new PrintWriter(file)) {
+      write(writer);
+    }
+  }
+
+}
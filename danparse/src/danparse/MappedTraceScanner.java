@@ -0,0 +1,115 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * reads the lines of a raw output file by memory-mapping it in large windows and searching for
+ * the line boundaries directly in the mapped bytes.
+ *
+ * @author dmcd2356
+ */
+public class MappedTraceScanner extends TraceScanner {
+
+  // the size of each mapped section of the file (a single mapping is limited to 2 GB)
+  private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final long        fileSize;
+  private MappedByteBuffer  window;       // the currently mapped section of the file
+  private long              windowStart;  // the file offset of the start of the window
+  private boolean           skipNewline;  // true if the last line ended with a '\r' at the end
+                                          // of the window (so a '\n' following it is skipped)
+
+  public MappedTraceScanner(File file) throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    fileSize = channel.size();
+    windowStart = 0;
+    window = null;
+  }
+
+  /**
+   * maps the next section of the file, starting at the current read position.
+   *
+   * @return false if the end of the file has been reached
+   */
+  private boolean mapNextWindow() throws IOException {
+    long start = (window == null) ? 0 : windowStart + window.limit();
+    if (start >= fileSize) {
+      return false;
+    }
+    long size = Math.min(WINDOW_SIZE, fileSize - start);
+    window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    windowStart = start;
+    return true;
+  }
+
+  @Override
+  public boolean nextLine(TraceLine line) throws IOException {
+    line.length = 0;
+    boolean found = false;
+    while (true) {
+      if (window == null || !window.hasRemaining()) {
+        if (!mapNextWindow()) {
+          break;
+        }
+      }
+      if (skipNewline) {
+        skipNewline = false;
+        if (window.get(window.position()) == '\n') {
+          window.position(window.position() + 1);
+          ++bytesRead;
+          continue;
+        }
+      }
+
+      // search the mapped bytes for the end of the line
+      int start = window.position();
+      int limit = window.limit();
+      int end = start;
+      while (end < limit && !isLineEnd(window.get(end))) {
+        ++end;
+      }
+      found = true;
+
+      // copy the line contents to the line buffer
+      int count = end - start;
+      line.ensureCapacity(line.length + count);
+      window.get(line.data, line.length, count);
+      line.length += count;
+      bytesRead += count;
+
+      if (end < limit) {
+        // skip past the terminator (both bytes of a "\r\n") and we're done
+        window.position(end + 1);
+        ++bytesRead;
+        if (window.get(end) == '\r') {
+          if (end + 1 == limit) {
+            skipNewline = true;
+          } else if (window.get(end + 1) == '\n') {
+            window.position(end + 2);
+            ++bytesRead;
+          }
+        }
+        break;
+      }
+      // else, line continues in the next window
+    }
+    return found;
+  }
+
+  @Override
+  public void close() throws IOException {
+    window = null;
+    channel.close();
+  }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * an input stream that reads its source on a background thread, so the source (such as a gzip
+ * stream being decompressed) is read while the data already read is being processed.
+ * The data is passed between the threads in a small pool of buffers, so the memory used is
+ * bounded. Each read of the source is passed on as soon as it completes, so data arriving
+ * slowly (from a program that is still running) is not held back waiting for a buffer to fill.
+ *
+ * @author dmcd2356
+ */
+public class ReadAheadInputStream extends InputStream {
+
+  private static final int BUFFER_SIZE  = 256 * 1024;
+  private static final int BUFFER_COUNT = 4;
+
+  // a section of the data read from the source
+  private static final class Buffer {
+    final byte[] data = new byte[BUFFER_SIZE];
+    int          length;          // the number of bytes read (-1 at the end of the data)
+    IOException  error;           // the error reading the source (if any)
+  }
+
+  private final InputStream source;
+  private final ArrayBlockingQueue<Buffer> free;
+  private final ArrayBlockingQueue<Buffer> filled;
+  private final Thread reader;
+  private Buffer  current;        // the buffer being read from
+  private int     position;       // the offset of the next byte to read in the current buffer
+  private boolean eof;
+  private volatile boolean closed;
+
+  /**
+   * @param input - the stream to read from
+   */
+  public ReadAheadInputStream(InputStream input) {
+    source = input;
+    free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    filled = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    for (int ix = 0; ix < BUFFER_COUNT; ix++) {
+      free.add(new Buffer());
+    }
+    reader = new Thread(this::readSource, "danparse-readahead");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  // reads the source into the free buffers until the end of the data (runs on the reader thread)
+  private void readSource() {
+    try {
+      while (!closed) {
+        Buffer buffer = free.take();
+        try {
+          buffer.length = source.read(buffer.data, 0, buffer.data.length);
+        } catch (IOException ex) {
+          buffer.length = -1;
+          buffer.error = closed ? null : ex;
+        }
+        filled.put(buffer);
+        if (buffer.length < 0) {
+          return;
+        }
+      }
+    } catch (InterruptedException ex) {
+      // closed
+    }
+  }
+
+  // makes the next buffer of data the current one
+  private boolean nextBuffer() throws IOException {
+    if (eof) {
+      return false;
+    }
+    if (current != null) {
+      free.add(current);
+      current = null;
+    }
+    Buffer buffer;
+    try {
+      buffer = filled.take();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while reading trace");
+    }
+    if (buffer.length < 0) {
+      eof = true;
+      if (buffer.error != null) {
+        throw buffer.error;
+      }
+      return false;
+    }
+    current = buffer;
+    position = 0;
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    while (current == null || position >= current.length) {
+      if (!nextBuffer()) {
+        return -1;
+      }
+    }
+    return current.data[position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] data, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    while (current == null || position >= current.length) {
+      if (!nextBuffer()) {
+        return -1;
+      }
+    }
+    int count = Math.min(length, current.length - position);
+    System.arraycopy(current.data, position, data, offset, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return (current == null) ? 0 : current.length - position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    reader.interrupt();
+    source.close();
+  }
+
+}
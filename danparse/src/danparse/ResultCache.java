@@ -0,0 +1,226 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * an on-disk cache of the results of verifying traces, so a trace that has not changed since it
+ * was last verified doesn't need to be parsed again.
+ * The results are found by a 64-bit hash of the contents of the raw output file, combined with
+ * the expectation file used (if any) and the parser version, so a result is never returned for
+ * a trace (or expectations, or parser) that differs from the one it was created for. Each result
+ * is kept in a separate small file in the cache directory, so the cache can be shared by
+ * concurrent runs. The number of results kept is limited, and when it is exceeded the results
+ * that were least recently used (by the modification time of their files) are removed, down to
+ * EVICT_PERCENT less than the limit, so the directory is only listed once for many results
+ * stored. The entries are counted when the cache is opened and then as they are stored (the
+ * count is corrected whenever the directory is listed, for the entries of concurrent runs).
+ *
+ * @author dmcd2356
+ */
+public class ResultCache {
+
+  public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  private static final String SUFFIX = ".result";
+  private static final int    EVICT_PERCENT = 10;   // the part of the limit removed at a time
+  private static final int    MAP_SIZE = 64 * 1024 * 1024;    // the size of file section hashed
+  private static final long   PRIME1 = 0x9e3779b185ebca87L;
+  private static final long   PRIME2 = 0xc2b2ae3d27d4eb4fL;
+
+  private final File dir;
+  private final int  maxEntries;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+  private final AtomicInteger entries;    // the number of entries in the directory
+
+  /**
+   * @param directory - the directory to keep the results in (created if it doesn't exist)
+   * @param max       - the max number of results to keep
+   * @throws IOException
+   */
+  public ResultCache(File directory, int max) throws IOException {
+    dir = directory;
+    maxEntries = max;
+    hits = new AtomicLong();
+    misses = new AtomicLong();
+    Files.createDirectories(dir.toPath());
+    entries = new AtomicInteger(listEntries().length);
+  }
+
+  // mixes a value into the hash
+  private static long mix(long hash, long value) {
+    return Long.rotateLeft(hash ^ (value * PRIME2), 31) * PRIME1;
+  }
+
+  /**
+   * computes the hash of the contents of a file.
+   *
+   * @param file - the file
+   * @return the 64-bit hash value
+   * @throws IOException
+   */
+  public static long hashFile(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      long hash = mix(PRIME2, size);
+      for (long start = 0; start < size; start += MAP_SIZE) {
+        int length = (int) Math.min(MAP_SIZE, size - start);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int offset = 0;
+        for (; offset + 8 <= length; offset += 8) {
+          hash = mix(hash, buffer.getLong(offset));
+        }
+        for (; offset < length; offset++) {
+          hash = mix(hash, buffer.get(offset));
+        }
+      }
+      return hash ^ (hash >>> 29);
+    }
+  }
+
+  /**
+   * computes the key of the result of verifying a trace.
+   *
+   * @param file - the raw output file
+   * @param exp  - the expectations it is verified against (null for its !EXPECTED messages)
+   * @return the key
+   * @throws IOException
+   */
+  public static long makeKey(File file, Expectations exp) throws IOException {
+    long key = mix(hashFile(file), DanparseEngine.PARSER_VERSION);
+    return mix(key, (exp == null) ? 0 : exp.getFingerprint());
+  }
+
+  private File entryFile(long key) {
+    return new File(dir, String.format("%016x", key) + SUFFIX);
+  }
+
+  /**
+   * returns the result saved for a trace.
+   *
+   * @param key  - the key of the trace (from makeKey)
+   * @param size - the size of the raw output file
+   * @return the result, or null if none was saved
+   */
+  public DanparseResult lookup(long key, long size) {
+    File file = entryFile(key);
+    Properties props = new Properties();
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      props.load(in);
+      if (Long.parseLong(props.getProperty("size")) != size) {
+        misses.incrementAndGet();
+        return null;
+      }
+      DanparseResult result = new DanparseResult(
+          DanparseResult.Status.valueOf(props.getProperty("status")),
+          props.getProperty("message"), Integer.parseInt(props.getProperty("line")));
+      result.setStats(Integer.parseInt(props.getProperty("lines")),
+          Long.parseLong(props.getProperty("bytes")), 0,
+          Boolean.parseBoolean(props.getProperty("testexit")),
+          Boolean.parseBoolean(props.getProperty("expected")));
+      file.setLastModified(System.currentTimeMillis());   // the entry was used
+      hits.incrementAndGet();
+      return result;
+    } catch (IOException | RuntimeException ex) {
+      // no entry (or an entry that was not completely written)
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * saves the result of verifying a trace.
+   *
+   * @param key    - the key of the trace (from makeKey)
+   * @param size   - the size of the raw output file
+   * @param result - the result
+   * @throws IOException
+   */
+  public void store(long key, long size, DanparseResult result) throws IOException {
+    Properties props = new Properties();
+    props.setProperty("size", Long.toString(size));
+    props.setProperty("status", result.getStatus().name());
+    props.setProperty("message", result.getMessage());
+    props.setProperty("line", Integer.toString(result.getLine()));
+    props.setProperty("lines", Integer.toString(result.getLinesRead()));
+    props.setProperty("bytes", Long.toString(result.getBytesRead()));
+    props.setProperty("testexit", Boolean.toString(result.isTestExitFound()));
+    props.setProperty("expected", Boolean.toString(result.isExpectedFound()));
+
+    // the entry is written to a temporary file first, so it is never seen partially written
+    File file = entryFile(key);
+    boolean bNew = !file.exists();
+    File temp = File.createTempFile("entry", ".tmp", dir);
+    try {
+      try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+        props.store(out, null);
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      temp.delete();
+    }
+    if (bNew && entries.incrementAndGet() > maxEntries) {
+      evict();
+    }
+  }
+
+  private File[] listEntries() {
+    File[] list = dir.listFiles((parent, name) -> name.endsWith(SUFFIX));
+    return (list == null) ? new File[0] : list;
+  }
+
+  // removes the least recently used entries if there are too many (down to the low-water mark)
+  private synchronized void evict() {
+    if (entries.get() <= maxEntries) {
+      // (another thread has just removed them)
+      return;
+    }
+    File[] list = listEntries();
+    if (list.length <= maxEntries) {
+      entries.set(list.length);
+      return;
+    }
+    int keep = maxEntries - maxEntries * EVICT_PERCENT / 100;
+    long[] times = new long[list.length];
+    Integer[] order = new Integer[list.length];
+    for (int ix = 0; ix < list.length; ix++) {
+      times[ix] = list[ix].lastModified();
+      order[ix] = ix;
+    }
+    Arrays.sort(order, Comparator.comparingLong(ix -> times[ix]));
+    for (int ix = 0; ix < list.length - keep; ix++) {
+      list[order[ix]].delete();
+    }
+    entries.set(keep);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+}
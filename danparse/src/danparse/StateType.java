@@ -0,0 +1,61 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+/**
+ * inputs that generate the specified new state.
+ *
+ * @author dmcd2356
+ */
+public enum StateType {
+  NONE,       // starting point
+  ERROR,      // an error occurred
+  EXIT,       // !TESTEXIT
+  ENTRY_II,   // agent output for instrumented to instrumented   EnterMethod
+  ENTRY_IU,   // agent output for instrumented to uninstrumented EnterMethod
+  ENTRY_UI,   // agent output for uninstrumented to instrumented EnterMethod
+  LEAVE_II,   // agent output for instrumented to instrumented   LeaveMethod
+  LEAVE_IU,   // agent output for instrumented to uninstrumented LeaveMethod
+  LEAVE_UI,   // agent output for uninstrumented to instrumented LeaveMethod
+  CALL,       // CALL message
+  RETURN,     // RETURN message
+  // AGENT message type (these are the agent callbackes to the instrumented code)
+  addBooleanParameter,
+  addCharParameter,
+  addByteParameter,
+  addShortParameter,
+  addIntegerParameter,
+  addLongParameter,
+  addFloatParameter,
+  addDoubleParameter,
+  addObjectParameter,
+  addArrayParameter,
+  beginFrame,
+  removeParams,
+  createFrame,
+  popFrame,
+  popFrameAndPush,
+  pushIntegralType,
+  pushLonglType,
+  pushFloatType,
+  pushDoubleType,
+  pushReferenceType,
+  pushArrayType;
+
+  // the 1st of the AGENT callback states (all states following it are also callbacks)
+  public static final StateType FIRST_CALLBACK = addBooleanParameter;
+
+  // cached copy of values(), since values() creates a new array on every call
+  private static final StateType[] VALUES = values();
+
+  public static StateType fromOrdinal(int ordinal) {
+    return VALUES[ordinal];
+  }
+
+  public static int count() {
+    return VALUES.length;
+  }
+}
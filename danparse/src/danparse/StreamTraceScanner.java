@@ -0,0 +1,104 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * reads the lines of a raw output stream (such as the standard output of the test program
+ * piped into standard input) as they arrive, searching for the line boundaries directly in the
+ * bytes read.
+ *
+ * @author dmcd2356
+ */
+public class StreamTraceScanner extends TraceScanner {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final InputStream input;
+  private final byte[]      buffer;
+  private int               position;   // the offset of the next unread byte in buffer
+  private int               limit;      // the number of valid bytes in buffer
+  private boolean           eof;
+  private boolean           skipNewline; // true if the last line ended with a '\r' at the end
+                                         // of the buffer (so a '\n' following it is skipped)
+
+  public StreamTraceScanner(InputStream in) {
+    input = in;
+    buffer = new byte[BUFFER_SIZE];
+    position = 0;
+    limit = 0;
+    eof = false;
+  }
+
+  @Override
+  public boolean nextLine(TraceLine line) throws IOException {
+    line.length = 0;
+    boolean found = false;
+    while (true) {
+      if (position >= limit) {
+        if (eof) {
+          break;
+        }
+        // this blocks until at least some data is available, so lines are processed as soon as
+        // they are written
+        int count = input.read(buffer, 0, buffer.length);
+        if (count < 0) {
+          eof = true;
+          break;
+        }
+        position = 0;
+        limit = count;
+        continue;
+      }
+      if (skipNewline) {
+        skipNewline = false;
+        if (buffer[position] == '\n') {
+          ++position;
+          ++bytesRead;
+          continue;
+        }
+      }
+
+      // search the buffer for the end of the line
+      int start = position;
+      int end = start;
+      while (end < limit && !isLineEnd(buffer[end])) {
+        ++end;
+      }
+      found = true;
+
+      // copy the line contents to the line buffer
+      line.append(buffer, start, end - start);
+      bytesRead += end - start;
+
+      if (end < limit) {
+        // skip past the terminator (both bytes of a "\r\n") and we're done
+        position = end + 1;
+        ++bytesRead;
+        if (buffer[end] == '\r') {
+          if (position == limit) {
+            skipNewline = true;
+          } else if (buffer[position] == '\n') {
+            ++position;
+            ++bytesRead;
+          }
+        }
+        break;
+      }
+      // else, line continues in the next read
+      position = limit;
+    }
+    return found;
+  }
+
+  @Override
+  public void close() throws IOException {
+    input.close();
+  }
+
+}
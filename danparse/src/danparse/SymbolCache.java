@@ -0,0 +1,197 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * a bounded cache of the display names of the event arguments, so the name of a method that is
+ * repeated throughout a trace is only converted to a String (with the class name converted to
+ * use '.' separators) the 1st time it is displayed.
+ * The names are looked up from the bytes of the line they were decoded from, and each name
+ * keeps the same id for as long as it is in the cache. When the cache is full, an entry that
+ * has not been used since the clock hand last passed it is replaced (the "second chance"
+ * approximation of least recently used).
+ *
+ * @author dmcd2356
+ */
+public class SymbolCache {
+
+  public static final int DEFAULT_CAPACITY = 4096;
+
+  private final byte[][] names;     // the name of each entry as displayed (index 0 is not used)
+  private final String[] display;   // the name of each entry as a String
+  private final int[]    hashes;    // the hash value of each entry
+  private final int[]    next;      // the next entry in the same hash chain (0 = end)
+  private final boolean[] used;     // true if the entry was used since the clock hand passed it
+  private final int[]    buckets;   // the 1st entry of each hash chain (0 = empty)
+  private int            size;      // the number of entries in use
+  private int            hand;      // the clock hand (the next entry to consider replacing)
+  private long           hits;
+  private long           misses;
+  private long           evictions;
+
+  public SymbolCache() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param capacity - the max number of names to keep
+   */
+  public SymbolCache(int capacity) {
+    names = new byte[capacity + 1][];
+    display = new String[capacity + 1];
+    hashes = new int[capacity + 1];
+    next = new int[capacity + 1];
+    used = new boolean[capacity + 1];
+    int bucketCount = Integer.highestOneBit(capacity) * 2;
+    buckets = new int[bucketCount];
+    hand = 1;
+  }
+
+  private int bucket(int hash) {
+    return (hash ^ (hash >>> 16)) & (buckets.length - 1);
+  }
+
+  /**
+   * returns the display name of the 1st argument of an event.
+   *
+   * @param event - the decoded event
+   * @return the name ("class.method" if the argument has a class)
+   */
+  public String getArg1(TraceEvent event) {
+    if (event.dictionary != null || event.line == null) {
+      return event.getArg1();
+    }
+    int hash = event.arg1Hash();
+    for (int id = buckets[bucket(hash)]; id != 0; id = next[id]) {
+      if (hashes[id] == hash && event.arg1Equals(names[id])) {
+        return hit(id);
+      }
+    }
+    return add(hash, event.getArg1());
+  }
+
+  /**
+   * returns the display name of the 2nd argument of an event.
+   *
+   * @param event - the decoded event
+   * @return the name
+   */
+  public String getArg2(TraceEvent event) {
+    if (event.dictionary != null || event.line == null) {
+      return event.getArg2();
+    }
+    return getName(event.line, event.arg2Start, event.arg2End);
+  }
+
+  /**
+   * returns the name in the specified portion of a line as a String.
+   *
+   * @param line  - the line containing the name
+   * @param start - the offset of the start of the name
+   * @param end   - the offset following the end of the name
+   * @return the name
+   */
+  public String getName(TraceLine line, int start, int end) {
+    if (start == end) {
+      return "";
+    }
+    int hash = SymbolTable.hash(line.data, start, end);
+    for (int id = buckets[bucket(hash)]; id != 0; id = next[id]) {
+      if (hashes[id] == hash && SymbolTable.regionEquals(names[id], line.data, start, end)) {
+        return hit(id);
+      }
+    }
+    return add(hash, line.substring(start, end));
+  }
+
+  private String hit(int id) {
+    ++hits;
+    used[id] = true;
+    return display[id];
+  }
+
+  private String add(int hash, String name) {
+    ++misses;
+    int id;
+    if (size < names.length - 1) {
+      id = ++size;
+    } else {
+      // advance the clock hand to the 1st entry not used since it was last passed
+      while (used[hand]) {
+        used[hand] = false;
+        hand = (hand == names.length - 1) ? 1 : hand + 1;
+      }
+      id = hand;
+      hand = (hand == names.length - 1) ? 1 : hand + 1;
+      unlink(id);
+      ++evictions;
+    }
+    names[id] = name.getBytes(StandardCharsets.UTF_8);
+    display[id] = name;
+    hashes[id] = hash;
+    used[id] = false;
+    int index = bucket(hash);
+    next[id] = buckets[index];
+    buckets[index] = id;
+    return name;
+  }
+
+  // removes an entry from its hash chain
+  private void unlink(int id) {
+    int index = bucket(hashes[id]);
+    if (buckets[index] == id) {
+      buckets[index] = next[id];
+      return;
+    }
+    for (int prev = buckets[index]; prev != 0; prev = next[prev]) {
+      if (next[prev] == id) {
+        next[prev] = next[id];
+        return;
+      }
+    }
+  }
+
+  /**
+   * removes all names from the cache (and clears the statistics).
+   */
+  public void clear() {
+    Arrays.fill(names, null);
+    Arrays.fill(display, null);
+    Arrays.fill(buckets, 0);
+    Arrays.fill(used, false);
+    size = 0;
+    hand = 1;
+    clearStats();
+  }
+
+  public void clearStats() {
+    hits = misses = evictions = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return names.length - 1;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  public long getEvictions() {
+    return evictions;
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * the list of names that the events of a binary trace refer to by id (id 0 is an empty name).
+ * The ids a SymbolTable assigns to the names are cached here as they are looked up, so each
+ * name is only looked up in the table once (ids are cached for up to MAX_TABLES tables at once,
+ * since the engine looks up the arguments, the thread ids and the names classified for an
+ * expectation file in separate tables). A name that is not in a table is only cached as not
+ * found until a name is added to the table, since the names of an expectation stream are added
+ * as the trace is read.
+ *
+ * @author dmcd2356
+ */
+public class SymbolDictionary {
+
+  static final int UNMAPPED = -2;   // the SymbolTable id of the name has not been looked up
+  static final int NOT_FOUND = -3;  // the ids below this are names that were not in the table,
+                                    //  less the size of the table when they were looked up
+
+  private static final int MAX_TABLES = 3;
+
+  private final byte[][] names;     // the name of each id, as bytes
+  private final String[] display;   // the name of each id as a String (created when needed)
+  private final int[][]  mapped;    // the SymbolTable id of each name, for each table
+  private final SymbolTable[] mappedTable;  // the table the mapped ids are from
+  private final int[]    mappedGeneration;  // the generation of the table the ids are from
+  private int            nextSlot;          // the next slot to replace when all are in use
+
+  public SymbolDictionary(byte[][] entries) {
+    names = new byte[entries.length + 1][];
+    names[0] = new byte[0];
+    System.arraycopy(entries, 0, names, 1, entries.length);
+    display = new String[names.length];
+    mapped = new int[MAX_TABLES][names.length];
+    mappedTable = new SymbolTable[MAX_TABLES];
+    mappedGeneration = new int[MAX_TABLES];
+  }
+
+  public int size() {
+    return names.length - 1;
+  }
+
+  public byte[] getBytes(int id) {
+    return names[id];
+  }
+
+  public String getName(int id) {
+    if (id < 0 || id >= names.length) {
+      return "?";
+    }
+    if (display[id] == null) {
+      display[id] = new String(names[id], StandardCharsets.UTF_8);
+    }
+    return display[id];
+  }
+
+  private int findSlot(SymbolTable table) {
+    for (int slot = 0; slot < MAX_TABLES; slot++) {
+      if (mappedTable[slot] == table) {
+        return slot;
+      }
+    }
+    int slot = nextSlot;
+    nextSlot = (nextSlot + 1) % MAX_TABLES;
+    mappedTable[slot] = table;
+    mappedGeneration[slot] = table.getGeneration() - 1;
+    return slot;
+  }
+
+  /**
+   * returns the cached SymbolTable id for a name (UNMAPPED if it has not been looked up yet, or
+   * was not found and names have been added to the table since).
+   * The cache for the table is cleared if the table has been cleared since.
+   *
+   * @param table - the symbol table
+   * @param id    - the dictionary id of the name
+   * @return the cached symbol id
+   */
+  int getMapped(SymbolTable table, int id) {
+    int slot = findSlot(table);
+    if (mappedGeneration[slot] != table.getGeneration()) {
+      Arrays.fill(mapped[slot], UNMAPPED);
+      mappedGeneration[slot] = table.getGeneration();
+    }
+    int symbol = mapped[slot][id];
+    if (symbol <= NOT_FOUND) {
+      return (NOT_FOUND - symbol == table.size()) ? SymbolTable.UNKNOWN : UNMAPPED;
+    }
+    return symbol;
+  }
+
+  void setMapped(SymbolTable table, int id, int symbol) {
+    mapped[findSlot(table)][id] = (symbol == SymbolTable.UNKNOWN) ? NOT_FOUND - table.size() :
+        symbol;
+  }
+
+}
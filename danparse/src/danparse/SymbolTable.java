@@ -0,0 +1,250 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * assigns integer ids to the method names used in the expected state lists, so that the
+ * arguments of decoded events can be matched by comparing ints instead of Strings.
+ * Event arguments are looked up directly from the bytes of the line they were decoded from.
+ *
+ * @author dmcd2356
+ */
+public class SymbolTable {
+
+  public static final int NONE    = 0;    // id used for states that have no argument
+  public static final int UNKNOWN = -1;   // id returned for names that are not in the table
+
+  // FNV-1a hash constants (the hash is computed on the bytes the same way for all lookups)
+  static final int HASH_SEED  = 0x811c9dc5;
+  static final int HASH_PRIME = 0x01000193;
+
+  private final ArrayList<byte[]> names;  // the names of each id (the index is the id)
+  private final ArrayList<String> display;// the names of each id as Strings
+  private int[]                   slots;  // open-addressed hash table of ids (0 = empty)
+  private int[]                   hashes; // the hash value of each id
+  private int                     generation; // incremented each time the table is cleared
+
+  public SymbolTable() {
+    names = new ArrayList<>();
+    display = new ArrayList<>();
+    slots = new int[64];
+    hashes = new int[16];
+    clear();
+  }
+
+  /**
+   * removes all symbols from the table.
+   */
+  public void clear() {
+    names.clear();
+    display.clear();
+    Arrays.fill(slots, 0);
+    ++generation;
+    // id 0 is reserved for NONE
+    names.add(new byte[0]);
+    display.add("");
+  }
+
+  public int size() {
+    return names.size() - 1;
+  }
+
+  static int hash(byte[] data, int start, int end) {
+    int hash = HASH_SEED;
+    for (int ix = start; ix < end; ix++) {
+      hash = (hash ^ data[ix]) * HASH_PRIME;
+    }
+    return hash;
+  }
+
+  private static int mix(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * returns the id for the specified name, adding it to the table if it is not already there.
+   *
+   * @param name - the name to add
+   * @return the id of the name (NONE if the name is empty)
+   */
+  public int intern(String name) {
+    if (name.isEmpty()) {
+      return NONE;
+    }
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    int hash = hash(bytes, 0, bytes.length);
+    int mask = slots.length - 1;
+    int slot = mix(hash) & mask;
+    for (int id = slots[slot]; id != 0; id = slots[slot]) {
+      if (hashes[id] == hash && Arrays.equals(names.get(id), bytes)) {
+        return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    int id = names.size();
+    names.add(bytes);
+    display.add(name);
+    if (id >= hashes.length) {
+      hashes = Arrays.copyOf(hashes, hashes.length * 2);
+    }
+    hashes[id] = hash;
+    slots[slot] = id;
+    if (id * 2 > slots.length) {
+      rehash(slots.length * 2);
+    }
+    return id;
+  }
+
+  private void rehash(int size) {
+    slots = new int[size];
+    int mask = size - 1;
+    for (int id = 1; id < names.size(); id++) {
+      int slot = mix(hashes[id]) & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = id;
+    }
+  }
+
+  /**
+   * finds the id of the 1st argument of an event.
+   *
+   * @param event - the decoded event
+   * @return the id of the argument, NONE if the argument is empty, UNKNOWN if not in the table
+   */
+  public int findArg1(TraceEvent event) {
+    if (event.dictionary != null) {
+      return find(event.dictionary, event.dictArg1);
+    }
+    if (event.arg1Start == event.arg1End && event.classStart < 0) {
+      return NONE;
+    }
+    int hash = event.arg1Hash();
+    int mask = slots.length - 1;
+    for (int slot = mix(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+      int id = slots[slot];
+      if (hashes[id] == hash && event.arg1Equals(names.get(id))) {
+        return id;
+      }
+    }
+    return UNKNOWN;
+  }
+
+  /**
+   * finds the id of the 2nd argument of an event.
+   *
+   * @param event - the decoded event
+   * @return the id of the argument, NONE if the argument is empty, UNKNOWN if not in the table
+   */
+  public int findArg2(TraceEvent event) {
+    if (event.dictionary != null) {
+      return find(event.dictionary, event.dictArg2);
+    }
+    return find(event.line.data, event.arg2Start, event.arg2End);
+  }
+
+  /**
+   * finds the id of the thread id of an event.
+   *
+   * @param event - the decoded event
+   * @return the id of the thread id, NONE if there is none, UNKNOWN if not in the table
+   */
+  public int findThread(TraceEvent event) {
+    if (event.dictionary != null) {
+      return find(event.dictionary, event.dictThread);
+    }
+    return find(event.line.data, event.threadStart, event.threadEnd);
+  }
+
+  /**
+   * finds the id of the thread id of an event, adding it to the table if it is not already in it.
+   *
+   * @param event - the decoded event
+   * @return the id of the thread id, NONE if there is none
+   */
+  public int internThread(TraceEvent event) {
+    int id = findThread(event);
+    if (id == UNKNOWN) {
+      id = intern(event.getThreadId());
+      if (event.dictionary != null) {
+        event.dictionary.setMapped(this, event.dictThread, id);
+      }
+    }
+    return id;
+  }
+
+  /**
+   * finds the id of the name in the specified range of bytes.
+   *
+   * @param data  - the bytes containing the name
+   * @param start - the offset of the start of the name
+   * @param end   - the offset following the end of the name
+   * @return the id of the name, NONE if the name is empty, UNKNOWN if not in the table
+   */
+  public int find(byte[] data, int start, int end) {
+    if (start == end) {
+      return NONE;
+    }
+    int hash = hash(data, start, end);
+    int mask = slots.length - 1;
+    for (int slot = mix(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+      int id = slots[slot];
+      if (hashes[id] == hash && regionEquals(names.get(id), data, start, end)) {
+        return id;
+      }
+    }
+    return UNKNOWN;
+  }
+
+  /**
+   * finds the id of a name in a binary trace dictionary.
+   * The id is only looked up the 1st time the name is used (until the table is cleared).
+   *
+   * @param dict - the dictionary containing the name
+   * @param id   - the dictionary id of the name
+   * @return the id of the name, NONE if the name is empty, UNKNOWN if not in the table
+   */
+  public int find(SymbolDictionary dict, int id) {
+    int symbol = dict.getMapped(this, id);
+    if (symbol == SymbolDictionary.UNMAPPED) {
+      byte[] name = dict.getBytes(id);
+      symbol = find(name, 0, name.length);
+      dict.setMapped(this, id, symbol);
+    }
+    return symbol;
+  }
+
+  static boolean regionEquals(byte[] name, byte[] data, int start, int end) {
+    if (name.length != end - start) {
+      return false;
+    }
+    for (int ix = 0; ix < name.length; ix++) {
+      if (name[ix] != data[start + ix]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  int getGeneration() {
+    return generation;
+  }
+
+  public byte[] getBytes(int id) {
+    return names.get(id);
+  }
+
+  public String getName(int id) {
+    return (id < 0 || id >= display.size()) ? "?" : display.get(id);
+  }
+
+}
@@ -0,0 +1,389 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * runs a suite of test cases (each a test program and the arguments to pass to it) as a pool of
+ * concurrent processes, verifying the output of each as it is produced. The standard output of
+ * each process is read directly by a DanparseEngine of the worker thread that started it, so no
+ * raw output files are written, and a summary of the results (with the time each case took to
+ * run and verify) is displayed when all of the cases have completed.
+ * The command that runs each test program (the instrumented JVM) is supplied by runtest.sh,
+ * which builds and instruments the test programs of the suite beforehand.
+ *
+ * @author dmcd2356
+ */
+public class TestOrchestrator {
+
+  // a test case of the suite and its result
+  public static class TestCase {
+    String         program;      // the name of the test program
+    List<String>   args;         // the arguments to pass to it
+    DanparseResult result;       // null if the test program could not be run
+    String         error;        // the reason it could not be run (if result is null)
+    String         messages;     // the state messages captured for the case (if enabled)
+    long           elapsed;      // the time from starting the program until it ended (in nsec)
+
+    public String getName() {
+      return (program + " " + String.join(" ", args)).trim();
+    }
+
+    public DanparseResult.Status getStatus() {
+      return (result == null) ? DanparseResult.Status.ERROR : result.getStatus();
+    }
+  }
+
+  private final int threads;
+  private final int showMessages;
+  private final Map<String, List<String>> commands;  // the command for running each program
+  private Expectations expectations;
+  private boolean bCollectAll;
+
+  /**
+   * @param threads      - the number of test programs to run at a time (0 to use one per
+   *                       processor)
+   * @param showMessages - the level of state messages to display for each case
+   */
+  public TestOrchestrator(int threads, int showMessages) {
+    this.threads = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+    this.showMessages = showMessages;
+    this.commands = new HashMap<>();
+  }
+
+  /**
+   * sets the command used to run a test program. The arguments of each case are added to the
+   * end of it, and it is run from the folder of the same name as the program if there is one
+   * (as runtest.sh does), otherwise from the current directory.
+   *
+   * @param program - the name of the test program
+   * @param command - the command and each of its arguments (which may contain spaces)
+   */
+  public void setCommand(String program, List<String> command) {
+    commands.put(program, new ArrayList<>(command));
+  }
+
+  /**
+   * sets the expected states to verify all of the cases against, in place of the !EXPECTED
+   * messages of each test program.
+   *
+   * @param exp - the compiled expectation file (null to use the !EXPECTED messages)
+   */
+  public void setExpectations(Expectations exp) {
+    expectations = exp;
+  }
+
+  /**
+   * @param enable - true to report all of the failures of each case instead of the 1st one
+   */
+  public void setCollectFailures(boolean enable) {
+    bCollectAll = enable;
+  }
+
+  /**
+   * reads the cases of a suite file: a line for each case giving the name of the test program
+   * followed by its arguments. Blank lines and lines starting with '#' are ignored.
+   *
+   * @param file - the suite file
+   * @return the cases (in the order of the file)
+   * @throws IOException
+   */
+  public static List<TestCase> loadSuite(File file) throws IOException {
+    List<TestCase> cases = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        List<String> words = Arrays.asList(line.split("\\s+"));
+        TestCase test = new TestCase();
+        test.program = words.get(0);
+        test.args = words.subList(1, words.size());
+        cases.add(test);
+      }
+    }
+    return cases;
+  }
+
+  /**
+   * runs all of the cases of the suite.
+   *
+   * @param cases - the cases to run (their results are placed in them)
+   * @throws InterruptedException
+   */
+  public void run(List<TestCase> cases) throws InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final ThreadLocal<DanparseEngine> engines = new ThreadLocal<DanparseEngine>() {
+      @Override
+      protected DanparseEngine initialValue() {
+        return new DanparseEngine();
+      }
+    };
+
+    List<Future<?>> futures = new ArrayList<>();
+    for (final TestCase test : cases) {
+      futures.add(pool.submit(() -> {
+        runCase(engines, test);
+        return null;
+      }));
+    }
+    pool.shutdown();
+
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException ex) {
+        throw new IllegalStateException(ex.getCause());
+      }
+    }
+  }
+
+  private void runCase(ThreadLocal<DanparseEngine> engines, TestCase test)
+      throws InterruptedException {
+    DanparseEngine engine = engines.get();
+    List<String> command = commands.get(test.program);
+    if (command == null) {
+      test.error = "no command for test program: " + test.program;
+      return;
+    }
+    command = new ArrayList<>(command);
+    command.addAll(test.args);
+
+    // the state messages are captured for each case so they don't get mixed together
+    ByteArrayOutputStream buffer = null;
+    engine.setShowMessages(showMessages);
+    engine.setExpectations(expectations);
+    engine.setCollectFailures(bCollectAll);
+    if (showMessages > 0) {
+      buffer = new ByteArrayOutputStream();
+      engine.setOutput(new PrintStream(buffer, true));
+    }
+
+    File dir = new File(test.program);
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.directory(dir.isDirectory() ? dir : null);
+    builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+    long startTime = System.nanoTime();
+    Process process = null;
+    try {
+      process = builder.start();
+      process.getOutputStream().close();
+      try (InputStream input = process.getInputStream()) {
+        test.result = engine.verify(new StreamTraceScanner(Danparse.openTraceInput(input)));
+      }
+      // (the output is not read after the result is known, so the program is stopped unless
+      // it passed, in which case it has reached !TESTEXIT and only has to finish)
+      if (test.result.getStatus() != DanparseResult.Status.PASS) {
+        process.destroy();
+      }
+      int exitcode = process.waitFor();
+      test.result = checkResult(test.result, exitcode);
+    } catch (IOException ex) {
+      test.result = null;
+      test.error = ex.getMessage();
+    } catch (RuntimeException ex) {
+      // a problem verifying this case doesn't stop the others from being run, but the engine
+      // may have been left in an unknown state, so the thread gets a new one
+      test.result = null;
+      test.error = "internal error: " + ex;
+      engines.remove();
+    } finally {
+      // (the program has already ended unless verifying its output was stopped by an error)
+      if (process != null) {
+        process.destroy();
+      }
+    }
+    test.elapsed = System.nanoTime() - startTime;
+    if (buffer != null) {
+      test.messages = buffer.toString();
+    }
+  }
+
+  // the result of a case, given the result of verifying its output and the exit code
+  private static DanparseResult checkResult(DanparseResult result, int exitcode) {
+    if (result.getStatus() != DanparseResult.Status.PASS) {
+      return result;
+    }
+    // (the java launcher exits with 1 if the JVM can't be started, so a program that failed
+    // before its 1st message is reported as not running rather than as missing messages)
+    if (exitcode != 0 && !result.isExpectedFound()) {
+      return new DanparseResult(DanparseResult.Status.ERROR,
+          "test program failed to run (exit code " + exitcode + ")", 0);
+    }
+    // the output was streamed, so the test is only valid if it ran to completion
+    if (!result.isExpectedFound() || !result.isTestExitFound()) {
+      return new DanparseResult(DanparseResult.Status.ERROR, "Expected messages not found", 0);
+    }
+    if (exitcode != 0) {
+      return new DanparseResult(DanparseResult.Status.ERROR,
+          "test program exit code " + exitcode, 0);
+    }
+    return result;
+  }
+
+  private static String seconds(long nsecs) {
+    return String.format(Locale.US, "%.3f", nsecs / 1.0e9);
+  }
+
+  /**
+   * displays the results of all of the cases, with the time each took to run.
+   *
+   * @param cases   - the cases that were run
+   * @param elapsed - the time taken to run all of them (in nsec)
+   * @param out     - where to display the summary
+   * @return the worst status of the cases
+   */
+  public static DanparseResult.Status writeSummary(List<TestCase> cases, long elapsed,
+      PrintStream out) {
+    DanparseResult.Status worst = DanparseResult.Status.PASS;
+    int[] counts = new int[DanparseResult.Status.values().length];
+    long total = 0;
+    for (TestCase test : cases) {
+      if (test.messages != null && !test.messages.isEmpty()) {
+        out.println("--- " + test.getName());
+        out.print(test.messages);
+      }
+    }
+    for (TestCase test : cases) {
+      DanparseResult.Status status = test.getStatus();
+      ++counts[status.ordinal()];
+      total += test.elapsed;
+      if (DanparseResult.exitCode(status) > DanparseResult.exitCode(worst)) {
+        worst = status;
+      }
+      String reason = "";
+      if (test.result == null) {
+        reason = ": " + test.error;
+      } else if (status != DanparseResult.Status.PASS && test.result.getMessage() != null) {
+        reason = (test.result.getLine() > 0) ? " (line " + test.result.getLine() + "): " +
+            test.result.getMessage() : ": " + test.result.getMessage();
+      }
+      out.println(String.format(Locale.US, "%-7s %8ss  %s%s", status, seconds(test.elapsed),
+          test.getName(), reason));
+      if (test.result != null) {
+        for (DanparseResult.Failure failure : test.result.getFailures()) {
+          out.println("        FAIL " + failure);
+        }
+      }
+    }
+    StringBuilder line = new StringBuilder();
+    line.append(cases.size()).append(" cases");
+    for (DanparseResult.Status status : DanparseResult.Status.values()) {
+      if (counts[status.ordinal()] > 0) {
+        line.append(", ").append(counts[status.ordinal()]).append(' ').append(status);
+      }
+    }
+    line.append(" in ").append(seconds(elapsed)).append("s (").append(seconds(total));
+    line.append("s of test time)");
+    out.println(line);
+    return worst;
+  }
+
+  /**
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) {
+    int threads = 0;
+    int showMessages = 0;
+    boolean bCollectAll = false;
+    String expectfilename = null;
+    String suitefilename = "";
+    TestOrchestrator runner;
+    Map<String, List<String>> programs = new LinkedHashMap<>();  // the command of each -x
+
+    if (args.length < 1) {
+      System.out.println("Usage: TestOrchestrator [-j <jobs>] [-t] [-a] [-e <expectfile>] -x <program> <command> [<arg> ...] ';' [-x ...] <suitefile>");
+      System.exit(0);
+    }
+
+    for (int ix = 0; ix < args.length; ix++) {
+      String arg = args[ix];
+      if (arg.equals("-t")) {
+        showMessages = Math.max(showMessages, 1);
+      } else if (arg.equals("-T")) {
+        showMessages = 2;
+      } else if (arg.equals("-a")) {
+        bCollectAll = true;
+      } else if (arg.equals("-e") && ix + 1 < args.length) {
+        expectfilename = args[++ix];
+      } else if (arg.equals("-x") && ix + 2 < args.length) {
+        // the command is each of the following args up to a ';' (as for find -exec), so its
+        // arguments are passed as they are (without being split at spaces)
+        String program = args[++ix];
+        List<String> command = new ArrayList<>();
+        while (++ix < args.length && !args[ix].equals(";")) {
+          command.add(args[ix]);
+        }
+        if (ix == args.length || command.isEmpty()) {
+          System.out.println("ERROR: missing command or ';' for -x " + program);
+          System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+        }
+        programs.put(program, command);
+      } else if (arg.equals("-j") && ix + 1 < args.length) {
+        try {
+          threads = Integer.parseInt(args[++ix]);
+        } catch (NumberFormatException ex) {
+          System.out.println("ERROR: invalid job count: " + args[ix]);
+          System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+        }
+      } else {
+        suitefilename = arg;
+      }
+    }
+
+    runner = new TestOrchestrator(threads, showMessages);
+    runner.setCollectFailures(bCollectAll);
+    for (Map.Entry<String, List<String>> program : programs.entrySet()) {
+      runner.setCommand(program.getKey(), program.getValue());
+    }
+    List<TestCase> cases = null;
+    try {
+      if (expectfilename != null) {
+        runner.setExpectations(Expectations.load(new File(expectfilename)));
+      }
+      cases = loadSuite(new File(suitefilename));
+    } catch (IOException ex) {
+      System.out.println("ERROR: " + ex.getMessage());
+      System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+    }
+    if (cases.isEmpty()) {
+      System.out.println("ERROR: no test cases in " + suitefilename);
+      System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+    }
+
+    System.out.println("- running " + cases.size() + " cases, " + runner.threads + " at a time");
+    long startTime = System.nanoTime();
+    try {
+      runner.run(cases);
+    } catch (InterruptedException ex) {
+      System.out.println("ERROR: interrupted");
+      System.exit(DanparseResult.exitCode(DanparseResult.Status.ERROR));
+    }
+    DanparseResult.Status status = writeSummary(cases, System.nanoTime() - startTime, System.out);
+    System.exit(DanparseResult.exitCode(status));
+  }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * a section of a raw output file that has been decoded independently of the rest of the file.
+ * Only the lines that are events or test program messages are kept, as compact records of the
+ * decoded offsets, so the lines that are not of interest never have to be looked at again.
+ * The chunk owns all of the lines that start within its section of the file.
+ *
+ * @author dmcd2356
+ */
+public class TraceChunk {
+
+  public static final int REPROCESS = -1;   // the record state for lines to be parsed again
+
+  // the fields of each record
+  static final int LINE          = 0;   // the line index within the chunk
+  static final int STATE         = 1;   // the StateType ordinal, or REPROCESS
+  static final int START         = 2;   // the offset of the line in data
+  static final int LENGTH        = 3;   // the length of the line
+  static final int THREAD_START  = 4;   // the TraceEvent offsets (relative to the line)
+  static final int THREAD_END    = 5;
+  static final int CLASS_START   = 6;
+  static final int CLASS_END     = 7;
+  static final int ARG1_START    = 8;
+  static final int ARG1_END      = 9;
+  static final int ARG2_START    = 10;
+  static final int ARG2_END      = 11;
+  static final int RECORD_SIZE   = 12;
+
+  private static final int READ_SIZE = 64 * 1024; // the amount to read past the section end
+
+  byte[] data;          // the bytes of the chunk (lines start at the offsets in the records)
+  long   fileOffset;    // the file offset of data[0]
+  int    lineCount;     // the number of lines in the chunk
+  int[]  records;       // the records of the lines kept (RECORD_SIZE ints each)
+  int    recordCount;
+  long   decodeNanos;   // the time taken to decode the chunk
+
+  private TraceChunk() {
+    records = new int[RECORD_SIZE * 256];
+  }
+
+  private static int read(FileChannel channel, byte[] buffer, int offset, int count, long position)
+      throws IOException {
+    ByteBuffer dest = ByteBuffer.wrap(buffer, offset, count);
+    int total = 0;
+    while (dest.hasRemaining()) {
+      int size = channel.read(dest, position + total);
+      if (size < 0) {
+        break;
+      }
+      total += size;
+    }
+    return total;
+  }
+
+  private void addRecord(int line, int state, int start, int length, TraceEvent event) {
+    if ((recordCount + 1) * RECORD_SIZE > records.length) {
+      records = Arrays.copyOf(records, records.length * 2);
+    }
+    int base = recordCount * RECORD_SIZE;
+    records[base + LINE] = line;
+    records[base + STATE] = state;
+    records[base + START] = start;
+    records[base + LENGTH] = length;
+    if (event != null) {
+      records[base + THREAD_START] = event.threadStart;
+      records[base + THREAD_END] = event.threadEnd;
+      records[base + CLASS_START] = event.classStart;
+      records[base + CLASS_END] = event.classEnd;
+      records[base + ARG1_START] = event.arg1Start;
+      records[base + ARG1_END] = event.arg1End;
+      records[base + ARG2_START] = event.arg2Start;
+      records[base + ARG2_END] = event.arg2End;
+    }
+    ++recordCount;
+  }
+
+  /**
+   * copies the line of a record to a line buffer.
+   *
+   * @param record - the index of the record
+   * @param line   - the line buffer
+   */
+  void getLine(int record, TraceLine line) {
+    int base = record * RECORD_SIZE;
+    line.length = 0;
+    line.append(data, records[base + START], records[base + LENGTH]);
+  }
+
+  /**
+   * sets an event to the decoded values of a record (the line must have been copied to the
+   * event's line buffer by getLine).
+   *
+   * @param record - the index of the record
+   * @param event  - the event
+   */
+  void getEvent(int record, TraceEvent event) {
+    int base = record * RECORD_SIZE;
+    event.reset(StateType.fromOrdinal(records[base + STATE]));
+    event.threadStart = records[base + THREAD_START];
+    event.threadEnd = records[base + THREAD_END];
+    event.classStart = records[base + CLASS_START];
+    event.classEnd = records[base + CLASS_END];
+    event.arg1Start = records[base + ARG1_START];
+    event.arg1End = records[base + ARG1_END];
+    event.arg2Start = records[base + ARG2_START];
+    event.arg2End = records[base + ARG2_END];
+  }
+
+  /**
+   * @param record - the index of the record
+   * @return the file offset of the end of the line of the record (including the newline)
+   */
+  long getEndOffset(int record) {
+    int base = record * RECORD_SIZE;
+    return fileOffset + records[base + START] + records[base + LENGTH] + 1;
+  }
+
+  int getLineIndex(int record) {
+    return records[record * RECORD_SIZE + LINE];
+  }
+
+  int getState(int record) {
+    return records[record * RECORD_SIZE + STATE];
+  }
+
+  /**
+   * reads and decodes the lines that start within a section of a file.
+   * The last line is read past the end of the section if necessary.
+   *
+   * @param channel   - the file (the reads don't use or change the channel position)
+   * @param start     - the file offset of the start of the section
+   * @param end       - the file offset of the end of the section
+   * @param fileSize  - the size of the file
+   * @param decodeAll - true to decode all lines that can't be valid agent entries as errors
+   *                    (see EventDecoder.decodeLine)
+   * @return the decoded chunk
+   * @throws IOException
+   */
+  static TraceChunk decode(FileChannel channel, long start, long end, long fileSize,
+      boolean decodeAll) throws IOException {
+    long startTime = System.nanoTime();
+    TraceChunk chunk = new TraceChunk();
+
+    // read the section, starting with the byte before it to find if it starts a line
+    long readStart = (start > 0) ? start - 1 : 0;
+    byte[] data = new byte[(int) (end - readStart) + READ_SIZE];
+    int limit = read(channel, data, 0, (int) (end - readStart), readStart);
+    int owned = (int) (end - readStart);  // lines must start before this offset
+    int offset = 0;
+    if (start > 0) {
+      // skip the remainder of the line that belongs to the previous chunk
+      while (offset < limit && !TraceScanner.isLineEnd(data[offset])) {
+        ++offset;
+      }
+      offset = skipLineEnd(data, offset, limit);
+    }
+
+    TraceLine line = new TraceLine();
+    TraceEvent event = new TraceEvent();
+    while (offset < owned && offset < limit) {
+      // find the end of the line, reading past the end of the section if necessary
+      int eol = offset;
+      while (true) {
+        while (eol < limit && !TraceScanner.isLineEnd(data[eol])) {
+          ++eol;
+        }
+        // (the byte following a '\r' is needed to find if it is a "\r\n")
+        if ((eol < limit && (data[eol] == '\n' || eol + 1 < limit)) ||
+            readStart + limit >= fileSize) {
+          break;
+        }
+        if (limit + READ_SIZE > data.length) {
+          data = Arrays.copyOf(data, data.length + READ_SIZE);
+        }
+        int count = read(channel, data, limit, READ_SIZE, readStart + limit);
+        if (count <= 0) {
+          break;
+        }
+        limit += count;
+      }
+      chunk.addLine(line, event, data, offset, eol - offset, decodeAll);
+      offset = skipLineEnd(data, eol, limit);
+    }
+
+    chunk.data = data;
+    chunk.fileOffset = readStart;
+    chunk.decodeNanos = System.nanoTime() - startTime;
+    return chunk;
+  }
+
+  /**
+   * decodes a section of a trace that contains only complete lines (such as a block of a
+   * compressed trace).
+   *
+   * @param data       - the bytes of the section
+   * @param length     - the number of bytes in the section
+   * @param fileOffset - the offset of the section in the trace
+   * @param decodeAll  - true to decode all lines that can't be valid agent entries as errors
+   *                     (see EventDecoder.decodeLine)
+   * @return the decoded chunk
+   */
+  static TraceChunk decode(byte[] data, int length, long fileOffset, boolean decodeAll) {
+    long startTime = System.nanoTime();
+    TraceChunk chunk = new TraceChunk();
+    TraceLine line = new TraceLine();
+    TraceEvent event = new TraceEvent();
+    int offset = 0;
+    while (offset < length) {
+      int eol = offset;
+      while (eol < length && !TraceScanner.isLineEnd(data[eol])) {
+        ++eol;
+      }
+      chunk.addLine(line, event, data, offset, eol - offset, decodeAll);
+      offset = skipLineEnd(data, eol, length);
+    }
+
+    chunk.data = data;
+    chunk.fileOffset = fileOffset;
+    chunk.decodeNanos = System.nanoTime() - startTime;
+    return chunk;
+  }
+
+  // the offset following the line terminator at the specified offset (both bytes of a "\r\n")
+  private static int skipLineEnd(byte[] data, int offset, int limit) {
+    if (offset + 1 < limit && data[offset] == '\r' && data[offset + 1] == '\n') {
+      return offset + 2;
+    }
+    return offset + 1;
+  }
+
+  // decodes a line of the chunk (only the lines of interest are kept)
+  private void addLine(TraceLine line, TraceEvent event, byte[] data, int offset, int length,
+      boolean decodeAll) {
+    line.length = 0;
+    line.append(data, offset, length);
+    if (length > 0 && data[offset] == '!' && EventDecoder.isKeywordLine(line)) {
+      addRecord(lineCount, REPROCESS, offset, length, null);
+    } else if (EventDecoder.decodeLine(line, event, decodeAll)) {
+      if (event.state == StateType.ERROR.ordinal()) {
+        // the error description is not kept, so the line is decoded again when processed
+        addRecord(lineCount, REPROCESS, offset, length, null);
+      } else {
+        addRecord(lineCount, event.state, offset, length, event);
+      }
+    }
+    ++lineCount;
+  }
+
+}
@@ -0,0 +1,465 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * compares the events of two raw output files to find where they differ, such as the traces of
+ * the same test made by 2 builds of danalyzer.
+ * Each trace is reduced to a stream of event hashes, made from the state and the method names
+ * of each decoded event (and the text of the test program messages) without the fields that
+ * change from run to run, such as the timestamps, the line numbers of the debug messages and
+ * the thread ids. The streams are compared a window of WINDOW events at a time using a hash of
+ * the window computed from running prefix hashes, so the identical regions are passed over at
+ * about the speed of reading the files.
+ * Where the streams differ, the following LOOKAHEAD events of each are searched for the nearest
+ * point at which they agree again (the first run of MATCH_LENGTH events found in both, by a
+ * rolling hash), and the events between are reported as a divergent region.
+ *
+ * @author dmcd2356
+ */
+public class TraceDiff {
+
+  public static final int WINDOW       = 1024;   // the events compared by a single window hash
+  public static final int LOOKAHEAD    = 65536;  // the events searched to realign the traces
+  public static final int MATCH_LENGTH = 8;      // the events that must agree to realign
+  public static final int MAX_SHOWN    = 5;      // the lines of each region that are displayed
+
+  private static final long FNV_SEED  = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final long BASE      = 0x9e3779b97f4a7c15L;   // the multiplier of the window hashes
+  private static final int  KEYWORD   = -1;     // the state hashed for a test program message
+  private static final long[] POWERS = new long[WINDOW + 1];   // BASE to the power of the index
+
+  static {
+    POWERS[0] = 1;
+    for (int ix = 1; ix <= WINDOW; ix++) {
+      POWERS[ix] = POWERS[ix - 1] * BASE;
+    }
+  }
+
+  /**
+   * the events of a trace that have been read but not yet compared, with their hashes, line
+   * numbers and the text of their lines (for displaying the regions that differ).
+   */
+  private static final class EventStream implements Closeable {
+    private final TraceScanner      scanner;   // the text trace (null for a binary trace)
+    private final BinaryTraceReader reader;    // the binary trace (null for a text trace)
+    private final TraceLine  line = new TraceLine();
+    private final TraceEvent event = new TraceEvent();
+    private long[] hashes;        // the hash of each event
+    private long[] prefix;        // the running hash of all the events up to each one
+    private int[]  lines;         // the line number of each event
+    private int[]  textStart;     // the offset of the text of each event
+    private byte[] text;          // the text of the events
+    private int    textEnd;
+    private int    start;         // the index of the 1st event not compared
+    private int    end;           // the index following the last event read
+    private long   prefixBefore;  // the running hash of the events before the 1st one
+    private int    linenum;
+    private long   skipped;       // the number of events passed over
+    private boolean eof;
+
+    EventStream(File file) throws IOException {
+      if (BinaryTraceReader.isBinaryTrace(file)) {
+        reader = new BinaryTraceReader(file);
+        scanner = null;
+      } else if (BlockTraceWriter.isGzip(file)) {
+        reader = null;
+        scanner = new StreamTraceScanner(new ReadAheadInputStream(
+            new GZIPInputStream(new FileInputStream(file), 64 * 1024)));
+      } else {
+        reader = null;
+        scanner = new MappedTraceScanner(file);
+      }
+      int size = 2 * LOOKAHEAD;
+      hashes = new long[size];
+      prefix = new long[size];
+      lines = new int[size];
+      textStart = new int[size + 1];
+      text = new byte[size * 64];
+    }
+
+    int size() {
+      return end - start;
+    }
+
+    long hash(int index) {
+      return hashes[start + index];
+    }
+
+    int lineAt(int index) {
+      return lines[start + index];
+    }
+
+    // the number of events passed over (so the index of the 1st event not compared)
+    long position() {
+      return skipped;
+    }
+
+    String textAt(int index) {
+      int ix = start + index;
+      return new String(text, textStart[ix], textStart[ix + 1] - textStart[ix],
+          StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param count - the number of events (no more than WINDOW)
+     * @return the hash of the 1st count events not compared
+     */
+    long windowHash(int count) {
+      return prefix[start + count - 1] - prefixBefore * POWERS[count];
+    }
+
+    void advance(int count) {
+      if (count > 0) {
+        prefixBefore = prefix[start + count - 1];
+        start += count;
+        skipped += count;
+      }
+    }
+
+    /**
+     * reads events until there are at least count that have not been compared (or the end of
+     * the trace is reached).
+     */
+    void fill(int count) throws IOException {
+      while (!eof && end - start < count) {
+        if (end == hashes.length) {
+          compact();
+        }
+        if (!readEvent()) {
+          eof = true;
+        }
+      }
+    }
+
+    // moves the events not compared to the start of the arrays
+    private void compact() {
+      int count = end - start;
+      int offset = textStart[start];
+      System.arraycopy(hashes, start, hashes, 0, count);
+      System.arraycopy(prefix, start, prefix, 0, count);
+      System.arraycopy(lines, start, lines, 0, count);
+      System.arraycopy(text, offset, text, 0, textEnd - offset);
+      for (int ix = 0; ix <= count; ix++) {
+        textStart[ix] = textStart[start + ix] - offset;
+      }
+      textEnd -= offset;
+      start = 0;
+      end = count;
+    }
+
+    private void add(long hash, byte[] data, int offset, int length) {
+      if (textEnd + length > text.length) {
+        text = Arrays.copyOf(text, Math.max(textEnd + length, text.length * 2));
+      }
+      System.arraycopy(data, offset, text, textEnd, length);
+      textEnd += length;
+      hashes[end] = hash;
+      prefix[end] = ((end > start) ? prefix[end - 1] : prefixBefore) * BASE + hash;
+      lines[end] = linenum;
+      ++end;
+      textStart[end] = textEnd;
+    }
+
+    // reads the next event (or test program message) of the trace
+    private boolean readEvent() throws IOException {
+      textStart[end] = textEnd;
+      if (reader != null) {
+        for (int type = reader.next(line, event); type != BinaryTraceReader.END;
+            type = reader.next(line, event)) {
+          linenum = reader.getLineNumber();
+          if (type == BinaryTraceReader.EVENT) {
+            byte[] desc = (event.getState() + " " + event.getArg1() + " " + event.getArg2())
+                .trim().getBytes(StandardCharsets.UTF_8);
+            add(hashEvent(event), desc, 0, desc.length);
+            return true;
+          } else if (EventDecoder.isKeywordLine(line)) {
+            add(hashBytes(hashState(KEYWORD), line.data, 0, line.length()), line.data, 0,
+                line.length());
+            return true;
+          }
+        }
+        return false;
+      }
+      while (scanner.nextLine(line)) {
+        ++linenum;
+        if (EventDecoder.isKeywordLine(line)) {
+          add(hashBytes(hashState(KEYWORD), line.data, 0, line.length()), line.data, 0,
+              line.length());
+          return true;
+        }
+        if (EventDecoder.decodeLine(line, event, false)) {
+          add(hashEvent(event), line.data, 0, line.length());
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (scanner != null) {
+        scanner.close();
+      }
+      if (reader != null) {
+        reader.close();
+      }
+    }
+  }
+
+  private static long hashState(int state) {
+    return (FNV_SEED ^ state) * FNV_PRIME;
+  }
+
+  private static long hashBytes(long hash, byte[] data, int start, int end) {
+    for (int ix = start; ix < end; ix++) {
+      hash = (hash ^ data[ix]) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * computes the hash of an event from its state and its arguments (as they are displayed).
+   *
+   * @param event - the decoded event
+   * @return the hash value
+   */
+  static long hashEvent(TraceEvent event) {
+    long hash = hashState(event.state);
+    if (event.state == StateType.ERROR.ordinal()) {
+      byte[] error = event.getError().getBytes(StandardCharsets.UTF_8);
+      return hashBytes(hash, error, 0, error.length);
+    }
+    if (event.dictionary != null) {
+      byte[] arg1 = event.dictionary.getBytes(event.dictArg1);
+      byte[] arg2 = event.dictionary.getBytes(event.dictArg2);
+      hash = hashBytes(hash, arg1, 0, arg1.length);
+      hash = (hash ^ ' ') * FNV_PRIME;
+      return hashBytes(hash, arg2, 0, arg2.length);
+    }
+    byte[] data = event.line.data;
+    if (event.classStart >= 0) {
+      for (int ix = event.classStart; ix < event.classEnd; ix++) {
+        hash = (hash ^ (data[ix] == '/' ? '.' : data[ix])) * FNV_PRIME;
+      }
+      hash = (hash ^ '.') * FNV_PRIME;
+    }
+    hash = hashBytes(hash, data, event.arg1Start, event.arg1End);
+    hash = (hash ^ ' ') * FNV_PRIME;
+    return hashBytes(hash, data, event.arg2Start, event.arg2End);
+  }
+
+  private final File   fileA;
+  private final File   fileB;
+  private final PrintStream out;
+  private int  maxRegions;
+  private int  regions;         // the number of divergent regions found
+  private long eventsA;         // the number of events compared in each trace
+  private long eventsB;
+
+  /**
+   * @param first  - the baseline raw output file
+   * @param second - the raw output file to compare with it
+   * @param output - where to report the regions that differ
+   */
+  public TraceDiff(File first, File second, PrintStream output) {
+    fileA = first;
+    fileB = second;
+    out = output;
+    maxRegions = 100;
+  }
+
+  /**
+   * sets the max number of divergent regions to report (the comparison stops after that).
+   *
+   * @param max - the number of regions
+   */
+  public void setMaxRegions(int max) {
+    maxRegions = max;
+  }
+
+  public int getRegions() {
+    return regions;
+  }
+
+  public long getEventsA() {
+    return eventsA;
+  }
+
+  public long getEventsB() {
+    return eventsB;
+  }
+
+  // reports a divergent region: the 1st countA events of a and the 1st countB of b
+  private void report(EventStream a, int countA, EventStream b, int countB) {
+    ++regions;
+    out.println("@@ " + describe(fileA, a, countA) + ", " + describe(fileB, b, countB));
+    for (int ix = 0; ix < Math.min(countA, MAX_SHOWN); ix++) {
+      out.println("< " + a.lineAt(ix) + ": " + a.textAt(ix));
+    }
+    if (countA > MAX_SHOWN) {
+      out.println("< ...");
+    }
+    for (int ix = 0; ix < Math.min(countB, MAX_SHOWN); ix++) {
+      out.println("> " + b.lineAt(ix) + ": " + b.textAt(ix));
+    }
+    if (countB > MAX_SHOWN) {
+      out.println("> ...");
+    }
+  }
+
+  private static String describe(File file, EventStream stream, int count) {
+    if (count == 0) {
+      return file.getName() + ": no events";
+    }
+    int first = stream.lineAt(0);
+    int last = stream.lineAt(count - 1);
+    return file.getName() + " line" + ((first == last) ? " " + first : "s " + first + "-" + last) +
+        " (" + count + " event" + ((count == 1) ? "" : "s") + ")";
+  }
+
+  /**
+   * finds the nearest point after the start of a divergent region where the traces agree again:
+   * the positions in each with the smallest total for which the MATCH_LENGTH events that follow
+   * are the same in both.
+   *
+   * @return {countA, countB}, or null if there is none within LOOKAHEAD events
+   */
+  private static int[] realign(EventStream a, EventStream b) {
+    int sizeA = Math.min(a.size(), LOOKAHEAD);
+    int sizeB = Math.min(b.size(), LOOKAHEAD);
+    if (sizeA < MATCH_LENGTH || sizeB < MATCH_LENGTH) {
+      return null;
+    }
+
+    // the 1st position of each rolling hash of MATCH_LENGTH events of b
+    long top = POWERS[MATCH_LENGTH - 1];
+    int tableSize = Integer.highestOneBit(sizeB) * 4;
+    long[] keys = new long[tableSize];
+    int[] positions = new int[tableSize];   // the position + 1 (0 = empty slot)
+    long rolling = 0;
+    for (int ix = 0; ix < sizeB; ix++) {
+      if (ix >= MATCH_LENGTH) {
+        rolling -= b.hash(ix - MATCH_LENGTH) * top;
+      }
+      rolling = rolling * BASE + b.hash(ix);
+      if (ix >= MATCH_LENGTH - 1) {
+        int slot = findSlot(keys, positions, rolling);
+        if (positions[slot] == 0) {
+          keys[slot] = rolling;
+          positions[slot] = ix - MATCH_LENGTH + 2;
+        }
+      }
+    }
+
+    // the positions of a in order, until the total can't be smaller than the best found
+    int[] best = null;
+    rolling = 0;
+    for (int ix = 0; ix < sizeA; ix++) {
+      int posA = ix - MATCH_LENGTH + 1;
+      if (best != null && posA >= best[0] + best[1]) {
+        break;
+      }
+      if (ix >= MATCH_LENGTH) {
+        rolling -= a.hash(ix - MATCH_LENGTH) * top;
+      }
+      rolling = rolling * BASE + a.hash(ix);
+      if (posA >= 0) {
+        int slot = findSlot(keys, positions, rolling);
+        if (positions[slot] != 0) {
+          int posB = positions[slot] - 1;
+          if (sameEvents(a, posA, b, posB) && (best == null || posA + posB < best[0] + best[1])) {
+            best = new int[] { posA, posB };
+          }
+        }
+      }
+    }
+    return best;
+  }
+
+  private static int findSlot(long[] keys, int[] positions, long key) {
+    int mask = keys.length - 1;
+    int slot = (int) ((key * 0x9e3779b97f4a7c15L) >>> 40) & mask;
+    while (positions[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private static boolean sameEvents(EventStream a, int posA, EventStream b, int posB) {
+    for (int ix = 0; ix < MATCH_LENGTH; ix++) {
+      if (a.hash(posA + ix) != b.hash(posB + ix)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * compares the traces, reporting each of the regions where they differ.
+   *
+   * @return true if the events of the traces are the same
+   * @throws IOException
+   */
+  public boolean compare() throws IOException {
+    regions = 0;
+    try (EventStream a = new EventStream(fileA); EventStream b = new EventStream(fileB)) {
+      while (regions < maxRegions) {
+        a.fill(WINDOW);
+        b.fill(WINDOW);
+        int count = Math.min(WINDOW, Math.min(a.size(), b.size()));
+        if (count > 0 && a.windowHash(count) == b.windowHash(count)) {
+          a.advance(count);
+          b.advance(count);
+          continue;
+        }
+
+        // find the 1st event that differs
+        int same = 0;
+        while (same < count && a.hash(same) == b.hash(same)) {
+          ++same;
+        }
+        a.advance(same);
+        b.advance(same);
+        if (a.size() == 0 && b.size() == 0) {
+          break;                    // the end of both traces
+        }
+
+        a.fill(LOOKAHEAD);
+        b.fill(LOOKAHEAD);
+        int[] next = realign(a, b);
+        if (next == null) {
+          // the traces differ from here to the end of one of them (or beyond the lookahead)
+          report(a, a.size(), b, b.size());
+          if (a.size() >= LOOKAHEAD || b.size() >= LOOKAHEAD) {
+            out.println("(the traces do not agree again within " + LOOKAHEAD + " events)");
+          }
+          break;
+        }
+        report(a, next[0], b, next[1]);
+        a.advance(next[0]);
+        b.advance(next[1]);
+      }
+      if (regions >= maxRegions) {
+        out.println("(stopped after " + maxRegions + " regions)");
+      }
+      eventsA = a.position() + a.size();
+      eventsB = b.position() + b.size();
+    }
+    return regions == 0;
+  }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+/**
+ * a decoded event from the raw output file.
+ * This is a mutable record that is re-used for every line decoded, so it holds only the state
+ * type ordinal and the offsets of the fields within the line it was decoded from. The field
+ * values are compared in place and are only converted into Strings when they are displayed.
+ *
+ * @author dmcd2356
+ */
+public class TraceEvent {
+
+  int       state;          // the StateType ordinal of the event
+  TraceLine line;           // the line the field offsets refer to
+  int       threadStart;    // the thread id (agent entries only)
+  int       threadEnd;
+  int       classStart;     // the class of arg1, using '/' separators (-1 if arg1 has no class)
+  int       classEnd;
+  int       arg1Start;      // the 1st argument (method name or called method)
+  int       arg1End;
+  int       arg2Start;      // the 2nd argument (calling method)
+  int       arg2End;
+  SymbolDictionary dictionary; // if not null, the arguments are ids in this dictionary
+  int       dictArg1;       // the dictionary id of the 1st argument
+  int       dictArg2;       // the dictionary id of the 2nd argument
+  int       dictThread;     // the dictionary id of the thread id
+  String    error;          // description of the decoding error (for ERROR state)
+  int       errorStart;     // the portion of the line to display with the error
+  int       errorEnd;
+
+  /**
+   * clears the event to the specified state with no associated arguments.
+   *
+   * @param newState - the state the event represents
+   */
+  void reset(StateType newState) {
+    state = newState.ordinal();
+    threadStart = threadEnd = 0;
+    classStart = classEnd = -1;
+    arg1Start = arg1End = 0;
+    arg2Start = arg2End = 0;
+    dictionary = null;
+    error = null;
+  }
+
+  /**
+   * sets the event to a state whose arguments are entries in a symbol dictionary.
+   *
+   * @param newState - the StateType ordinal of the event
+   * @param dict     - the dictionary containing the argument values
+   * @param arg1     - the dictionary id of the 1st argument (0 if none)
+   * @param arg2     - the dictionary id of the 2nd argument (0 if none)
+   * @param thread   - the dictionary id of the thread id (0 if none)
+   */
+  void setDictionaryEvent(int newState, SymbolDictionary dict, int arg1, int arg2, int thread) {
+    reset(StateType.fromOrdinal(newState));
+    dictionary = dict;
+    dictArg1 = arg1;
+    dictArg2 = arg2;
+    dictThread = thread;
+  }
+
+  /**
+   * sets the event to an ERROR state.
+   *
+   * @param message - the description of the error
+   * @param start   - the start of the portion of the line to display with the message
+   * @param end     - the end of the portion of the line to display with the message
+   */
+  void setError(String message, int start, int end) {
+    reset(StateType.ERROR);
+    error = message;
+    errorStart = start;
+    errorEnd = end;
+  }
+
+  public StateType getState() {
+    return StateType.fromOrdinal(state);
+  }
+
+  public int getStateOrdinal() {
+    return state;
+  }
+
+  /**
+   * compares the 1st argument of the event with a value.
+   * If the argument has a class, it is compared as "class.method" with the class name converted
+   * to use '.' separators, just as it would be displayed.
+   *
+   * @param value - the value to compare with
+   * @return true if the argument matches
+   */
+  public boolean arg1Equals(byte[] value) {
+    byte[] data = (line == null) ? null : line.data;
+    int pos = 0;
+    if (classStart >= 0) {
+      int clen = classEnd - classStart;
+      if (clen + 1 + (arg1End - arg1Start) != value.length) {
+        return false;
+      }
+      for (int ix = 0; ix < clen; ix++) {
+        byte ch = data[classStart + ix];
+        if ((ch == '/' ? '.' : ch) != value[ix]) {
+          return false;
+        }
+      }
+      if (value[clen] != '.') {
+        return false;
+      }
+      pos = clen + 1;
+    } else if (arg1End - arg1Start != value.length) {
+      return false;
+    }
+    for (int ix = arg1Start; ix < arg1End; ix++, pos++) {
+      if (data[ix] != value[pos]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * computes the SymbolTable hash of the 1st argument, as it would be displayed.
+   *
+   * @return the hash value
+   */
+  int arg1Hash() {
+    byte[] data = line.data;
+    int hash = SymbolTable.HASH_SEED;
+    if (classStart >= 0) {
+      for (int ix = classStart; ix < classEnd; ix++) {
+        byte ch = data[ix];
+        hash = (hash ^ (ch == '/' ? '.' : ch)) * SymbolTable.HASH_PRIME;
+      }
+      hash = (hash ^ '.') * SymbolTable.HASH_PRIME;
+    }
+    for (int ix = arg1Start; ix < arg1End; ix++) {
+      hash = (hash ^ data[ix]) * SymbolTable.HASH_PRIME;
+    }
+    return hash;
+  }
+
+  public String getArg1() {
+    if (dictionary != null) {
+      return dictionary.getName(dictArg1);
+    }
+    if (line == null) {
+      return "";
+    }
+    String name = line.substring(arg1Start, arg1End);
+    if (classStart >= 0) {
+      name = line.substring(classStart, classEnd).replace('/', '.') + "." + name;
+    }
+    return name;
+  }
+
+  public String getArg2() {
+    if (dictionary != null) {
+      return dictionary.getName(dictArg2);
+    }
+    return (line == null) ? "" : line.substring(arg2Start, arg2End);
+  }
+
+  public String getThreadId() {
+    if (dictionary != null) {
+      return dictionary.getName(dictThread);
+    }
+    return (line == null) ? "" : line.substring(threadStart, threadEnd);
+  }
+
+  public String getError() {
+    if (error == null) {
+      return "";
+    }
+    return (line == null) ? error : error + line.substring(errorStart, errorEnd);
+  }
+
+}
@@ -0,0 +1,335 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * generates synthetic raw output files in the format of a danalyzed SimpleTest run, for
+ * measuring the performance of danparse. The same settings always generate the same trace.
+ *
+ * The trace consists of an !EXPECTED II list of methods called by SimpleTest.main, followed by
+ * the agent entries and debug messages of the calls, and terminated by !TESTEXIT, so it passes
+ * the verification. The rest of the requested number of lines is made up of noise lines spread
+ * evenly through it, selected randomly from a weighted mix of:
+ *  - text: lines of program output that are not debug messages
+ *  - debug: debug messages of types that are not verified
+ *  - agent: agent entries of a thread that has no expected states
+ *
+ * @author dmcd2356
+ */
+public class TraceGenerator {
+
+  public static final int NOISE_TEXT  = 0;
+  public static final int NOISE_DEBUG = 1;
+  public static final int NOISE_AGENT = 2;
+
+  private static final int MAX_METHODS = 1000;  // default limit on the methods to call
+
+  private static final byte[] II_CALL   = bytes("Instrumented   to instrumented  : call  tid: 1, LSimpleTest;");
+  private static final byte[] II_RETURN = bytes("Instrumented   to instrumented  : returntid: 1, LSimpleTest;");
+  private static final byte[] UI_RETURN = bytes("Uninstrumented to instrumented  : returntid: 1, Ljava/io/PrintStream;println(Ljava/lang/String;)V");
+  private static final byte[] IU_CALL   = bytes("Instrumented   to uninstrumented: call  tid: 1, Ljava/io/PrintStream;println(Ljava/lang/String;)V");
+  private static final byte[] NOISE_CALL = bytes("Instrumented   to instrumented  : call  tid: 2, LWorker;");
+  private static final byte[] NOISE_RETURN = bytes("Instrumented   to instrumented  : returntid: 2, LWorker;");
+
+  private long lines;         // the number of lines to generate
+  private int  methods;       // the number of expected methods (0 to select from lines)
+  private long seed;          // the seed for selecting the noise lines
+  private final int[] mix;    // the weight of each type of noise line
+
+  // the state of the generation
+  private OutputStream out;
+  private byte[] buffer;      // the line being built
+  private int    length;
+  private long   random;      // the state of the random number generator
+  private long   debugCount;  // the number of debug messages output
+  private long   written;     // the number of lines written
+
+  public TraceGenerator() {
+    lines = 1000;
+    methods = 0;
+    seed = 1;
+    mix = new int[] { 50, 30, 20 };
+    buffer = new byte[256];
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * sets the total number of lines to generate.
+   *
+   * @param count - the number of lines (the minimum needed for a single method is used if less)
+   */
+  public void setLines(long count) {
+    lines = count;
+  }
+
+  /**
+   * sets the number of methods in the expected list (by default this is selected from the
+   * number of lines, up to 1000 methods, with the remainder of the lines being noise).
+   *
+   * @param count - the number of methods (0 to select it from the number of lines)
+   */
+  public void setMethods(int count) {
+    methods = count;
+  }
+
+  public void setSeed(long value) {
+    seed = value;
+  }
+
+  /**
+   * sets the relative weight of a type of noise line.
+   *
+   * @param type   - NOISE_TEXT, NOISE_DEBUG or NOISE_AGENT
+   * @param weight - the weight (0 to not generate that type)
+   */
+  public void setNoiseWeight(int type, int weight) {
+    mix[type] = weight;
+  }
+
+  public int getNoiseWeight(int type) {
+    return mix[type];
+  }
+
+  /**
+   * returns the number of methods in the expected list for the current settings.
+   *
+   * @return the number of methods
+   */
+  public int getMethodCount() {
+    if (methods > 0) {
+      return methods;
+    }
+    // each method takes 7 lines, plus 4 lines for the start and end of the test
+    return (int) Math.max(1, Math.min(MAX_METHODS, (lines - 4) / 7));
+  }
+
+  private int nextRandom(int bound) {
+    // xorshift64* (the sequence only depends on the seed)
+    random ^= random >>> 12;
+    random ^= random << 25;
+    random ^= random >>> 27;
+    return (int) (((random * 0x2545F4914F6CDD1DL) >>> 33) % bound);
+  }
+
+  private void append(byte[] value) {
+    if (length + value.length > buffer.length) {
+      buffer = Arrays.copyOf(buffer, (length + value.length) * 2);
+    }
+    System.arraycopy(value, 0, buffer, length, value.length);
+    length += value.length;
+  }
+
+  private void append(String value) {
+    append(bytes(value));
+  }
+
+  private void appendNumber(long value, int width) {
+    if (length + 20 > buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+    int digits = 1;
+    for (long limit = 10; limit <= value && digits < 19; limit *= 10) {
+      ++digits;
+    }
+    for (int ix = digits; ix < width; ix++) {
+      buffer[length++] = '0';
+    }
+    for (int ix = length + digits - 1; ix >= length; ix--) {
+      buffer[ix] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    length += digits;
+  }
+
+  private void endLine() throws IOException {
+    buffer[length++] = '\n';
+    out.write(buffer, 0, length);
+    length = 0;
+    ++written;
+  }
+
+  private void debugLine(String type, String message) throws IOException {
+    // the debug line number and timestamp are fixed width, so they wrap around
+    ++debugCount;
+    appendNumber(debugCount % 100000000, 8);
+    append(" [");
+    appendNumber(debugCount / 60000 % 100, 2);
+    buffer[length++] = ':';
+    appendNumber(debugCount / 1000 % 60, 2);
+    buffer[length++] = '.';
+    appendNumber(debugCount % 1000, 3);
+    append("] ");
+    append(type);
+    for (int ix = type.length(); ix < 6; ix++) {
+      buffer[length++] = ' ';
+    }
+    append(": ");
+    append(message);
+    endLine();
+  }
+
+  private void methodLine(byte[] prefix, int method) throws IOException {
+    append(prefix);
+    append("m");
+    appendNumber(method, 0);
+    append("()V");
+    endLine();
+  }
+
+  /**
+   * outputs a number of noise lines.
+   *
+   * @param count   - the number of lines
+   * @param bAgent  - true if agent entries can be output (this is only the case before an agent
+   *                  entry of the test thread, so the debug messages that follow the test
+   *                  thread's entries are not attributed to the noise thread)
+   */
+  private void noise(long count, boolean bAgent) throws IOException {
+    int total = mix[NOISE_TEXT] + mix[NOISE_DEBUG] + (bAgent ? mix[NOISE_AGENT] : 0);
+    for (long ix = 0; ix < count; ix++) {
+      int select = (total > 0) ? nextRandom(total) : 0;
+      if (select < mix[NOISE_TEXT] || total == 0) {
+        append("program output line ");
+        appendNumber(written, 0);
+        endLine();
+      } else if (select < mix[NOISE_TEXT] + mix[NOISE_DEBUG]) {
+        debugLine("INFO", "noise message");
+      } else {
+        methodLine(nextRandom(2) == 0 ? NOISE_CALL : NOISE_RETURN, nextRandom(100));
+      }
+    }
+  }
+
+  /**
+   * writes the trace.
+   *
+   * @param stream - the stream to write to (it is not closed)
+   * @return the number of lines written
+   * @throws IOException
+   */
+  public long generate(OutputStream stream) throws IOException {
+    out = stream;
+    length = 0;
+    random = (seed == 0) ? 0x9E3779B97F4A7C15L : seed;
+    debugCount = 0;
+    written = 0;
+
+    int count = getMethodCount();
+    long noiseLines = Math.max(0, lines - (7L * count + 4));
+
+    // the noise lines are spread evenly over the gaps before each line following the list
+    long gaps = 6L * count + 3;
+    long gap = 0;
+
+    for (int ix = 0; ix < count; ix++) {
+      append(ix < count - 1 ? "!EXPECTED+ II SimpleTest.main SimpleTest.m" : "!EXPECTED  II SimpleTest.main SimpleTest.m");
+      appendNumber(ix, 0);
+      endLine();
+    }
+    out.write(UI_RETURN);
+    out.write('\n');
+    ++written;
+
+    for (int ix = 0; ix < count; ix++) {
+      noise(noiseLines * (gap + 1) / gaps - noiseLines * gap / gaps, true);
+      ++gap;
+      methodLine(II_CALL, ix);
+      noise(noiseLines * (gap + 1) / gaps - noiseLines * gap / gaps, false);
+      ++gap;
+      debugLine("AGENT", "createFrame: numParams = 1, maxLocals = 1");
+      noise(noiseLines * (gap + 1) / gaps - noiseLines * gap / gaps, false);
+      ++gap;
+      debugLine("CALL", "0 SimpleTest.m" + ix + "()V SimpleTest.main([Ljava/lang/String;)V");
+      noise(noiseLines * (gap + 1) / gaps - noiseLines * gap / gaps, false);
+      ++gap;
+      debugLine("RETURN", "0 SimpleTest.m" + ix + "()V");
+      noise(noiseLines * (gap + 1) / gaps - noiseLines * gap / gaps, true);
+      ++gap;
+      methodLine(II_RETURN, ix);
+      noise(noiseLines * (gap + 1) / gaps - noiseLines * gap / gaps, false);
+      ++gap;
+      debugLine("AGENT", "popFrameAndPush: isVoid = true");
+    }
+
+    noise(noiseLines * (gap + 1) / gaps - noiseLines * gap / gaps, true);
+    ++gap;
+    out.write(IU_CALL);
+    out.write('\n');
+    ++written;
+    noise(noiseLines * (gap + 1) / gaps - noiseLines * gap / gaps, false);
+    ++gap;
+    debugLine("AGENT", "removeParams: numParams = 1");
+    noise(noiseLines * (gap + 1) / gaps - noiseLines * gap / gaps, false);
+    append("!TESTEXIT");
+    endLine();
+    return written;
+  }
+
+  /**
+   * command line interface for generating a trace file.
+   *
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) {
+    if (args.length < 1) {
+      System.out.println("Usage: TraceGenerator [-n <lines>] [-m <methods>] [-s <seed>]");
+      System.out.println("                      [-x <text>,<debug>,<agent>] <outputfile>");
+      System.out.println("       (use '-' for <outputfile> to write to standard output)");
+      System.exit(0);
+    }
+
+    TraceGenerator generator = new TraceGenerator();
+    String outputfilename = "";
+    try {
+      for (int ix = 0; ix < args.length; ix++) {
+        String arg = args[ix];
+        if (arg.equals("-n") && ix + 1 < args.length) {
+          generator.setLines(Long.parseLong(args[++ix]));
+        } else if (arg.equals("-m") && ix + 1 < args.length) {
+          generator.setMethods(Integer.parseInt(args[++ix]));
+        } else if (arg.equals("-s") && ix + 1 < args.length) {
+          generator.setSeed(Long.parseLong(args[++ix]));
+        } else if (arg.equals("-x") && ix + 1 < args.length) {
+          String[] weights = args[++ix].split(",");
+          for (int type = 0; type < weights.length && type <= NOISE_AGENT; type++) {
+            generator.setNoiseWeight(type, Integer.parseInt(weights[type]));
+          }
+        } else {
+          outputfilename = arg;
+        }
+      }
+    } catch (NumberFormatException ex) {
+      System.out.println("ERROR: invalid value: " + ex.getMessage());
+      System.exit(1);
+    }
+
+    try {
+      if (outputfilename.equals("-")) {
+        OutputStream stream = new BufferedOutputStream(System.out, 1 << 16);
+        generator.generate(stream);
+        stream.flush();
+      } else {
+        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(outputfilename), 1 << 16)) {
+          generator.generate(stream);
+        }
+      }
+    } catch (IOException ex) {
+      System.out.println(ex.getMessage());
+      System.exit(1);
+    }
+  }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * a single line of the raw output file, kept as the raw bytes read from the file.
+ * The same instance is re-used for every line read, so the contents are only valid until the
+ * next line is read. A String is only created if one of the toString/substring methods is called.
+ *
+ * @author dmcd2356
+ */
+public class TraceLine {
+
+  byte[] data;        // the bytes of the line (without the line terminator)
+  int    length;      // the number of valid bytes in data
+
+  public TraceLine() {
+    data = new byte[256];
+    length = 0;
+  }
+
+  /**
+   * makes sure the line buffer can hold the specified number of bytes (preserving the contents).
+   *
+   * @param size - the number of bytes needed
+   */
+  void ensureCapacity(int size) {
+    if (size > data.length) {
+      data = Arrays.copyOf(data, Math.max(size, data.length * 2));
+    }
+  }
+
+  /**
+   * appends a range of bytes to the line.
+   *
+   * @param src    - the bytes to copy from
+   * @param offset - the offset in src of the 1st byte to copy
+   * @param count  - the number of bytes to copy
+   */
+  void append(byte[] src, int offset, int count) {
+    ensureCapacity(length + count);
+    System.arraycopy(src, offset, data, length, count);
+    length += count;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  public byte byteAt(int index) {
+    return data[index];
+  }
+
+  /**
+   * check if the line starts with the specified bytes at the given offset.
+   *
+   * @param offset - the offset in the line to start the comparison
+   * @param word   - the bytes to compare with
+   * @return true if the line contains the bytes at that position
+   */
+  public boolean startsWith(int offset, byte[] word) {
+    if (offset + word.length > length) {
+      return false;
+    }
+    for (int ix = 0; ix < word.length; ix++) {
+      if (data[offset + ix] != word[ix]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean startsWith(byte[] word) {
+    return startsWith(0, word);
+  }
+
+  /**
+   * check if the 1st space-delimited word of the line is the specified word.
+   *
+   * @param word - the bytes to compare with
+   * @return true if the line's keyword matches
+   */
+  public boolean keywordEquals(byte[] word) {
+    return startsWith(0, word) && (length == word.length || data[word.length] == ' ');
+  }
+
+  /**
+   * check if the specified range of the line, after trimming any surrounding spaces, is the
+   * specified word.
+   *
+   * @param start - the offset of the 1st byte of the range
+   * @param end   - the offset following the last byte of the range
+   * @param word  - the bytes to compare with
+   * @return true if the trimmed range matches the word
+   */
+  public boolean regionEqualsTrimmed(int start, int end, byte[] word) {
+    end = Math.min(end, length);
+    while (start < end && data[start] <= ' ') {
+      ++start;
+    }
+    while (end > start && data[end - 1] <= ' ') {
+      --end;
+    }
+    return end - start == word.length && startsWith(start, word);
+  }
+
+  /**
+   * finds the 1st occurrance of a byte in the line.
+   *
+   * @param value - the byte to search for
+   * @param start - the offset to start searching from
+   * @return the offset of the byte, or -1 if not found
+   */
+  public int indexOf(byte value, int start) {
+    for (int ix = start; ix < length; ix++) {
+      if (data[ix] == value) {
+        return ix;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * check if the specified range of the line is a valid integer value.
+   * (this accepts the same values that Integer.parseInt would, without creating a String)
+   *
+   * @param start - the offset of the 1st byte of the range
+   * @param end   - the offset following the last byte of the range
+   * @return true if range is a valid integer value
+   */
+  public boolean isNumeric(int start, int end) {
+    if (end > length || start >= end) {
+      return false;
+    }
+    if ((data[start] == '-' || data[start] == '+') && end - start > 1) {
+      ++start;
+    }
+    // more than 9 digits may overflow an int, so let the library decide on those
+    if (end - start > 9) {
+      try {
+        Integer.parseInt(substring(start, end));
+      } catch (NumberFormatException ex) {
+        return false;
+      }
+      return true;
+    }
+    for (int ix = start; ix < end; ix++) {
+      if (data[ix] < '0' || data[ix] > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public String substring(int start, int end) {
+    return new String(data, start, end - start, StandardCharsets.UTF_8);
+  }
+
+  public String substring(int start) {
+    return substring(start, length);
+  }
+
+  @Override
+  public String toString() {
+    return substring(0, length);
+  }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * reads the raw output of a test one line at a time, delivering each line as raw bytes so that
+ * lines that are not of interest never have to be converted into Strings.
+ *
+ * @author dmcd2356
+ */
+public abstract class TraceScanner implements Closeable {
+
+  protected long bytesRead;     // total number of bytes consumed so far (including terminators)
+
+  /**
+   * reads the next line from the input.
+   * The line terminator ('\n', '\r' or "\r\n") is not included in the line.
+   *
+   * @param line - the line buffer to place the contents in (its previous contents are replaced)
+   * @return false if there are no more lines
+   * @throws IOException
+   */
+  public abstract boolean nextLine(TraceLine line) throws IOException;
+
+  /**
+   * check if a byte ends a line (the '\n' following a '\r' is part of the same terminator).
+   *
+   * @param value - the byte to check
+   * @return true if the byte is a line terminator
+   */
+  static boolean isLineEnd(byte value) {
+    // (most bytes are above '\r', so they are only compared once)
+    return value <= '\r' && (value == '\n' || value == '\r');
+  }
+
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  @Override
+  public void close() throws IOException {
+  }
+
+}
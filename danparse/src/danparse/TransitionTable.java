@@ -0,0 +1,247 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package danparse;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * the compiled form of the expected and ignored state lists.
+ * Each state is reduced to a single long key made up of the state type and the symbol ids of
+ * the arguments that are verified for that type, so an event is accepted by comparing its key
+ * with the key of the current step, and is ignored by a single hash lookup of its key.
+ *
+ * @author dmcd2356
+ */
+public class TransitionTable {
+
+  // the conditions under which an ignore entry applies (these are also the phase bits of a step)
+  public static final int IGNORE_ALWAYS   = 1;  // at any step
+  public static final int IGNORE_AT_START = 2;  // only when waiting for the 1st state
+  public static final int IGNORE_AT_EXIT  = 4;  // only when waiting for the EXIT state
+
+  // the results of match()
+  public static final int MATCH        = 0;   // event is the next expected state
+  public static final int IGNORED      = -1;  // event is not expected, but can be ignored
+  public static final int BAD_STATE    = 1;   // event is the wrong state
+  public static final int BAD_ARG1     = 2;   // event has the wrong 1st argument
+  public static final int BAD_ARG2     = 3;   // event has the wrong 2nd argument
+
+  private static final int  SYMBOL_BITS = 24;
+  private static final long SYMBOL_MASK = (1L << SYMBOL_BITS) - 1;
+
+  // the number of arguments that are verified for each StateType ordinal
+  private static final int[] ARG_COUNT = new int[StateType.count()];
+
+  static {
+    ARG_COUNT[StateType.CALL.ordinal()] = 2;
+    ARG_COUNT[StateType.ENTRY_II.ordinal()] = 1;
+    ARG_COUNT[StateType.ENTRY_IU.ordinal()] = 1;
+    ARG_COUNT[StateType.ENTRY_UI.ordinal()] = 1;
+    ARG_COUNT[StateType.LEAVE_II.ordinal()] = 1;
+    ARG_COUNT[StateType.LEAVE_IU.ordinal()] = 1;
+    ARG_COUNT[StateType.LEAVE_UI.ordinal()] = 1;
+  }
+
+  private final SymbolTable symbols;
+  private long[]  stepKeys;       // the key of each expected step
+  private int[]   stepPhase;      // the ignore conditions that apply at each step
+  private int     stepCount;
+  private long[]  ignoreKeys;     // open-addressed hash table of ignore keys
+  private int[]   ignoreWhen;     // the conditions for each ignore key (0 = empty slot)
+  private int     ignoreCount;
+
+  public TransitionTable(SymbolTable symtab) {
+    symbols = symtab;
+    stepKeys = new long[0];
+    stepPhase = new int[0];
+    ignoreKeys = new long[16];
+    ignoreWhen = new int[16];
+  }
+
+  /**
+   * @param state - the StateType ordinal
+   * @return the number of arguments that are verified for the state type
+   */
+  static int argCount(int state) {
+    return ARG_COUNT[state];
+  }
+
+  private static long makeKey(int state, int arg1, int arg2) {
+    return ((long) state << (2 * SYMBOL_BITS)) | ((arg1 & SYMBOL_MASK) << SYMBOL_BITS) |
+        (arg2 & SYMBOL_MASK);
+  }
+
+  long makeKey(DanparseEngine.StateInfo info) {
+    int state = info.state.ordinal();
+    int count = ARG_COUNT[state];
+    int arg1 = (count > 0) ? symbols.intern(info.arg1) : SymbolTable.NONE;
+    int arg2 = (count > 1) ? symbols.intern(info.arg2) : SymbolTable.NONE;
+    return makeKey(state, arg1, arg2);
+  }
+
+  /**
+   * computes the key of a decoded event.
+   *
+   * @param event - the decoded event
+   * @return the key value
+   */
+  public long makeKey(TraceEvent event) {
+    int state = event.state;
+    int count = ARG_COUNT[state];
+    int arg1 = (count > 0) ? symbols.findArg1(event) : SymbolTable.NONE;
+    int arg2 = (count > 1) ? symbols.findArg2(event) : SymbolTable.NONE;
+    return makeKey(state, arg1, arg2);
+  }
+
+  public static StateType keyState(long key) {
+    return StateType.fromOrdinal((int) (key >>> (2 * SYMBOL_BITS)));
+  }
+
+  public static int keyArg1(long key) {
+    return (int) (key >>> SYMBOL_BITS & SYMBOL_MASK);
+  }
+
+  public static int keyArg2(long key) {
+    return (int) (key & SYMBOL_MASK);
+  }
+
+  /**
+   * compiles the expected state list and the ignore list into the table.
+   *
+   * @param stateList  - the list of expected states
+   * @param ignoreList - the list of states that can be ignored at any step
+   */
+  public void compile(List<DanparseEngine.StateInfo> stateList, List<DanparseEngine.StateInfo> ignoreList) {
+    stepCount = stateList.size();
+    stepKeys = new long[stepCount];
+    stepPhase = new int[stepCount];
+    for (int ix = 0; ix < stepCount; ix++) {
+      DanparseEngine.StateInfo info = stateList.get(ix);
+      stepKeys[ix] = makeKey(info);
+      stepPhase[ix] = phase(ix, info.state);
+    }
+
+    Arrays.fill(ignoreKeys, 0);
+    Arrays.fill(ignoreWhen, 0);
+    ignoreCount = 0;
+    for (DanparseEngine.StateInfo info : ignoreList) {
+      addIgnore(info, IGNORE_ALWAYS);
+    }
+  }
+
+  /**
+   * adds an entry to the states that can be ignored.
+   *
+   * @param info - the state to ignore
+   * @param when - the IGNORE_xxx conditions under which it can be ignored
+   */
+  public void addIgnore(DanparseEngine.StateInfo info, int when) {
+    if ((ignoreCount + 1) * 2 > ignoreKeys.length) {
+      long[] oldKeys = ignoreKeys;
+      int[] oldWhen = ignoreWhen;
+      ignoreKeys = new long[oldKeys.length * 2];
+      ignoreWhen = new int[oldKeys.length * 2];
+      for (int ix = 0; ix < oldKeys.length; ix++) {
+        if (oldWhen[ix] != 0) {
+          int slot = findSlot(oldKeys[ix]);
+          ignoreKeys[slot] = oldKeys[ix];
+          ignoreWhen[slot] = oldWhen[ix];
+        }
+      }
+    }
+
+    long key = makeKey(info);
+    int slot = findSlot(key);
+    if (ignoreWhen[slot] == 0) {
+      ++ignoreCount;
+    }
+    ignoreKeys[slot] = key;
+    ignoreWhen[slot] |= when;
+  }
+
+  /**
+   * @param step  - the index of an expected step
+   * @param state - the expected state of the step
+   * @return the ignore conditions that apply at the step
+   */
+  static int phase(int step, StateType state) {
+    return IGNORE_ALWAYS | (step == 0 ? IGNORE_AT_START : 0) |
+        (state == StateType.EXIT ? IGNORE_AT_EXIT : 0);
+  }
+
+  private int findSlot(long key) {
+    int mask = ignoreKeys.length - 1;
+    int slot = (int) ((key * 0x9e3779b97f4a7c15L) >>> 40) & mask;
+    while (ignoreWhen[slot] != 0 && ignoreKeys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  public int size() {
+    return stepCount;
+  }
+
+  /**
+   * determines if an event is the expected state for the specified step.
+   *
+   * @param step - the index of the expected step
+   * @param key  - the key of the event (from makeKey)
+   * @return MATCH, IGNORED or the BAD_xxx reason for the mismatch
+   */
+  public int match(int step, long key) {
+    return match(stepKeys[step], stepPhase[step], key);
+  }
+
+  /**
+   * determines if an event is the expected state for a step that is not compiled into the table
+   * (such as one read from an ExpectationStream), using the ignore entries of the table.
+   *
+   * @param expect - the key of the expected state
+   * @param phase  - the ignore conditions that apply at the step (from phase())
+   * @param key    - the key of the event (from makeKey)
+   * @return MATCH, IGNORED or the BAD_xxx reason for the mismatch
+   */
+  public int match(long expect, int phase, long key) {
+    if (key == expect) {
+      return MATCH;
+    }
+    if (ignoreCount > 0) {
+      int slot = findSlot(key);
+      if ((ignoreWhen[slot] & phase) != 0) {
+        return IGNORED;
+      }
+    }
+    if ((key >>> (2 * SYMBOL_BITS)) != (expect >>> (2 * SYMBOL_BITS))) {
+      return BAD_STATE;
+    }
+    if (((key ^ expect) >>> SYMBOL_BITS & SYMBOL_MASK) != 0) {
+      return BAD_ARG1;
+    }
+    return BAD_ARG2;
+  }
+
+  /**
+   * finds the 1st of the following steps that an event is the expected state for (used to
+   * resynchronize after a mismatch).
+   *
+   * @param step  - the index of the 1st step to check
+   * @param key   - the key of the event (from makeKey)
+   * @param limit - the max number of steps to check
+   * @return the index of the step, or -1 if none of them match
+   */
+  public int find(int step, long key, int limit) {
+    int end = (int) Math.min(stepCount, (long) step + limit);
+    for (int ix = step; ix < end; ix++) {
+      if (stepKeys[ix] == key) {
+        return ix;
+      }
+    }
+    return -1;
+  }
+
+}
@@ -78,17 +78,24 @@ function exit_cleanup
 function helpmsg
 {
     echo "runtest.sh [options] <program_name> <args>"
+    echo "runtest.sh [options] [-j <jobs>] -s <suite_file>"
     echo ""
     echo "Where: <program_name> = name of the program to run (e.g. SimpleTest)"
     echo "       <args> = the argument list to pass to the specified test program"
+    echo "       <suite_file> = file containing a <program_name> <args> line for each test to run"
     echo "options:"
     echo "       -t  = display state change info for debugging test"
     echo "       -T  = display state and parsing info for debugging test"
     echo "       -p  = force rebuild of danparse prior to running"
     echo "       -f  = force rebuild of program and re-instrument prior to running"
+    echo "       -d  = send the test output to the danparse server (if it is running)"
+    echo "       -a  = report all of the failures instead of stopping at the 1st one"
+    echo "       -s  = run all of the tests in the suite file concurrently"
+    echo "       -j  = number of tests to run at a time with -s (default is one per processor)"
     echo ""
     echo "use -p if danparse source has changed"
     echo "use -f if test program source has changed or danalyzer has been rebuilt"
+    echo "use -d after starting the server with: java -jar danparse/dist/danparse.jar -S &"
     echo ""
 }
 
@@ -103,6 +110,10 @@ fi
 TESTMODE=""
 INSTRUMENT=0
 UPDATEPARSE=0
+USESERVER=0
+ALLFAILS=""
+SUITEFILE=""
+JOBS=""
 ARGCOUNT=0
 COMMAND=()
 while [[ $# -gt 0 ]]; do
@@ -116,6 +127,24 @@ while [[ $# -gt 0 ]]; do
             UPDATEPARSE=1
             shift
             ;;
+        -d)
+            USESERVER=1
+            shift
+            ;;
+        -a)
+            ALLFAILS="-a"
+            shift
+            ;;
+        -s)
+            SUITEFILE="$2"
+            shift
+            shift
+            ;;
+        -j)
+            JOBS="-j $2"
+            shift
+            shift
+            ;;
         -t)
             if [[ "${TESTMODE}" == "" ]]; then
                 TESTMODE="-t"
@@ -147,20 +176,41 @@ ARGLIST="${COMMAND[@]:1}"
 #    exit 1
 #fi
 
-# get the main class of the specified test program
-case ${TESTNAME} in
-    SimpleTest)     MAINCLASS="SimpleTest" ;;
-    *)  echo "ERROR: Invalid test selection: ${TESTNAME}"
-        helpmsg
-        exit 1 ;;
-esac
+# the test programs to run (for a suite, the 1st word of each line that is not a comment)
+if [[ "${SUITEFILE}" != "" ]]; then
+    if [[ ! -f "${SUITEFILE}" ]]; then
+        echo "ERROR: suite file not found: ${SUITEFILE}"
+        exit 1
+    fi
+    TESTNAMES=($(grep -v '^[[:space:]]*#' "${SUITEFILE}" | awk 'NF { print $1 }' | sort -u))
+    SUITEFILE=$(readlink -f "${SUITEFILE}")
+else
+    TESTNAMES=("${TESTNAME}")
+fi
+
+# sets MAINCLASS to the main class of the specified test program
+#
+# inputs: $1 = name of the test program
+#
+function get_mainclass
+{
+    case $1 in
+        SimpleTest)     MAINCLASS="SimpleTest" ;;
+        *)  echo "ERROR: Invalid test selection: $1"
+            helpmsg
+            exit 1 ;;
+    esac
+}
+
+for TESTNAME in "${TESTNAMES[@]}"; do
+    get_mainclass ${TESTNAME}
+done
 
 # save current path
 CURDIR=$(pwd 2>&1)
 
 # specify the names of the files for danparse to produce
 CFGFILE="danfig"
-RAWFILE="${CURDIR}/testraw.txt"
 OUTFILE="${CURDIR}/testresult.txt"
 
 # verify danalyzer path
@@ -197,28 +247,37 @@ if [[ ! -f "${FOLDER}/dist/${FOLDER}.jar" || ${UPDATEPARSE} -eq 1 ]]; then
     cd "${CURDIR}"
 fi
 
-FOLDER="${TESTNAME}"
-if [[ ! -f "${FOLDER}/dist/${FOLDER}.jar" || ${INSTRUMENT} -eq 1 ]]; then
-    # build test program project
-    echo "- building test program: ${FOLDER}"
-    cd "${FOLDER}"
-    javac ${TESTNAME}.java
-    if [[ $? -ne 0 ]]; then
-        echo "ERROR: javac command failure"
-        exit_cleanup
-        exit 1
-    fi
-    jar cvf ${TESTNAME}.jar *.class
-    if [[ $? -ne 0 ]]; then
-        echo "ERROR: jar command failure"
-        exit_cleanup
-        exit 1
+# builds the test program $TESTNAME (if it has not been built or it must be re-instrumented)
+#
+function build_test
+{
+    FOLDER="${TESTNAME}"
+    if [[ ! -f "${FOLDER}/dist/${FOLDER}.jar" || ${INSTRUMENT} -eq 1 ]]; then
+        # build test program project
+        echo "- building test program: ${FOLDER}"
+        cd "${FOLDER}"
+        javac ${TESTNAME}.java
+        if [[ $? -ne 0 ]]; then
+            echo "ERROR: javac command failure"
+            exit_cleanup
+            exit 1
+        fi
+        jar cvf ${TESTNAME}.jar *.class
+        if [[ $? -ne 0 ]]; then
+            echo "ERROR: jar command failure"
+            exit_cleanup
+            exit 1
+        fi
+        cd "${CURDIR}"
+
+        # since we re-built test program, remove old danalyzed version so we will re-danalyze it
+        rm -f ${FOLDER}/${FOLDER}-dan-ed.jar
     fi
-    cd "${CURDIR}"
+}
 
-    # since we re-built test program, remove old danalyzed version so we will re-danalyze it
-    rm -f ${FOLDER}/${FOLDER}-dan-ed.jar
-fi
+for TESTNAME in "${TESTNAMES[@]}"; do
+    build_test
+done
 
 # make sure agent lib has been built
 cd ${DANHELPER_REPO}
@@ -247,9 +306,11 @@ if [[ ${NOAGENT} -ne 0 ]]; then
     fi
 fi
 
-# perform the following in the test program folder
-cd "${CURDIR}/${TESTNAME}"
-
+# instruments the test program $TESTNAME (if needed) and sets CLASSPATH for running it
+# (this is run from the test program folder)
+#
+function setup_test
+{
     # set danalyzer properties for this project to enable "TEST" and "UNINSTR" messages
     if [ -f ${CFGFILE} ]; then
         rm -f ${CFGFILE}
@@ -294,52 +355,97 @@ cd "${CURDIR}/${TESTNAME}"
     add_to_classpath "${DANALYZER_REPO}lib/com.microsoft.z3.jar"
     add_dir_to_classpath ""
     add_dir_to_classpath "lib"
+}
+
+# run the instrumented code with the agent
+OPTIONS="-Xverify:none -Dsun.boot.library.path=$JAVA_HOME/bin:/usr/lib"
+BOOTCLASSPATH="-Xbootclasspath/a:${DANALYZER_REPO}dist/danalyzer.jar:${DANALYZER_REPO}lib/com.microsoft.z3.jar"
+AGENTPATH="-agentpath:${AGENTLIBDIR}libdanhelper.so"
+
+# for a suite, danparse runs the instrumented test programs concurrently (each from its own
+# folder) and verifies the output of each as it is produced, then displays a summary of all of
+# the tests. The exit status is that of the worst test (see below).
+if [[ "${SUITEFILE}" != "" ]]; then
+    ORCHARGS=()
+    for TESTNAME in "${TESTNAMES[@]}"; do
+        get_mainclass ${TESTNAME}
+        cd "${CURDIR}/${TESTNAME}"
+        setup_test
+        # (the command is passed as separate arguments, ending with a ';')
+        ORCHARGS+=(-x "${TESTNAME}" java ${OPTIONS} "${BOOTCLASSPATH}" "${AGENTPATH}" -cp "${CLASSPATH}" "${MAINCLASS}" ";")
+    done
+    cd "${CURDIR}"
+    java -cp "${CURDIR}/danparse/dist/danparse.jar" danparse.TestOrchestrator ${JOBS} ${TESTMODE} ${ALLFAILS} "${ORCHARGS[@]}" "${SUITEFILE}"
+    exit $?
+fi
+
+# perform the following in the test program folder
+cd "${CURDIR}/${TESTNAME}"
 
-    # run the instrumented code with the agent
-    OPTIONS="-Xverify:none -Dsun.boot.library.path=$JAVA_HOME/bin:/usr/lib"
-    BOOTCLASSPATH="-Xbootclasspath/a:${DANALYZER_REPO}dist/danalyzer.jar:${DANALYZER_REPO}lib/com.microsoft.z3.jar"
-    AGENTPATH="-agentpath:${AGENTLIBDIR}libdanhelper.so"
+    setup_test
 
-    # run the test program and capture output to file
+    # run the test program and pipe its output directly into danparse, so the debug output is
+    # verified as it is produced. A named pipe is used (rather than a '|') so that the test
+    # program can be stopped as soon as danparse reports the result.
     echo "- running instrumented test program: ${TESTNAME} ${ARGLIST}"
-    java ${OPTIONS} ${BOOTCLASSPATH} ${AGENTPATH} -cp ${CLASSPATH} ${MAINCLASS} ${ARGLIST} > ${RAWFILE}
-    if [[ $? -ne 0 ]]; then
-        echo "ERROR: java command failure"
-        echo "java ${OPTIONS} ${BOOTCLASSPATH} ${AGENTPATH} -cp ${CLASSPATH} ${MAINCLASS} ${ARGLIST} > ${RAWFILE}"
+    PIPEFILE=$(mktemp -u /tmp/danparse.XXXXXX)
+    mkfifo "${PIPEFILE}"
+    java ${OPTIONS} ${BOOTCLASSPATH} ${AGENTPATH} -cp ${CLASSPATH} ${MAINCLASS} ${ARGLIST} > "${PIPEFILE}" &
+    TESTPID=$!
+
+    # danparse exit status: 0 = PASS, 1 = FAIL, 2 = INVALID (test selection or trace), 3 = ERROR
+    # (the result file is removed first: the java launcher also exits with 1 if the JVM can't
+    # be started, so a status of 1 is only a FAIL if danparse got far enough to write it)
+    # (the client only forwards the output to the server, so it doesn't need the optimizing
+    # compiler, and it verifies the output itself if the server is not running)
+    rm -f "${OUTFILE}"
+    if [[ ${USESERVER} -eq 1 ]]; then
+        java -XX:TieredStopAtLevel=1 -cp "${CURDIR}/danparse/dist/danparse.jar" danparse.DanparseClient ${TESTMODE} ${ALLFAILS} - ${OUTFILE} < "${PIPEFILE}"
+    else
+        java -jar "${CURDIR}/danparse/dist/danparse.jar" ${TESTMODE} ${ALLFAILS} - ${OUTFILE} < "${PIPEFILE}"
+    fi
+    status=$?
+    if [[ ${status} -ne 0 ]]; then
+        # the result is already known, so there is no need to let the test program finish
+        kill ${TESTPID} &> /dev/null
+    fi
+    wait ${TESTPID}
+    testexit=$?
+    rm -f "${PIPEFILE}"
+
+# perform the following in the main directory
+cd "${CURDIR}"
+
+    if [[ ${status} -le 1 && ! -f "${OUTFILE}" ]]; then
+        echo "ERROR: danparse failed to run (exit status ${status})"
         exit_cleanup
         exit 1
     fi
 
-# perform the following in the danparse folder
-cd "../danparse"
-
-    # make sure the test was valid
-    valid=0
-    while IFS='' read -r line || [[ -n "$line" ]]; do
-        # check for lines output by the test program for specifying the expected results (or error)
-        # !EXPECTED  will specify the expected test output
-        # !TESTEXIT  will indicate the test has completed and we can terminate parsing
-        # !INVALID   indicates an error occurred in the arguments passed to the test
-        if [[ "${line}" == "!EXPECTED"* && valid -eq 0 ]]; then
-            valid=1
-        elif [[ "${line}" == "!TESTEXIT"* && valid -eq 1 ]]; then
-            valid=2
-        elif [[ "${line}" == "!INVALID" ]]; then
-            echo "Invalid test selection"
+    case ${status} in
+        0|1)
+            if [[ ${status} -eq 0 && ${testexit} -ne 0 ]]; then
+                echo "ERROR: java command failure"
+                echo "java ${OPTIONS} ${BOOTCLASSPATH} ${AGENTPATH} -cp ${CLASSPATH} ${MAINCLASS} ${ARGLIST}"
+                exit_cleanup
+                exit 1
+            fi
+            ;;
+        2)
+            # (danparse has displayed the reason)
+            echo "Test result: INVALID"
             exit_cleanup
             exit 1
-        fi
-    done < "${RAWFILE}"
-    if [[ valid -ne 2 ]]; then
-        echo "ERROR: Expected messages not found"
-        exit_cleanup
-        exit 1
-    fi
+            ;;
+        *)
+            # (danparse has displayed the reason)
+            echo "ERROR: danparse reported an error (status ${status})"
+            exit_cleanup
+            exit 1
+            ;;
+    esac
 
-    # now we read through the output file and extract the essentials
-    java -jar dist/danparse.jar ${TESTMODE} ${RAWFILE} ${OUTFILE}
     status=$(head -n 1 ${OUTFILE})
     echo "Test result: ${status}"
 
 exit 0
-